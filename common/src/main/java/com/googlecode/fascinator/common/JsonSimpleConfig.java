@@ -74,8 +74,11 @@ public class JsonSimpleConfig extends JsonSimple {
     /** Fallback to system configuration file */
     private JsonSimple systemConfig;
 
-    private static final String INCLUDE_DIR_KEY = "includeConfigDir";
-    private static final String INCLUDE_DIR_KEY_EXT = "includeConfigExt";
+    /** Flag set once systemConfig is a private copy rather than the snapshot */
+    private boolean systemConfigWritable = false;
+
+    static final String INCLUDE_DIR_KEY = "includeConfigDir";
+    static final String INCLUDE_DIR_KEY_EXT = "includeConfigExt";
 
     /**
      * Creates JSON Configuration object from the system config file
@@ -83,9 +86,19 @@ public class JsonSimpleConfig extends JsonSimple {
      * @throws IOException if there was an error during creation
      */
     public JsonSimpleConfig() throws IOException {
-        super(JsonSimpleConfig.getSystemFile());
-        systemConfig = new JsonSimple(JsonSimpleConfig.getSystemFile());
-        loadIncludeDir();
+        this(SystemConfigSnapshot.current());
+    }
+
+    /**
+     * Creates a JSON Configuration object holding a private copy of the given
+     * system configuration snapshot. The snapshot already has its included
+     * files merged, so there is nothing further to load.
+     *
+     * @param snapshot : The system configuration snapshot
+     */
+    private JsonSimpleConfig(SystemConfigSnapshot snapshot) {
+        super(snapshot.copyJsonObject());
+        systemConfig = snapshot.getConfig();
     }
 
     /**
@@ -96,7 +109,7 @@ public class JsonSimpleConfig extends JsonSimple {
      */
     public JsonSimpleConfig(File jsonFile) throws IOException {
         super(jsonFile);
-        systemConfig = new JsonSimple(JsonSimpleConfig.getSystemFile());
+        systemConfig = SystemConfigSnapshot.current().getConfig();
         loadIncludeDir();
     }
 
@@ -108,7 +121,7 @@ public class JsonSimpleConfig extends JsonSimple {
      */
     public JsonSimpleConfig(InputStream jsonIn) throws IOException {
         super(jsonIn);
-        systemConfig = new JsonSimple(JsonSimpleConfig.getSystemFile());
+        systemConfig = SystemConfigSnapshot.current().getConfig();
         loadIncludeDir();
     }
 
@@ -120,10 +133,21 @@ public class JsonSimpleConfig extends JsonSimple {
      */
     public JsonSimpleConfig(String jsonString) throws IOException {
         super(jsonString);
-        systemConfig = new JsonSimple(JsonSimpleConfig.getSystemFile());
+        systemConfig = SystemConfigSnapshot.current().getConfig();
         loadIncludeDir();
     }
 
+    /**
+     * Creates JSON Configuration object wrapping an existing JSON object. The
+     * object is used as is, so any included files should already be merged.
+     *
+     * @param jsonObject : The JSON object to wrap
+     */
+    public JsonSimpleConfig(JsonObject jsonObject) throws IOException {
+        super(jsonObject);
+        systemConfig = SystemConfigSnapshot.current().getConfig();
+    }
+
     /**
      * Performs a backup on the system-wide configuration file from the default
      * config dir if it exists. Returns a reference to the backed up file.
@@ -431,9 +455,20 @@ public class JsonSimpleConfig extends JsonSimple {
      * they they are made via writableSystemConfig().
      * </p>
      *
+     * <p>
+     * The system configuration is shared between all instances of this class
+     * (see SystemConfigSnapshot), so the first call will swap in a private copy
+     * before handing it out.
+     * </p>
+     *
      * @return JsonObject : A reference to the system configuration JSON object
      */
     public JsonObject writableSystemConfig() {
+        if (!systemConfigWritable) {
+            systemConfig = new JsonSimple(
+                    SystemConfigSnapshot.copy(systemConfig.getJsonObject()));
+            systemConfigWritable = true;
+        }
         return systemConfig.getJsonObject();
     }
 
@@ -454,6 +489,7 @@ public class JsonSimpleConfig extends JsonSimple {
         FileWriter writer = new FileWriter(JsonSimpleConfig.getSystemFile());
         writer.write(systemConfig.toString(true));
         writer.close();
+        SystemConfigSnapshot.invalidate();
     }
 
     /**
@@ -469,30 +505,31 @@ public class JsonSimpleConfig extends JsonSimple {
      * If the base property is of different type from the included property, the
      * included property will overwrite the base property.
      *
+     * The system configuration's own included directory has already been
+     * merged into the shared SystemConfigSnapshot.
+     *
      * For details, please look at JsonSimpleConfigTest.
      *
      */
     private void loadIncludeDir() {
         boolean hasIncludedDir = getJsonObject().containsKey(INCLUDE_DIR_KEY);
-        boolean systemHasIncludedDir = systemConfig.getJsonObject()
-                .containsKey(INCLUDE_DIR_KEY);
         if (hasIncludedDir) {
             log.trace("Loading main included dir...");
             loadIncludedDir(this);
         } else {
-            log.trace(
-                    "Main config has no included dir, trying system config...");
-        }
-        if (systemHasIncludedDir) {
-            log.trace("Loading system config included dir...");
-            loadIncludedDir(systemConfig);
-        } else {
-            log.trace("System config has no included dir, moving on...");
+            log.trace("Main config has no included dir, moving on...");
         }
     }
 
+    /**
+     * Lists the files that would be merged into the provided config from its
+     * INCLUDE_DIR_KEY directory, in the order they are merged.
+     *
+     * @param config : The configuration holding the include settings
+     * @return List<File> : The included files, sorted
+     */
     @SuppressWarnings(value = { "unchecked" })
-    private void loadIncludedDir(JsonSimple config) {
+    static List<File> listIncludedFiles(JsonSimple config) {
         List<String> extList = config.getStringList(INCLUDE_DIR_KEY_EXT);
         log.trace("Inclusion directory found:'" + INCLUDE_DIR_KEY
                 + "', merging all files in '"
@@ -515,8 +552,20 @@ public class JsonSimpleConfig extends JsonSimple {
         };
 
         Collections.sort(configFiles, ALPHABETICAL_ORDER);
+        return configFiles;
+    }
 
-        for (File configFile : configFiles) {
+    /**
+     * Merge every file from the provided config's INCLUDE_DIR_KEY directory
+     * into that config.
+     *
+     * @param config : The configuration to merge into
+     */
+    static void loadIncludedDir(JsonSimple config) {
+        if (!config.getJsonObject().containsKey(INCLUDE_DIR_KEY)) {
+            return;
+        }
+        for (File configFile : listIncludedFiles(config)) {
             try {
                 // log.debug("Merging included config file: {}",
                 // configFile);
@@ -530,7 +579,7 @@ public class JsonSimpleConfig extends JsonSimple {
     }
 
     @SuppressWarnings(value = { "unchecked" })
-    private void mergeConfig(Map targetMap, Map srcMap) {
+    private static void mergeConfig(Map targetMap, Map srcMap) {
         for (Object key : srcMap.keySet()) {
             Object src = srcMap.get(key);
             Object target = targetMap.get(key);
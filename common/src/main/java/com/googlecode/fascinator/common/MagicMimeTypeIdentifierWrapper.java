@@ -19,6 +19,10 @@
 package com.googlecode.fascinator.common;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.apache.commons.io.FilenameUtils;
 import org.ontoware.rdf2go.model.node.URI;
@@ -29,25 +33,55 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Wraps the Aperture MIME type identifier with provision to add custom types
- * based on extension.
+ * based on extension. Magic results are remembered by extension and leading
+ * bytes, so content that looks the same is only sniffed once.
  * 
  * @author Oliver Lucido
  */
 public class MagicMimeTypeIdentifierWrapper implements MimeTypeIdentifier {
+    /** Number of identified signatures to remember */
+    static final int CACHE_SIZE = 1024;
+
     private Logger log = LoggerFactory.getLogger(
             MagicMimeTypeIdentifierWrapper.class);
-    private JsonSimple mimeTypes;
-    private MagicMimeTypeIdentifier identifier;
+    private Map<String, String> mimeTypes;
+    private MimeTypeIdentifier identifier;
+    private Map<Signature, String> cache;
 
     public MagicMimeTypeIdentifierWrapper() {
+        this(new MagicMimeTypeIdentifier());
+    }
+
+    /**
+     * Wrap another identifier, for testing
+     * 
+     * @param identifier The identifier to ask for types not yet cached
+     */
+    MagicMimeTypeIdentifierWrapper(MimeTypeIdentifier identifier) {
         super();
+        this.identifier = identifier;
+        mimeTypes = new HashMap<String, String>();
         try {
             JsonSimpleConfig config = new JsonSimpleConfig();
-            mimeTypes = new JsonSimple(config.getObject("mime-types"));
-            identifier = new MagicMimeTypeIdentifier();
+            JsonObject custom = config.getObject("mime-types");
+            if (custom != null) {
+                for (Object key : custom.keySet()) {
+                    Object value = custom.get(key);
+                    if (value != null) {
+                        mimeTypes.put(key.toString(), value.toString());
+                    }
+                }
+            }
         } catch (IOException e) {
             log.warn("Failed to load custom MIME types");
         }
+        cache = new LinkedHashMap<Signature, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Signature, String> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
     }
 
     @Override
@@ -58,10 +92,61 @@ public class MagicMimeTypeIdentifierWrapper implements MimeTypeIdentifier {
     @Override
     public String identify(byte[] firstBytes, String fileName, URI uri) {
         String ext = FilenameUtils.getExtension(fileName);
-        String mimeType = mimeTypes.getString(null, ext);
+        String mimeType = mimeTypes.get(ext);
         if (mimeType != null) {
             return mimeType;
         }
-        return identifier.identify(firstBytes, fileName, uri);
+        if (uri != null) {
+            return identifier.identify(firstBytes, fileName, uri);
+        }
+
+        Signature signature = new Signature(ext, firstBytes,
+                identifier.getMinArrayLength());
+        synchronized (cache) {
+            if (cache.containsKey(signature)) {
+                return cache.get(signature);
+            }
+        }
+        mimeType = identifier.identify(firstBytes, fileName, uri);
+        synchronized (cache) {
+            cache.put(signature, mimeType);
+        }
+        return mimeType;
+    }
+
+    /**
+     * The parts of a request the magic identifier looks at: the extension and
+     * as many leading bytes as it reads
+     */
+    private static class Signature {
+        private String ext;
+        private byte[] bytes;
+        private int hash;
+
+        private Signature(String ext, byte[] firstBytes, int length) {
+            this.ext = ext;
+            if (firstBytes != null) {
+                bytes = firstBytes.length > length ? Arrays.copyOf(
+                        firstBytes, length) : firstBytes.clone();
+            }
+            hash = 31 * (ext == null ? 0 : ext.hashCode())
+                    + Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Signature)) {
+                return false;
+            }
+            Signature other = (Signature) obj;
+            return hash == other.hash
+                    && (ext == null ? other.ext == null : ext.equals(other.ext))
+                    && Arrays.equals(bytes, other.bytes);
+        }
     }
 }
@@ -109,6 +109,32 @@ public class MimeTypeUtil {
         return DEFAULT_MIME_TYPE;
     }
 
+    /**
+     * Gets the MIME type for the specified input stream and filename. Only
+     * the leading bytes are read, and the stream is closed.
+     * 
+     * @param in an input stream
+     * @param filename a file name
+     * @return MIME type
+     */
+    public static String getMimeType(InputStream in, String filename) {
+        try {
+            byte[] inBytes = IOUtil.readBytes(in, identifier
+                    .getMinArrayLength());
+            return identifier.identify(inBytes, filename, null);
+        } catch (IOException ioe) {
+            log.warn("Failed to detect MIME type (InputStream): {}",
+                    toPrintable(ioe));
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ioe) {
+                log.warn("Failed to close stream: {}", toPrintable(ioe));
+            }
+        }
+        return DEFAULT_MIME_TYPE;
+    }
+
     /**
      * Gets the MIME type for the specified byte array and filename
      * 
@@ -0,0 +1,743 @@
+/*
+ * The Fascinator - System Config Snapshot
+ * Copyright (C) 2026 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.googlecode.fascinator.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.json.simple.JSONArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * A process-wide, versioned and immutable view of the system configuration
+ * file (including any files merged in from its include directory).
+ * </p>
+ *
+ * <p>
+ * Every JsonSimpleConfig shares the current snapshot instead of reading and
+ * parsing 'system-config.json' itself. A background file watcher marks the
+ * snapshot as stale whenever the config directory (or an include directory)
+ * changes, and the next caller compares the file's modification time and MD5
+ * hash before deciding to reload. New versions are published atomically, so
+ * readers always see either the old or the new configuration, never a mix.
+ * </p>
+ *
+ * <p>
+ * <b>IMPORTANT:</b> The JSON held by a snapshot is shared by every thread in
+ * the JVM, so it is frozen once parsed and any attempt to modify it throws
+ * UnsupportedOperationException. Use JsonSimpleConfig.writableSystemConfig()
+ * to obtain a private, modifiable copy.
+ * </p>
+ */
+public final class SystemConfigSnapshot {
+
+    /** Logging */
+    private static Logger log = LoggerFactory
+            .getLogger(SystemConfigSnapshot.class);
+
+    /** The currently published snapshot */
+    private static final AtomicReference<SystemConfigSnapshot> current = new AtomicReference<SystemConfigSnapshot>();
+
+    /** Set by the watcher (or an explicit invalidate) when files change */
+    private static final AtomicBoolean dirty = new AtomicBoolean(true);
+
+    /** How many times the configuration has been re-parsed */
+    private static final AtomicLong reloadCount = new AtomicLong(0);
+
+    /** Guards reloading so only one thread parses at a time */
+    private static final Object reloadLock = new Object();
+
+    /** Directories currently registered with the watcher */
+    private static final Set<String> watchedDirs = Collections
+            .synchronizedSet(new HashSet<String>());
+
+    /** File watcher, null if unavailable on this platform */
+    private static volatile WatchService watcher;
+
+    /** Whether we have already tried to start the watcher */
+    private static boolean watcherStarted = false;
+
+    /** Version of this snapshot, incremented on every reload */
+    private final long version;
+
+    /** The parsed and merged system configuration */
+    private final JsonObject json;
+
+    /** Modification time of the system file when it was last checked */
+    private final long lastModified;
+
+    /** Size of the system file when it was last checked */
+    private final long length;
+
+    /** MD5 hash of the system file contents */
+    private final String hash;
+
+    /** Included files and their modification times */
+    private final Map<String, Long> includes;
+
+    private SystemConfigSnapshot(long version, JsonObject json,
+            long lastModified, long length, String hash,
+            Map<String, Long> includes) {
+        this.version = version;
+        this.json = json;
+        this.lastModified = lastModified;
+        this.length = length;
+        this.hash = hash;
+        this.includes = includes;
+    }
+
+    /**
+     * Gets the current system configuration snapshot, reloading it first if
+     * the underlying files have changed.
+     *
+     * @return SystemConfigSnapshot : The current snapshot
+     * @throws IOException if the system configuration could not be read
+     */
+    public static SystemConfigSnapshot current() throws IOException {
+        SystemConfigSnapshot snapshot = current.get();
+        if (snapshot != null && !mightBeStale()) {
+            return snapshot;
+        }
+
+        synchronized (reloadLock) {
+            // Clear the flag first, so changes arriving while we
+            // are checking will flag the next caller again.
+            dirty.set(false);
+            snapshot = current.get();
+            SystemConfigSnapshot fresh = refresh(snapshot);
+            if (fresh != snapshot) {
+                current.set(fresh);
+            }
+            return fresh;
+        }
+    }
+
+    /**
+     * Forces the next call to current() to check the files on disk. Used after
+     * the system configuration has been written from inside this JVM.
+     */
+    public static void invalidate() {
+        dirty.set(true);
+    }
+
+    /**
+     * Gets how many times the system configuration has been parsed since
+     * startup.
+     *
+     * @return long : The reload count
+     */
+    public static long getReloadCount() {
+        return reloadCount.get();
+    }
+
+    /**
+     * Gets the version of this snapshot. Versions start at 1 and increase by
+     * one every time the configuration is reloaded.
+     *
+     * @return long : The snapshot version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Gets the MD5 hash of the system configuration file this snapshot was
+     * parsed from.
+     *
+     * @return String : The file hash
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * Gets a read-only view of the shared configuration. The returned wrapper
+     * is cheap to create, and the JSON underneath it cannot be modified.
+     *
+     * @return JsonSimple : The shared system configuration
+     */
+    public JsonSimple getConfig() {
+        return new JsonSimple(json);
+    }
+
+    /**
+     * Gets a private deep copy of the configuration which the caller is free
+     * to modify.
+     *
+     * @return JsonObject : A copy of the system configuration
+     */
+    public JsonObject copyJsonObject() {
+        return copy(json);
+    }
+
+    /**
+     * Deep copy a JSON tree. Leaf values (Strings, Numbers, Booleans) are
+     * immutable and shared.
+     *
+     * @param object : The JsonObject to copy
+     * @return JsonObject : The copy
+     */
+    public static JsonObject copy(JsonObject object) {
+        JsonObject result = new JsonObject();
+        for (Map.Entry<Object, Object> entry : object.entrySet()) {
+            result.put(entry.getKey(), copyValue(entry.getValue()));
+        }
+        return result;
+    }
+
+    @SuppressWarnings(value = { "unchecked" })
+    private static Object copyValue(Object value) {
+        if (value instanceof JsonObject) {
+            return copy((JsonObject) value);
+        }
+        if (value instanceof JSONArray) {
+            JSONArray result = new JSONArray();
+            for (Object item : (JSONArray) value) {
+                result.add(copyValue(item));
+            }
+            return result;
+        }
+        if (value instanceof Map) {
+            JsonObject result = new JsonObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                result.put(entry.getKey(), copyValue(entry.getValue()));
+            }
+            return result;
+        }
+        return value;
+    }
+
+    /**
+     * When the watcher is running we can trust the dirty flag. Otherwise we
+     * have to assume every call might be stale and check the file stats.
+     *
+     */
+    private static boolean mightBeStale() {
+        return watcher == null || dirty.get();
+    }
+
+    /**
+     * Compare the files on disk against the given snapshot, returning either
+     * the same snapshot, a re-stamped copy (if only the modification time
+     * changed) or a freshly parsed version.
+     *
+     */
+    private static SystemConfigSnapshot refresh(SystemConfigSnapshot snapshot)
+            throws IOException {
+        File systemFile = JsonSimpleConfig.getSystemFile();
+        long modified = systemFile.lastModified();
+        long size = systemFile.length();
+
+        if (snapshot != null) {
+            Map<String, Long> includeStamps = includeStamps(snapshot.json);
+            boolean includesChanged = !includeStamps.equals(snapshot.includes);
+            if (!includesChanged && modified == snapshot.lastModified
+                    && size == snapshot.length) {
+                return snapshot;
+            }
+            if (!includesChanged) {
+                // Touched, but is the content really different?
+                String newHash = DigestUtils.md5Hex(FileUtils
+                        .readFileToByteArray(systemFile));
+                if (newHash.equals(snapshot.hash)) {
+                    log.debug("System config touched but unchanged, v{}",
+                            snapshot.version);
+                    return new SystemConfigSnapshot(snapshot.version,
+                            snapshot.json, modified, size, snapshot.hash,
+                            snapshot.includes);
+                }
+            }
+        }
+
+        long version = snapshot == null ? 1 : snapshot.version + 1;
+        SystemConfigSnapshot fresh = load(systemFile, version);
+        reloadCount.incrementAndGet();
+        log.info("Loaded system configuration v{} (hash: {})", version,
+                fresh.hash);
+        return fresh;
+    }
+
+    /**
+     * Read, parse and merge the system configuration from disk.
+     *
+     */
+    private static SystemConfigSnapshot load(File systemFile, long version)
+            throws IOException {
+        // Stat before reading, so a write racing with us is seen next time
+        long modified = systemFile.lastModified();
+        long size = systemFile.length();
+        byte[] data = FileUtils.readFileToByteArray(systemFile);
+        String hash = DigestUtils.md5Hex(data);
+
+        JsonSimple config = new JsonSimple(new String(data, "UTF-8"));
+        if (config.getJsonObject() == null) {
+            throw new IOException("Invalid system configuration: '"
+                    + systemFile.getAbsolutePath() + "'");
+        }
+        JsonSimpleConfig.loadIncludedDir(config);
+        Map<String, Long> includes = includeStamps(config.getJsonObject());
+
+        startWatching(systemFile.getAbsoluteFile().getParentFile());
+        String includeDir = includeDir(config.getJsonObject());
+        if (includeDir != null) {
+            watchTree(new File(includeDir));
+        }
+
+        return new SystemConfigSnapshot(version,
+                new FrozenObject(config.getJsonObject()), modified, size,
+                hash, includes);
+    }
+
+    private static String includeDir(JsonObject json) {
+        Object dir = json.get(JsonSimpleConfig.INCLUDE_DIR_KEY);
+        return dir instanceof String ? (String) dir : null;
+    }
+
+    /**
+     * Build a path -> modification time map of every included file.
+     *
+     */
+    private static Map<String, Long> includeStamps(JsonObject json) {
+        Map<String, Long> stamps = new LinkedHashMap<String, Long>();
+        if (includeDir(json) == null) {
+            return stamps;
+        }
+        List<File> files = JsonSimpleConfig.listIncludedFiles(new JsonSimple(
+                json));
+        for (File file : files) {
+            stamps.put(file.getAbsolutePath(), file.lastModified());
+        }
+        return stamps;
+    }
+
+    /**
+     * Register a directory and all of its subdirectories with the watcher.
+     *
+     */
+    private static void watchTree(File dir) {
+        startWatching(dir);
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                watchTree(child);
+            }
+        }
+    }
+
+    /**
+     * Register a directory with the file watcher, starting the watcher thread
+     * on first use. If the platform has no watch service we silently fall back
+     * to checking file stats on every access.
+     *
+     */
+    private static void startWatching(File dir) {
+        if (dir == null || !dir.isDirectory()) {
+            return;
+        }
+        synchronized (watchedDirs) {
+            if (!watcherStarted) {
+                watcherStarted = true;
+                try {
+                    WatchService service = FileSystems.getDefault()
+                            .newWatchService();
+                    Thread thread = new Thread(new Watcher(service),
+                            "SystemConfigWatcher");
+                    thread.setDaemon(true);
+                    thread.start();
+                    watcher = service;
+                } catch (IOException ex) {
+                    log.warn("File watcher unavailable, system config will"
+                            + " be checked on every access: {}",
+                            ex.getMessage());
+                }
+            }
+            WatchService service = watcher;
+            if (service == null
+                    || !watchedDirs.add(dir.getAbsolutePath())) {
+                return;
+            }
+            try {
+                dir.toPath().register(service,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+            } catch (IOException ex) {
+                log.warn("Unable to watch '{}': {}", dir, ex.getMessage());
+                watchedDirs.remove(dir.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Marks the snapshot dirty whenever anything changes in a watched
+     * directory. Working out whether it was a file we care about is left to
+     * the next reader, who will compare stats and hashes anyway.
+     */
+    private static class Watcher implements Runnable {
+        private WatchService service;
+
+        public Watcher(WatchService service) {
+            this.service = service;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                WatchKey key;
+                try {
+                    key = service.take();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                if (!key.pollEvents().isEmpty()) {
+                    dirty.set(true);
+                }
+                if (!key.reset()) {
+                    // Directory is gone, let it be registered again
+                    Path path = (Path) key.watchable();
+                    watchedDirs.remove(path.toFile().getAbsolutePath());
+                    dirty.set(true);
+                }
+            }
+        }
+    }
+    /**
+     * Freeze a JSON value, copying any containers into read-only versions.
+     *
+     */
+    private static Object freeze(Object value) {
+        if (value instanceof Map) {
+            return new FrozenObject((Map<?, ?>) value);
+        }
+        if (value instanceof List) {
+            return new FrozenArray((List<?>) value);
+        }
+        return value;
+    }
+
+    /**
+     * A JsonObject that cannot be modified after construction.
+     */
+    private static class FrozenObject extends JsonObject {
+        private static final long serialVersionUID = 1L;
+
+        private FrozenObject(Map<?, ?> map) {
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                super.put(entry.getKey(), freeze(entry.getValue()));
+            }
+        }
+
+        private static UnsupportedOperationException frozen() {
+            return new UnsupportedOperationException(
+                    "The shared system configuration is read-only");
+        }
+
+        @Override
+        public Object put(Object key, Object value) {
+            throw frozen();
+        }
+
+        @Override
+        public void putAll(Map<?, ?> map) {
+            throw frozen();
+        }
+
+        @Override
+        public Object putIfAbsent(Object key, Object value) {
+            throw frozen();
+        }
+
+        @Override
+        public Object remove(Object key) {
+            throw frozen();
+        }
+
+        @Override
+        public boolean remove(Object key, Object value) {
+            throw frozen();
+        }
+
+        @Override
+        public Object replace(Object key, Object value) {
+            throw frozen();
+        }
+
+        @Override
+        public boolean replace(Object key, Object oldValue, Object newValue) {
+            throw frozen();
+        }
+
+        @Override
+        public void replaceAll(
+                BiFunction<? super Object, ? super Object, ? extends Object> function) {
+            throw frozen();
+        }
+
+        @Override
+        public Object computeIfAbsent(Object key,
+                Function<? super Object, ? extends Object> function) {
+            throw frozen();
+        }
+
+        @Override
+        public Object computeIfPresent(Object key,
+                BiFunction<? super Object, ? super Object, ? extends Object> function) {
+            throw frozen();
+        }
+
+        @Override
+        public Object compute(Object key,
+                BiFunction<? super Object, ? super Object, ? extends Object> function) {
+            throw frozen();
+        }
+
+        @Override
+        public Object merge(Object key, Object value,
+                BiFunction<? super Object, ? super Object, ? extends Object> function) {
+            throw frozen();
+        }
+
+        @Override
+        public void clear() {
+            throw frozen();
+        }
+
+        @Override
+        public Set<Object> keySet() {
+            return Collections.unmodifiableSet(super.keySet());
+        }
+
+        @Override
+        public Collection<Object> values() {
+            return Collections.unmodifiableCollection(super.values());
+        }
+
+        @Override
+        public Set<Map.Entry<Object, Object>> entrySet() {
+            final Set<Map.Entry<Object, Object>> entries = super.entrySet();
+            return new AbstractSet<Map.Entry<Object, Object>>() {
+                @Override
+                public Iterator<Map.Entry<Object, Object>> iterator() {
+                    final Iterator<Map.Entry<Object, Object>> iterator = entries
+                            .iterator();
+                    return new Iterator<Map.Entry<Object, Object>>() {
+                        @Override
+                        public boolean hasNext() {
+                            return iterator.hasNext();
+                        }
+
+                        @Override
+                        public Map.Entry<Object, Object> next() {
+                            return new AbstractMap.SimpleImmutableEntry<Object, Object>(
+                                    iterator.next());
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw frozen();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return entries.size();
+                }
+            };
+        }
+    }
+
+    /**
+     * A JSONArray that cannot be modified after construction.
+     */
+    @SuppressWarnings(value = { "rawtypes", "unchecked" })
+    private static class FrozenArray extends JSONArray {
+        private static final long serialVersionUID = 1L;
+
+        private FrozenArray(List<?> list) {
+            for (Object item : list) {
+                super.add(freeze(item));
+            }
+        }
+
+        @Override
+        public boolean add(Object item) {
+            throw FrozenObject.frozen();
+        }
+
+        @Override
+        public void add(int index, Object item) {
+            throw FrozenObject.frozen();
+        }
+
+        @Override
+        public boolean addAll(Collection items) {
+            throw FrozenObject.frozen();
+        }
+
+        @Override
+        public boolean addAll(int index, Collection items) {
+            throw FrozenObject.frozen();
+        }
+
+        @Override
+        public Object set(int index, Object item) {
+            throw FrozenObject.frozen();
+        }
+
+        @Override
+        public Object remove(int index) {
+            throw FrozenObject.frozen();
+        }
+
+        @Override
+        public boolean remove(Object item) {
+            throw FrozenObject.frozen();
+        }
+
+        @Override
+        public boolean removeAll(Collection items) {
+            throw FrozenObject.frozen();
+        }
+
+        @Override
+        public boolean retainAll(Collection items) {
+            throw FrozenObject.frozen();
+        }
+
+        @Override
+        public boolean removeIf(Predicate filter) {
+            throw FrozenObject.frozen();
+        }
+
+        @Override
+        public void replaceAll(UnaryOperator operator) {
+            throw FrozenObject.frozen();
+        }
+
+        @Override
+        public void sort(Comparator comparator) {
+            throw FrozenObject.frozen();
+        }
+
+        @Override
+        public void clear() {
+            throw FrozenObject.frozen();
+        }
+
+        @Override
+        public Iterator iterator() {
+            return listIterator(0);
+        }
+
+        @Override
+        public ListIterator listIterator() {
+            return listIterator(0);
+        }
+
+        @Override
+        public ListIterator listIterator(int index) {
+            final ListIterator iterator = super.listIterator(index);
+            return new ListIterator() {
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public Object next() {
+                    return iterator.next();
+                }
+
+                @Override
+                public boolean hasPrevious() {
+                    return iterator.hasPrevious();
+                }
+
+                @Override
+                public Object previous() {
+                    return iterator.previous();
+                }
+
+                @Override
+                public int nextIndex() {
+                    return iterator.nextIndex();
+                }
+
+                @Override
+                public int previousIndex() {
+                    return iterator.previousIndex();
+                }
+
+                @Override
+                public void remove() {
+                    throw FrozenObject.frozen();
+                }
+
+                @Override
+                public void set(Object item) {
+                    throw FrozenObject.frozen();
+                }
+
+                @Override
+                public void add(Object item) {
+                    throw FrozenObject.frozen();
+                }
+            };
+        }
+
+        @Override
+        public List subList(int fromIndex, int toIndex) {
+            return Collections.unmodifiableList(super.subList(fromIndex,
+                    toIndex));
+        }
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * The Fascinator - Common Library - Batch Publisher
+ * Copyright (C) 2026 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.common.messaging;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.googlecode.fascinator.common.JsonSimple;
+
+/**
+ * <p>
+ * Publishes a high volume of messages to queues on its own connection, so
+ * that each send is not a separate synchronous round trip to the broker.
+ * </p>
+ *
+ * <p>
+ * With a batch size above 1 the session is transacted and committed once the
+ * batch holds 'size' messages or its oldest message is 'timeout' milliseconds
+ * old. With 'asyncSend' the connection does not wait for the broker to
+ * acknowledge each send. Configured from the 'messaging' node:
+ * </p>
+ *
+ * <pre>
+ * "messaging": {
+ *     "harvestBatch": {
+ *         "size": 100,
+ *         "timeout": 1000,
+ *         "asyncSend": false
+ *     }
+ * }
+ * </pre>
+ *
+ * <p>
+ * Messages are not visible to consumers until their batch is committed. A
+ * failed commit is rolled back and the batch sent again once. If that fails
+ * too, the failure is thrown by every later call, including close(), so the
+ * sender can tell its messages were lost. Always call close() when finished.
+ * </p>
+ */
+public class BatchPublisher {
+
+    /** Default batch size, ie. disabled */
+    public static final int DEFAULT_SIZE = 1;
+
+    /** Default maximum age of a batch in milliseconds */
+    public static final long DEFAULT_TIMEOUT = 1000;
+
+    /** Logging */
+    private static Logger log = LoggerFactory.getLogger(BatchPublisher.class);
+
+    /** Name of the owner, for logging */
+    private String name;
+
+    /** Messages per batch */
+    private int size;
+
+    /** Maximum batch age */
+    private long timeout;
+
+    /** JMS connection */
+    private Connection connection;
+
+    /** JMS session, transacted if batching */
+    private Session session;
+
+    /** JMS producer */
+    private MessageProducer producer;
+
+    /** Messages sent but not yet committed, as queue name and text */
+    private List<String[]> pending = new ArrayList<String[]>();
+
+    /** The commit failure that lost a batch, thrown by every later call */
+    private MessagingException failure;
+
+    /** When the oldest pending message was sent */
+    private long batchStart;
+
+    /** Background commit timer, only used when batching */
+    private Timer timer;
+
+    /**
+     * Whether the given configuration asks for anything other than plain
+     * MessagingServices sends
+     *
+     * @param config The configuration to check
+     * @param path Path to the batch configuration node
+     * @return boolean : True if a BatchPublisher should be used
+     */
+    public static boolean isEnabled(JsonSimple config, Object... path) {
+        JsonSimple batch = new JsonSimple(config.getObject(path));
+        return batch.getInteger(DEFAULT_SIZE, "size") > 1
+                || batch.getBoolean(false, "asyncSend");
+    }
+
+    /**
+     * Create a publisher from configuration
+     *
+     * @param name Owner name, for logging
+     * @param config The configuration
+     * @param path Path to the batch configuration node
+     * @throws MessagingException if the connection could not be established
+     */
+    public BatchPublisher(String name, JsonSimple config, Object... path)
+            throws MessagingException {
+        this(name, config.getString(
+                ActiveMQConnectionFactory.DEFAULT_BROKER_BIND_URL,
+                "messaging", "url"), new JsonSimple(config.getObject(path)));
+    }
+
+    private BatchPublisher(String name, String brokerUrl, JsonSimple batch)
+            throws MessagingException {
+        this(name, brokerUrl, batch.getInteger(DEFAULT_SIZE, "size"), batch
+                .getInteger((int) DEFAULT_TIMEOUT, "timeout"), batch
+                .getBoolean(false, "asyncSend"));
+    }
+
+    /**
+     * Create a publisher
+     *
+     * @param name Owner name, for logging
+     * @param brokerUrl The broker to connect to
+     * @param size Messages per batch, 1 or less to disable batching
+     * @param timeout Maximum age of a batch in milliseconds
+     * @param asyncSend Whether to send without waiting for acknowledgement
+     * @throws MessagingException if the connection could not be established
+     */
+    public BatchPublisher(String name, String brokerUrl, int size,
+            long timeout, boolean asyncSend) throws MessagingException {
+        this.name = name;
+        this.size = Math.max(1, size);
+        this.timeout = Math.max(1, timeout);
+
+        ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory(
+                brokerUrl);
+        factory.setUseAsyncSend(asyncSend);
+        try {
+            connection = factory.createConnection();
+            connection.start();
+            session = connection.createSession(isBatching(),
+                    isBatching() ? Session.SESSION_TRANSACTED
+                            : Session.AUTO_ACKNOWLEDGE);
+            producer = session.createProducer(null);
+            producer.setDeliveryMode(DeliveryMode.PERSISTENT);
+        } catch (JMSException ex) {
+            close();
+            throw new MessagingException(ex);
+        }
+
+        log.info("{} : Publishing in batches of {} or every {}ms, async: {}",
+                new Object[] { name, this.size, this.timeout, asyncSend });
+        if (isBatching()) {
+            timer = new Timer(name + "-publishBatch", true);
+            long period = Math.max(1, this.timeout / 2);
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    commitIfExpired();
+                }
+            }, period, period);
+        }
+    }
+
+    /**
+     * Whether sends are being committed in batches
+     *
+     * @return boolean : True if batching
+     */
+    public boolean isBatching() {
+        return size > 1;
+    }
+
+    /**
+     * Send a textual message to a named JMS queue
+     *
+     * @param queueName The queue to send to
+     * @param msg The message to send
+     * @throws MessagingException if the message could not be sent, or the
+     *             batch it completed could not be committed
+     */
+    public synchronized void queueMessage(String queueName, String msg)
+            throws MessagingException {
+        checkUsable();
+        try {
+            send(queueName, msg);
+        } catch (JMSException ex) {
+            throw new MessagingException(ex);
+        }
+        if (!isBatching()) {
+            return;
+        }
+        if (pending.isEmpty()) {
+            batchStart = System.currentTimeMillis();
+        }
+        pending.add(new String[] { queueName, msg });
+        if (pending.size() >= size
+                || System.currentTimeMillis() - batchStart >= timeout) {
+            commit();
+        }
+    }
+
+    /**
+     * Put an event on the subscriber queue
+     *
+     * @param param The event parameters
+     * @throws MessagingException if the message could not be sent
+     */
+    public void onEvent(Map<String, String> param) throws MessagingException {
+        queueMessage(MessagingServices.SUBSCRIBER_QUEUE,
+                MessagingServices.eventMessage(param));
+    }
+
+    /**
+     * Commit anything pending now
+     *
+     * @throws MessagingException if the commit failed, now or earlier
+     */
+    public synchronized void flush() throws MessagingException {
+        checkUsable();
+        if (!pending.isEmpty()) {
+            commit();
+        }
+    }
+
+    /**
+     * Commit anything pending and close the connection
+     *
+     * @throws MessagingException if any batch could not be committed
+     */
+    public void close() throws MessagingException {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+        synchronized (this) {
+            if (session != null && failure == null && !pending.isEmpty()) {
+                try {
+                    commit();
+                } catch (MessagingException ex) {
+                    // Thrown below
+                }
+            }
+            try {
+                if (connection != null) {
+                    // Closes the session and producer too
+                    connection.close();
+                }
+            } catch (JMSException ex) {
+                log.warn("{} : Failed closing connection: {}", name, ex);
+            }
+            connection = null;
+            session = null;
+            producer = null;
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Timer callback
+     *
+     */
+    private synchronized void commitIfExpired() {
+        if (session != null && failure == null && !pending.isEmpty()
+                && System.currentTimeMillis() - batchStart >= timeout) {
+            try {
+                commit();
+            } catch (MessagingException ex) {
+                // Recorded, and thrown to the sender's next call
+            }
+        }
+    }
+
+    /**
+     * Fail if the publisher is closed or has lost a batch. Must hold the
+     * lock.
+     *
+     */
+    private void checkUsable() throws MessagingException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (session == null) {
+            throw new MessagingException(name + " : Publisher is closed");
+        }
+    }
+
+    private void send(String queueName, String msg) throws JMSException {
+        producer.send(session.createQueue(queueName),
+                session.createTextMessage(msg));
+    }
+
+    /**
+     * Commit the session, rolling back and sending the batch again once if
+     * the commit fails. Must hold the lock.
+     *
+     */
+    private void commit() throws MessagingException {
+        int count = pending.size();
+        try {
+            session.commit();
+            log.debug("{} : Committed batch of {} message(s)", name, count);
+        } catch (JMSException ex) {
+            log.warn("{} : Failed to commit batch of {} message(s),"
+                    + " sending again: {}", new Object[] { name, count,
+                    ex.getMessage() });
+            try {
+                session.rollback();
+                for (String[] message : pending) {
+                    send(message[0], message[1]);
+                }
+                session.commit();
+                log.debug("{} : Committed batch of {} message(s)", name,
+                        count);
+            } catch (JMSException retry) {
+                log.error("{} : Batch of {} message(s) lost!", name, count);
+                failure = new MessagingException(name + " : Batch of "
+                        + count + " message(s) lost", retry);
+                throw failure;
+            }
+        } finally {
+            pending.clear();
+        }
+    }
+}
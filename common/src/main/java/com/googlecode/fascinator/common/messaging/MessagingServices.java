@@ -20,10 +20,13 @@
 package com.googlecode.fascinator.common.messaging;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.jms.Connection;
 import javax.jms.DeliveryMode;
@@ -41,7 +44,17 @@ import com.googlecode.fascinator.common.JsonObject;
 import com.googlecode.fascinator.common.JsonSimpleConfig;
 
 /**
+ * <p>
  * Messaging services
+ * </p>
+ * 
+ * <p>
+ * Safe to share between threads. Each broker has a single JMS connection,
+ * which JMS allows to be shared, but sessions and producers are not thread
+ * safe so every send borrows its own from a pool and returns it afterwards.
+ * The number of idle sessions kept per broker is set by
+ * 'messaging.producerPool.maxIdle' in the system config.
+ * </p>
  * 
  * @author Oliver Lucido
  */
@@ -56,12 +69,15 @@ public class MessagingServices {
     /** Message topic string */
     public static final String MESSAGE_TOPIC = "message";
 
+    /** Default number of idle sessions to keep per broker */
+    private static final int DEFAULT_MAX_IDLE = 16;
+
     /** Logging */
     private static Logger log = LoggerFactory
             .getLogger(MessagingServices.class);
 
     /** Reference counter */
-    private static int refCount = 0;
+    private static final AtomicInteger refCount = new AtomicInteger(0);
 
     /** Messaging Services instance */
     private static MessagingServices instance;
@@ -72,28 +88,59 @@ public class MessagingServices {
      * @return Messaging service instance
      * @throws JMSException if an error occurred starting the JMS connections
      */
-    public static MessagingServices getInstance() throws MessagingException {
+    public static synchronized MessagingServices getInstance()
+            throws MessagingException {
         if (instance == null) {
             instance = new MessagingServices();
         }
-        refCount++;
+        refCount.incrementAndGet();
         return instance;
     }
 
     /** AMQ Connector URL for THIS server */
     private String localBroker = ActiveMQConnectionFactory.DEFAULT_BROKER_BIND_URL;
 
+    /** Idle sessions to keep per broker */
+    private int maxIdle = DEFAULT_MAX_IDLE;
+
     /** AMQ Connectors */
     private Map<String, ActiveMQConnectionFactory> connectors;
 
-    /** JMS connections */
+    /** JMS connections, shared by all threads */
     private Map<String, Connection> connections;
 
-    /** JMS sessions */
-    private Map<String, Session> sessions;
+    /** Idle sessions and producers, by broker */
+    private Map<String, ConcurrentLinkedQueue<Channel>> idle;
+
+    /** Every open session and producer, so they can be closed on release */
+    private Set<Channel> channels;
 
-    /** JMS producers */
-    private Map<String, MessageProducer> producers;
+    /**
+     * A session and the producer created on it. Only ever used by one thread
+     * at a time.
+     */
+    private static class Channel {
+        private Session session;
+        private MessageProducer producer;
+
+        private Channel(Session session, MessageProducer producer) {
+            this.session = session;
+            this.producer = producer;
+        }
+
+        private void close() {
+            try {
+                producer.close();
+            } catch (JMSException jmse) {
+                log.warn("Failed closing producer: {}", jmse);
+            }
+            try {
+                session.close();
+            } catch (JMSException jmse) {
+                log.warn("Failed closing session: {}", jmse);
+            }
+        }
+    }
 
     /**
      * Starts a connection to a message broker
@@ -108,20 +155,23 @@ public class MessagingServices {
         try {
             config = new JsonSimpleConfig();
             localBroker = config.getString(localBroker, "messaging", "url");
+            maxIdle = Math.max(1, config.getInteger(DEFAULT_MAX_IDLE,
+                    "messaging", "producerPool", "maxIdle"));
         } catch (IOException ioe) {
             log.error("Failed to read configuration: {}", ioe.getMessage());
         }
 
         // Setup our connector factory(s)...
         // we'll only have a local one usually
-        connectors = new HashMap<String, ActiveMQConnectionFactory>();
+        connectors = new ConcurrentHashMap<String, ActiveMQConnectionFactory>();
         connectors.put(localBroker, new ActiveMQConnectionFactory(localBroker));
 
         // Setup the first of our JMS objects for a local broker
-        connections = new HashMap<String, Connection>();
-        sessions = new HashMap<String, Session>();
-        producers = new HashMap<String, MessageProducer>();
-        newProducer();
+        connections = new ConcurrentHashMap<String, Connection>();
+        idle = new ConcurrentHashMap<String, ConcurrentLinkedQueue<Channel>>();
+        channels = Collections
+                .newSetFromMap(new ConcurrentHashMap<Channel, Boolean>());
+        returnChannel(localBroker, newChannel(localBroker));
     }
 
     /**
@@ -135,13 +185,14 @@ public class MessagingServices {
     }
 
     /**
-     * Establish a new JMS Connection to any broker
+     * Establish a new JMS Connection to any broker. It replaces the shared
+     * connection for that broker.
      * 
      * @param The broker URL to use
      * @return Connection JMS connection
      * @throws MessagingException if an error occurs
      */
-    private Connection newConnection(String brokerUrl)
+    private synchronized Connection newConnection(String brokerUrl)
             throws MessagingException {
         // Hopefully we've seen this broker before
         if (!connectors.containsKey(brokerUrl)) {
@@ -151,17 +202,16 @@ public class MessagingServices {
         }
 
         // Try creating our connection
+        Connection connection;
         try {
-            connections.put(brokerUrl, connectors.get(brokerUrl)
-                    .createConnection());
+            connection = connectors.get(brokerUrl).createConnection();
         } catch (JMSException ex) {
             // Ignore the first error, in case it is just a dead connection
             try {
                 log.warn("Failed to create Connection! Try new connector.");
                 connectors.put(brokerUrl, new ActiveMQConnectionFactory(
                         brokerUrl));
-                connections.put(brokerUrl, connectors.get(brokerUrl)
-                        .createConnection());
+                connection = connectors.get(brokerUrl).createConnection();
             } catch (JMSException ex1) {
                 log.error("Error creating connection: ", ex1);
                 throw new MessagingException(ex1);
@@ -170,16 +220,42 @@ public class MessagingServices {
 
         // Start and return the new connection
         try {
-            connections.get(brokerUrl).start();
+            connection.start();
         } catch (JMSException ex) {
             log.error("Error starting the new connection: ", ex);
             throw new MessagingException(ex);
         }
-        return connections.get(brokerUrl);
+        connections.put(brokerUrl, connection);
+        return connection;
+    }
+
+    /**
+     * Get the shared connection to a broker, establishing it if required
+     * 
+     * @param brokerUrl The broker URL to use
+     * @return Connection JMS connection
+     * @throws MessagingException if an error occurs
+     */
+    private Connection getConnection(String brokerUrl)
+            throws MessagingException {
+        Connection connection = connections.get(brokerUrl);
+        if (connection != null) {
+            return connection;
+        }
+        synchronized (this) {
+            connection = connections.get(brokerUrl);
+            if (connection == null) {
+                log.info("Opening new AMQ Connection for broker: '{}'",
+                        brokerUrl);
+                connection = newConnection(brokerUrl);
+            }
+            return connection;
+        }
     }
 
     /**
-     * Establish a new JMS Session on an existing connection to the local broker
+     * Establish a new JMS Session on the connection to the local broker. The
+     * session belongs to the caller, who is responsible for closing it.
      * 
      * @return Session JMS session
      * @throws MessagingException if an error occurs
@@ -189,78 +265,103 @@ public class MessagingServices {
     }
 
     /**
-     * Establish a new JMS Session on an existing connection to any broker
+     * Establish a new JMS Session on the connection to any broker
      * 
      * @param The broker URL to use
      * @return Session JMS session
      * @throws MessagingException if an error occurs
      */
     private Session newSession(String brokerUrl) throws MessagingException {
-        // Confirm we have a connection to use
-        if (!connections.containsKey(brokerUrl)) {
-            log.info("Opening new AMQ Session for broker: '{}'", brokerUrl);
-            newConnection(brokerUrl);
-        }
-
-        // Establish a new session
+        Connection connection = getConnection(brokerUrl);
         try {
-            sessions.put(
-                    brokerUrl,
-                    connections.get(brokerUrl).createSession(false,
-                            Session.AUTO_ACKNOWLEDGE));
+            return connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
         } catch (JMSException ex) {
-            // Ignore the first error, in case it is just an expired session
+            // Ignore the first error, in case it is just a dead connection
             try {
                 log.warn("Failed to create Session! Trying a new connection.");
-                newConnection(brokerUrl);
-                sessions.put(brokerUrl, connections.get(brokerUrl)
-                        .createSession(false, Session.AUTO_ACKNOWLEDGE));
+                return newConnection(brokerUrl).createSession(false,
+                        Session.AUTO_ACKNOWLEDGE);
             } catch (JMSException ex1) {
                 log.error("Error establishing a new session: ", ex1);
                 throw new MessagingException(ex1);
             }
         }
-
-        return sessions.get(brokerUrl);
     }
 
     /**
-     * Establish a new JMS Message Producer in an existing session to the local
-     * broker
+     * Establish a new session and producer for the pool
      * 
-     * @return MessageProducer JMS Message Producer
+     * @param The broker URL to use
+     * @return Channel A new session and producer
      * @throws MessagingException if an error occurs
      */
-    private MessageProducer newProducer() throws MessagingException {
-        return newProducer(localBroker);
+    private Channel newChannel(String brokerUrl) throws MessagingException {
+        log.debug("Creating new AMQ Producer for broker: '{}'", brokerUrl);
+        Session session = newSession(brokerUrl);
+        try {
+            MessageProducer producer = session.createProducer(null);
+            producer.setDeliveryMode(DeliveryMode.PERSISTENT);
+            Channel channel = new Channel(session, producer);
+            channels.add(channel);
+            return channel;
+        } catch (JMSException ex) {
+            log.error("Error starting a new producer: ", ex);
+            try {
+                session.close();
+            } catch (JMSException jmse) {
+                // We're already failing
+            }
+            throw new MessagingException(ex);
+        }
     }
 
     /**
-     * Establish a new JMS Message Producer in an existing session to any broker
+     * Take an idle session and producer from the pool, or create one
      * 
      * @param The broker URL to use
-     * @return MessageProducer JMS Message Producer
+     * @return Channel A session and producer for the exclusive use of the
+     *         caller
      * @throws MessagingException if an error occurs
      */
-    private MessageProducer newProducer(String brokerUrl)
-            throws MessagingException {
-        // Confirm we have a session already
-        if (!sessions.containsKey(brokerUrl)) {
-            log.info("Creating new AMQ Producer for broker: '{}'", brokerUrl);
-            newSession(brokerUrl);
+    private Channel borrowChannel(String brokerUrl) throws MessagingException {
+        ConcurrentLinkedQueue<Channel> pool = idle.get(brokerUrl);
+        if (pool != null) {
+            Channel channel = pool.poll();
+            if (channel != null) {
+                return channel;
+            }
         }
+        return newChannel(brokerUrl);
+    }
 
-        // Establish a new producer
-        try {
-            producers.put(brokerUrl,
-                    sessions.get(brokerUrl).createProducer(null));
-            producers.get(brokerUrl).setDeliveryMode(DeliveryMode.PERSISTENT);
-        } catch (JMSException ex) {
-            log.error("Error starting a new producer: ", ex);
-            throw new MessagingException(ex);
+    /**
+     * Return a healthy session and producer to the pool
+     * 
+     * @param The broker URL it belongs to
+     * @param channel The session and producer
+     */
+    private void returnChannel(String brokerUrl, Channel channel) {
+        ConcurrentLinkedQueue<Channel> pool = idle.get(brokerUrl);
+        if (pool == null) {
+            idle.putIfAbsent(brokerUrl, new ConcurrentLinkedQueue<Channel>());
+            pool = idle.get(brokerUrl);
         }
+        // Don't hoard sessions after a burst of concurrent sends
+        if (pool.size() < maxIdle) {
+            pool.offer(channel);
+        } else {
+            discardChannel(channel);
+        }
+    }
 
-        return producers.get(brokerUrl);
+    /**
+     * Close a session and producer that is broken or not wanted
+     * 
+     * @param channel The session and producer
+     */
+    private void discardChannel(Channel channel) {
+        channels.remove(channel);
+        channel.close();
     }
 
     /**
@@ -268,40 +369,26 @@ public class MessagingServices {
      * are no longer any references to the instance.
      */
     public void release() {
-        refCount--;
-        if (instance != null && refCount <= 0) {
-            log.info("Closing message queue services...");
-            if (producers != null && !producers.isEmpty()) {
-                for (String key : producers.keySet()) {
-                    log.info("Closing producer for broker '{}'", key);
-                    try {
-                        producers.get(key).close();
-                    } catch (JMSException jmse) {
-                        log.warn("... failed: {}", jmse);
-                    }
-                }
+        synchronized (MessagingServices.class) {
+            if (refCount.decrementAndGet() > 0 || instance == null) {
+                return;
             }
-            if (sessions != null && !sessions.isEmpty()) {
-                for (String key : sessions.keySet()) {
-                    log.info("Closing session for broker '{}'", key);
-                    try {
-                        sessions.get(key).close();
-                    } catch (JMSException jmse) {
-                        log.warn("... failed: {}", jmse);
-                    }
-                }
+            log.info("Closing message queue services...");
+            for (Channel channel : channels) {
+                channel.close();
             }
-            if (connections != null && !connections.isEmpty()) {
-                for (String key : connections.keySet()) {
-                    log.info("Closing connection for broker '{}'", key);
-                    try {
-                        connections.get(key).close();
-                    } catch (JMSException jmse) {
-                        log.warn("... failed: {}", jmse);
-                    }
+            channels.clear();
+            idle.clear();
+            for (String key : connections.keySet()) {
+                log.info("Closing connection for broker '{}'", key);
+                try {
+                    connections.get(key).close();
+                } catch (JMSException jmse) {
+                    log.warn("... failed: {}", jmse);
                 }
             }
-            refCount = 0;
+            connections.clear();
+            refCount.set(0);
             instance = null;
         }
     }
@@ -330,9 +417,7 @@ public class MessagingServices {
      */
     public void publishMessage(String brokerUrl, String name, String msg)
             throws MessagingException {
-        Destination destination = getDestination(brokerUrl, name, false);
-        TextMessage message = prepareMessage(brokerUrl, msg);
-        sendMessage(brokerUrl, destination, message);
+        sendText(brokerUrl, name, false, msg);
     }
 
     /**
@@ -358,9 +443,7 @@ public class MessagingServices {
      */
     public void queueMessage(String brokerUrl, String name, String msg)
             throws MessagingException {
-        Destination destination = getDestination(brokerUrl, name, true);
-        TextMessage message = prepareMessage(brokerUrl, msg);
-        sendMessage(brokerUrl, destination, message);
+        sendText(brokerUrl, name, true, msg);
     }
 
     /**
@@ -386,9 +469,7 @@ public class MessagingServices {
      */
     public void topicMessage(String brokerUrl, String name, String msg)
             throws MessagingException {
-        Destination destination = getDestination(brokerUrl, name, false);
-        TextMessage message = prepareMessage(brokerUrl, msg);
-        sendMessage(brokerUrl, destination, message);
+        sendText(brokerUrl, name, false, msg);
     }
 
     /**
@@ -401,89 +482,74 @@ public class MessagingServices {
      */
     public void sendMessage(String brokerUrl, Destination destination,
             TextMessage msg) throws MessagingException {
-        // Check the producer first
-        if (!producers.containsKey(brokerUrl)) {
-            newProducer(brokerUrl);
-        }
-
+        Channel channel = borrowChannel(brokerUrl);
         try {
             // Try sending
-            producers.get(brokerUrl).send(destination, msg);
+            channel.producer.send(destination, msg);
         } catch (JMSException ex) {
             // Ignore the first error, in case it is just an expired session
+            discardChannel(channel);
+            log.warn("Failed to send message! Trying a new producer.");
+            channel = newChannel(brokerUrl);
             try {
-                log.warn("Failed to send message! Trying a new producer.");
-                newProducer(brokerUrl);
-                producers.get(brokerUrl).send(destination, msg);
+                channel.producer.send(destination, msg);
             } catch (JMSException ex1) {
+                discardChannel(channel);
                 log.error("Failed to send message:", ex1);
                 throw new MessagingException(ex1);
             }
         }
+        returnChannel(brokerUrl, channel);
     }
 
     /**
-     * Prepares a textual message as an instantiated JMS object ready to send.
+     * Create and send a textual message using a pooled session and producer.
+     * The whole exchange happens on one session, which no other thread touches
+     * until it is returned to the pool.
      * 
-     * @param brokerUrl The broker whose existing session we'll use to parse
+     * @param brokerUrl The broker to send to
+     * @param name The name of the destination
+     * @param queue True if the destination is a queue, False for topic
      * @param msg The message to send
-     * @return TextMessage An instantiated JMS message
-     * @throws MessagingException if an error occurred creating the message
+     * @throws MessagingException If an error occurs when attempting to send
      */
-    private TextMessage prepareMessage(String brokerUrl, String msg)
-            throws MessagingException {
-        // Check the session first, we use it to instantiate our message
-        if (!sessions.containsKey(brokerUrl)) {
-            newSession(brokerUrl);
-        }
-
+    private void sendText(String brokerUrl, String name, boolean queue,
+            String msg) throws MessagingException {
+        Channel channel = borrowChannel(brokerUrl);
         try {
-            // Create and return a Destination
-            return sessions.get(brokerUrl).createTextMessage(msg);
+            send(channel, name, queue, msg);
         } catch (JMSException ex) {
             // Ignore the first error, in case it is just an expired session
+            discardChannel(channel);
+            log.warn("Failed to send message! Trying a new session.");
+            channel = newChannel(brokerUrl);
             try {
-                log.warn("Failed to create message! Trying a new session.");
-                newSession(brokerUrl);
-                return sessions.get(brokerUrl).createTextMessage(msg);
+                send(channel, name, queue, msg);
             } catch (JMSException ex1) {
-                log.error("Failed to create message:", ex1);
+                discardChannel(channel);
+                log.error("Failed to send message:", ex1);
                 throw new MessagingException(ex1);
             }
         }
+        returnChannel(brokerUrl, channel);
     }
 
     /**
-     * Gets a JMS destination with the given name on the given broker.
-     * Destinations are not cached anymore.
+     * Trivial wrapper for sending on a channel. Original JMSException is
+     * preserved so the caller can retry on a new session.
      * 
-     * @param brokerUrl The broker where the destination should be found
+     * @param channel The session and producer to use
      * @param name The name of the destination
      * @param queue True if the destination is a queue, False for topic
-     * @return Destination An instantiated JMS destination
-     * @throws MessagingException if an error occurred creating the destination
+     * @param msg The message to send
+     * @throws JMSException if an error occurred
      */
-    private Destination getDestination(String brokerUrl, String name,
-            boolean queue) throws MessagingException {
-        // Check the session first
-        if (!sessions.containsKey(brokerUrl)) {
-            newSession(brokerUrl);
-        }
-
-        try {
-            // Create and return a Destination
-            return createDestination(sessions.get(brokerUrl), name, queue);
-        } catch (JMSException ex) {
-            // Ignore the first error, in case it is just an expired session
-            try {
-                log.warn("Failed to create Destination! Trying a new session.");
-                newSession(brokerUrl);
-                return createDestination(sessions.get(brokerUrl), name, queue);
-            } catch (JMSException ex1) {
-                log.error("Failed to create Destination:", ex1);
-                throw new MessagingException(ex1);
-            }
-        }
+    private void send(Channel channel, String name, boolean queue, String msg)
+            throws JMSException {
+        Destination destination = createDestination(channel.session, name,
+                queue);
+        TextMessage message = channel.session.createTextMessage(msg);
+        channel.producer.send(destination, message);
     }
 
     /**
@@ -515,6 +581,16 @@ public class MessagingServices {
      * @param jsonFile Configuration file
      */
     public void onEvent(Map<String, String> param) throws MessagingException {
+        queueMessage(SUBSCRIBER_QUEUE, eventMessage(param));
+    }
+
+    /**
+     * Build the subscriber queue message for an event
+     * 
+     * @param param The event parameters
+     * @return String The message to send
+     */
+    static String eventMessage(Map<String, String> param) {
         JsonObject json = new JsonObject();
         String username = param.get("username");
         if (username == null) {
@@ -530,6 +606,6 @@ public class MessagingServices {
                 json.put(key, param.get(key));
             }
         }
-        queueMessage(SUBSCRIBER_QUEUE, json.toString());
+        return json.toString();
     }
 }
@@ -0,0 +1,249 @@
+/*
+ * The Fascinator - Common Library
+ * Copyright (C) 2026 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.common.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * <p>
+ * MD5 hashing of file contents, straight from the bytes on disk. Small files
+ * are read through a channel into a reusable buffer, large files are memory
+ * mapped. Either way nothing is decoded or held in memory as a whole.
+ * </p>
+ *
+ * <p>
+ * Hashes are remembered against the file's path, size and last modified
+ * date, so an unchanged file is never read twice. open() hashes a file while
+ * it is being read for some other purpose, like storing it.
+ * </p>
+ */
+public class FileHasher {
+
+    /** Files larger than this are memory mapped */
+    private static final long MAP_THRESHOLD = 1024 * 1024;
+
+    /** Largest region mapped at once */
+    private static final long MAP_CHUNK = 64 * 1024 * 1024;
+
+    /** Read buffer size for smaller files */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Number of file hashes to remember */
+    private static final int CACHE_SIZE = 1024;
+
+    /** A remembered hash and the file state it belongs to */
+    private static class Entry {
+        private long size;
+        private long lastModified;
+        private String hash;
+
+        private Entry(long size, long lastModified, String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+
+    /** Remembered hashes by absolute path, least recently used first */
+    private static final Map<String, Entry> cache = new LinkedHashMap<String, Entry>(
+            16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Hash the contents of a file, reading it only if it has changed since it
+     * was last hashed
+     *
+     * @param file The File to hash
+     * @return String Hex encoded MD5 of the file's contents
+     * @throws IOException If there was an error accessing the file
+     */
+    public static String hash(File file) throws IOException {
+        long size = file.length();
+        long lastModified = file.lastModified();
+        String hash = cached(file, size, lastModified);
+        if (hash != null) {
+            return hash;
+        }
+
+        MessageDigest digest = newDigest();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            if (size > MAP_THRESHOLD) {
+                long position = 0;
+                while (position < size) {
+                    long length = Math.min(MAP_CHUNK, size - position);
+                    digest.update(channel.map(FileChannel.MapMode.READ_ONLY,
+                            position, length));
+                    position += length;
+                }
+            } else {
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                while (channel.read(buffer) != -1) {
+                    buffer.flip();
+                    digest.update(buffer);
+                    buffer.clear();
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        hash = new String(Hex.encodeHex(digest.digest()));
+        remember(file, size, lastModified, hash);
+        return hash;
+    }
+
+    /**
+     * Open a file for reading, hashing its contents as they are read
+     *
+     * @param file The File to read
+     * @return HashingInputStream : The stream
+     * @throws IOException If the file could not be opened
+     */
+    public static HashingInputStream open(File file) throws IOException {
+        return new HashingInputStream(file);
+    }
+
+    /**
+     * Forget every remembered hash
+     *
+     */
+    public static void clearCache() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    private static String cached(File file, long size, long lastModified) {
+        synchronized (cache) {
+            Entry entry = cache.get(file.getAbsolutePath());
+            if (entry != null && entry.size == size
+                    && entry.lastModified == lastModified) {
+                return entry.hash;
+            }
+            return null;
+        }
+    }
+
+    private static void remember(File file, long size, long lastModified,
+            String hash) {
+        synchronized (cache) {
+            cache.put(file.getAbsolutePath(), new Entry(size, lastModified,
+                    hash));
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * A file stream that hashes what is read through it. getHash() returns
+     * the hash of the whole file, first reading whatever the consumer left
+     * behind if the stream is still open.
+     */
+    public static class HashingInputStream extends DigestInputStream {
+        private File file;
+        private long size;
+        private long lastModified;
+        private boolean finished;
+        private boolean closed;
+        private String hash;
+
+        private HashingInputStream(File file) throws IOException {
+            super(new FileInputStream(file), newDigest());
+            this.file = file;
+            size = file.length();
+            lastModified = file.lastModified();
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                finish();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if (count == -1) {
+                finish();
+            }
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            super.close();
+        }
+
+        /**
+         * Get the hash of the file's contents
+         *
+         * @return String Hex encoded MD5 of the file's contents
+         * @throws IOException If there was an error reading the file, or it
+         *             was closed before being fully read
+         */
+        public String getHash() throws IOException {
+            if (!finished) {
+                if (closed) {
+                    throw new IOException("Stream closed before '"
+                            + file.getName() + "' was fully read");
+                }
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while (read(buffer) != -1) {
+                    // Just digesting
+                }
+            }
+            return hash;
+        }
+
+        private void finish() {
+            if (!finished) {
+                finished = true;
+                hash = new String(Hex.encodeHex(getMessageDigest().digest()));
+                remember(file, size, lastModified, hash);
+            }
+        }
+    }
+}
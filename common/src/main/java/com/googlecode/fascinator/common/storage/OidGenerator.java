@@ -0,0 +1,142 @@
+/*
+ * The Fascinator - Common Library
+ * Copyright (C) 2026 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.common.storage;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * <p>
+ * Generates object identifiers for files. An OID is the MD5 of the file's
+ * absolute path (with unix separators), the host name and the user name.
+ * </p>
+ *
+ * <p>
+ * The host name is resolved once, as it may need a reverse DNS lookup, and
+ * is only looked up again by refresh(). Output is identical to what
+ * StorageUtils.generateOid() has always produced.
+ * </p>
+ */
+public class OidGenerator {
+
+    /** Shared instance */
+    private static final OidGenerator instance = new OidGenerator();
+
+    /** One digest per thread, MessageDigest is not thread safe */
+    private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    };
+
+    /** Host and user name, appended to every path */
+    private volatile String identity;
+
+    /** Host name part of the identity */
+    private volatile String hostname;
+
+    /**
+     * Get the shared generator
+     *
+     * @return OidGenerator : The generator
+     */
+    public static OidGenerator getInstance() {
+        return instance;
+    }
+
+    /**
+     * Create a generator, resolving the host identity
+     *
+     */
+    public OidGenerator() {
+        refresh();
+    }
+
+    /**
+     * Look up the host and user names again, for instance after the host has
+     * been renamed
+     *
+     */
+    public void refresh() {
+        String host = StorageUtils.DEFAULT_HOSTNAME;
+        try {
+            host = InetAddress.getLocalHost().getCanonicalHostName();
+        } catch (UnknownHostException uhe) {
+        }
+        String username = System.getProperty("user.name", "anonymous");
+        hostname = host;
+        identity = host + username;
+    }
+
+    /**
+     * Get the host name used in OIDs
+     *
+     * @return String : The host name
+     */
+    public String getHostname() {
+        return hostname;
+    }
+
+    /**
+     * Generates an object identifier for a given file
+     *
+     * @param file the File to identify
+     * @return a String object id
+     */
+    public String generateOid(File file) {
+        return generateOid(file, identity, digests.get());
+    }
+
+    /**
+     * Generates object identifiers for several files at once
+     *
+     * @param files the Files to identify
+     * @return List<String> : The object ids, in the same order as the files
+     */
+    public List<String> generateOids(Collection<File> files) {
+        String id = identity;
+        MessageDigest digest = digests.get();
+        List<String> oids = new ArrayList<String>(files.size());
+        for (File file : files) {
+            oids.add(generateOid(file, id, digest));
+        }
+        return oids;
+    }
+
+    private String generateOid(File file, String id, MessageDigest digest) {
+        String path = FilenameUtils.separatorsToUnix(file.getAbsolutePath());
+        // Platform encoding, exactly as DigestUtils.md5Hex(String) in 1.3
+        digest.reset();
+        return new String(Hex.encodeHex(digest.digest((path + id).getBytes())));
+    }
+}
@@ -23,15 +23,11 @@ import com.googlecode.fascinator.api.storage.DigitalObject;
 import com.googlecode.fascinator.api.storage.Payload;
 import com.googlecode.fascinator.api.storage.Storage;
 import com.googlecode.fascinator.api.storage.StorageException;
-import org.apache.commons.codec.digest.DigestUtils;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.util.Properties;
 
 /**
@@ -59,28 +55,8 @@ public class StorageUtils {
      * @return a String object id
      */
     public static String generateOid(File file) {
-        // MD5 hash the file path,
-        String path = FilenameUtils.separatorsToUnix(file.getAbsolutePath());
-        String hostname = "localhost";
-        try {
-            hostname = InetAddress.getLocalHost().getCanonicalHostName();
-        } catch (UnknownHostException uhe) {
-        }
-        String username = System.getProperty("user.name", "anonymous");
-        // log.debug("Generating OID path:'{}' hostname:'{}' username:'{}'",
-        // new String[] { path, hostname, username });
-        return DigestUtils.md5Hex(path + hostname + username);
-    }
-
-    /**
-     * Hash the internal contents of a file.
-     * 
-     * @param file The File to hash
-     * @return String Hash of the file's contents
-     * @throws IOException If there was an error accessing the file
-     */
-    private static String hashFile(File file) throws IOException {
-        return DigestUtils.md5Hex(FileUtils.readFileToString(file));
+        // MD5 hash the file path, host name and user name
+        return OidGenerator.getInstance().generateOid(file);
     }
 
     /**
@@ -238,19 +214,25 @@ public class StorageUtils {
 
                 // Quick test - has it been changed?
                 if (oldMod == null || !oldMod.equals(lastMod)) {
-                    // Hash the file contents
+                    // Store the file, hashing as we go, so it is read once
                     String oldHash = metadata.getProperty("fileHash");
-                    String fileHash = hashFile(file);
-                    // Thorough test - have the contents changed?
-                    if (oldHash == null || !oldHash.equals(fileHash)) {
-                        // Update the file
-                        FileInputStream in = new FileInputStream(file);
+                    FileHasher.HashingInputStream in = FileHasher.open(file);
+                    String fileHash;
+                    try {
                         object.updatePayload(object.getSourceId(), in);
-                        // Update the metadata
-                        metadata.setProperty("lastModified", lastMod);
+                        fileHash = in.getHash();
+                    } finally {
+                        in.close();
+                    }
+                    metadata.setProperty("lastModified", lastMod);
+                    // Thorough test - have the contents changed?
+                    boolean changed = oldHash == null
+                            || !oldHash.equals(fileHash);
+                    if (changed) {
                         metadata.setProperty("fileHash", fileHash);
-                        // Close and return
-                        object.close();
+                    }
+                    object.close();
+                    if (changed) {
                         return object;
                     }
                 }
@@ -266,12 +248,22 @@ public class StorageUtils {
             log.error("There was problem finding a reference or file in storage.", ex);
             // It wasn't found in storage
             try {
-                // Store it
-                object = storeFile(storage, file);
+                // Store it, hashing as we go
+                object = getDigitalObject(storage, oid);
+                FileHasher.HashingInputStream in = FileHasher.open(file);
+                String fileHash;
+                try {
+                    Payload payload = createOrUpdatePayload(object,
+                            generatePid(file), in);
+                    payload.close();
+                    fileHash = in.getHash();
+                } finally {
+                    in.close();
+                }
                 // Update its metadata
                 metadata = object.getMetadata();
                 metadata.setProperty("lastModified", lastMod);
-                metadata.setProperty("fileHash", hashFile(file));
+                metadata.setProperty("fileHash", fileHash);
                 // Close and return
                 object.close();
                 return object;
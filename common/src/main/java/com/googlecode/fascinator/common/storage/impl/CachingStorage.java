@@ -0,0 +1,625 @@
+/*
+ * The Fascinator - Common Library
+ * Copyright (C) 2026 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.common.storage.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.googlecode.fascinator.api.PluginDescription;
+import com.googlecode.fascinator.api.PluginException;
+import com.googlecode.fascinator.api.storage.DigitalObject;
+import com.googlecode.fascinator.api.storage.ObjectIdCursor;
+import com.googlecode.fascinator.api.storage.Payload;
+import com.googlecode.fascinator.api.storage.PayloadType;
+import com.googlecode.fascinator.api.storage.Storage;
+import com.googlecode.fascinator.api.storage.StorageException;
+import com.googlecode.fascinator.common.JsonSimple;
+import com.googlecode.fascinator.common.JsonSimpleConfig;
+
+/**
+ * <p>
+ * Read-through cache in front of any storage plugin, enabled with
+ * 'storage/cache/enabled' in system-config. Objects returned by getObject()
+ * answer their source, payload IDs, metadata and small payloads from a
+ * StorageCache shared by every CachingStorage over the same plugin, and only
+ * go to the store for anything else. Any change made through an object drops
+ * it from the cache, as does removeObject().
+ * </p>
+ *
+ * <p>
+ * Metadata changed through getMetadata() is written when the object is
+ * closed, either straight away or, with write-behind enabled, within the
+ * delay by a timer this storage owns. A queued update is always written
+ * before the object is next read from the store, and consumers call
+ * flush(Storage, String) before indexing an object or passing it on, since
+ * the indexer reads the store directly. Only the properties that were
+ * changed are written. The timer uses the wrapped plugin from its own
+ * thread, so write-behind is only safe over plugins that may be used from
+ * several threads at once, and is off by default.
+ * </p>
+ *
+ * <p>
+ * Entries are only invalidated by changes made through a CachingStorage.
+ * Changes made through the plugin directly, or by another JVM, can go
+ * unseen for up to 'ttl' seconds.
+ * </p>
+ *
+ * <pre>
+ * "storage": {
+ *     "type": "file-system",
+ *     "cache": {
+ *         "enabled": true,
+ *         "maxObjects": 1000,
+ *         "maxBytes": 67108864,
+ *         "maxPayloadSize": 65536,
+ *         "ttl": 30,
+ *         "writeBehind": {
+ *             "enabled": false,
+ *             "delay": 1000
+ *         }
+ *     }
+ * }
+ * </pre>
+ */
+public class CachingStorage implements Storage {
+
+    /** Metadata payload, cached as properties rather than content */
+    private static final String METADATA_PAYLOAD = "TF-OBJ-META";
+
+    /** Logging */
+    private static Logger log = LoggerFactory.getLogger(CachingStorage.class);
+
+    /** The wrapped plugin */
+    private Storage storage;
+
+    /** Name hits and misses are counted against */
+    private String consumer;
+
+    /** Shared cache, available after init() */
+    private StorageCache cache;
+
+    /** Writes queued updates once their delay has passed */
+    private Timer writer;
+
+    /**
+     * Wrap a storage plugin if caching is enabled
+     *
+     * @param config System configuration
+     * @param storage The storage plugin, not yet initialised
+     * @param consumer Name to count hits and misses against
+     * @return Storage : A CachingStorage, or the plugin itself if caching is
+     *         disabled
+     */
+    public static Storage wrap(JsonSimple config, Storage storage,
+            String consumer) {
+        if (storage == null
+                || !config.getBoolean(false, "storage", "cache", "enabled")) {
+            return storage;
+        }
+        return new CachingStorage(storage, consumer);
+    }
+
+    /**
+     * Write an object's queued metadata update, if the storage is a
+     * CachingStorage and there is one. Call before the object is indexed or
+     * passed to another queue, whose readers may go around the cache.
+     *
+     * @param storage Any storage
+     * @param oid The object ID
+     * @throws StorageException if the update could not be written
+     */
+    public static void flush(Storage storage, String oid)
+            throws StorageException {
+        if (storage instanceof CachingStorage && oid != null) {
+            CachingStorage caching = (CachingStorage) storage;
+            if (caching.cache != null) {
+                caching.cache.flush(oid, caching.storage);
+            }
+        }
+    }
+
+    /**
+     * Wrap a storage plugin
+     *
+     * @param storage The storage plugin, not yet initialised
+     * @param consumer Name to count hits and misses against
+     */
+    public CachingStorage(Storage storage, String consumer) {
+        this.storage = storage;
+        this.consumer = consumer;
+    }
+
+    @Override
+    public String getId() {
+        return storage.getId();
+    }
+
+    @Override
+    public String getName() {
+        return storage.getName();
+    }
+
+    @Override
+    public PluginDescription getPluginDetails() {
+        return storage.getPluginDetails();
+    }
+
+    @Override
+    public void init(File jsonFile) throws PluginException {
+        storage.init(jsonFile);
+        try {
+            cache = StorageCache.getInstance(storage.getId(),
+                    new JsonSimpleConfig(jsonFile));
+        } catch (IOException ioe) {
+            throw new StorageException("Failed to read file configuration!",
+                    ioe);
+        }
+        startWriter();
+    }
+
+    @Override
+    public void init(String jsonString) throws PluginException {
+        storage.init(jsonString);
+        try {
+            cache = StorageCache.getInstance(storage.getId(),
+                    new JsonSimpleConfig(jsonString));
+        } catch (IOException ioe) {
+            throw new StorageException("Failed to read string configuration!",
+                    ioe);
+        }
+        startWriter();
+    }
+
+    @Override
+    public void shutdown() throws PluginException {
+        if (writer != null) {
+            writer.cancel();
+            writer = null;
+        }
+        if (cache != null) {
+            cache.flush(storage, true);
+            log.info("Storage cache '{}': {} hits, {} misses", new Object[] {
+                    consumer, cache.getHits(consumer),
+                    cache.getMisses(consumer) });
+        }
+        storage.shutdown();
+    }
+
+    @Override
+    public DigitalObject createObject(String oid) throws StorageException {
+        cache.flush(storage, false);
+        DigitalObject object = storage.createObject(oid);
+        cache.invalidate(oid);
+        return object;
+    }
+
+    @Override
+    public DigitalObject getObject(String oid) throws StorageException {
+        if (oid == null) {
+            return storage.getObject(oid);
+        }
+        cache.flush(storage, false);
+        StorageCache.Entry entry = cache.get(oid, consumer);
+        if (entry != null) {
+            return new CachedObject(oid, entry, null);
+        }
+        cache.flush(oid, storage);
+        DigitalObject object = storage.getObject(oid);
+        return new CachedObject(oid, cache.put(oid, object), object);
+    }
+
+    @Override
+    public void removeObject(String oid) throws StorageException {
+        cache.flush(storage, false);
+        if (oid != null) {
+            cache.discard(oid);
+        }
+        storage.removeObject(oid);
+        if (oid != null) {
+            cache.invalidate(oid);
+        }
+    }
+
+    @Override
+    public void removeObjects(Collection<String> oids)
+            throws StorageException {
+        cache.flush(storage, false);
+        for (String oid : oids) {
+            if (oid != null) {
+                cache.discard(oid);
+            }
+        }
+        try {
+            storage.removeObjects(oids);
+        } finally {
+            for (String oid : oids) {
+                if (oid != null) {
+                    cache.invalidate(oid);
+                }
+            }
+        }
+    }
+
+    @Override
+    public Set<String> getObjectIdList() {
+        return storage.getObjectIdList();
+    }
+
+    @Override
+    public ObjectIdCursor getObjectIds(String continuationToken)
+            throws StorageException {
+        return storage.getObjectIds(continuationToken);
+    }
+
+    /**
+     * The wrapped storage plugin
+     *
+     * @return Storage : The plugin
+     */
+    public Storage getStorage() {
+        return storage;
+    }
+
+    /**
+     * The shared cache and its statistics
+     *
+     * @return StorageCache : The cache, or null before init()
+     */
+    public StorageCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Write queued updates made through this storage on a timer, so they are
+     * written even if the consumer goes quiet
+     *
+     */
+    private void startWriter() {
+        if (writer != null || !cache.isWriteBehind()) {
+            return;
+        }
+        long delay = cache.getWriteDelay();
+        writer = new Timer(consumer + "-cacheWriter", true);
+        writer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                cache.flush(storage, false);
+            }
+        }, delay, delay);
+    }
+
+    private static Properties copy(Properties properties) {
+        Properties copy = new Properties();
+        copy.putAll(properties);
+        return copy;
+    }
+
+    /**
+     * An object as seen through the cache. Reads are answered from the cache
+     * entry where possible, filling it as they go. Anything else goes to the
+     * stored object, which is only fetched when first needed.
+     */
+    private class CachedObject implements DigitalObject {
+        private String oid;
+
+        /** The cache entry, null once this object has been changed */
+        private StorageCache.Entry entry;
+
+        /** The stored object, if fetched */
+        private DigitalObject stored;
+
+        /** Metadata handed out, and what it was when read */
+        private Properties metadata;
+        private Properties original;
+
+        private CachedObject(String oid, StorageCache.Entry entry,
+                DigitalObject stored) {
+            this.oid = oid;
+            this.entry = entry;
+            this.stored = stored;
+        }
+
+        @Override
+        public String getId() {
+            return oid;
+        }
+
+        @Override
+        public void setId(String oid) {
+            try {
+                stored().setId(oid);
+            } catch (StorageException ex) {
+                throw new IllegalStateException(ex);
+            }
+            changed();
+            this.oid = oid;
+            cache.invalidate(oid);
+        }
+
+        @Override
+        public String getSourceId() {
+            return entry == null ? stored.getSourceId() : entry.sourceId;
+        }
+
+        @Override
+        public void setSourceId(String pid) {
+            try {
+                stored().setSourceId(pid);
+            } catch (StorageException ex) {
+                throw new IllegalStateException(ex);
+            }
+            changed();
+        }
+
+        @Override
+        public Properties getMetadata() throws StorageException {
+            if (metadata != null) {
+                return metadata;
+            }
+            if (entry == null) {
+                return stored().getMetadata();
+            }
+            if (entry.metadata == null) {
+                StorageCache.Entry loaded = entry.withMetadata(copy(stored()
+                        .getMetadata()));
+                cache.replace(oid, entry, loaded);
+                entry = loaded;
+            }
+            original = entry.metadata;
+            metadata = copy(original);
+            return metadata;
+        }
+
+        @Override
+        public Set<String> getPayloadIdList() {
+            return entry == null ? stored.getPayloadIdList()
+                    : entry.payloadIds;
+        }
+
+        @Override
+        public Payload getPayload(String pid) throws StorageException {
+            if (entry != null) {
+                StorageCache.Content content = entry.payloads.get(pid);
+                if (content != null) {
+                    return new CachedPayload(pid, content);
+                }
+                if (!entry.payloadIds.contains(pid)) {
+                    throw new StorageException("ID '" + pid
+                            + "' does not exist.");
+                }
+            }
+            Payload payload = stored().getPayload(pid);
+            if (entry == null || METADATA_PAYLOAD.equals(pid)
+                    || !cache.isCacheable(payload.size())) {
+                return payload;
+            }
+
+            byte[] data;
+            InputStream in = payload.open();
+            try {
+                data = IOUtils.toByteArray(in);
+            } catch (IOException ex) {
+                throw new StorageException(ex);
+            } finally {
+                IOUtils.closeQuietly(in);
+                payload.close();
+            }
+            StorageCache.Content content = new StorageCache.Content(data,
+                    payload.getType(), payload.getLabel(),
+                    payload.getContentType(), payload.isLinked(),
+                    payload.lastModified());
+            StorageCache.Entry loaded = entry.withContent(pid, content);
+            cache.replace(oid, entry, loaded);
+            entry = loaded;
+            return new CachedPayload(pid, content);
+        }
+
+        @Override
+        public Payload createStoredPayload(String pid, InputStream in)
+                throws StorageException {
+            Payload payload = stored().createStoredPayload(pid, in);
+            changed();
+            return payload;
+        }
+
+        @Override
+        public Payload createLinkedPayload(String pid, String linkPath)
+                throws StorageException {
+            Payload payload = stored().createLinkedPayload(pid, linkPath);
+            changed();
+            return payload;
+        }
+
+        @Override
+        public void removePayload(String pid) throws StorageException {
+            stored().removePayload(pid);
+            changed();
+        }
+
+        @Override
+        public Payload updatePayload(String pid, InputStream in)
+                throws StorageException {
+            Payload payload = stored().updatePayload(pid, in);
+            changed();
+            return payload;
+        }
+
+        @Override
+        public Map<String, Payload> createOrUpdatePayloads(
+                Map<String, InputStream> payloads) throws StorageException {
+            Map<String, Payload> result = stored().createOrUpdatePayloads(
+                    payloads);
+            changed();
+            return result;
+        }
+
+        /**
+         * Write changed metadata, queueing it if write-behind is enabled and
+         * nothing else needs the stored object
+         */
+        @Override
+        public void close() throws StorageException {
+            if (metadata != null && !metadata.equals(original)) {
+                Properties update = copy(metadata);
+                if (stored == null && cache.isWriteBehind()) {
+                    cache.queue(storage, oid, original, update);
+                } else {
+                    StorageCache.update(stored().getMetadata(), original,
+                            update);
+                }
+                if (entry != null) {
+                    StorageCache.Entry updated = entry.withMetadata(update);
+                    cache.replace(oid, entry, updated);
+                    entry = updated;
+                }
+                original = update;
+            }
+            if (stored != null) {
+                stored.close();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return oid;
+        }
+
+        /**
+         * The stored object, fetched after writing any queued update
+         *
+         */
+        private DigitalObject stored() throws StorageException {
+            if (stored == null) {
+                cache.flush(oid, storage);
+                stored = storage.getObject(oid);
+            }
+            return stored;
+        }
+
+        /**
+         * Stop using the cache for this object
+         *
+         */
+        private void changed() {
+            cache.invalidate(oid);
+            entry = null;
+        }
+
+        /**
+         * A small payload served from the cache. Changes go to the stored
+         * payload.
+         */
+        private class CachedPayload implements Payload {
+            private String pid;
+            private StorageCache.Content content;
+
+            private CachedPayload(String pid, StorageCache.Content content) {
+                this.pid = pid;
+                this.content = content;
+            }
+
+            @Override
+            public String getId() {
+                return pid;
+            }
+
+            @Override
+            public void setId(String id) {
+                storedPayload().setId(id);
+            }
+
+            @Override
+            public PayloadType getType() {
+                return content.type;
+            }
+
+            @Override
+            public void setType(PayloadType type) {
+                storedPayload().setType(type);
+            }
+
+            @Override
+            public boolean isLinked() {
+                return content.linked;
+            }
+
+            @Override
+            public String getLabel() {
+                return content.label;
+            }
+
+            @Override
+            public void setLabel(String label) {
+                storedPayload().setLabel(label);
+            }
+
+            @Override
+            public String getContentType() {
+                return content.contentType;
+            }
+
+            @Override
+            public void setContentType(String mimeType) {
+                storedPayload().setContentType(mimeType);
+            }
+
+            @Override
+            public InputStream open() {
+                return new ByteArrayInputStream(content.data);
+            }
+
+            @Override
+            public void close() {
+                // Nothing held open
+            }
+
+            @Override
+            public Long lastModified() {
+                return content.lastModified;
+            }
+
+            @Override
+            public Long size() {
+                return Long.valueOf(content.data.length);
+            }
+
+            private Payload storedPayload() {
+                try {
+                    Payload payload = stored().getPayload(pid);
+                    changed();
+                    return payload;
+                } catch (StorageException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+        }
+    }
+}
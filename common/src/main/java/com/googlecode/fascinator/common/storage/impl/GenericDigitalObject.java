@@ -28,13 +28,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Generic DigitalObject implementation
+ * Generic DigitalObject implementation. The manifest may be read from any
+ * thread, and changes to payloads are serialised on the object's lock.
  *
  * @author Oliver Lucido
  */
@@ -66,14 +68,39 @@ public class GenericDigitalObject implements DigitalObject {
     /** Key for date created */
     private final String DATE_CREATED = "date_object_created";
 
+    /** Guards payload changes */
+    private final Object lock;
+
     /**
      * Creates a DigitalObject with the specified identifier and no metadata
      *
      * @param id unique identifier
      */
     public GenericDigitalObject(String id) {
+        this(id, null);
+    }
+
+    /**
+     * Creates a DigitalObject with the specified identifier and no metadata,
+     * guarding payload changes with a lock that may be shared with other
+     * objects
+     *
+     * @param id unique identifier
+     * @param lock the lock to use, or null for a private lock
+     */
+    public GenericDigitalObject(String id, Object lock) {
         setId(id);
-        manifest = new HashMap<String, Payload>();
+        manifest = new ConcurrentHashMap<String, Payload>();
+        this.lock = lock == null ? new Object() : lock;
+    }
+
+    /**
+     * Get the lock guarding this object's payloads
+     *
+     * @return the lock Object
+     */
+    public Object getLock() {
+        return lock;
     }
 
     /**
@@ -134,6 +161,17 @@ public class GenericDigitalObject implements DigitalObject {
      */
     @Override
     public Properties getMetadata() throws StorageException {
+        synchronized (lock) {
+            return loadMetadata();
+        }
+    }
+
+    /**
+     * Load the metadata payload, creating it if required
+     *
+     * @return A properties object
+     */
+    private Properties loadMetadata() throws StorageException {
         if (metadata == null) {
             Map<String, Payload> man = getManifest();
             // log.debug("Generic Manifest : " + man);
@@ -199,9 +237,11 @@ public class GenericDigitalObject implements DigitalObject {
     @Override
     public Payload createStoredPayload(String pid, InputStream in)
             throws StorageException {
-        GenericPayload payload = createPayload(pid, false);
-        payload.setInputStream(in);
-        return payload;
+        synchronized (lock) {
+            GenericPayload payload = createPayload(pid, false);
+            writeContent(payload, in);
+            return payload;
+        }
     }
 
     /**
@@ -216,14 +256,29 @@ public class GenericDigitalObject implements DigitalObject {
     @Override
     public Payload createLinkedPayload(String pid, String linkPath)
             throws StorageException {
-        GenericPayload payload = createPayload(pid, true);
-        try {
-            payload.setInputStream(new ByteArrayInputStream(linkPath
-                    .getBytes("UTF-8")));
-        } catch (UnsupportedEncodingException ex) {
-            throw new StorageException(ex);
+        synchronized (lock) {
+            GenericPayload payload = createPayload(pid, true);
+            try {
+                payload.setInputStream(new ByteArrayInputStream(linkPath
+                        .getBytes("UTF-8")));
+            } catch (UnsupportedEncodingException ex) {
+                throw new StorageException(ex);
+            }
+            return payload;
         }
-        return payload;
+    }
+
+    /**
+     * Write new stored content into a payload. Subclasses may override this
+     * to keep content somewhere other than the default PayloadBuffer.
+     *
+     * @param payload the payload to write to
+     * @param in the new content, which is closed afterwards
+     * @throws StorageException if the content could not be written
+     */
+    protected void writeContent(GenericPayload payload, InputStream in)
+            throws StorageException {
+        payload.setInputStream(in);
     }
 
     /**
@@ -265,12 +320,11 @@ public class GenericDigitalObject implements DigitalObject {
      */
     @Override
     public Payload getPayload(String pid) throws StorageException {
-        Map<String, Payload> man = getManifest();
-        if (man.containsKey(pid)) {
-            return man.get(pid);
-        } else {
+        Payload payload = pid == null ? null : getManifest().get(pid);
+        if (payload == null) {
             throw new StorageException("ID '" + pid + "' does not exist.");
         }
+        return payload;
     }
 
     /**
@@ -281,14 +335,18 @@ public class GenericDigitalObject implements DigitalObject {
      */
     @Override
     public void removePayload(String pid) throws StorageException {
-        Map<String, Payload> man = getManifest();
-        if (man.containsKey(pid)) {
+        synchronized (lock) {
+            Payload payload = pid == null ? null : getManifest().remove(
+                    pid);
+            if (payload == null) {
+                throw new StorageException("ID '" + pid + "' does not exist.");
+            }
             // Close the payload just in case,
             // since we are about to orphan it
-            man.get(pid).close();
-            man.remove(pid);
-        } else {
-            throw new StorageException("ID '" + pid + "' does not exist.");
+            payload.close();
+            if (payload instanceof GenericPayload) {
+                ((GenericPayload) payload).release();
+            }
         }
     }
 
@@ -304,41 +362,73 @@ public class GenericDigitalObject implements DigitalObject {
     @Override
     public Payload updatePayload(String pid, InputStream in)
             throws StorageException {
-        GenericPayload payload = (GenericPayload) getPayload(pid);
-        payload.setInputStream(in);
-        return payload;
+        synchronized (lock) {
+            GenericPayload payload = (GenericPayload) getPayload(pid);
+            writeContent(payload, in);
+            return payload;
+        }
     }
 
     /**
-     * Close the object
+     * Creates or updates several stored payloads at once, working directly
+     * against the manifest rather than looking up each payload in turn.
      *
-     * @throws StorageException if there was an error closing the object
+     * @param payloads A map of payload identifier to new contents
+     * @return a map of payload identifier to the created or updated payload
+     * @throws StorageException if there was an error writing a payload
      */
     @Override
-    public void close() throws StorageException {
+    public Map<String, Payload> createOrUpdatePayloads(
+            Map<String, InputStream> payloads) throws StorageException {
         Map<String, Payload> man = getManifest();
-        for (String pid : man.keySet()) {
-            man.get(pid).close();
+        Map<String, Payload> result = new LinkedHashMap<String, Payload>();
+        synchronized (lock) {
+            for (Map.Entry<String, InputStream> entry : payloads.entrySet()) {
+                String pid = entry.getKey();
+                GenericPayload payload = (GenericPayload) man.get(pid);
+                if (payload == null) {
+                    payload = createPayload(pid, false);
+                }
+                writeContent(payload, entry.getValue());
+                result.put(pid, payload);
+            }
         }
+        return result;
+    }
 
-        if (metadata != null) {
-            if (!man.containsKey(METADATA_PAYLOAD)) {
-                throw new StorageException("Metadata payload not found");
-            }
-            String date_created = (String) metadata.get(DATE_CREATED);
-            if (date_created == null) {
-                date_created = new DateTime().toString();
-                metadata.put(DATE_CREATED, date_created);
+    /**
+     * Close the object
+     *
+     * @throws StorageException if there was an error closing the object
+     */
+    @Override
+    public void close() throws StorageException {
+        synchronized (lock) {
+            Map<String, Payload> man = getManifest();
+            for (Payload payload : man.values()) {
+                payload.close();
             }
-            try {
-                ByteArrayOutputStream metaOut = new ByteArrayOutputStream();
-                metadata.store(metaOut, METADATA_LABEL);
-                InputStream in = new ByteArrayInputStream(metaOut.toByteArray());
-                updatePayload(METADATA_PAYLOAD, in);
-                in.close();
-                log.info("Closed metadata inputstream");
-            } catch (IOException ex) {
-                throw new StorageException(ex);
+
+            if (metadata != null) {
+                if (!man.containsKey(METADATA_PAYLOAD)) {
+                    throw new StorageException("Metadata payload not found");
+                }
+                String date_created = (String) metadata.get(DATE_CREATED);
+                if (date_created == null) {
+                    date_created = new DateTime().toString();
+                    metadata.put(DATE_CREATED, date_created);
+                }
+                try {
+                    ByteArrayOutputStream metaOut = new ByteArrayOutputStream();
+                    metadata.store(metaOut, METADATA_LABEL);
+                    InputStream in = new ByteArrayInputStream(
+                            metaOut.toByteArray());
+                    updatePayload(METADATA_PAYLOAD, in);
+                    in.close();
+                    log.info("Closed metadata inputstream");
+                } catch (IOException ex) {
+                    throw new StorageException(ex);
+                }
             }
         }
     }
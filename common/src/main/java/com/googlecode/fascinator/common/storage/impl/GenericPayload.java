@@ -18,14 +18,11 @@
  */
 package com.googlecode.fascinator.common.storage.impl;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
-import org.apache.poi.util.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -59,11 +56,14 @@ public class GenericPayload implements Payload {
     /** Content (MIME) type */
     private String contentType;
 
+    /** Content type should be detected from the content on next request */
+    private volatile boolean detectType = false;
+
     /** Input stream to read content data from */
     private InputStream inputStream;
 
     /** In memory storage for generic implementations */
-    private byte[] ramStore;
+    private volatile PayloadBuffer ramStore;
 
     /** Input stream to read content data from */
     private boolean metaChanged = false;
@@ -116,12 +116,13 @@ public class GenericPayload implements Payload {
     public GenericPayload(String id, File payloadFile) {
         setId(id);
         setLabel(payloadFile.getPath());
-        setContentType(MimeTypeUtil.getMimeType(payloadFile));
         try {
             setInputStream(new FileInputStream(payloadFile));
         } catch (IOException e) {
             log.error("Error accessing input stream during payload creation", e);
         }
+        // Typed by the file itself, its name may not match the payload ID
+        setContentType(MimeTypeUtil.getMimeType(payloadFile));
         metaChanged = false;
     }
 
@@ -251,15 +252,28 @@ public class GenericPayload implements Payload {
     }
 
     /**
-     * Gets the content (MIME) type for this payload
+     * Gets the content (MIME) type for this payload. If the content has
+     * changed since the type was last set, the type is detected now.
      * 
      * @return a MIME type
      */
     @Override
     public String getContentType() {
+        if (detectType) {
+            detectContentType();
+        }
         return contentType;
     }
 
+    /**
+     * Gets the content (MIME) type as it stands, without detecting it
+     * 
+     * @return String : The MIME type, or null while detection is pending
+     */
+    public String getStoredContentType() {
+        return detectType ? null : contentType;
+    }
+
     /**
      * Sets the content (MIME) type for this payload
      * 
@@ -267,6 +281,7 @@ public class GenericPayload implements Payload {
      */
     @Override
     public void setContentType(String contentType) {
+        detectType = false;
         metaChanged = metaChanged || (this.contentType != contentType);
         this.contentType = contentType;
     }
@@ -279,7 +294,16 @@ public class GenericPayload implements Payload {
      */
     @Override
     public InputStream open() throws StorageException {
-        inputStream = new ByteArrayInputStream(ramStore);
+        PayloadBuffer buffer = ramStore;
+        if (buffer == null) {
+            throw new StorageException("Payload '" + getId()
+                    + "' has no content");
+        }
+        try {
+            inputStream = buffer.open();
+        } catch (IOException ex) {
+            throw new StorageException(ex);
+        }
         return inputStream;
     }
 
@@ -303,17 +327,15 @@ public class GenericPayload implements Payload {
 
     /**
      * Sets the input stream to access the content for this payload. Note this
-     * stores the stream into memory, proper Payload implementations should
-     * override this method.
+     * stores the stream into memory (or a temporary file for large content,
+     * see PayloadBuffer), proper Payload implementations should override this
+     * method.
      * 
      * @param in the content input stream
      */
     public void setInputStream(InputStream in) {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            IOUtils.copy(in, out);
-            ramStore = out.toByteArray();
-            setContentType(MimeTypeUtil.getMimeType(ramStore, getId()));
+            setBuffer(PayloadBuffer.read(in));
         } catch (Exception e) {
             log.error("Failed to copy content to memory", e);
         } finally {
@@ -325,6 +347,114 @@ public class GenericPayload implements Payload {
         }
     }
 
+    /**
+     * Detect the content type from the leading bytes of the content. This
+     * only fills in what the content already implies, so it does not mark
+     * the metadata as changed.
+     * 
+     */
+    private synchronized void detectContentType() {
+        if (!detectType) {
+            return;
+        }
+        PayloadBuffer buffer = ramStore;
+        if (buffer == null) {
+            detectType = false;
+            return;
+        }
+        try {
+            contentType = MimeTypeUtil.getMimeType(buffer.open(), getId());
+            detectType = false;
+        } catch (IOException ex) {
+            log.error("Failed to detect content type", ex);
+            detectType = false;
+        }
+    }
+
+    /**
+     * Replace the payload's content with an already filled buffer, releasing
+     * the old content
+     * 
+     * @param buffer the new content
+     */
+    public void setBuffer(PayloadBuffer buffer) {
+        PayloadBuffer old = ramStore;
+        ramStore = buffer;
+        if (old != null) {
+            old.release();
+        }
+        detectType = true;
+    }
+
+    /**
+     * Get the buffer holding the payload's content
+     * 
+     * @return PayloadBuffer : The content, or null if there is none
+     */
+    public PayloadBuffer getBuffer() {
+        return ramStore;
+    }
+
+    /**
+     * Number of content bytes held in memory, on or off the heap
+     * 
+     * @return long : Bytes in memory, zero if spilled or empty
+     */
+    public long memorySize() {
+        PayloadBuffer buffer = ramStore;
+        if (buffer == null || buffer.isSpilled()) {
+            return 0;
+        }
+        return buffer.storedSize();
+    }
+
+    /**
+     * Whether the payload's content has been moved to disk
+     * 
+     * @return boolean : True if the content is in a file
+     */
+    public boolean isSpilled() {
+        PayloadBuffer buffer = ramStore;
+        return buffer != null && buffer.isSpilled();
+    }
+
+    /**
+     * Move the payload's content out of memory into a temporary file. Content
+     * already on disk is left where it is. Streams already open keep reading
+     * the old copy.
+     * 
+     * @param directory Where to write, or null for the system temp directory
+     * @throws StorageException if the content could not be written
+     */
+    public void spill(File directory) throws StorageException {
+        PayloadBuffer buffer = ramStore;
+        if (buffer == null || buffer.isSpilled()) {
+            return;
+        }
+        try {
+            PayloadBuffer spilled = buffer.spill(directory);
+            if (spilled != buffer) {
+                ramStore = spilled;
+                buffer.release();
+            }
+        } catch (IOException ex) {
+            throw new StorageException(ex);
+        }
+    }
+
+    /**
+     * Free the payload's content, including any temporary file. The payload
+     * has no content afterwards.
+     * 
+     */
+    public void release() {
+        PayloadBuffer buffer = ramStore;
+        ramStore = null;
+        if (buffer != null) {
+            buffer.release();
+        }
+    }
+
     /**
      * Gets the Payload identifier
      * 
@@ -353,7 +483,10 @@ public class GenericPayload implements Payload {
      */
     @Override
     public Long size() {
-        // No support, should be overwritten by real plugins
-        return null;
+        PayloadBuffer buffer = ramStore;
+        if (buffer == null) {
+            return null;
+        }
+        return buffer.size();
     }
 }
@@ -0,0 +1,388 @@
+/*
+ * The Fascinator - Common Library
+ * Copyright (C) 2026 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.common.storage.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.googlecode.fascinator.common.JsonSimpleConfig;
+
+/**
+ * <p>
+ * Holds the content of an in-memory payload. Content up to a threshold is
+ * kept in a single, exactly sized byte array. Anything larger is spilled to a
+ * temporary file as it is read, so no more than the threshold plus a copy
+ * buffer is ever held on the heap, whatever the size of the payload.
+ * </p>
+ *
+ * <p>
+ * Storage plugins may keep content elsewhere by extending this class and
+ * overriding open(), size(), storedSize(), isOnHeap(), isSpilled(), spill()
+ * and release().
+ * </p>
+ *
+ * <p>
+ * Configured from the system configuration:
+ * </p>
+ *
+ * <pre>
+ * "storage": {
+ *     "payloadBuffer": {
+ *         "threshold": 4194304,
+ *         "directory": "${java.io.tmpdir}"
+ *     }
+ * }
+ * </pre>
+ */
+public class PayloadBuffer {
+
+    /** Default largest payload kept on the heap, in bytes */
+    public static final int DEFAULT_THRESHOLD = 4 * 1024 * 1024;
+
+    /** Copy buffer size */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Largest threshold, leaving room for the extra byte read past it */
+    private static final int MAX_THRESHOLD = Integer.MAX_VALUE - 9;
+
+    /** Logging */
+    private static Logger log = LoggerFactory.getLogger(PayloadBuffer.class);
+
+    /** Configured threshold and spill directory, loaded on first use */
+    private static Integer defaultThreshold;
+    private static File defaultDirectory;
+
+    /** Heap content, if not spilled */
+    private byte[] data;
+
+    /** Spill files of buffers collected without being released */
+    private static final ReferenceQueue<PayloadBuffer> collected = new ReferenceQueue<PayloadBuffer>();
+
+    /** Keeps the references below reachable until they are enqueued */
+    private static final Set<SpillFile> spillFiles = Collections
+            .synchronizedSet(new HashSet<SpillFile>());
+
+    /** Spill file, if spilled */
+    private File file;
+
+    /** Deletes the spill file if this buffer is never released */
+    private SpillFile spillFile;
+
+    /** Content size in bytes */
+    private long size;
+
+    /**
+     * Read a stream into a buffer using the configured threshold. The stream
+     * is read to the end but not closed.
+     *
+     * @param in The content
+     * @return PayloadBuffer : The buffered content
+     * @throws IOException If there was an error reading or spilling
+     */
+    public static PayloadBuffer read(InputStream in) throws IOException {
+        loadConfig();
+        return read(in, defaultThreshold, defaultDirectory);
+    }
+
+    /**
+     * Read a stream into a buffer. The stream is read to the end but not
+     * closed.
+     *
+     * @param in The content
+     * @param threshold Largest size kept on the heap
+     * @param directory Where to spill, or null for the system temp directory
+     * @return PayloadBuffer : The buffered content
+     * @throws IOException If there was an error reading or spilling
+     */
+    public static PayloadBuffer read(InputStream in, int threshold,
+            File directory) throws IOException {
+        PayloadBuffer buffer = new PayloadBuffer();
+        threshold = Math.min(threshold, MAX_THRESHOLD);
+        byte[] bytes = new byte[Math.min(BUFFER_SIZE, threshold + 1)];
+        int count = 0;
+        int read;
+        // Fill the heap up to one byte past the threshold
+        while ((read = in.read(bytes, count, bytes.length - count)) != -1) {
+            count += read;
+            if (count == bytes.length) {
+                if (count > threshold) {
+                    break;
+                }
+                bytes = Arrays.copyOf(bytes,
+                        (int) Math.min((long) count * 2, threshold + 1L));
+            }
+        }
+
+        if (count <= threshold) {
+            buffer.data = count == bytes.length ? bytes : Arrays.copyOf(
+                    bytes, count);
+            buffer.size = count;
+            return buffer;
+        }
+
+        // Too big, move everything to disk
+        buffer.createFile(directory);
+        OutputStream out = new FileOutputStream(buffer.file);
+        try {
+            out.write(bytes, 0, count);
+            long total = count;
+            bytes = new byte[BUFFER_SIZE];
+            while ((read = in.read(bytes)) != -1) {
+                out.write(bytes, 0, read);
+                total += read;
+            }
+            buffer.size = total;
+        } catch (IOException ex) {
+            out.close();
+            buffer.release();
+            throw ex;
+        } finally {
+            out.close();
+        }
+        log.debug("Spilled {} byte payload to '{}'", buffer.size,
+                buffer.file.getName());
+        return buffer;
+    }
+
+    /**
+     * Create an empty buffer, for subclasses
+     *
+     */
+    protected PayloadBuffer() {
+    }
+
+    /**
+     * Open a new stream over the content
+     *
+     * @return InputStream : The content
+     * @throws IOException If a spilled buffer could not be read, or the
+     *             buffer has been released
+     */
+    public InputStream open() throws IOException {
+        if (data != null) {
+            return new ByteArrayInputStream(data);
+        }
+        if (file == null) {
+            throw new IOException("Payload buffer has been released");
+        }
+        return new FileInputStream(file);
+    }
+
+    /**
+     * Read up to the first 'length' bytes of the content
+     *
+     * @param length Maximum number of bytes
+     * @return byte[] : The leading bytes
+     * @throws IOException If a spilled buffer could not be read
+     */
+    public byte[] head(int length) throws IOException {
+        if (data != null) {
+            return length >= data.length ? data : Arrays.copyOf(data, length);
+        }
+        byte[] bytes = new byte[(int) Math.min(length, size())];
+        InputStream in = open();
+        try {
+            int count = 0;
+            int read;
+            while (count < bytes.length
+                    && (read = in.read(bytes, count, bytes.length - count)) != -1) {
+                count += read;
+            }
+            return count == bytes.length ? bytes : Arrays.copyOf(bytes, count);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Size of the content
+     *
+     * @return long : Size in bytes
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Bytes used to hold the content. The same as size() unless the content
+     * is held in some encoded form.
+     *
+     * @return long : Stored size in bytes
+     */
+    public long storedSize() {
+        return size();
+    }
+
+    /**
+     * Whether the content is held in a byte array on the heap
+     *
+     * @return boolean : True if the content is on the heap
+     */
+    public boolean isOnHeap() {
+        return data != null;
+    }
+
+    /**
+     * Whether the content has been spilled to disk
+     *
+     * @return boolean : True if the content is in a temporary file
+     */
+    public boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * Get a copy of this buffer on disk. A buffer that is already spilled is
+     * returned as it is, otherwise the content is written to a new temporary
+     * file and this buffer is left untouched.
+     *
+     * @param directory Where to spill, or null for the system temp directory
+     * @return PayloadBuffer : The spilled buffer
+     * @throws IOException If the content could not be written
+     */
+    public PayloadBuffer spill(File directory) throws IOException {
+        byte[] bytes = data;
+        if (bytes == null) {
+            return this;
+        }
+        PayloadBuffer buffer = new PayloadBuffer();
+        buffer.createFile(directory);
+        buffer.size = bytes.length;
+        OutputStream out = new FileOutputStream(buffer.file);
+        try {
+            out.write(bytes);
+        } catch (IOException ex) {
+            out.close();
+            buffer.release();
+            throw ex;
+        } finally {
+            out.close();
+        }
+        return buffer;
+    }
+
+    /**
+     * Free the content, deleting any spill file. Streams already open on a
+     * spill file keep working on platforms that allow it. Heap content is
+     * left to the garbage collector, so a reader that fetched this buffer
+     * just before it was replaced can still open it.
+     *
+     */
+    public synchronized void release() {
+        if (file != null) {
+            spillFiles.remove(spillFile);
+            spillFile.clear();
+            spillFile = null;
+            delete(file);
+            file = null;
+        }
+    }
+
+    /**
+     * Create this buffer's spill file, first deleting those of any buffers
+     * that were collected without being released
+     *
+     * @param directory Where to spill, or null for the system temp directory
+     * @throws IOException If the file could not be created
+     */
+    private void createFile(File directory) throws IOException {
+        SpillFile collectedFile;
+        while ((collectedFile = (SpillFile) collected.poll()) != null) {
+            spillFiles.remove(collectedFile);
+            log.debug("Deleting spill file of unreleased payload '{}'",
+                    collectedFile.file.getName());
+            delete(collectedFile.file);
+        }
+        file = File.createTempFile("payload", ".tmp", directory);
+        spillFile = new SpillFile(this, file);
+        spillFiles.add(spillFile);
+    }
+
+    /**
+     * Delete a spill file, leaving it for JVM exit if it is still in use
+     *
+     * @param file The spill file
+     */
+    private static void delete(File file) {
+        if (!file.delete() && file.exists()) {
+            log.warn("Could not delete payload spill file '{}'",
+                    file.getAbsolutePath());
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Remembers the spill file of a buffer, so it can still be deleted after
+     * the buffer itself has been collected
+     *
+     */
+    private static class SpillFile extends PhantomReference<PayloadBuffer> {
+        private File file;
+
+        private SpillFile(PayloadBuffer buffer, File file) {
+            super(buffer, collected);
+            this.file = file;
+        }
+    }
+
+    /**
+     * Load the threshold and spill directory from system config
+     *
+     */
+    private static synchronized void loadConfig() {
+        if (defaultThreshold != null) {
+            return;
+        }
+        int threshold = DEFAULT_THRESHOLD;
+        File directory = null;
+        try {
+            JsonSimpleConfig config = new JsonSimpleConfig();
+            threshold = config.getInteger(DEFAULT_THRESHOLD, "storage",
+                    "payloadBuffer", "threshold");
+            String path = config.getString(null, "storage", "payloadBuffer",
+                    "directory");
+            if (path != null) {
+                directory = new File(path);
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    log.error("Cannot create spill directory '{}', using"
+                            + " the system default", path);
+                    directory = null;
+                }
+            }
+        } catch (IOException ex) {
+            log.error("Failed to read configuration, threshold {}", threshold);
+        }
+        defaultThreshold = Math.max(0, threshold);
+        defaultDirectory = directory;
+    }
+}
@@ -0,0 +1,623 @@
+/*
+ * The Fascinator - Common Library
+ * Copyright (C) 2026 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.common.storage.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.googlecode.fascinator.api.storage.DigitalObject;
+import com.googlecode.fascinator.api.storage.PayloadType;
+import com.googlecode.fascinator.api.storage.Storage;
+import com.googlecode.fascinator.api.storage.StorageException;
+import com.googlecode.fascinator.common.JsonSimple;
+
+/**
+ * <p>
+ * Object cache shared by every CachingStorage wrapping the same storage
+ * plugin, so queue consumers each holding their own plugin instance still
+ * benefit from each other's reads.
+ * </p>
+ *
+ * <p>
+ * Holds a bounded, least recently used set of entries, each an immutable
+ * picture of one object: its source, payload IDs, metadata and the content
+ * of its small payloads. Changes made through a CachingStorage drop or
+ * replace the entry at once, but the cache cannot see changes made around
+ * it, by code using the plugin directly or by another JVM over the same
+ * store. Those may go unseen for up to 'ttl' seconds, when the entry
+ * expires.
+ * </p>
+ *
+ * <p>
+ * Metadata updates may be queued ('writeBehind', off by default), several
+ * updates to the same object being written once. A queued update is written
+ * through the plugin instance it was made with, by that CachingStorage's own
+ * timer or its next call after 'delay' milliseconds, or when the consumer
+ * flushes the object before passing it on. Anybody reading the object from
+ * the store before then writes it first, through their own instance. Until
+ * then readers that go around the cache, such as the indexer, see the old
+ * metadata, and a crash loses the update. Only the properties that were
+ * changed are written, leaving any other changes to the stored metadata in
+ * place.
+ * </p>
+ *
+ * <p>
+ * Lookups are counted per consumer.
+ * </p>
+ */
+public class StorageCache {
+
+    /** Defaults */
+    private static final int DEFAULT_MAX_OBJECTS = 1000;
+    private static final int DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+    private static final int DEFAULT_MAX_PAYLOAD = 64 * 1024;
+    private static final int DEFAULT_TTL = 30;
+    private static final int DEFAULT_DELAY = 1000;
+
+    /** Number of lock stripes, must be a power of two */
+    private static final int LOCK_STRIPES = 64;
+
+    /** Logging */
+    private static Logger log = LoggerFactory.getLogger(StorageCache.class);
+
+    /** Shared caches by storage plugin ID */
+    private static final Map<String, StorageCache> caches = new HashMap<String, StorageCache>();
+
+    /**
+     * Cached content of a small payload
+     */
+    static class Content {
+        final byte[] data;
+        final PayloadType type;
+        final String label;
+        final String contentType;
+        final boolean linked;
+        final Long lastModified;
+
+        Content(byte[] data, PayloadType type, String label,
+                String contentType, boolean linked, Long lastModified) {
+            this.data = data;
+            this.type = type;
+            this.label = label;
+            this.contentType = contentType;
+            this.linked = linked;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * What is known about one object. Never changed once cached, a new entry
+     * replaces it instead.
+     */
+    static class Entry {
+        final String sourceId;
+        final Set<String> payloadIds;
+        final Properties metadata;
+        final Map<String, Content> payloads;
+        final long expires;
+        final long weight;
+
+        Entry(String sourceId, Set<String> payloadIds, Properties metadata,
+                Map<String, Content> payloads, long expires) {
+            this.sourceId = sourceId;
+            this.payloadIds = Collections.unmodifiableSet(payloadIds);
+            this.metadata = metadata;
+            this.payloads = Collections.unmodifiableMap(payloads);
+            this.expires = expires;
+            long bytes = 0;
+            for (Content content : payloads.values()) {
+                bytes += content.data.length;
+            }
+            if (metadata != null) {
+                for (Map.Entry<Object, Object> property : metadata.entrySet()) {
+                    bytes += property.getKey().toString().length()
+                            + property.getValue().toString().length();
+                }
+            }
+            weight = bytes;
+        }
+
+        /**
+         * Copy of this entry with different metadata
+         *
+         */
+        Entry withMetadata(Properties metadata) {
+            return new Entry(sourceId, payloadIds, metadata, payloads, expires);
+        }
+
+        /**
+         * Copy of this entry with one more payload's content
+         *
+         */
+        Entry withContent(String pid, Content content) {
+            Map<String, Content> more = new HashMap<String, Content>(payloads);
+            more.put(pid, content);
+            return new Entry(sourceId, payloadIds, metadata, more, expires);
+        }
+    }
+
+    /**
+     * Lookup counts for one consumer
+     */
+    private static class Stats {
+        private final AtomicLong hits = new AtomicLong(0);
+        private final AtomicLong misses = new AtomicLong(0);
+    }
+
+    /**
+     * A metadata update waiting to be written, and the plugin instance it was
+     * made through
+     */
+    private static class PendingWrite {
+        private final Storage storage;
+        private final Properties original;
+        private final Properties metadata;
+        private final long due;
+
+        private PendingWrite(Storage storage, Properties original,
+                Properties metadata, long due) {
+            this.storage = storage;
+            this.original = original;
+            this.metadata = metadata;
+            this.due = due;
+        }
+    }
+
+    /** Limits */
+    private final int maxObjects;
+    private final long maxBytes;
+    private final int maxPayloadSize;
+    private final long ttl;
+
+    /** Write-behind delay in milliseconds, zero to write through */
+    private final long writeDelay;
+
+    /** Cached entries, least recently used first. Guarded by itself. */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+            16, 0.75f, true);
+    private long usedBytes = 0;
+
+    /** Queued metadata updates */
+    private final ConcurrentHashMap<String, PendingWrite> pending = new ConcurrentHashMap<String, PendingWrite>();
+
+    /** Serialise writes to the same object */
+    private final Object[] locks;
+
+    /** Lookups by consumer */
+    private final ConcurrentHashMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+
+    /**
+     * Get the cache shared by everything wrapping a storage plugin, creating
+     * it from config on first use
+     *
+     * @param storageId The storage plugin ID
+     * @param config System configuration, read from 'storage/cache'
+     * @return StorageCache : The shared cache
+     */
+    public static StorageCache getInstance(String storageId, JsonSimple config) {
+        synchronized (caches) {
+            StorageCache cache = caches.get(storageId);
+            if (cache == null) {
+                cache = new StorageCache(config, "storage", "cache");
+                caches.put(storageId, cache);
+                log.info("Caching up to {} objects from '{}' storage",
+                        cache.maxObjects, storageId);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Write any queued updates and drop every shared cache. Called once the
+     * consumers have stopped.
+     *
+     */
+    public static void clearAll() {
+        synchronized (caches) {
+            for (StorageCache cache : caches.values()) {
+                cache.close();
+            }
+            caches.clear();
+        }
+    }
+
+    /**
+     * Create a cache
+     *
+     * @param config Configuration
+     * @param path Path to the cache node
+     */
+    StorageCache(JsonSimple config, Object... path) {
+        maxObjects = Math.max(1, config.getInteger(DEFAULT_MAX_OBJECTS,
+                append(path, "maxObjects")));
+        maxBytes = Math.max(0, config.getInteger(DEFAULT_MAX_BYTES, append(
+                path, "maxBytes")));
+        maxPayloadSize = Math.max(0, config.getInteger(DEFAULT_MAX_PAYLOAD,
+                append(path, "maxPayloadSize")));
+        ttl = Math.max(1, config.getInteger(DEFAULT_TTL, append(path, "ttl")))
+                * 1000L;
+        if (config.getBoolean(false, append(path, "writeBehind", "enabled"))) {
+            writeDelay = Math.max(1, config.getInteger(DEFAULT_DELAY, append(
+                    path, "writeBehind", "delay")));
+        } else {
+            writeDelay = 0;
+        }
+
+        locks = new Object[LOCK_STRIPES];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Look up an object, counting a hit or miss for the consumer
+     *
+     * @param oid The object ID
+     * @param consumer Who is asking
+     * @return Entry : The cached entry, or null
+     */
+    Entry get(String oid, String consumer) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(oid);
+            if (entry != null && entry.expires < System.currentTimeMillis()) {
+                remove(oid);
+                entry = null;
+            }
+        }
+        Stats counts = statsFor(consumer);
+        if (entry == null) {
+            counts.misses.incrementAndGet();
+        } else {
+            counts.hits.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * Cache what is known about an object just read from the store
+     *
+     * @param oid The object ID
+     * @param object The object
+     * @return Entry : The new entry
+     */
+    Entry put(String oid, DigitalObject object) {
+        Entry entry = new Entry(object.getSourceId(), new TreeSet<String>(
+                object.getPayloadIdList()), null,
+                new HashMap<String, Content>(), System.currentTimeMillis()
+                        + ttl);
+        store(oid, entry);
+        return entry;
+    }
+
+    /**
+     * Replace an entry if it is still cached
+     *
+     * @param oid The object ID
+     * @param old The entry that was read
+     * @param entry The replacement
+     */
+    void replace(String oid, Entry old, Entry entry) {
+        synchronized (entries) {
+            if (entries.get(oid) == old) {
+                store(oid, entry);
+            }
+        }
+    }
+
+    /**
+     * Forget an object
+     *
+     * @param oid The object ID
+     */
+    void invalidate(String oid) {
+        synchronized (entries) {
+            remove(oid);
+        }
+    }
+
+    /**
+     * Whether payload content of this size should be cached
+     *
+     */
+    boolean isCacheable(Long size) {
+        return size != null && size >= 0 && size <= maxPayloadSize;
+    }
+
+    /**
+     * Whether metadata updates are queued rather than written immediately
+     *
+     */
+    boolean isWriteBehind() {
+        return writeDelay > 0;
+    }
+
+    /**
+     * Milliseconds a metadata update may wait before it is written
+     *
+     */
+    long getWriteDelay() {
+        return writeDelay;
+    }
+
+    /**
+     * Queue a metadata update. Later updates to the same object replace
+     * earlier ones that haven't been written yet, keeping their place in the
+     * queue.
+     *
+     * @param storage The plugin instance the update was made through
+     * @param oid The object ID
+     * @param original The metadata the update was made to
+     * @param metadata The complete new metadata
+     */
+    void queue(Storage storage, String oid, Properties original,
+            Properties metadata) {
+        synchronized (lockFor(oid)) {
+            PendingWrite queued = pending.get(oid);
+            if (queued == null) {
+                pending.put(oid, new PendingWrite(storage, original,
+                        metadata, System.currentTimeMillis() + writeDelay));
+            } else {
+                pending.put(oid, new PendingWrite(storage, queued.original,
+                        metadata, queued.due));
+            }
+        }
+    }
+
+    /**
+     * Write an object's queued metadata update now, if there is one
+     *
+     * @param oid The object ID
+     * @param storage The caller's own plugin instance, to write through
+     * @throws StorageException if the update could not be written
+     */
+    void flush(String oid, Storage storage) throws StorageException {
+        synchronized (lockFor(oid)) {
+            PendingWrite write = pending.remove(oid);
+            if (write == null) {
+                return;
+            }
+            DigitalObject object = storage.getObject(oid);
+            update(object.getMetadata(), write.original, write.metadata);
+            object.close();
+        }
+    }
+
+    /**
+     * Write the queued updates made through a plugin instance. Called by the
+     * consumer using it, so the instance is never used from two threads.
+     *
+     * @param storage The plugin instance
+     * @param all True to write every update, false for only those whose
+     *            delay has passed
+     */
+    void flush(Storage storage, boolean all) {
+        if (pending.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, PendingWrite> write : pending.entrySet()) {
+            PendingWrite value = write.getValue();
+            if (value.storage == storage && (all || value.due <= now)) {
+                try {
+                    flush(write.getKey(), storage);
+                } catch (StorageException ex) {
+                    log.error("Failed to write cached metadata for '{}'",
+                            write.getKey(), ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply the changes between two versions of an object's metadata,
+     * leaving any other property as it is
+     *
+     * @param target The metadata to change
+     * @param original What the metadata was when read
+     * @param metadata What it was changed to
+     */
+    static void update(Properties target, Properties original,
+            Properties metadata) {
+        for (Object key : original.keySet()) {
+            if (!metadata.containsKey(key)) {
+                target.remove(key);
+            }
+        }
+        for (Map.Entry<Object, Object> property : metadata.entrySet()) {
+            if (!property.getValue().equals(original.get(property.getKey()))) {
+                target.put(property.getKey(), property.getValue());
+            }
+        }
+    }
+
+    /**
+     * Drop an object's queued update, because the object is being removed.
+     * The caller removes the object afterwards.
+     *
+     * @param oid The object ID
+     */
+    void discard(String oid) {
+        synchronized (lockFor(oid)) {
+            pending.remove(oid);
+        }
+        invalidate(oid);
+    }
+
+    /**
+     * Write every queued update through the instance it was made with, and
+     * drop every entry. Only safe once the consumers have stopped.
+     *
+     */
+    void close() {
+        for (PendingWrite write : new ArrayList<PendingWrite>(pending
+                .values())) {
+            flush(write.storage, true);
+        }
+        synchronized (entries) {
+            entries.clear();
+            usedBytes = 0;
+        }
+    }
+
+    /**
+     * Number of lookups by a consumer that were served from the cache
+     *
+     * @param consumer The consumer
+     * @return long : The hit count
+     */
+    public long getHits(String consumer) {
+        Stats counts = stats.get(consumer);
+        return counts == null ? 0 : counts.hits.get();
+    }
+
+    /**
+     * Number of lookups by a consumer that went to the store
+     *
+     * @param consumer The consumer
+     * @return long : The miss count
+     */
+    public long getMisses(String consumer) {
+        Stats counts = stats.get(consumer);
+        return counts == null ? 0 : counts.misses.get();
+    }
+
+    /**
+     * Share of a consumer's lookups served from the cache
+     *
+     * @param consumer The consumer
+     * @return double : The hit rate from 0 to 1, zero if nothing was looked up
+     */
+    public double getHitRate(String consumer) {
+        long hits = getHits(consumer);
+        long total = hits + getMisses(consumer);
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Every consumer that has looked something up
+     *
+     * @return Set<String> : The consumer names
+     */
+    public Set<String> getConsumers() {
+        return new TreeSet<String>(stats.keySet());
+    }
+
+    /**
+     * Number of objects cached
+     *
+     * @return int : The object count
+     */
+    public int getObjectCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Approximate bytes held by cached entries
+     *
+     * @return long : The byte count
+     */
+    public long getUsedBytes() {
+        synchronized (entries) {
+            return usedBytes;
+        }
+    }
+
+    /**
+     * Number of metadata updates waiting to be written
+     *
+     * @return int : The update count
+     */
+    public int getPendingWrites() {
+        return pending.size();
+    }
+
+    /**
+     * Log every consumer's hit rate
+     *
+     */
+    public void logStatistics() {
+        for (String consumer : getConsumers()) {
+            log.info("Storage cache '{}': {} hits, {} misses ({}%)",
+                    new Object[] { consumer, getHits(consumer),
+                            getMisses(consumer),
+                            Math.round(getHitRate(consumer) * 100) });
+        }
+    }
+
+    private void store(String oid, Entry entry) {
+        synchronized (entries) {
+            remove(oid);
+            if (entry.weight > maxBytes) {
+                return;
+            }
+            entries.put(oid, entry);
+            usedBytes += entry.weight;
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (eldest.hasNext()
+                    && (entries.size() > maxObjects || usedBytes > maxBytes)) {
+                usedBytes -= eldest.next().weight;
+                eldest.remove();
+            }
+        }
+    }
+
+    private void remove(String oid) {
+        Entry old = entries.remove(oid);
+        if (old != null) {
+            usedBytes -= old.weight;
+        }
+    }
+
+    private Stats statsFor(String consumer) {
+        Stats counts = stats.get(consumer);
+        if (counts == null) {
+            stats.putIfAbsent(consumer, new Stats());
+            counts = stats.get(consumer);
+        }
+        return counts;
+    }
+
+    private Object lockFor(String oid) {
+        int hash = oid.hashCode();
+        hash ^= (hash >>> 16);
+        return locks[hash & (LOCK_STRIPES - 1)];
+    }
+
+    private static Object[] append(Object[] path, String... keys) {
+        Object[] full = new Object[path.length + keys.length];
+        System.arraycopy(path, 0, full, 0, path.length);
+        System.arraycopy(keys, 0, full, path.length, keys.length);
+        return full;
+    }
+}
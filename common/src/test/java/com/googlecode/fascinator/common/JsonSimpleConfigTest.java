@@ -21,6 +21,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
 
@@ -80,4 +81,45 @@ public class JsonSimpleConfigTest {
         assertNull(config.getObject("nullNode"));
     }
 
+    @Test
+    public void testSharedSystemConfig() throws Exception {
+        long version = SystemConfigSnapshot.current().getVersion();
+        long reloads = SystemConfigSnapshot.getReloadCount();
+        for (int i = 0; i < 10; i++) {
+            new JsonSimpleConfig("{}");
+        }
+        assertEquals(version, SystemConfigSnapshot.current().getVersion());
+        assertEquals(reloads, SystemConfigSnapshot.getReloadCount());
+
+        // Private copies must not leak into the shared snapshot
+        JsonSimpleConfig writer = new JsonSimpleConfig("{}");
+        writer.writableSystemConfig().put("snapshotTest", "changed");
+        assertEquals("changed", writer.getString(null, "snapshotTest"));
+        JsonSimpleConfig reader = new JsonSimpleConfig("{}");
+        assertNull(reader.getString(null, "snapshotTest"));
+    }
+
+    @Test
+    public void testSnapshotIsReadOnly() throws Exception {
+        JsonObject json = SystemConfigSnapshot.current().getConfig()
+                .getJsonObject();
+        try {
+            json.put("snapshotTest", "changed");
+            fail("Shared system config should be read-only");
+        } catch (UnsupportedOperationException ex) {
+            // Expected
+        }
+        for (Object value : json.values()) {
+            if (value instanceof JsonObject) {
+                try {
+                    ((JsonObject) value).clear();
+                    fail("Nested system config should be read-only");
+                } catch (UnsupportedOperationException ex) {
+                    // Expected
+                }
+            }
+        }
+        assertNull(new JsonSimpleConfig("{}").getString(null, "snapshotTest"));
+    }
+
 }
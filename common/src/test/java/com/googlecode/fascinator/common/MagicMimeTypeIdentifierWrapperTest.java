@@ -0,0 +1,96 @@
+/*
+ * The Fascinator - Common Library
+ * Copyright (C) 2026 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.common;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.ontoware.rdf2go.model.node.URI;
+import org.semanticdesktop.aperture.mime.identifier.MimeTypeIdentifier;
+
+/**
+ * Unit tests for the MIME type identifier's signature cache
+ */
+public class MagicMimeTypeIdentifierWrapperTest {
+
+    /**
+     * Content that looks the same to the identifier is only identified once
+     */
+    @Test
+    public void sameSignature() throws Exception {
+        CountingIdentifier counting = new CountingIdentifier();
+        MagicMimeTypeIdentifierWrapper wrapper = new MagicMimeTypeIdentifierWrapper(
+                counting);
+
+        String type = wrapper.identify("abcd".getBytes(), "one.txt", null);
+        Assert.assertEquals(type,
+                wrapper.identify("abcd".getBytes(), "two.txt", null));
+        // Bytes past what the identifier reads make no difference
+        Assert.assertEquals(type,
+                wrapper.identify("abcdefgh".getBytes(), "three.txt", null));
+        Assert.assertEquals(1, counting.calls);
+
+        // A different extension or different leading bytes are new
+        wrapper.identify("abcd".getBytes(), "one.xml", null);
+        wrapper.identify("abce".getBytes(), "one.txt", null);
+        Assert.assertEquals(3, counting.calls);
+    }
+
+    /**
+     * The cache is bounded, least recently used signatures are dropped
+     */
+    @Test
+    public void bounded() throws Exception {
+        CountingIdentifier counting = new CountingIdentifier();
+        MagicMimeTypeIdentifierWrapper wrapper = new MagicMimeTypeIdentifierWrapper(
+                counting);
+
+        for (int i = 0; i <= MagicMimeTypeIdentifierWrapper.CACHE_SIZE; i++) {
+            wrapper.identify(new byte[] { 1, 2, 3, 4 }, "file." + i, null);
+        }
+        Assert.assertEquals(MagicMimeTypeIdentifierWrapper.CACHE_SIZE + 1,
+                counting.calls);
+
+        // The newest is still cached, the oldest has gone
+        wrapper.identify(new byte[] { 1, 2, 3, 4 }, "file."
+                + MagicMimeTypeIdentifierWrapper.CACHE_SIZE, null);
+        Assert.assertEquals(MagicMimeTypeIdentifierWrapper.CACHE_SIZE + 1,
+                counting.calls);
+        wrapper.identify(new byte[] { 1, 2, 3, 4 }, "file.0", null);
+        Assert.assertEquals(MagicMimeTypeIdentifierWrapper.CACHE_SIZE + 2,
+                counting.calls);
+    }
+
+    /**
+     * Reads four bytes and counts how often it is asked for a type
+     */
+    private static class CountingIdentifier implements MimeTypeIdentifier {
+        private int calls;
+
+        @Override
+        public int getMinArrayLength() {
+            return 4;
+        }
+
+        @Override
+        public String identify(byte[] firstBytes, String fileName, URI uri) {
+            calls++;
+            return "application/x-test-" + calls;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * The Fascinator - Common Library
+ * Copyright (C) 2026 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.common.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Unit tests for FileHasher
+ */
+public class FileHasherTest {
+
+    private File file;
+
+    @After
+    public void cleanup() {
+        FileHasher.clearCache();
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Small files are read through a buffer
+     */
+    @Test
+    public void smallFile() throws Exception {
+        byte[] data = write(10 * 1024);
+        Assert.assertEquals(DigestUtils.md5Hex(data), FileHasher.hash(file));
+    }
+
+    /**
+     * Large files are memory mapped
+     */
+    @Test
+    public void largeFile() throws Exception {
+        byte[] data = write(3 * 1024 * 1024 + 17);
+        Assert.assertEquals(DigestUtils.md5Hex(data), FileHasher.hash(file));
+    }
+
+    /**
+     * A stream that was only partly read still hashes the whole file
+     */
+    @Test
+    public void stream() throws Exception {
+        byte[] data = write(200 * 1024);
+        FileHasher.HashingInputStream in = FileHasher.open(file);
+        try {
+            in.read(new byte[1000]);
+            Assert.assertEquals(DigestUtils.md5Hex(data), in.getHash());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * A changed file is hashed again
+     */
+    @Test
+    public void changedFile() throws Exception {
+        write(1024);
+        String first = FileHasher.hash(file);
+        Assert.assertEquals(first, FileHasher.hash(file));
+        byte[] data = write(2048);
+        Assert.assertEquals(DigestUtils.md5Hex(data), FileHasher.hash(file));
+    }
+
+    private byte[] write(int size) throws IOException {
+        if (file == null) {
+            file = File.createTempFile("filehasher", ".dat");
+        }
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        FileUtils.writeByteArrayToFile(file, data);
+        return data;
+    }
+}
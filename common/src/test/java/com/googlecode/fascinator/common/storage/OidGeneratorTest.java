@@ -0,0 +1,83 @@
+/*
+ * The Fascinator - Common Library
+ * Copyright (C) 2026 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.common.storage;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.junit.Test;
+
+/**
+ * Unit tests for OidGenerator
+ */
+public class OidGeneratorTest {
+
+    /**
+     * OIDs must match the original StorageUtils.generateOid() formula, or
+     * existing objects could no longer be found
+     */
+    @Test
+    public void sameAsOriginal() throws Exception {
+        OidGenerator generator = new OidGenerator();
+        File[] files = new File[] { new File("test.txt"),
+                new File("some/path/with spaces/file.json"),
+                new File("/tmp/unicode-éè.xml") };
+        for (File file : files) {
+            Assert.assertEquals(originalOid(file), generator.generateOid(file));
+            Assert.assertEquals(originalOid(file),
+                    StorageUtils.generateOid(file));
+        }
+    }
+
+    /**
+     * Batch generation should give the same OIDs, in order
+     */
+    @Test
+    public void batch() throws Exception {
+        OidGenerator generator = new OidGenerator();
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < 100; i++) {
+            files.add(new File("batch/file-" + i + ".txt"));
+        }
+        List<String> oids = generator.generateOids(files);
+        Assert.assertEquals(files.size(), oids.size());
+        for (int i = 0; i < files.size(); i++) {
+            Assert.assertEquals(generator.generateOid(files.get(i)),
+                    oids.get(i));
+        }
+    }
+
+    private String originalOid(File file) {
+        String path = FilenameUtils.separatorsToUnix(file.getAbsolutePath());
+        String hostname = "localhost";
+        try {
+            hostname = InetAddress.getLocalHost().getCanonicalHostName();
+        } catch (UnknownHostException uhe) {
+        }
+        String username = System.getProperty("user.name", "anonymous");
+        return DigestUtils.md5Hex(path + hostname + username);
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * The Fascinator - Common Library
+ * Copyright (C) 2026 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.common.storage.impl;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.fascinator.api.PluginDescription;
+import com.googlecode.fascinator.api.storage.DigitalObject;
+import com.googlecode.fascinator.api.storage.Payload;
+import com.googlecode.fascinator.api.storage.Storage;
+import com.googlecode.fascinator.api.storage.StorageException;
+
+/**
+ * Unit tests for CachingStorage
+ */
+public class CachingStorageTest {
+
+    private static final String CONFIG = "{\"storage\": {\"cache\": {"
+            + "\"maxPayloadSize\": 8, \"writeBehind\": {\"enabled\": true,"
+            + " \"delay\": 600000}}}}";
+
+    private CountingStorage backing;
+
+    @Before
+    public void setup() throws Exception {
+        backing = new CountingStorage();
+        DigitalObject object = backing.createObject("a");
+        object.createStoredPayload("small", IOUtils.toInputStream("hello"));
+        object.createStoredPayload("large", IOUtils.toInputStream(
+                "larger than eight bytes"));
+        object.getMetadata().setProperty("title", "Original");
+        object.close();
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        StorageCache.clearAll();
+    }
+
+    /**
+     * A second read is answered without the store, small payloads included
+     */
+    @Test
+    public void readThrough() throws Exception {
+        Storage storage = cached("render");
+
+        DigitalObject object = storage.getObject("a");
+        Assert.assertEquals("hello", read(object.getPayload("small")));
+        Assert.assertEquals("Original", object.getMetadata().get("title"));
+        object.close();
+        Assert.assertEquals(1, backing.gets);
+
+        object = storage.getObject("a");
+        Assert.assertEquals("small", object.getSourceId());
+        Assert.assertTrue(object.getPayloadIdList().contains("large"));
+        Assert.assertEquals("hello", read(object.getPayload("small")));
+        Assert.assertEquals("Original", object.getMetadata().get("title"));
+        object.close();
+        Assert.assertEquals(1, backing.gets);
+
+        // Too big to cache
+        Assert.assertEquals("larger than eight bytes",
+                read(object.getPayload("large")));
+        Assert.assertEquals(2, backing.gets);
+    }
+
+    /**
+     * Consumers over the same plugin share entries, but count separately
+     */
+    @Test
+    public void consumers() throws Exception {
+        CachingStorage harvest = cached("harvest");
+        CachingStorage render = cached("render");
+        Assert.assertSame(harvest.getCache(), render.getCache());
+
+        harvest.getObject("a").close();
+        render.getObject("a").close();
+        render.getObject("a").close();
+
+        StorageCache cache = render.getCache();
+        Assert.assertEquals(1, backing.gets);
+        Assert.assertEquals(0, cache.getHits("harvest"));
+        Assert.assertEquals(1, cache.getMisses("harvest"));
+        Assert.assertEquals(2, cache.getHits("render"));
+        Assert.assertEquals(1.0, cache.getHitRate("render"));
+    }
+
+    /**
+     * Metadata changed on a cached object is queued, and written before the
+     * object is next read from the store
+     */
+    @Test
+    public void writeBehind() throws Exception {
+        CachingStorage storage = cached("render");
+        DigitalObject object = storage.getObject("a");
+        object.getMetadata();
+        object.close();
+
+        object = storage.getObject("a");
+        object.getMetadata().setProperty("title", "Changed");
+        object.close();
+        Assert.assertEquals(1, storage.getCache().getPendingWrites());
+        Assert.assertEquals("Original", backing.objects.get("a")
+                .getMetadata().get("title"));
+
+        // Cached readers see the change straight away
+        object = storage.getObject("a");
+        Assert.assertEquals("Changed", object.getMetadata().get("title"));
+        object.close();
+
+        // Anything going to the store writes it first
+        object = storage.getObject("a");
+        object.createStoredPayload("more", IOUtils.toInputStream("more"));
+        object.close();
+        Assert.assertEquals(0, storage.getCache().getPendingWrites());
+        Assert.assertEquals("Changed", backing.objects.get("a")
+                .getMetadata().get("title"));
+    }
+
+    /**
+     * Only the properties changed through the cache are written, so other
+     * changes made meanwhile survive
+     */
+    @Test
+    public void changedPropertiesOnly() throws Exception {
+        CachingStorage storage = cached("render");
+        DigitalObject object = storage.getObject("a");
+        object.getMetadata();
+        object.close();
+
+        object = storage.getObject("a");
+        object.getMetadata().setProperty("title", "Changed");
+        object.getMetadata().setProperty("added", "yes");
+        object.close();
+        Assert.assertEquals(1, storage.getCache().getPendingWrites());
+
+        backing.objects.get("a").getMetadata().setProperty("other", "kept");
+        storage.getObject("a").createStoredPayload("more",
+                IOUtils.toInputStream("more"));
+        Properties metadata = backing.objects.get("a").getMetadata();
+        Assert.assertEquals("Changed", metadata.get("title"));
+        Assert.assertEquals("yes", metadata.get("added"));
+        Assert.assertEquals("kept", metadata.get("other"));
+
+        object = storage.getObject("a");
+        object.getMetadata().remove("added");
+        object.close();
+        Assert.assertFalse(metadata.containsKey("added"));
+        Assert.assertEquals("kept", metadata.get("other"));
+    }
+
+    /**
+     * Queued updates are written through the plugin instance they were made
+     * with, by that storage's own timer
+     */
+    @Test
+    public void timerWrites() throws Exception {
+        String config = "{\"storage\": {\"cache\": {"
+                + "\"writeBehind\": {\"enabled\": true, \"delay\": 20}}}}";
+        CountingStorage other = backing.share();
+        CachingStorage harvest = new CachingStorage(backing, "harvest");
+        harvest.init(config);
+        CachingStorage render = new CachingStorage(other, "render");
+        render.init(config);
+
+        DigitalObject object = harvest.getObject("a");
+        object.getMetadata();
+        object.close();
+        object = harvest.getObject("a");
+        object.getMetadata().setProperty("title", "Changed");
+        object.close();
+        render.getObject("a").close();
+
+        long give = System.currentTimeMillis() + 5000;
+        while (harvest.getCache().getPendingWrites() > 0
+                && System.currentTimeMillis() < give) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, harvest.getCache().getPendingWrites());
+        Assert.assertEquals("Changed", backing.objects.get("a")
+                .getMetadata().get("title"));
+        Assert.assertEquals(0, other.gets);
+    }
+
+    /**
+     * Consumers write an object's queued update before passing it on
+     */
+    @Test
+    public void flushObject() throws Exception {
+        CachingStorage storage = cached("render");
+        DigitalObject object = storage.getObject("a");
+        object.getMetadata();
+        object.close();
+        object = storage.getObject("a");
+        object.getMetadata().setProperty("title", "Changed");
+        object.close();
+        Assert.assertEquals(1, storage.getCache().getPendingWrites());
+
+        CachingStorage.flush(storage, "a");
+        Assert.assertEquals(0, storage.getCache().getPendingWrites());
+        Assert.assertEquals("Changed", backing.objects.get("a")
+                .getMetadata().get("title"));
+
+        // Anything else is left alone
+        CachingStorage.flush(backing, "a");
+    }
+
+    /**
+     * Without write-behind, metadata is written when the object is closed
+     */
+    @Test
+    public void writeThrough() throws Exception {
+        CachingStorage storage = new CachingStorage(backing, "render");
+        storage.init("{\"storage\": {\"cache\": {\"enabled\": true}}}");
+        DigitalObject object = storage.getObject("a");
+        object.getMetadata();
+        object.close();
+        object = storage.getObject("a");
+        object.getMetadata().setProperty("title", "Changed");
+        object.close();
+        Assert.assertEquals(0, storage.getCache().getPendingWrites());
+        Assert.assertEquals("Changed", backing.objects.get("a")
+                .getMetadata().get("title"));
+    }
+
+    /**
+     * Renaming goes to the stored object and drops the cached entry
+     */
+    @Test
+    public void rename() throws Exception {
+        CachingStorage storage = cached("render");
+        storage.getObject("a").close();
+        Assert.assertEquals(1, storage.getCache().getObjectCount());
+
+        DigitalObject object = storage.getObject("a");
+        object.setId("b");
+        Assert.assertEquals("b", object.getId());
+        Assert.assertEquals("b", backing.objects.get("a").getId());
+        Assert.assertEquals(0, storage.getCache().getObjectCount());
+    }
+
+    /**
+     * Changes through an object, and removal, drop it from the cache
+     */
+    @Test
+    public void invalidation() throws Exception {
+        CachingStorage storage = cached("render");
+        storage.getObject("a").close();
+
+        DigitalObject object = storage.getObject("a");
+        object.updatePayload("small", IOUtils.toInputStream("world"));
+        object.close();
+
+        object = storage.getObject("a");
+        Assert.assertEquals("world", read(object.getPayload("small")));
+        object.getMetadata();
+        object.close();
+        Assert.assertEquals(2, storage.getCache().getMisses("render"));
+
+        object = storage.getObject("a");
+        object.getMetadata().setProperty("title", "Removed");
+        object.close();
+        Assert.assertEquals(1, storage.getCache().getPendingWrites());
+
+        storage.removeObject("a");
+        Assert.assertEquals(0, storage.getCache().getPendingWrites());
+        Assert.assertEquals(0, storage.getCache().getObjectCount());
+        try {
+            storage.getObject("a");
+            Assert.fail("Removed object should not be found");
+        } catch (StorageException ex) {
+            // Expected
+        }
+    }
+
+    private CachingStorage cached(String consumer) throws Exception {
+        CachingStorage storage = new CachingStorage(backing, consumer);
+        storage.init(CONFIG);
+        return storage;
+    }
+
+    private String read(Payload payload) throws Exception {
+        InputStream in = payload.open();
+        try {
+            return IOUtils.toString(in, "UTF-8");
+        } finally {
+            in.close();
+            payload.close();
+        }
+    }
+
+    /**
+     * In-memory storage counting how often objects are fetched
+     */
+    private static class CountingStorage implements Storage {
+        private Map<String, GenericDigitalObject> objects = new HashMap<String, GenericDigitalObject>();
+        private int gets;
+
+        /**
+         * Another instance over the same objects
+         *
+         */
+        private CountingStorage share() {
+            CountingStorage other = new CountingStorage();
+            other.objects = objects;
+            return other;
+        }
+
+        @Override
+        public String getId() {
+            return "counting";
+        }
+
+        @Override
+        public String getName() {
+            return "Counting Storage";
+        }
+
+        @Override
+        public PluginDescription getPluginDetails() {
+            return new PluginDescription(this);
+        }
+
+        @Override
+        public void init(File jsonFile) {
+            // Nothing to configure
+        }
+
+        @Override
+        public void init(String jsonString) {
+            // Nothing to configure
+        }
+
+        @Override
+        public void shutdown() {
+            objects.clear();
+        }
+
+        @Override
+        public synchronized DigitalObject createObject(String oid)
+                throws StorageException {
+            if (objects.containsKey(oid)) {
+                throw new StorageException("oID '" + oid + "' already exists");
+            }
+            GenericDigitalObject object = new GenericDigitalObject(oid);
+            objects.put(oid, object);
+            return object;
+        }
+
+        @Override
+        public synchronized DigitalObject getObject(String oid)
+                throws StorageException {
+            gets++;
+            GenericDigitalObject object = objects.get(oid);
+            if (object == null) {
+                throw new StorageException("oID '" + oid + "' not found");
+            }
+            return object;
+        }
+
+        @Override
+        public synchronized void removeObject(String oid)
+                throws StorageException {
+            if (objects.remove(oid) == null) {
+                throw new StorageException("oID '" + oid + "' not found");
+            }
+        }
+
+        @Override
+        public synchronized Set<String> getObjectIdList() {
+            return objects.keySet();
+        }
+    }
+}
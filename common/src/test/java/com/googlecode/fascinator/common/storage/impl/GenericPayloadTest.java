@@ -0,0 +1,140 @@
+/*
+ * The Fascinator - Common Library
+ * Copyright (C) 2026 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.common.storage.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.Assert;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import com.googlecode.fascinator.common.MimeTypeUtil;
+
+/**
+ * Unit tests for GenericPayload content type detection
+ */
+public class GenericPayloadTest {
+
+    private byte[] xml = "<?xml version=\"1.0\"?><root/>".getBytes();
+
+    /**
+     * A type is detected from content when first asked for
+     */
+    @Test
+    public void detected() throws Exception {
+        GenericPayload payload = new GenericPayload("test.xml");
+        payload.setInputStream(new ByteArrayInputStream(xml));
+        Assert.assertEquals(MimeTypeUtil.getMimeType(xml, "test.xml"),
+                payload.getContentType());
+    }
+
+    /**
+     * A type set after the content is never replaced by detection
+     */
+    @Test
+    public void explicit() throws Exception {
+        GenericPayload payload = new GenericPayload("test.xml");
+        payload.setInputStream(new ByteArrayInputStream(xml));
+        payload.setContentType("application/x-test");
+        Assert.assertEquals("application/x-test", payload.getContentType());
+    }
+
+    /**
+     * Detecting a type is not a change to the payload's metadata
+     */
+    @Test
+    public void detectionLeavesMetadata() throws Exception {
+        GenericPayload payload = new GenericPayload("test.xml", "Test", null);
+        payload.setBuffer(new CountingBuffer(xml));
+        Assert.assertEquals(MimeTypeUtil.getMimeType(xml, "test.xml"),
+                payload.getContentType());
+        Assert.assertFalse(payload.hasMetaChanged());
+    }
+
+    /**
+     * A file payload is typed by its file, whatever the payload is called
+     */
+    @Test
+    public void fromFile() throws Exception {
+        File file = File.createTempFile("payload", ".xml");
+        try {
+            FileUtils.writeByteArrayToFile(file, xml);
+            GenericPayload payload = new GenericPayload("data", file);
+            Assert.assertEquals(MimeTypeUtil.getMimeType(file),
+                    payload.getContentType());
+            Assert.assertFalse(payload.hasMetaChanged());
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Repeated updates, as an ingest would make, leave the content alone
+     * until the type is asked for, and then read it only once
+     */
+    @Test
+    public void updates() throws Exception {
+        GenericPayload payload = new GenericPayload("test.xml");
+        CountingBuffer buffer = null;
+        for (int i = 0; i < 10; i++) {
+            buffer = new CountingBuffer(xml);
+            payload.setBuffer(buffer);
+        }
+        Assert.assertEquals(0, buffer.opens);
+
+        String expected = MimeTypeUtil.getMimeType(xml, "test.xml");
+        Assert.assertEquals(expected, payload.getContentType());
+        Assert.assertEquals(expected, payload.getContentType());
+        Assert.assertEquals(1, buffer.opens);
+
+        // Setting the type after an update skips detection entirely
+        buffer = new CountingBuffer(xml);
+        payload.setBuffer(buffer);
+        payload.setContentType("text/xml");
+        Assert.assertEquals("text/xml", payload.getContentType());
+        Assert.assertEquals(0, buffer.opens);
+    }
+
+    /**
+     * Heap content that counts how often it is read
+     */
+    private static class CountingBuffer extends PayloadBuffer {
+        private PayloadBuffer content;
+        private int opens;
+
+        private CountingBuffer(byte[] data) throws IOException {
+            content = PayloadBuffer.read(new ByteArrayInputStream(data));
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            opens++;
+            return content.open();
+        }
+
+        @Override
+        public long size() {
+            return content.size();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * The Fascinator - Common Library
+ * Copyright (C) 2026 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.common.storage.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+/**
+ * Unit tests for PayloadBuffer
+ */
+public class PayloadBufferTest {
+
+    /**
+     * Content at or under the threshold stays on the heap
+     */
+    @Test
+    public void heap() throws Exception {
+        for (int size : new int[] { 0, 1, 1000, 100 * 1024 }) {
+            byte[] data = random(size);
+            PayloadBuffer buffer = PayloadBuffer.read(new ByteArrayInputStream(
+                    data), 100 * 1024, null);
+            Assert.assertFalse(buffer.isSpilled());
+            Assert.assertEquals(size, buffer.size());
+            Assert.assertTrue(Arrays.equals(data, read(buffer)));
+        }
+    }
+
+    /**
+     * The largest possible threshold does not overflow the first read
+     */
+    @Test
+    public void maxThreshold() throws Exception {
+        byte[] data = random(1000);
+        PayloadBuffer buffer = PayloadBuffer.read(
+                new ByteArrayInputStream(data), Integer.MAX_VALUE, null);
+        Assert.assertTrue(buffer.isOnHeap());
+        Assert.assertTrue(Arrays.equals(data, read(buffer)));
+    }
+
+    /**
+     * Content over the threshold goes to disk, and is removed on release
+     */
+    @Test
+    public void spilled() throws Exception {
+        byte[] data = random(300 * 1024 + 5);
+        PayloadBuffer buffer = PayloadBuffer.read(
+                new ByteArrayInputStream(data), 100 * 1024, null);
+        Assert.assertTrue(buffer.isSpilled());
+        Assert.assertEquals(data.length, buffer.size());
+        Assert.assertTrue(Arrays.equals(data, read(buffer)));
+        Assert.assertTrue(Arrays.equals(Arrays.copyOf(data, 64),
+                buffer.head(64)));
+
+        buffer.release();
+        try {
+            buffer.open();
+            Assert.fail("Released buffer should not open");
+        } catch (Exception ex) {
+            // Expected
+        }
+    }
+
+    private byte[] read(PayloadBuffer buffer) throws Exception {
+        InputStream in = buffer.open();
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private byte[] random(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}
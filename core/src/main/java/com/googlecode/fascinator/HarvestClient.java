@@ -29,6 +29,12 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
@@ -49,9 +55,11 @@ import com.googlecode.fascinator.api.transformer.TransformerException;
 import com.googlecode.fascinator.common.JsonObject;
 import com.googlecode.fascinator.common.JsonSimple;
 import com.googlecode.fascinator.common.JsonSimpleConfig;
+import com.googlecode.fascinator.common.messaging.BatchPublisher;
 import com.googlecode.fascinator.common.messaging.MessagingException;
 import com.googlecode.fascinator.common.messaging.MessagingServices;
 import com.googlecode.fascinator.common.storage.StorageUtils;
+import com.googlecode.fascinator.messaging.HarvestConfigCache;
 import com.googlecode.fascinator.messaging.HarvestQueueConsumer;
 import com.googlecode.fascinator.spring.ApplicationContextProvider;
 
@@ -73,9 +81,15 @@ public class HarvestClient {
     /** Default storage type */
     private static final String DEFAULT_STORAGE_TYPE = "file-system";
 
+    /** Default number of objects waiting for a pipeline worker */
+    private static final int DEFAULT_PIPELINE_QUEUE = 1000;
+
     /** Default tool chain queue */
     private static final String DEFAULT_TOOL_CHAIN_QUEUE = HarvestQueueConsumer.HARVEST_QUEUE;
 
+    /** Object property holding the harvest files hash it was harvested with */
+    private static final String HARVEST_FILES_HASH = "harvestFilesHash";
+
     /** Logging */
     private static Logger log = LoggerFactory.getLogger(HarvestClient.class);
 
@@ -106,12 +120,42 @@ public class HarvestClient {
     /** Storage to store the digital object */
     private Storage storage;
 
-    /** Messaging services */
-    private MessagingServices messaging;
+    /** Messaging services, shared with pipeline workers */
+    private volatile MessagingServices messaging;
+
+    /** Guards lazy creation of messaging */
+    private final Object messagingLock = new Object();
+
+    /** Batched publishing for the duration of a harvest, if configured */
+    private BatchPublisher publisher;
 
     /** Tool Chain entry queue */
     private String toolChainEntry;
 
+    /** Hash of the harvest file when sending compact messages, else null */
+    private String configHash;
+
+    /** Skip objects the harvester reports as unchanged */
+    private boolean incremental;
+
+    /** Hashes of the current harvest and rules files, recorded on objects */
+    private String harvestFilesHash;
+
+    /** Objects queued for the tool chain in this harvest */
+    private AtomicLong processedCount = new AtomicLong(0);
+
+    /** Objects skipped as unchanged in this harvest */
+    private AtomicLong skippedCount = new AtomicLong(0);
+
+    /** Whether storage was started by this client */
+    private boolean ownStorage;
+
+    /** Harvester kept between calls to harvestUpload() */
+    private Harvester uploadHarvester;
+
+    /** Harvest file dates when uploadHarvester was prepared */
+    private String harvestFileDates;
+
     /** Harvest id for reports */
     private String harvestId;
 
@@ -230,28 +274,233 @@ public class HarvestClient {
 
         repoType = config.getString("", "indexer", "params", "repository.type");
         repoName = config.getString("", "indexer", "params", "repository.name");
+        incremental = config.getBoolean(false, "harvestClient", "incremental");
+        processedCount.set(0);
+        skippedCount.set(0);
 
-        // Put in event log
+        if (BatchPublisher.isEnabled(config, "messaging", "harvestBatch")) {
+            try {
+                publisher = new BatchPublisher("HarvestClient", config,
+                        "messaging", "harvestBatch");
+            } catch (MessagingException ex) {
+                log.error("Failed to start batch publishing, falling back"
+                        + " to individual messages: ", ex);
+            }
+        }
+        boolean harvested = false;
+        try {
+            harvest();
+            harvested = true;
+        } finally {
+            // Only messages from this harvest can be compact
+            configHash = null;
+            if (publisher != null) {
+                BatchPublisher closing = publisher;
+                publisher = null;
+                try {
+                    closing.close();
+                } catch (MessagingException ex) {
+                    if (harvested) {
+                        throw new PluginException(
+                                "Harvested objects were not all queued", ex);
+                    }
+                    log.error("Failed to queue harvested objects: ", ex);
+                }
+            }
+        }
+
+        log.info("Completed in "
+                + ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
+        log.info("{} object(s) processed, {} unchanged",
+                processedCount.get(), skippedCount.get());
+
+    }
+
+    /**
+     * Number of objects queued for the tool chain by the last harvest
+     *
+     * @return long : The object count
+     */
+    public long getProcessedCount() {
+        return processedCount.get();
+    }
+
+    /**
+     * Number of objects skipped as unchanged by the last harvest
+     *
+     * @return long : The object count
+     */
+    public long getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    /**
+     * Harvest a single uploaded file. Unlike start(), the harvester and the
+     * harvest files in storage are prepared once and kept for the next
+     * upload, until release() is called or the harvest files change on disk.
+     *
+     * @param file The uploaded file
+     * @param owner Owner of the file
+     * @return String : The object ID the file was given, null if none
+     * @throws PluginException If the harvester failed
+     */
+    public synchronized String harvestUpload(File file, String owner)
+            throws PluginException {
+        if (uploadHarvester == null) {
+            updateHarvestFiles();
+            uploadHarvester = newHarvester();
+            harvestFileDates = harvestFileDates();
+        }
+        uploadedFile = file;
+        fileOwner = owner;
+        uploadedOid = null;
+        incremental = false;
+
+        DateFormat df = new SimpleDateFormat(DATETIME_FORMAT);
+        harvestId = df.format(new Date());
+        repoType = config.getString("", "indexer", "params", "repository.type");
+        repoName = config.getString("", "indexer", "params", "repository.name");
         Map<String, String> startMsgs = new LinkedHashMap<String, String>();
         startMsgs.put("harvestId", harvestId);
         startMsgs.put("repository_type", repoType);
         startMsgs.put("repository_name", repoName);
         sentMessage("-1", "harvestStart", startMsgs);
 
-        // cache harvester config and indexer rules
+        try {
+            Set<String> objectIds = uploadHarvester.getObjectId(file);
+            if (!objectIds.isEmpty()) {
+                uploadedOid = objectIds.iterator().next();
+                processObject(uploadedOid, true);
+            }
+        } catch (MessagingException e) {
+            log.error("Could not queue the object: '{}'", uploadedOid, e);
+        } catch (HarvesterException e) {
+            throw new PluginException(e);
+        }
+        return uploadedOid;
+    }
+
+    /**
+     * Whether the harvest files have changed on disk since harvestUpload()
+     * prepared them
+     *
+     * @return boolean : True if this client should no longer be used
+     */
+    public synchronized boolean isStale() {
+        return uploadHarvester != null
+                && !harvestFileDates.equals(harvestFileDates());
+    }
+
+    /**
+     * Release the harvester and messaging held by harvestUpload(), and
+     * storage if this client started its own. Storage from the application
+     * context is shared, so it is left alone.
+     *
+     */
+    public synchronized void release() {
+        if (uploadHarvester != null) {
+            try {
+                uploadHarvester.shutdown();
+            } catch (PluginException pe) {
+                log.error("Failed to shutdown harvester", pe);
+            }
+            uploadHarvester = null;
+        }
+        if (messaging != null) {
+            messaging.release();
+            messaging = null;
+        }
+        if (ownStorage && storage != null) {
+            try {
+                storage.shutdown();
+            } catch (PluginException pe) {
+                log.error("Failed to shutdown storage", pe);
+            }
+            storage = null;
+        }
+    }
+
+    /**
+     * Last modified dates of the harvest files, to detect changes
+     *
+     */
+    private String harvestFileDates() {
+        return configFile.lastModified() + "/"
+                + (rulesFile == null ? 0 : rulesFile.lastModified());
+    }
+
+    /**
+     * Make sure storage has the current harvest files, and get the hash used
+     * for compact messages
+     *
+     * @throws StorageException If storage failed
+     */
+    private void updateHarvestFiles() throws StorageException {
         configObject = updateHarvestFile(configFile);
         rulesObject = updateHarvestFile(rulesFile);
+        harvestFilesHash = null;
+        try {
+            String configFileHash = configObject.getMetadata().getProperty(
+                    "fileHash");
+            String rulesFileHash = rulesObject.getMetadata().getProperty(
+                    "fileHash");
+            if (configFileHash != null && rulesFileHash != null) {
+                harvestFilesHash = configFileHash + "/" + rulesFileHash;
+            }
+        } catch (StorageException ex) {
+            log.error("Unable to read harvest file metadata: ", ex);
+        }
+        configHash = null;
+        if (HarvestConfigCache.isCompact(config)) {
+            try {
+                configHash = configObject.getMetadata().getProperty(
+                        "fileHash");
+            } catch (StorageException ex) {
+                log.error("Unable to read harvest file metadata: ", ex);
+            }
+            if (configHash == null) {
+                log.warn("Harvest file has no hash, sending full messages");
+            }
+        }
+    }
 
-        // initialise the harvester
-        Harvester harvester = null;
+    /**
+     * Instantiate and initialise the configured harvester
+     *
+     * @return Harvester : The harvester
+     * @throws PluginException If harvest plugin not found
+     */
+    private Harvester newHarvester() throws PluginException {
         String harvesterType = config.getString(null, "harvester", "type");
-        harvester = PluginManager.getHarvester(harvesterType, storage);
+        Harvester harvester = PluginManager.getHarvester(harvesterType,
+                storage);
         if (harvester == null) {
             throw new HarvesterException("Harvester plugin '" + harvesterType
                     + "'. Ensure it is in the classpath.");
         }
         harvester.init(configFile);
         log.info("Loaded harvester: " + harvester.getName());
+        return harvester;
+    }
+
+    /**
+     * Run the harvest itself, for start()
+     *
+     * @throws PluginException If harvest plugin not found
+     */
+    private void harvest() throws PluginException {
+        // Put in event log
+        Map<String, String> startMsgs = new LinkedHashMap<String, String>();
+        startMsgs.put("harvestId", harvestId);
+        startMsgs.put("repository_type", repoType);
+        startMsgs.put("repository_name", repoName);
+        sentMessage("-1", "harvestStart", startMsgs);
+
+        // cache harvester config and indexer rules
+        updateHarvestFiles();
+
+        // initialise the harvester
+        Harvester harvester = newHarvester();
 
         if (uploadedFile != null) {
             // process the uploaded file only
@@ -268,15 +517,24 @@ public class HarvestClient {
             }
         } else {
             // process harvested objects
-            do {
-                for (String oid : harvester.getObjectIdList()) {
-                    try {
-                        processObject(oid);
-                    } catch (MessagingException e) {
-                        log.error("Could not queue the object: '{}'", oid, e);
+            int workers = config.getInteger(1, "harvestClient", "pipeline",
+                    "workers");
+            if (workers > 1) {
+                processPipelined(harvester, workers, config.getInteger(
+                        DEFAULT_PIPELINE_QUEUE, "harvestClient", "pipeline",
+                        "queueSize"));
+            } else {
+                do {
+                    for (String oid : harvester.getObjectIdList()) {
+                        try {
+                            processObject(oid);
+                        } catch (MessagingException e) {
+                            log.error("Could not queue the object: '{}'",
+                                    oid, e);
+                        }
                     }
-                }
-            } while (harvester.hasMoreObjects());
+                } while (harvester.hasMoreObjects());
+            }
             // process deleted objects
             do {
                 for (String oid : harvester.getDeletedObjectIdList()) {
@@ -293,6 +551,8 @@ public class HarvestClient {
             endMsgs.put("harvestId", harvestId);
             endMsgs.put("repository_type", repoType);
             endMsgs.put("repository_name", repoName);
+            endMsgs.put("processed", String.valueOf(processedCount.get()));
+            endMsgs.put("skipped", String.valueOf(skippedCount.get()));
             // endMsgs.put("totalInStorage", getTotal(repoType, repoName));
             sentMessage("-1", "harvestEnd", endMsgs);
         }
@@ -301,10 +561,72 @@ public class HarvestClient {
         if (harvester != null) {
             harvester.shutdown();
         }
+    }
 
-        log.info("Completed in "
-                + ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
-
+    /**
+     * Process harvested objects on a pool of workers while this thread fetches
+     * the next page of IDs from the harvester. At most 'queueSize' objects can
+     * be waiting, after which fetching blocks until the workers catch up.
+     * Returns once every object has been processed.
+     *
+     * @param harvester The harvester to page through
+     * @param workers Number of worker threads
+     * @param queueSize Maximum objects waiting for a worker
+     * @throws PluginException If the harvester or any object failed, as the
+     *             sequential loop would
+     */
+    private void processPipelined(Harvester harvester, int workers,
+            int queueSize) throws PluginException {
+        log.info("Processing objects with {} workers", workers);
+        // Workers share one connection, so make sure it exists before they start
+        try {
+            getMessagingServices();
+        } catch (MessagingException ex) {
+            throw new PluginException("Failed to start messaging", ex);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        final Semaphore waiting = new Semaphore(Math.max(1, queueSize));
+        final AtomicReference<PluginException> failure = new AtomicReference<PluginException>();
+        try {
+            do {
+                for (final String oid : harvester.getObjectIdList()) {
+                    if (failure.get() != null) {
+                        break;
+                    }
+                    waiting.acquireUninterruptibly();
+                    pool.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                processObject(oid);
+                            } catch (MessagingException e) {
+                                log.error("Could not queue the object: '{}'",
+                                        oid, e);
+                            } catch (PluginException e) {
+                                failure.compareAndSet(null, e);
+                            } catch (RuntimeException e) {
+                                failure.compareAndSet(null, new PluginException(
+                                        "Failed processing '" + oid + "'", e));
+                            } finally {
+                                waiting.release();
+                            }
+                        }
+                    });
+                }
+            } while (failure.get() == null && harvester.hasMoreObjects());
+        } finally {
+            pool.shutdown();
+            try {
+                while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                    log.info("Waiting for harvest workers to finish...");
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
     }
 
     /**
@@ -465,6 +787,8 @@ public class HarvestClient {
 
         // update object metadata
         Properties props = object.getMetadata();
+        boolean sameHarvestFiles = sameHarvestFiles(props,
+                rulesObject.getId(), configObject.getId(), harvestFilesHash);
         // TODO - objectId is redundant now?
         props.setProperty("objectId", object.getId());
         props.setProperty("scriptType",
@@ -474,6 +798,9 @@ public class HarvestClient {
         props.setProperty("rulesPid", rulesObject.getSourceId());
         props.setProperty("jsonConfigOid", configObject.getId());
         props.setProperty("jsonConfigPid", configObject.getSourceId());
+        if (harvestFilesHash != null) {
+            props.setProperty(HARVEST_FILES_HASH, harvestFilesHash);
+        }
 
         if (fileOwner != null) {
             props.setProperty("owner", fileOwner);
@@ -493,6 +820,12 @@ public class HarvestClient {
             }
         }
 
+        // Only skip when the harvester positively says nothing changed, and
+        // the object was last harvested with these same harvest files
+        boolean unchanged = "false".equals(isNew)
+                && props.containsKey("isModified") && "false".equals(isModified)
+                && sameHarvestFiles;
+
         // now remove these properties. We don't need them anymore
         props.remove("isNew");
         props.remove("isModified");
@@ -500,6 +833,15 @@ public class HarvestClient {
         // done with the object
         object.close();
 
+        // Incremental harvests leave unchanged objects where they are
+        if (incremental && unchanged && !commit) {
+            Map<String, String> msgs = new LinkedHashMap<String, String>();
+            msgs.put("harvestId", harvestId);
+            sentMessage(oid, "unchanged", msgs);
+            skippedCount.incrementAndGet();
+            return;
+        }
+
         // put in event log
         Map<String, String> msgs = new LinkedHashMap<String, String>();
         msgs.put("harvestId", harvestId);
@@ -511,6 +853,26 @@ public class HarvestClient {
 
         // queue the object for indexing
         queueHarvest(oid, configFile, commit);
+        processedCount.incrementAndGet();
+    }
+
+    /**
+     * Whether an object's metadata shows it was last harvested using the
+     * given harvest files. Objects without a recorded hash, or harvests whose
+     * files have no hash, are never treated as the same.
+     *
+     * @param props The object's metadata, before this harvest updates it
+     * @param rulesOid The current rules file object ID
+     * @param configOid The current harvest file object ID
+     * @param hash The hash of the current harvest and rules files
+     * @return boolean : True if nothing about the harvest files has changed
+     */
+    static boolean sameHarvestFiles(Properties props, String rulesOid,
+            String configOid, String hash) {
+        return hash != null
+                && hash.equals(props.getProperty(HARVEST_FILES_HASH))
+                && rulesOid.equals(props.getProperty("rulesOid"))
+                && configOid.equals(props.getProperty("jsonConfigOid"));
     }
 
     /**
@@ -537,6 +899,16 @@ public class HarvestClient {
      */
     private void queueHarvest(String oid, File jsonFile, boolean commit,
             String queueName) throws MessagingException {
+        if (isCompact(jsonFile)) {
+            JsonObject json = HarvestConfigCache.newMessage(oid,
+                    configObject.getId(), configObject.getSourceId(),
+                    configHash);
+            if (commit) {
+                json.put("commit", "true");
+            }
+            queueMessage(queueName, json.toString());
+            return;
+        }
         try {
             JsonSimple jsonSimple = new JsonSimple(jsonFile);
             this.queueHarvest(oid, jsonSimple, commit, queueName);
@@ -563,7 +935,7 @@ public class HarvestClient {
         if (commit) {
             json.put("commit", "true");
         }
-        getMessagingServices().queueMessage(queueName, json.toString());
+        queueMessage(queueName, json.toString());
 
     }
 
@@ -577,16 +949,35 @@ public class HarvestClient {
     private void queueDelete(String oid, File jsonFile)
             throws MessagingException {
         try {
-            JsonObject json = new JsonSimple(jsonFile).getJsonObject();
-            json.put("oid", oid);
+            JsonObject json;
+            if (isCompact(jsonFile)) {
+                json = HarvestConfigCache.newMessage(oid,
+                        configObject.getId(), configObject.getSourceId(),
+                        configHash);
+            } else {
+                json = new JsonSimple(jsonFile).getJsonObject();
+                json.put("oid", oid);
+            }
             json.put("deleted", "true");
-            getMessagingServices().queueMessage(toolChainEntry, json.toString());
+            queueMessage(toolChainEntry, json.toString());
         } catch (IOException ioe) {
             log.error("Failed to parse message: {}", ioe.getMessage());
             throw new MessagingException(ioe);
         }
     }
 
+    /**
+     * Whether messages for this config file can refer to the harvest file in
+     * storage rather than carry a copy of it
+     *
+     * @param jsonFile Configuration file
+     * @return boolean : True to send a compact message
+     */
+    private boolean isCompact(File jsonFile) {
+        return configHash != null && configObject != null
+                && configFile != null && configFile.equals(jsonFile);
+    }
+
     /*
      * Useful only for uploaded files.
      *
@@ -618,7 +1009,11 @@ public class HarvestClient {
 
         param.putAll(optionalParams);
         try {
-            getMessagingServices().onEvent(param);
+            if (publisher != null) {
+                publisher.onEvent(param);
+            } else {
+                getMessagingServices().onEvent(param);
+            }
         } catch (MessagingException ex) {
             log.error("Unable to send message: ", ex);
         }
@@ -658,11 +1053,34 @@ public class HarvestClient {
         }
     }
 
+    /**
+     * Send a message to a queue, in the current batch if batching
+     *
+     * @param queueName The queue to send to
+     * @param msg The message to send
+     * @throws MessagingException if the message could not be sent
+     */
+    private void queueMessage(String queueName, String msg)
+            throws MessagingException {
+        if (publisher != null) {
+            publisher.queueMessage(queueName, msg);
+        } else {
+            getMessagingServices().queueMessage(queueName, msg);
+        }
+    }
+
     private MessagingServices getMessagingServices() throws MessagingException {
-        if(messaging == null) {
-                messaging = MessagingServices.getInstance();
+        MessagingServices services = messaging;
+        if (services == null) {
+            synchronized (messagingLock) {
+                services = messaging;
+                if (services == null) {
+                    services = MessagingServices.getInstance();
+                    messaging = services;
+                }
+            }
         }
-        return messaging;
+        return services;
     }
 
     private void initStorage() throws HarvesterException {
@@ -671,6 +1089,7 @@ public class HarvestClient {
         ApplicationContext applicationContext = ApplicationContextProvider.getApplicationContext();
         if (applicationContext == null) {
             storage = PluginManager.getStorage(storageType);
+            ownStorage = true;
             reloadStorage();
         } else {
             storage = (Storage) applicationContext.getBean("fascinatorStorage");
@@ -24,6 +24,7 @@ import com.googlecode.fascinator.api.indexer.Indexer;
 import com.googlecode.fascinator.api.indexer.IndexerException;
 import com.googlecode.fascinator.api.indexer.SearchRequest;
 import com.googlecode.fascinator.api.storage.DigitalObject;
+import com.googlecode.fascinator.api.storage.ObjectIdCursor;
 import com.googlecode.fascinator.api.storage.Payload;
 import com.googlecode.fascinator.api.storage.Storage;
 import com.googlecode.fascinator.api.storage.StorageException;
@@ -42,7 +43,8 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Properties;
-import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -82,6 +84,12 @@ public class IndexClient {
     /** Indexer **/
     private Indexer indexer;
 
+    /** Default number of results per search page **/
+    private static final int DEFAULT_PAGE_SIZE = 500;
+
+    /** Number of search pages to fetch ahead of indexing **/
+    private static final int PAGES_AHEAD = 2;
+
     /** Indexed storage and real storage **/
     private Storage storage, realStorage;
 
@@ -146,18 +154,29 @@ public class IndexClient {
         String rulesOid = rulesFile.getAbsolutePath();
         updateRules(rulesOid);
 
-        // List all the DigitalObjects in the storages
-        Set<String> objectIdList = realStorage.getObjectIdList();
-        for (String objectId : objectIdList) {
-            try {
-                DigitalObject object = realStorage.getObject(objectId);
-                processObject(object, rulesOid,
-                        config.getObject("indexer", "params"), false);
-            } catch (StorageException ex) {
-                log.error("Error getting rules file", ex);
-            } catch (IOException ex) {
-                log.error("Error Processing object", ex);
+        // Stream all the DigitalObjects in the storages
+        ObjectIdCursor objectIds;
+        try {
+            objectIds = realStorage.getObjectIds(null);
+        } catch (StorageException ex) {
+            log.error("Error listing objects in storage", ex);
+            return;
+        }
+        try {
+            while (objectIds.hasNext()) {
+                String objectId = objectIds.next();
+                try {
+                    DigitalObject object = realStorage.getObject(objectId);
+                    processObject(object, rulesOid,
+                            config.getObject("indexer", "params"), false);
+                } catch (StorageException ex) {
+                    log.error("Error getting rules file", ex);
+                } catch (IOException ex) {
+                    log.error("Error Processing object", ex);
+                }
             }
+        } finally {
+            objectIds.close();
         }
 
         log.info("Completed in "
@@ -196,7 +215,12 @@ public class IndexClient {
     }
 
     /**
-     * Index objects found in the portal
+     * Index objects found in the portal.
+     * 
+     * Results are paged by sorting on 'id' and asking for everything after the
+     * last ID seen, so each page costs the same however deep we are. The next
+     * page is fetched in the background while the current one is indexed.
+     * The page size is 'indexer.reindex.pageSize' in the system config.
      * 
      * @param portalQuery Portal query to retrieve the objects to be indexed
      */
@@ -206,57 +230,140 @@ public class IndexClient {
         long start = System.currentTimeMillis();
         log.info("Started at " + now);
 
-        // Get all the records from solr
-        int startRow = 0;
-        int numPerPage = 5;
-        int numFound = 0;
-        do {
-            ByteArrayOutputStream result = new ByteArrayOutputStream();
-            SearchRequest request = new SearchRequest("*:*");
-            request.addParam("rows", String.valueOf(numPerPage));
-            request.addParam("fq", "item_type:\"object\"");
-            request.setParam("start", String.valueOf(startRow));
+        int pageSize = Math.max(1, config.getInteger(DEFAULT_PAGE_SIZE,
+                "indexer", "reindex", "pageSize"));
+        BlockingQueue<List<String>> pages = new ArrayBlockingQueue<List<String>>(
+                PAGES_AHEAD);
+        Thread fetcher = new Thread(new PageFetcher(portalQuery, pageSize,
+                pages), "IndexClient-search");
+        fetcher.setDaemon(true);
+        fetcher.start();
 
-            if (portalQuery != null && !portalQuery.isEmpty()) {
-                request.addParam("fq", portalQuery);
+        int count = 0;
+        try {
+            List<String> page = pages.take();
+            while (!page.isEmpty()) {
+                for (String oid : page) {
+                    indexPortalObject(oid);
+                }
+                count += page.size();
+                log.info("{} objects indexed...", count);
+                page = pages.take();
             }
+        } catch (InterruptedException ex) {
+            log.warn("Interrupted, stopping after {} objects", count);
+            fetcher.interrupt();
+            Thread.currentThread().interrupt();
+        }
 
-            try {
-                indexer.search(request, result);
-                JsonSimpleConfig js = new JsonSimpleConfig(result.toString());
-                for (String oid : js.getStringList("response", "docs", "id")) {
-                    DigitalObject object = null;
-                    try {
-                        object = realStorage.getObject(oid);
-                    } catch (StorageException ex) {
-                        log.error("Error getting object", ex);
-                    }
+        log.info("Completed in "
+                + ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
+    }
+
+    /**
+     * Index a single object found in the portal
+     * 
+     * @param oid Object Id to be indexed
+     */
+    private void indexPortalObject(String oid) {
+        DigitalObject object = null;
+        try {
+            object = realStorage.getObject(oid);
+        } catch (StorageException ex) {
+            log.error("Error getting object", ex);
+            return;
+        }
 
-                    try {
-                        Properties sofMeta = object.getMetadata();
-                        String rulesOid = sofMeta.getProperty("rulesOid");
-                        if (!rulesList.contains(rulesOid)) {
-                            updateRules(rulesOid);
-                            rulesList.add(rulesOid);
-                        }
-                        processObject(object, rulesOid, null, false);
-                    } catch (StorageException ex) {
-                        log.error("Error indexing object", ex);
+        try {
+            Properties sofMeta = object.getMetadata();
+            String rulesOid = sofMeta.getProperty("rulesOid");
+            if (!rulesList.contains(rulesOid)) {
+                updateRules(rulesOid);
+                rulesList.add(rulesOid);
+            }
+            processObject(object, rulesOid, null, false);
+        } catch (StorageException ex) {
+            log.error("Error indexing object", ex);
+        } catch (IOException ex) {
+            log.error("Error indexing object", ex);
+        }
+    }
+
+    /**
+     * Searches the portal a page at a time, handing each page of IDs to the
+     * indexing thread. An empty page marks the end of the results.
+     */
+    private class PageFetcher implements Runnable {
+        private String portalQuery;
+        private int pageSize;
+        private BlockingQueue<List<String>> pages;
+
+        public PageFetcher(String portalQuery, int pageSize,
+                BlockingQueue<List<String>> pages) {
+            this.portalQuery = portalQuery;
+            this.pageSize = pageSize;
+            this.pages = pages;
+        }
+
+        @Override
+        public void run() {
+            String lastId = null;
+            try {
+                List<String> page;
+                do {
+                    page = search(lastId);
+                    if (!page.isEmpty()) {
+                        lastId = page.get(page.size() - 1);
+                        pages.put(page);
                     }
-                }
+                } while (page.size() >= pageSize);
+            } catch (InterruptedException ex) {
+                return;
+            } catch (Exception ex) {
+                log.error("Error searching portal, stopping after '{}'",
+                        lastId, ex);
+            }
+            try {
+                pages.put(new ArrayList<String>());
+            } catch (InterruptedException ex) {
+                // Indexing has stopped already
+            }
+        }
 
-                startRow += numPerPage;
-                numFound = js.getInteger(0, "response", "numFound");
+        /**
+         * Fetch the page of IDs that follows the given ID
+         * 
+         * @param lastId The last ID on the previous page, null for the first
+         * @return List<String> : The IDs found, empty at the end
+         */
+        private List<String> search(String lastId) throws IndexerException,
+                IOException {
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            SearchRequest request = new SearchRequest("*:*");
+            request.addParam("rows", String.valueOf(pageSize));
+            request.addParam("fq", "item_type:\"object\"");
+            request.setParam("sort", "id asc");
+            request.setParam("fl", "id");
+            if (lastId != null) {
+                request.addParam("fq", "id:{\"" + escapeQuery(lastId)
+                        + "\" TO *]");
+            }
+            if (portalQuery != null && !portalQuery.isEmpty()) {
+                request.addParam("fq", portalQuery);
+            }
 
-            } catch (IndexerException e) {
-                e.printStackTrace();
-            } catch (IOException e) {
-                e.printStackTrace();
+            indexer.search(request, result);
+            JsonSimpleConfig js = new JsonSimpleConfig(result.toString());
+            List<String> ids = js.getStringList("response", "docs", "id");
+            if (ids == null) {
+                return new ArrayList<String>();
             }
-        } while (startRow < numFound);
+            return ids;
+        }
 
-        log.info("Completed in "
-                + ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
+        private String escapeQuery(String value) {
+            return value.replace("\\", "\\\\").replace("\"", "\\\"");
+        }
     }
 
     /**
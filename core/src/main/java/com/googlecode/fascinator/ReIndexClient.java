@@ -23,11 +23,11 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Set;
 
 import org.python.core.Py;
 import org.python.core.PyObject;
@@ -38,6 +38,7 @@ import org.slf4j.LoggerFactory;
 import com.googlecode.fascinator.api.PluginException;
 import com.googlecode.fascinator.api.PluginManager;
 import com.googlecode.fascinator.api.storage.DigitalObject;
+import com.googlecode.fascinator.api.storage.ObjectIdCursor;
 import com.googlecode.fascinator.api.storage.Payload;
 import com.googlecode.fascinator.api.storage.Storage;
 import com.googlecode.fascinator.api.storage.StorageException;
@@ -99,6 +100,12 @@ public class ReIndexClient {
     /** Tool Chain entry queue */
     private String toolChainEntry;
 
+    /** Runs the second pass across a thread pool */
+    private RebuildEngine engine;
+
+    /** Objects found in the first pass, 0 if it did not run */
+    private long numObjects;
+
     /**
      * ReIndex Client Constructor
      *
@@ -113,7 +120,8 @@ public class ReIndexClient {
     public void init(String scriptMigration, boolean harvestRemap,
             boolean oldHarvestFiles, boolean failOnMissing,
             JsonSimpleConfig config) {
-        harvestConfigs = new HashMap<String, JsonSimple>();
+        harvestConfigs = Collections
+                .synchronizedMap(new HashMap<String, JsonSimple>());
 
         // Access Configuration
         try {
@@ -180,15 +188,31 @@ public class ReIndexClient {
         }
 
         // Go do all the work we require
+        engine = new RebuildEngine(storage, systemConfig);
         logicLoop();
     }
 
+    /**
+     * Constructor for unit tests, wiring in storage and the harvest file
+     * settings without connecting to messaging or running the rebuild.
+     *
+     * @param storage The storage to read objects from
+     * @param oldHarvestFiles Whether older harvest files may be remapped to
+     */
+    ReIndexClient(Storage storage, boolean oldHarvestFiles) {
+        this.storage = storage;
+        harvestRemap = true;
+        this.oldHarvestFiles = oldHarvestFiles;
+        harvestUpdates = new HashMap<String, String>();
+    }
+
     /**
      * ReIndex Client Constructor
      *
      */
     public ReIndexClient() {
-        harvestConfigs = new HashMap<String, JsonSimple>();
+        harvestConfigs = Collections
+                .synchronizedMap(new HashMap<String, JsonSimple>());
 
         // Access Configuration
         try {
@@ -287,58 +311,76 @@ public class ReIndexClient {
     }
 
     /**
-     * Main logic loop of the process
+     * Main logic loop of the process. Object IDs are streamed from storage
+     * by a cursor in each pass, so memory use does not grow with the size of
+     * the repository.
      *
      */
     private void logicLoop() {
         log.info("Rebuild commencing...");
-        Set<?> objectList = storage.getObjectIdList();
-        if (objectList == null) {
-            log.error("Unable to access objects in storage!");
-            return;
-        }
 
         log.info(
                 "Performing first pass of object list to determine changes that need to be made.");
-        firstPass(objectList);
+        if (!firstPass()) {
+            return;
+        }
         log.info("First pass complete");
         log.info(
                 "Performing second pass. Processing object list to make changes");
-        processObjects(objectList);
+        if (!processObjects()) {
+            return;
+        }
         log.info("Second pass complete");
         log.info("Rebuild complete...");
     }
 
+    /**
+     * Open a cursor over every object ID in storage
+     *
+     * @return ObjectIdCursor : The cursor, or null if storage is inaccessible
+     */
+    private ObjectIdCursor openCursor() {
+        try {
+            return storage.getObjectIds(null);
+        } catch (StorageException ex) {
+            log.error("Unable to access objects in storage!", ex);
+            return null;
+        }
+    }
+
     /**
      * First pass processing of objects. This stage is looking for changes that
      * need to be made regarding the mapping of harvest files.
      *
-     * @param oids The set of OIDs to process
+     * @return boolean : False if storage could not be read
      */
-    private void firstPass(Set<?> oids) {
-        int numObjects = oids.size();
-        log.info("Found {} objects in storage. Assessing contents...",
-                numObjects);
+    boolean firstPass() {
         if (!harvestRemap) {
             log.info("No harvest remapping required in config.");
-            return;
+            return true;
+        }
+        ObjectIdCursor oids = openCursor();
+        if (oids == null) {
+            return false;
         }
 
         // Prepare some holding variables
-        List<String> harvestFiles = new ArrayList<String>();
+        Map<String, HarvestFileVersions> harvestFiles = new HashMap<String, HarvestFileVersions>();
         Map<String, String> usedHarvestFiles = new HashMap<String, String>();
 
         // Look through storage and populate them
-        for (Object object : oids) {
-
-            if (object instanceof String) {
-                String oid = (String) object;
+        numObjects = 0;
+        try {
+            while (oids.hasNext()) {
+                String oid = oids.next();
                 log.info("First pass processing oid: " + oid);
                 assessObject(oid, harvestFiles, usedHarvestFiles);
-            } else {
-                log.error("Unexpected: Non-String OID! '{}'", object);
+                numObjects++;
             }
+        } finally {
+            oids.close();
         }
+        log.info("Found {} objects in storage.", numObjects);
 
         // Now sort out how we need to alter things
         log.info(
@@ -346,66 +388,81 @@ public class ReIndexClient {
         for (String key : usedHarvestFiles.keySet()) {
             String pid = usedHarvestFiles.get(key);
             log.info("Processing oid: " + key + " pid: " + pid);
-            if (pid != null) {
-                // Find the version we know was in use
-                Payload oldP = getPayload(key, pid);
-                // Look for an aternative
-                for (String newOid : harvestFiles) {
-                    // Make sure we don't find the same one
-                    if (!newOid.equals(key)) {
-                        Payload newP = getPayload(newOid, pid);
-                        // We found one
-                        if (newP != null) {
-                            // Check it's date
-                            if (newP.lastModified() >= oldP.lastModified()) {
-                                harvestUpdates.put(key, newOid);
-                                // log.debug("'{}' > '{}' ({})", new Object[]
-                                // {key, newOid, pid});
-                            } else {
-                                // Do we allow older harvest files?
-                                if (oldHarvestFiles) {
-                                    harvestUpdates.put(key, newOid);
-                                    // Rejected base on age
-                                } else {
-                                    log.error(
-                                            "Found an older harvest file,"
-                                                    + " ignoring: '{}' > '{}'",
-                                            newOid, pid);
-                                }
-                            }
-                        }
-                    }
-                }
-            } else {
+            if (pid == null) {
                 log.error(
                         "Errors observed in storage for object(s) using"
                                 + " harvest file '{}'. PID should not be null!",
                         key);
+                continue;
+            }
+            HarvestFileVersions versions = harvestFiles.get(pid);
+            if (versions == null) {
+                // Nothing in storage carries this payload
+                continue;
+            }
+            // Find the version we know was in use
+            Payload oldP = getPayload(key, pid);
+            if (oldP == null) {
+                log.error("Harvest file '{}' > '{}' is missing from storage!",
+                        key, pid);
+                continue;
+            }
+            long oldDate = lastModified(oldP);
+
+            // Look for an alternative, making sure we don't find the same one
+            HarvestFileVersion newest = versions.newestExcluding(key);
+            if (newest == null) {
+                continue;
+            }
+            if (newest.lastModified >= oldDate) {
+                harvestUpdates.put(key, newest.oid);
+                // log.debug("'{}' > '{}' ({})", new Object[]
+                // {key, newest.oid, pid});
+            } else {
+                // Do we allow older harvest files?
+                if (oldHarvestFiles) {
+                    harvestUpdates.put(key, newest.oid);
+                    // Rejected base on age
+                } else {
+                    log.error("Found an older harvest file,"
+                            + " ignoring: '{}' > '{}'", newest.oid, pid);
+                }
             }
         }
         log.info(
                 "Completed checking list of harvest files to see if we have newer versions");
+        return true;
     }
 
     /**
-     * A basic loop for the handling of second stage processing.
+     * Harvest file remapping decided by the first pass
      *
-     * @param oids The set of OIDs to process
+     * @return Map<String, String> : Old harvest file OIDs to new ones
      */
-    private void processObjects(Set<?> oids) {
-        int i = 0;
-        for (Object object : oids) {
-            if (object instanceof String) {
-                String oid = (String) object;
+    Map<String, String> getHarvestUpdates() {
+        return harvestUpdates;
+    }
+
+    /**
+     * Second stage processing. Objects are handed to the rebuild engine, which
+     * spreads them across its thread pool and checkpoints progress so an
+     * interrupted rebuild can resume.
+     *
+     * @return boolean : False if the rebuild did not complete
+     */
+    private boolean processObjects() {
+        if (numObjects == 0) {
+            numObjects = engine.countObjects();
+        }
+        engine.setTotal(numObjects);
+        return engine.run(new RebuildEngine.ObjectProcessor() {
+            @Override
+            public void process(String oid) {
                 log.info("Second pass processing oid: " + oid);
                 processObject(oid);
                 log.info("Second pass processing oid: " + oid + " completed");
-                i++;
-                if (i % 50 == 0) {
-                    log.info("{} objects rebuilt...", i);
-                }
             }
-        }
+        });
     }
 
     /**
@@ -413,19 +470,42 @@ public class ReIndexClient {
      * harvest file, or if not what harvest file it is using.
      *
      * @param oid The Object ID to process.
-     * @param harvestFiles A List in which to store any found harvest files
+     * @param harvestFiles A Map in which to index found harvest files by the
+     *            payloads they hold
      * @param usedHarvestFiles A Map in which to store observed instances of a
      *            harvest file in use
      */
-    private void assessObject(String oid, List<String> harvestFiles,
+    private void assessObject(String oid,
+            Map<String, HarvestFileVersions> harvestFiles,
             Map<String, String> usedHarvestFiles) {
-        Properties metadata = getMetadata(oid);
+        DigitalObject digitalObject = null;
+        Properties metadata = null;
+        try {
+            digitalObject = storage.getObject(oid);
+            metadata = digitalObject.getMetadata();
+        } catch (StorageException ex) {
+            log.error("Retrieving metadata for OID '{}' failed!: ", oid, ex);
+            return;
+        }
 
         // Config file
         String configOid = metadata.getProperty("jsonConfigOid");
         if (configOid == null) {
-            // This is a harvest file
-            harvestFiles.add(oid);
+            // This is a harvest file, remember the age of each payload
+            for (String pid : digitalObject.getPayloadIdList()) {
+                try {
+                    Payload payload = digitalObject.getPayload(pid);
+                    HarvestFileVersions versions = harvestFiles.get(pid);
+                    if (versions == null) {
+                        versions = new HarvestFileVersions();
+                        harvestFiles.put(pid, versions);
+                    }
+                    versions.add(oid, lastModified(payload));
+                } catch (StorageException ex) {
+                    log.error("Retrieving payload '{}' > '{}' failed!: ",
+                            new Object[] { oid, pid, ex });
+                }
+            }
             // log.debug("Harvest File: '{}'", oid);
         } else {
             // This is a standard object
@@ -450,6 +530,17 @@ public class ReIndexClient {
         }
     }
 
+    /**
+     * Last modified date of a payload, treating unknown as the epoch
+     *
+     * @param payload The payload to check
+     * @return long : The last modified date
+     */
+    private long lastModified(Payload payload) {
+        Long date = payload.lastModified();
+        return date == null ? 0 : date;
+    }
+
     /**
      * Process the provided object OID.
      *
@@ -542,10 +633,12 @@ public class ReIndexClient {
             bindings.put("auditMessages", auditMessages);
 
             log.info("Running migration script");
-            // Execute
+            // Execute, scripts are not assumed to be thread safe
             try {
-                migrationScript.invoke(SCRIPT_ACTIVATE_METHOD,
-                        Py.java2py(bindings));
+                synchronized (migrationScript) {
+                    migrationScript.invoke(SCRIPT_ACTIVATE_METHOD,
+                            Py.java2py(bindings));
+                }
             } catch (Exception ex) {
                 log.error("Error executing migration script"
                         + " against object '{}'", oid, ex);
@@ -607,31 +700,6 @@ public class ReIndexClient {
         metadata.setProperty(key, newOid);
     }
 
-    /**
-     * Retrieve the metadata properties from storage for the request OID.
-     *
-     * @param oid The Object ID of the object in storage
-     * @return Properties An instantiated Properties Object, or null for errors
-     */
-    private Properties getMetadata(String oid) {
-        // Get the object from storage
-        DigitalObject digitalObject = null;
-        try {
-            digitalObject = storage.getObject(oid);
-        } catch (StorageException ex) {
-            log.error("Retrieving OID '{}' failed!: ", oid, ex);
-            return null;
-        }
-
-        // Retrieve the key/value metadata list
-        try {
-            return digitalObject.getMetadata();
-        } catch (StorageException ex) {
-            log.error("Retrieving metadata for OID '{}' failed!: ", oid, ex);
-            return null;
-        }
-    }
-
     /**
      * Retrieve a Payload from storage
      *
@@ -744,11 +812,8 @@ public class ReIndexClient {
      * @param config Item configuration for this object.
      */
     private void queueHarvest(String oid, JsonSimple config) {
-        // NOTE: The oid is being updated in memory here
-        // (including in the cache)
-        // This OK so long as this process remains single threaded
-        // and only keys that are overwritten EVERY time are used;
-        // like 'oid'.
+        // NOTE: The oid is set on a copy, never on the cached
+        // config, since several threads may be sending at once.
         log.info("Sending oid: " + oid + " to the harvest queue");
         JsonObject json;
         try {
@@ -758,6 +823,7 @@ public class ReIndexClient {
         }
         json.put("oid", oid);
         try {
+            engine.throttle();
             messaging.queueMessage(toolChainEntry, json.toString());
         } catch (Exception ex) {
             log.error("Failed sending OID '{}' to the harvest message queue!",
@@ -788,6 +854,49 @@ public class ReIndexClient {
         }
     }
 
+    /**
+     * A single harvest file holding a given payload
+     *
+     */
+    private static class HarvestFileVersion {
+        private String oid;
+        private long lastModified;
+
+        private HarvestFileVersion(String oid, long lastModified) {
+            this.oid = oid;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * The two newest harvest files holding a given payload. Two are kept so
+     * that a harvest file can always be compared against the newest one that
+     * isn't itself.
+     *
+     */
+    private static class HarvestFileVersions {
+        private HarvestFileVersion newest;
+        private HarvestFileVersion second;
+
+        private void add(String oid, long lastModified) {
+            HarvestFileVersion version = new HarvestFileVersion(oid,
+                    lastModified);
+            if (newest == null || lastModified >= newest.lastModified) {
+                second = newest;
+                newest = version;
+            } else if (second == null || lastModified >= second.lastModified) {
+                second = version;
+            }
+        }
+
+        private HarvestFileVersion newestExcluding(String oid) {
+            if (newest != null && newest.oid.equals(oid)) {
+                return second;
+            }
+            return newest;
+        }
+    }
+
     /**
      * Shutdown ReIndex Client.
      *
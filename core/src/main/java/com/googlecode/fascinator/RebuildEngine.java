@@ -0,0 +1,454 @@
+/*
+ * The Fascinator - Core - Rebuild Engine
+ * Copyright (C) 2026 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.googlecode.fascinator.api.storage.ObjectIdCursor;
+import com.googlecode.fascinator.api.storage.Storage;
+import com.googlecode.fascinator.api.storage.StorageException;
+import com.googlecode.fascinator.common.FascinatorHome;
+import com.googlecode.fascinator.common.JsonObject;
+import com.googlecode.fascinator.common.JsonSimple;
+
+/**
+ * <p>
+ * Walks every object in storage and hands each one to an ObjectProcessor on a
+ * bounded, work-stealing thread pool. Progress is checkpointed to a small file
+ * under the Fascinator home directory so an interrupted rebuild carries on
+ * where it stopped rather than starting again.
+ * </p>
+ *
+ * <p>
+ * Objects complete out of order on the pool, so the checkpoint only records
+ * the point before which <b>every</b> object has completed. On restart a few
+ * objects past that point may be processed a second time, which is harmless
+ * for a rebuild.
+ * </p>
+ *
+ * <p>
+ * Configured from 'restoreTool' in the system configuration:
+ * </p>
+ * <ul>
+ * <li><b>threads</b>: Worker threads (default 1)</li>
+ * <li><b>maxMessagesPerSecond</b>: Limit on messages sent through
+ * throttle(), 0 for no limit (default 0)</li>
+ * <li><b>checkpointInterval</b>: Completed objects between checkpoints
+ * (default 500)</li>
+ * <li><b>checkpointFile</b>: Checkpoint location (default
+ * 'rebuild/checkpoint.json' in the Fascinator home directory)</li>
+ * <li><b>resume</b>: Whether to resume from an existing checkpoint
+ * (default true)</li>
+ * </ul>
+ */
+public class RebuildEngine {
+
+    /** Logging */
+    private static Logger log = LoggerFactory.getLogger(RebuildEngine.class);
+
+    /** How often to log throughput, in milliseconds */
+    private static final long PROGRESS_INTERVAL = 30000;
+
+    /** Work to be done for each object */
+    public interface ObjectProcessor {
+        /**
+         * Process a single object. Will be called concurrently from several
+         * threads, and must handle its own errors.
+         *
+         * @param oid The object ID
+         */
+        public void process(String oid);
+    }
+
+    /** Storage to walk */
+    private Storage storage;
+
+    /** Worker threads */
+    private int threads;
+
+    /** Minimum milliseconds between throttled sends, 0 for no limit */
+    private long sendInterval;
+
+    /** Completed objects between checkpoints */
+    private int checkpointInterval;
+
+    /** Checkpoint file */
+    private File checkpointFile;
+
+    /** Serialises checkpoint writes, which share one temporary file */
+    private final Object checkpointLock = new Object();
+
+    /** Whether to resume from a checkpoint */
+    private boolean resume;
+
+    /** Earliest time the next throttled send may go */
+    private long nextSend = 0;
+
+    /** Continuation tokens for submitted objects, by sequence number */
+    private TreeMap<Long, String> tokens;
+
+    /** Completed sequence numbers ahead of the watermark */
+    private Set<Long> completed;
+
+    /** Every sequence number up to this one has completed */
+    private long watermark;
+
+    /** Token matching the watermark */
+    private String watermarkToken;
+
+    /** Objects completed before this run, from the checkpoint */
+    private long resumedFrom;
+
+    /** Objects completed, including those from before a resume */
+    private AtomicLong done;
+
+    /** Objects completed during this run */
+    private AtomicLong doneThisRun;
+
+    /** Completed count recorded in the last checkpoint */
+    private long lastCheckpoint;
+
+    /** When this run started */
+    private long startTime;
+
+    /** When progress was last logged */
+    private long lastProgress;
+
+    /** Estimated total number of objects, 0 if unknown */
+    private long total;
+
+    /**
+     * Constructor
+     *
+     * @param storage The storage to walk
+     * @param config The system configuration
+     */
+    public RebuildEngine(Storage storage, JsonSimple config) {
+        this.storage = storage;
+        threads = Math.max(1, config.getInteger(1, "restoreTool", "threads"));
+        int rate = config.getInteger(0, "restoreTool", "maxMessagesPerSecond");
+        sendInterval = rate > 0 ? Math.max(1, 1000 / rate) : 0;
+        checkpointInterval = Math.max(1, config.getInteger(500,
+                "restoreTool", "checkpointInterval"));
+        String path = config.getString(null, "restoreTool", "checkpointFile");
+        if (path == null) {
+            checkpointFile = FascinatorHome
+                    .getPathFile("rebuild/checkpoint.json");
+        } else {
+            checkpointFile = new File(path);
+        }
+        resume = config.getBoolean(true, "restoreTool", "resume");
+    }
+
+    /**
+     * Set the estimated number of objects, used to report an ETA
+     *
+     * @param total The number of objects in storage
+     */
+    public void setTotal(long total) {
+        this.total = total;
+    }
+
+    /**
+     * Count the objects in storage by walking a cursor over their IDs. This
+     * is only a scan of the IDs, not the objects themselves.
+     *
+     * @return long : The number of objects, or 0 if storage is inaccessible
+     */
+    public long countObjects() {
+        long count = 0;
+        try {
+            ObjectIdCursor cursor = storage.getObjectIds(null);
+            try {
+                while (cursor.hasNext()) {
+                    cursor.next();
+                    count++;
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (StorageException ex) {
+            log.error("Unable to count objects in storage: ", ex);
+        }
+        return count;
+    }
+
+    /**
+     * Process every object in storage, resuming from the checkpoint if there
+     * is one.
+     *
+     * @param processor The work to perform on each object
+     * @return boolean : True if every object was processed
+     */
+    public boolean run(ObjectProcessor processor) {
+        tokens = new TreeMap<Long, String>();
+        completed = new HashSet<Long>();
+        watermark = 0;
+        watermarkToken = null;
+        done = new AtomicLong(0);
+        doneThisRun = new AtomicLong(0);
+
+        // Where are we starting from?
+        if (resume) {
+            readCheckpoint();
+        } else if (checkpointFile.exists()) {
+            log.info("Ignoring existing checkpoint '{}'", checkpointFile);
+            checkpointFile.delete();
+        }
+        if (watermarkToken != null) {
+            log.info("Resuming rebuild after {} objects", done.get());
+        }
+        resumedFrom = done.get();
+        lastCheckpoint = resumedFrom;
+
+        ObjectIdCursor cursor;
+        try {
+            cursor = storage.getObjectIds(watermarkToken);
+        } catch (StorageException ex) {
+            log.error("Unable to access objects in storage!", ex);
+            return false;
+        }
+
+        log.info("Rebuilding with {} thread(s)", threads);
+        startTime = System.currentTimeMillis();
+        lastProgress = startTime;
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        // Keep the pool busy, but don't read the whole cursor into memory
+        final Semaphore inFlight = new Semaphore(threads * 4);
+        boolean complete = false;
+        try {
+            long sequence = 0;
+            while (cursor.hasNext()) {
+                final String oid = cursor.next();
+                final long seq = ++sequence;
+                inFlight.acquire();
+                synchronized (this) {
+                    tokens.put(seq, cursor.getContinuationToken());
+                }
+                final ObjectProcessor work = processor;
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            work.process(oid);
+                        } catch (Exception ex) {
+                            log.error("Unexpected error processing '{}': ",
+                                    oid, ex);
+                        } finally {
+                            complete(seq);
+                            inFlight.release();
+                        }
+                    }
+                });
+            }
+            complete = true;
+        } catch (InterruptedException ex) {
+            log.warn("Rebuild interrupted, progress has been checkpointed");
+            Thread.currentThread().interrupt();
+        } finally {
+            cursor.close();
+            pool.shutdown();
+            try {
+                while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                    log.info("Waiting for {} active task(s) to finish...",
+                            pool.getActiveThreadCount());
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                complete = false;
+            }
+        }
+
+        logProgress();
+        if (complete) {
+            // Finished, next time starts from scratch
+            synchronized (checkpointLock) {
+                if (checkpointFile.exists() && !checkpointFile.delete()) {
+                    log.warn("Unable to delete checkpoint '{}'",
+                            checkpointFile);
+                }
+            }
+        } else {
+            writeCheckpoint();
+        }
+        return complete;
+    }
+
+    /**
+     * Wait until the configured message rate allows another send. Processors
+     * should call this immediately before queueing each message.
+     *
+     */
+    public void throttle() {
+        if (sendInterval <= 0) {
+            return;
+        }
+        long wait;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            long slot = Math.max(now, nextSend);
+            nextSend = slot + sendInterval;
+            wait = slot - now;
+        }
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Record a completed object, advance the watermark and checkpoint or log
+     * progress if it is time to.
+     *
+     */
+    private void complete(long seq) {
+        done.incrementAndGet();
+        doneThisRun.incrementAndGet();
+        boolean checkpoint = false;
+        boolean progress = false;
+        synchronized (this) {
+            completed.add(seq);
+            while (completed.remove(watermark + 1)) {
+                watermark++;
+                watermarkToken = tokens.remove(watermark);
+            }
+            long count = done.get();
+            if (count - lastCheckpoint >= checkpointInterval) {
+                lastCheckpoint = count;
+                checkpoint = true;
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastProgress >= PROGRESS_INTERVAL) {
+                lastProgress = now;
+                progress = true;
+            }
+        }
+        if (checkpoint) {
+            writeCheckpoint();
+        }
+        if (progress) {
+            logProgress();
+        }
+    }
+
+    /**
+     * Log throughput and, if we know the total, an ETA
+     *
+     */
+    private void logProgress() {
+        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+        long count = doneThisRun.get();
+        double rate = (count * 1000.0) / elapsed;
+        String eta = "unknown";
+        if (total > 0 && rate > 0) {
+            long remaining = Math.max(0, total - done.get());
+            eta = formatDuration((long) (remaining / rate) * 1000);
+        }
+        log.info(String.format("%d objects rebuilt (%.1f/s), ETA: %s",
+                done.get(), rate, eta));
+    }
+
+    private String formatDuration(long millis) {
+        long seconds = millis / 1000;
+        return String.format("%dh %02dm %02ds", seconds / 3600,
+                (seconds % 3600) / 60, seconds % 60);
+    }
+
+    /**
+     * Load the token and count from an existing checkpoint
+     *
+     */
+    private void readCheckpoint() {
+        if (!checkpointFile.exists()) {
+            return;
+        }
+        try {
+            JsonSimple json = new JsonSimple(checkpointFile);
+            watermarkToken = json.getString(null, "token");
+            done.set(json.getInteger(0, "completed"));
+        } catch (IOException ex) {
+            log.error("Unable to read checkpoint '{}', starting again: ",
+                    checkpointFile, ex);
+            watermarkToken = null;
+            done.set(0);
+        }
+    }
+
+    /**
+     * Write the current watermark to disk. Written to a temporary file first
+     * and moved over the old checkpoint atomically, so a crash at any point
+     * leaves either the old or the new checkpoint.
+     *
+     */
+    private void writeCheckpoint() {
+        synchronized (checkpointLock) {
+            JsonObject json = new JsonObject();
+            synchronized (this) {
+                if (watermarkToken == null) {
+                    return;
+                }
+                json.put("token", watermarkToken);
+                json.put("completed", resumedFrom + watermark);
+                json.put("updated", System.currentTimeMillis());
+            }
+            File dir = checkpointFile.getAbsoluteFile().getParentFile();
+            dir.mkdirs();
+            File temp = new File(dir, checkpointFile.getName() + ".tmp");
+            FileOutputStream out = null;
+            try {
+                out = new FileOutputStream(temp);
+                out.write(json.toString().getBytes("UTF-8"));
+                out.getFD().sync();
+                out.close();
+                out = null;
+                Files.move(temp.toPath(), checkpointFile.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException ex) {
+                log.error("Unable to write checkpoint '{}': ", checkpointFile,
+                        ex);
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException ex) {
+                        // Already failed
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * The Fascinator - Core
+ * Copyright (C) 2026 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.messaging;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.googlecode.fascinator.api.storage.DigitalObject;
+import com.googlecode.fascinator.api.storage.Payload;
+import com.googlecode.fascinator.api.storage.Storage;
+import com.googlecode.fascinator.api.storage.StorageException;
+import com.googlecode.fascinator.common.JsonObject;
+import com.googlecode.fascinator.common.JsonSimple;
+import com.googlecode.fascinator.common.JsonSimpleConfig;
+import com.googlecode.fascinator.common.SystemConfigSnapshot;
+
+/**
+ * <p>
+ * Support for compact tool chain messages. Rather than embedding the whole
+ * harvest configuration, a compact message names the harvest file in storage
+ * and the hash of its contents:
+ * </p>
+ *
+ * <pre>
+ * {
+ *     "oid": "...",
+ *     "configOid": "...",
+ *     "configPid": "...",
+ *     "configHash": "..."
+ * }
+ * </pre>
+ *
+ * <p>
+ * Consumers call resolve() to turn either kind of message into the full
+ * configuration. Parsed configurations are held in a bounded cache shared by
+ * every consumer in the JVM and keyed by hash, so each version of a harvest
+ * file is read and parsed once. Senders enable compact messages with
+ * 'messaging.harvestMessages.compact', and 'cacheSize' bounds the cache.
+ * </p>
+ *
+ * <p>
+ * If the harvest file has changed since a message was queued, the version
+ * it names no longer exists. The message resolves to the current version
+ * with 'configChanged' set to true, and later messages naming the old hash
+ * are served the same version from the cache.
+ * </p>
+ */
+public class HarvestConfigCache {
+
+    /** Message key for the harvest file object */
+    public static final String CONFIG_OID = "configOid";
+
+    /** Message key for the harvest file payload */
+    public static final String CONFIG_PID = "configPid";
+
+    /** Message key for the harvest file hash */
+    public static final String CONFIG_HASH = "configHash";
+
+    /** Set on a resolved configuration that doesn't match its message hash */
+    public static final String CONFIG_CHANGED = "configChanged";
+
+    /** Default number of configurations to cache */
+    private static final int DEFAULT_CACHE_SIZE = 64;
+
+    /** Logging */
+    private static Logger log = LoggerFactory
+            .getLogger(HarvestConfigCache.class);
+
+    /** A parsed configuration and the hash of what was actually read */
+    private static class Cached {
+        private JsonObject config;
+        private String hash;
+
+        private Cached(JsonObject config, String hash) {
+            this.config = config;
+            this.hash = hash;
+        }
+    }
+
+    /** Parsed configurations, least recently used first */
+    private static final Map<String, Cached> cache;
+
+    /** Cache statistics */
+    private static final AtomicLong hits = new AtomicLong(0);
+    private static final AtomicLong misses = new AtomicLong(0);
+
+    static {
+        int size = DEFAULT_CACHE_SIZE;
+        try {
+            size = new JsonSimpleConfig().getInteger(DEFAULT_CACHE_SIZE,
+                    "messaging", "harvestMessages", "cacheSize");
+        } catch (IOException ex) {
+            log.error("Failed to read configuration, cache size {}", size);
+        }
+        final int maxEntries = Math.max(1, size);
+        cache = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, Cached> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Whether senders have been configured to use compact messages
+     *
+     * @param config The sender's configuration
+     * @return boolean : True if compact messages should be sent
+     */
+    public static boolean isCompact(JsonSimple config) {
+        return config.getBoolean(false, "messaging", "harvestMessages",
+                "compact");
+    }
+
+    /**
+     * Build a compact message for an object
+     *
+     * @param oid The object ID
+     * @param configOid The harvest file's object ID
+     * @param configPid The harvest file's payload ID
+     * @param configHash The hash of the harvest file's contents
+     * @return JsonObject : The message, ready for any extra flags
+     */
+    public static JsonObject newMessage(String oid, String configOid,
+            String configPid, String configHash) {
+        JsonObject json = new JsonObject();
+        json.put("oid", oid);
+        json.put(CONFIG_OID, configOid);
+        json.put(CONFIG_PID, configPid);
+        json.put(CONFIG_HASH, configHash);
+        return json;
+    }
+
+    /**
+     * Turn an incoming message into the configuration for the object. Full
+     * messages are parsed as they always have been. Compact messages get a
+     * private copy of the cached configuration, with every key from the
+     * message (oid, commit etc.) set on top, and 'configChanged' set if the
+     * harvest file no longer matches the message's hash.
+     *
+     * @param text The message text
+     * @param storage Storage holding the harvest file
+     * @return JsonSimpleConfig : The configuration for this message
+     * @throws IOException if the message or harvest file could not be parsed
+     * @throws StorageException if the harvest file could not be read
+     */
+    public static JsonSimpleConfig resolve(String text, Storage storage)
+            throws IOException, StorageException {
+        JsonSimpleConfig message = new JsonSimpleConfig(text);
+        String hash = message.getString(null, CONFIG_HASH);
+        if (hash == null) {
+            return message;
+        }
+
+        Cached cached = get(hash, message.getString(null, CONFIG_OID),
+                message.getString(null, CONFIG_PID), storage);
+        JsonObject json = SystemConfigSnapshot.copy(cached.config);
+        json.putAll(message.getJsonObject());
+        if (!hash.equals(cached.hash)) {
+            json.put(CONFIG_CHANGED, true);
+        }
+        return new JsonSimpleConfig(json);
+    }
+
+    /**
+     * Number of compact messages resolved from the cache
+     *
+     * @return long : The hit count
+     */
+    public static long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Number of compact messages that had to read their harvest file
+     *
+     * @return long : The miss count
+     */
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get a parsed configuration from the cache, loading it from storage if
+     * required. Never modify the returned configuration.
+     *
+     */
+    private static Cached get(String hash, String oid, String pid,
+            Storage storage) throws IOException, StorageException {
+        Cached cached;
+        synchronized (cache) {
+            cached = cache.get(hash);
+        }
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached;
+        }
+
+        // Parse outside the lock, at worst two consumers both load it
+        misses.incrementAndGet();
+        log.debug("Loading harvest config '{}' ({})", oid, hash);
+        DigitalObject object = storage.getObject(oid);
+        if (pid == null) {
+            pid = object.getSourceId();
+        }
+        Payload payload = object.getPayload(pid);
+        JsonObject config;
+        InputStream in = payload.open();
+        try {
+            config = new JsonSimpleConfig(in).getJsonObject();
+        } finally {
+            in.close();
+            payload.close();
+        }
+        // Cache under the hash of what was actually read. If that isn't the
+        // hash asked for, also remember it under the old hash, so messages
+        // for the old version don't each re-read the file.
+        String stored = object.getMetadata().getProperty("fileHash");
+        if (stored == null) {
+            stored = hash;
+        }
+        cached = new Cached(config, stored);
+        synchronized (cache) {
+            cache.put(stored, cached);
+            if (!stored.equals(hash)) {
+                cache.put(hash, cached);
+            }
+        }
+        if (!stored.equals(hash)) {
+            log.warn("Harvest config '{}' has changed since it was queued,"
+                    + " using the current version", oid);
+        }
+        return cached;
+    }
+}
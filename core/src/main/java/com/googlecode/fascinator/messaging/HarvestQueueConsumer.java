@@ -29,21 +29,24 @@ import com.googlecode.fascinator.api.transformer.TransformerException;
 import com.googlecode.fascinator.common.messaging.GenericListener;
 import com.googlecode.fascinator.common.JsonObject;
 import com.googlecode.fascinator.common.JsonSimpleConfig;
-import com.googlecode.fascinator.common.messaging.MessagingException;
 import com.googlecode.fascinator.common.messaging.MessagingServices;
+import com.googlecode.fascinator.common.storage.impl.CachingStorage;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jms.Connection;
 import javax.jms.DeliveryMode;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
 import javax.jms.MessageProducer;
 import javax.jms.Queue;
 import javax.jms.Session;
@@ -58,6 +61,15 @@ import org.slf4j.MDC;
  * Consumer for harvest transformers. Jobs in this queue should be short running
  * processes as they are run at harvest time.
  * 
+ * <p>
+ * By default a single JMS session consumes the queue. Setting
+ * 'concurrency' in this thread's "config" block starts that many sessions on
+ * the same queue, each with its own consumer, producer and conveyer belt.
+ * The storage and indexer plugins are shared by all of them, just as they
+ * are shared by concurrent web requests in the portal, so every worker sees
+ * the same store even with plugins that keep it in memory.
+ * </p>
+ * 
  * @author Oliver Lucido
  * @author Linda Octalina
  */
@@ -84,41 +96,32 @@ public class HarvestQueueConsumer implements GenericListener {
     /** JMS connection */
     private Connection connection;
 
-    /** JMS Session */
-    private Session session;
-
-    /** Broadcast Topic */
-    // private Topic broadcast;
-
-    /** Render Queues */
-    private Map<String, Queue> renderers;
-
     /** Render Queue Names */
     private Map<String, String> rendererNames;
 
-    /** Indexer object */
+    /** Indexer object, shared by all workers */
     private Indexer indexer;
 
-    /** Storage */
+    /** Storage, shared by all workers */
     private Storage storage;
 
-    /** Messaging Consumer */
-    private MessageConsumer consumer;
+    /** Batches index requests from all workers */
+    private IndexBatcher batcher;
 
-    /** Message Producer instance */
-    private MessageProducer producer;
+    /** Number of concurrent sessions consuming the queue */
+    private int concurrency;
 
-    /** Thread reference */
-    private Thread thread;
+    /** Session workers, one per concurrent consumer */
+    private List<Worker> workers;
 
-    /** Object being processed */
-    private DigitalObject object;
+    /** Objects processed since startup */
+    private AtomicLong processed = new AtomicLong(0);
 
-    /** Transformer conveyer belt */
-    private ConveyerBelt conveyer;
+    /** Time the consumers were started */
+    private long startTime;
 
-    /** Messaging services */
-    private MessagingServices messaging;
+    /** Thread reference */
+    private Thread thread;
 
     /**
      * Constructor required by ServiceLoader. Be sure to use init()
@@ -126,12 +129,7 @@ public class HarvestQueueConsumer implements GenericListener {
      */
     public HarvestQueueConsumer() {
         thread = new Thread(this, HARVEST_QUEUE);
-
-        try {
-            messaging = MessagingServices.getInstance();
-        } catch (MessagingException ex) {
-            log.error("Failed to start connection: {}", ex.getMessage());
-        }
+        workers = new ArrayList<Worker>();
     }
 
     /**
@@ -141,7 +139,7 @@ public class HarvestQueueConsumer implements GenericListener {
     @Override
     public void run() {
         try {
-            log.info("Starting {}...", name);
+            log.info("Starting {} with {} consumer(s)...", name, concurrency);
 
             // Get a connection to the broker
             String brokerUrl = globalConfig.getString(
@@ -151,20 +149,14 @@ public class HarvestQueueConsumer implements GenericListener {
                     new ActiveMQConnectionFactory(brokerUrl);
             connection = connectionFactory.createConnection();
 
-            session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-
-            consumer = session.createConsumer(session.createQueue(QUEUE_ID));
-            consumer.setMessageListener(this);
-
-            // broadcast = session.createTopic(MessagingServices.MESSAGE_TOPIC);
-            renderers = new LinkedHashMap<String, Queue>();
-            for (String selector : rendererNames.keySet()) {
-                renderers.put(selector,
-                        session.createQueue(rendererNames.get(selector)));
+            // Connections are thread safe, sessions are not. Each
+            // worker gets its own session, and JMS delivers to each
+            // session's listener on a separate thread.
+            for (Worker worker : workers) {
+                worker.start();
             }
-            producer = session.createProducer(null);
-            producer.setDeliveryMode(DeliveryMode.PERSISTENT);
 
+            startTime = System.currentTimeMillis();
             connection.start();
         } catch (JMSException ex) {
             log.error("Error starting message thread!", ex);
@@ -183,15 +175,35 @@ public class HarvestQueueConsumer implements GenericListener {
             name = config.getString(null, "config", "name");
             QUEUE_ID = name;
             thread.setName(name);
+            concurrency = config.getInteger(1, "config", "concurrency");
+            if (concurrency < 1) {
+                log.warn("Invalid concurrency '{}', using 1", concurrency);
+                concurrency = 1;
+            }
 
             globalConfig = new JsonSimpleConfig();
             File sysFile = JsonSimpleConfig.getSystemFile();
             indexer = PluginManager.getIndexer(
                     globalConfig.getString("solr", "indexer", "type"));
             indexer.init(sysFile);
-            storage = PluginManager.getStorage(
-                    globalConfig.getString("file-system", "storage", "type"));
-            storage.init(sysFile);
+            batcher = new IndexBatcher(name, indexer, config);
+            batcher.setListener(new IndexBatcher.Listener() {
+                @Override
+                public void indexed(List<String> oids) {
+                    for (String oid : oids) {
+                        sendNotification(oid, "indexComplete", "Index of '"
+                                + oid + "' completed");
+                    }
+                }
+
+                @Override
+                public void failed(List<String> oids, IndexerException error) {
+                    for (String oid : oids) {
+                        sendNotification(oid, "indexFailed", "Index of '"
+                                + oid + "' failed: " + error.getMessage());
+                    }
+                }
+            });
 
             // Setup render queue logic
             rendererNames = new LinkedHashMap<String, String>();
@@ -204,7 +216,16 @@ public class HarvestQueueConsumer implements GenericListener {
                         map.get(selector).toString());
             }
 
-            conveyer = new ConveyerBelt(ConveyerBelt.HARVEST);
+            storage = CachingStorage.wrap(globalConfig, PluginManager
+                    .getStorage(globalConfig.getString("file-system",
+                            "storage", "type")), name);
+            storage.init(sysFile);
+
+            // Each worker needs its own transformers
+            for (int i = 0; i < concurrency; i++) {
+                String workerName = concurrency == 1 ? name : name + "-" + i;
+                workers.add(new Worker(workerName));
+            }
 
         } catch (IOException ioe) {
             log.error("Failed to read configuration: {}", ioe.getMessage());
@@ -240,6 +261,20 @@ public class HarvestQueueConsumer implements GenericListener {
     @Override
     public void stop() throws Exception {
         log.info("Stopping {}...", name);
+        if (startTime > 0) {
+            long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+            long count = processed.get();
+            log.info("{} processed {} object(s) in {}s ({}/s) across {}"
+                    + " consumer(s)", new Object[] { name, count,
+                    elapsed / 1000, (count * 1000) / elapsed, concurrency });
+        }
+        // Stop consuming before the plugins go away underneath us
+        for (Worker worker : workers) {
+            worker.stop();
+        }
+        if (batcher != null) {
+            batcher.shutdown();
+        }
         if (indexer != null) {
             try {
                 indexer.shutdown();
@@ -256,28 +291,6 @@ public class HarvestQueueConsumer implements GenericListener {
                 throw pe;
             }
         }
-        if (producer != null) {
-            try {
-                producer.close();
-            } catch (JMSException jmse) {
-                log.warn("Failed to close producer: {}", jmse);
-            }
-        }
-        if (consumer != null) {
-            try {
-                consumer.close();
-            } catch (JMSException jmse) {
-                log.warn("Failed to close consumer: {}", jmse.getMessage());
-                throw jmse;
-            }
-        }
-        if (session != null) {
-            try {
-                session.close();
-            } catch (JMSException jmse) {
-                log.warn("Failed to close consumer session: {}", jmse);
-            }
-        }
         if (connection != null) {
             try {
                 connection.close();
@@ -288,163 +301,49 @@ public class HarvestQueueConsumer implements GenericListener {
     }
 
     /**
-     * Callback function for incoming messages.
+     * Callback function for incoming messages. Each worker registers itself
+     * as the listener for its own session, so this is only reached if a
+     * caller invokes it directly, in which case the first worker handles it.
      * 
      * @param message The incoming message
      */
     @Override
     public void onMessage(Message message) {
-        MDC.put("name", name);
-        try {
-            // Make sure thread priority is correct
-            if (!Thread.currentThread().getName().equals(thread.getName())) {
-                Thread.currentThread().setName(thread.getName());
-                Thread.currentThread().setPriority(thread.getPriority());
-            }
-
-            // Incoming message
-            String text = ((TextMessage) message).getText();
-            JsonSimpleConfig config = new JsonSimpleConfig(text);
-            String oid = config.getString(null, "oid");
-            log.info("Received job, object id='{}'", oid);
-
-            // Simple scenario, delete object
-            boolean deleted = config.getBoolean(false, "deleted");
-            if (deleted) {
-                log.info("Removing object {}...", oid);
-                storage.removeObject(oid);
-                indexer.remove(oid);
-                indexer.annotateRemove(oid);
-
-                // Log event
-                sentMessage(oid, "delete");
-                sentMessage(oid, "delete-anotar");
-                return;
-            }
-
-            // Retrieve and process the object
-            object = storage.getObject(oid);
-            object = conveyer.transform(object, config);
-            indexObject(config);
-            queueRenderJob(config);
-
-            // Log event
-            sentMessage(oid, "modify");
-
-        } catch (TransformerException tex) {
-            log.error("Error during transformation: {}", tex);
-        } catch (JMSException jmse) {
-            log.error("Failed to send/receive message: {}", jmse.getMessage());
-        } catch (IOException ioe) {
-            log.error("Failed to parse message: {}", ioe.getMessage());
-        } catch (StorageException se) {
-            log.error("Failed to update storage: {}", se.getMessage());
-        } catch (IndexerException ie) {
-            log.error("Failed to index object: {}", ie.getMessage());
-        } catch (Exception e) {
-            log.error("An unknown error has occurred: {}", e);
+        if (workers.isEmpty()) {
+            log.error("No consumers started, message ignored");
+            return;
         }
+        workers.get(0).onMessage(message);
     }
 
     /**
-     * Arrange for the item specified by the message to be indexed
+     * Gets the number of objects processed by all workers since startup.
      * 
-     * @param message The message received by the queue
-     * @throws JMSException if there was an error sending messages
-     * @throws IndexerException if the solr indexer failed
-     * @throws StorageException if the object's metadata was inaccessible
+     * @return long : The object count
      */
-    private void indexObject(JsonSimpleConfig message) throws JMSException,
-            IndexerException, StorageException {
-        // Are we indexing?
-        boolean doIndex = true;
-        Properties props = object.getMetadata();
-        String indexFlag = props.getProperty("indexOnHarvest");
-        if (indexFlag != null) {
-            // The harvest process changed the default
-            doIndex = Boolean.parseBoolean(indexFlag);
-        } else {
-            // Nothing specified, use the default
-            doIndex = message.getBoolean(true, "transformer", "indexOnHarvest");
-        }
-
-        if (doIndex) {
-            String oid = object.getId();
-            sendNotification(oid, "indexStart", "Indexing '" + oid
-                    + "' started");
-            log.info("{} : Indexing object {}...", name, oid);
-            indexer.index(oid);
-            sendNotification(oid, "indexComplete", "Index of '" + oid
-                    + "' completed");
-        }
-    }
-
-    /**
-     * Queue the render job
-     * 
-     * @param message The message received by the queue
-     * @throws JMSException if there was an error posting to the queue
-     * @throws StorageException if the object's metadata was inaccessible
-     */
-    private void queueRenderJob(JsonSimpleConfig message) throws JMSException,
-            StorageException {
-        // What transformations are required at the render step
-        List<String> plugins = ConveyerBelt.getTransformList(object, message,
-                ConveyerBelt.RENDER, true);
-
-        TextMessage msg = session.createTextMessage(message.toString());
-        // 'renderers' is a LinkedHashMap because the key order is significant
-        for (String selector : renderers.keySet()) {
-            if (plugins.contains(selector)) {
-                producer.send(renderers.get(selector), msg);
-                return;
-            }
-        }
-
-        // Default is the fallback
-        producer.send(renderers.get("default"), msg);
+    public long getProcessedCount() {
+        return processed.get();
     }
 
     /**
-     * Send the notification out on the broadcast topic
+     * Send the notification out on the broadcast topic. Publishing is
+     * disabled, as it is for the other consumers, so nothing here touches a
+     * JMS session and it is safe to call from the index batch timer.
      * 
      * @param oid Object Id
      * @param status Status of the object
      * @param message Message to be sent
      */
-    private void sendNotification(String oid, String status, String message)
-            throws JMSException {
+    private void sendNotification(String oid, String status, String message) {
         JsonObject jsonMessage = new JsonObject();
         jsonMessage.put("id", oid);
         jsonMessage.put("idType", "object");
         jsonMessage.put("status", status);
         jsonMessage.put("message", message);
-
-        TextMessage msg = session.createTextMessage(jsonMessage.toString());
+        log.debug("Notification: {}", jsonMessage.toString());
         // producer.send(broadcast, msg);
     }
 
-    /**
-     * To put events to subscriber queue
-     * 
-     * @param oid Object id
-     * @param eventType type of events happened
-     * @param context where the event happened
-     * @param jsonFile Configuration file
-     */
-    private void sentMessage(String oid, String eventType) {
-        Map<String, String> param = new LinkedHashMap<String, String>();
-        param.put("oid", oid);
-        param.put("eventType", eventType);
-        param.put("username", "system");
-        param.put("context", "HarvestQueueConsumer");
-        try {
-            messaging.onEvent(param);
-        } catch (MessagingException ex) {
-            log.error("Unable to send message: ", ex);
-        }
-    }
-
     /**
      * Sets the priority level for the thread. Used by the OS.
      * 
@@ -457,4 +356,248 @@ public class HarvestQueueConsumer implements GenericListener {
             thread.setPriority(newPriority);
         }
     }
+
+    /**
+     * A single consumer on the harvest queue. Everything here is confined to
+     * the JMS session's delivery thread; only the storage and indexer plugins
+     * are shared with other workers.
+     */
+    private class Worker implements MessageListener {
+
+        /** Name used for the delivery thread and logging */
+        private String workerName;
+
+        /** JMS Session */
+        private Session session;
+
+        /** Messaging Consumer */
+        private MessageConsumer consumer;
+
+        /** Message Producer instance */
+        private MessageProducer producer;
+
+        /** Render Queues */
+        private Map<String, Queue> renderers;
+
+        /** Subscriber queue for event logging */
+        private Queue events;
+
+        /** Transformer conveyer belt */
+        private ConveyerBelt conveyer;
+
+        public Worker(String workerName) throws TransformerException {
+            this.workerName = workerName;
+            conveyer = new ConveyerBelt(ConveyerBelt.HARVEST);
+        }
+
+        /**
+         * Create this worker's session and register for messages
+         * 
+         * @throws JMSException if there was an error creating the session
+         */
+        public void start() throws JMSException {
+            session = connection.createSession(false,
+                    Session.AUTO_ACKNOWLEDGE);
+
+            consumer = session.createConsumer(session.createQueue(QUEUE_ID));
+            consumer.setMessageListener(this);
+
+            renderers = new LinkedHashMap<String, Queue>();
+            for (String selector : rendererNames.keySet()) {
+                renderers.put(selector,
+                        session.createQueue(rendererNames.get(selector)));
+            }
+            events = session.createQueue(MessagingServices.SUBSCRIBER_QUEUE);
+            producer = session.createProducer(null);
+            producer.setDeliveryMode(DeliveryMode.PERSISTENT);
+        }
+
+        /**
+         * Close this worker's JMS resources
+         * 
+         */
+        public void stop() {
+            if (producer != null) {
+                try {
+                    producer.close();
+                } catch (JMSException jmse) {
+                    log.warn("Failed to close producer: {}", jmse);
+                }
+            }
+            if (consumer != null) {
+                try {
+                    consumer.close();
+                } catch (JMSException jmse) {
+                    log.warn("Failed to close consumer: {}",
+                            jmse.getMessage());
+                }
+            }
+            if (session != null) {
+                try {
+                    session.close();
+                } catch (JMSException jmse) {
+                    log.warn("Failed to close consumer session: {}", jmse);
+                }
+            }
+        }
+
+        /**
+         * Callback function for incoming messages.
+         * 
+         * @param message The incoming message
+         */
+        @Override
+        public void onMessage(Message message) {
+            MDC.put("name", name);
+            try {
+                // Make sure thread priority is correct
+                if (!Thread.currentThread().getName().equals(workerName)) {
+                    Thread.currentThread().setName(workerName);
+                    Thread.currentThread().setPriority(thread.getPriority());
+                }
+
+                // Incoming message
+                String text = ((TextMessage) message).getText();
+                JsonSimpleConfig config = HarvestConfigCache.resolve(text,
+                        storage);
+                String oid = config.getString(null, "oid");
+                log.info("Received job, object id='{}'", oid);
+
+                // Simple scenario, delete object
+                boolean deleted = config.getBoolean(false, "deleted");
+                if (deleted) {
+                    log.info("Removing object {}...", oid);
+                    storage.removeObject(oid);
+                    indexer.remove(oid);
+                    indexer.annotateRemove(oid);
+
+                    // Log event
+                    sentMessage(oid, "delete");
+                    sentMessage(oid, "delete-anotar");
+                    processed.incrementAndGet();
+                    return;
+                }
+
+                // Retrieve and process the object
+                DigitalObject object = storage.getObject(oid);
+                object = conveyer.transform(object, config);
+                // The indexer and renderers read the store directly
+                CachingStorage.flush(storage, oid);
+                indexObject(object, config);
+                queueRenderJob(object, config, text);
+
+                // Log event
+                sentMessage(oid, "modify");
+                processed.incrementAndGet();
+
+            } catch (TransformerException tex) {
+                log.error("Error during transformation: {}", tex);
+            } catch (JMSException jmse) {
+                log.error("Failed to send/receive message: {}",
+                        jmse.getMessage());
+            } catch (IOException ioe) {
+                log.error("Failed to parse message: {}", ioe.getMessage());
+            } catch (StorageException se) {
+                log.error("Failed to update storage: {}", se.getMessage());
+            } catch (IndexerException ie) {
+                log.error("Failed to index object: {}", ie.getMessage());
+            } catch (Exception e) {
+                log.error("An unknown error has occurred: {}", e);
+            }
+        }
+
+        /**
+         * Arrange for the item specified by the message to be indexed
+         * 
+         * @param object The object being processed
+         * @param message The message received by the queue
+         * @throws IndexerException if the solr indexer failed
+         * @throws StorageException if the object's metadata was inaccessible
+         */
+        private void indexObject(DigitalObject object,
+                JsonSimpleConfig message) throws IndexerException,
+                StorageException {
+            // Are we indexing?
+            boolean doIndex = true;
+            Properties props = object.getMetadata();
+            String indexFlag = props.getProperty("indexOnHarvest");
+            if (indexFlag != null) {
+                // The harvest process changed the default
+                doIndex = Boolean.parseBoolean(indexFlag);
+            } else {
+                // Nothing specified, use the default
+                doIndex = message.getBoolean(true, "transformer",
+                        "indexOnHarvest");
+            }
+
+            if (doIndex) {
+                String oid = object.getId();
+                sendNotification(oid, "indexStart", "Indexing '" + oid
+                        + "' started");
+                log.info("{} : Indexing object {}...", workerName, oid);
+                // 'indexComplete' is sent by the batcher's listener
+                if (USER_QUEUE.equals(name)) {
+                    batcher.indexNow(oid, false);
+                } else {
+                    batcher.index(oid);
+                }
+            }
+        }
+
+        /**
+         * Queue the render job
+         * 
+         * @param object The object being processed
+         * @param message The message received by the queue
+         * @param text The original message text
+         * @throws JMSException if there was an error posting to the queue
+         * @throws StorageException if the object's metadata was inaccessible
+         */
+        private void queueRenderJob(DigitalObject object,
+                JsonSimpleConfig message, String text) throws JMSException,
+                StorageException {
+            // What transformations are required at the render step
+            List<String> plugins = ConveyerBelt.getTransformList(object,
+                    message, ConveyerBelt.RENDER, true);
+
+            // Compact messages are passed on as they came
+            if (message.getString(null, HarvestConfigCache.CONFIG_HASH) == null) {
+                text = message.toString();
+            }
+            TextMessage msg = session.createTextMessage(text);
+            // 'renderers' is a LinkedHashMap because the key order is
+            // significant
+            for (String selector : renderers.keySet()) {
+                if (plugins.contains(selector)) {
+                    producer.send(renderers.get(selector), msg);
+                    return;
+                }
+            }
+
+            // Default is the fallback
+            producer.send(renderers.get("default"), msg);
+        }
+
+        /**
+         * To put events to subscriber queue. This is what
+         * MessagingServices.onEvent() sends, but on this worker's own session
+         * rather than the shared one.
+         * 
+         * @param oid Object id
+         * @param eventType type of events happened
+         */
+        private void sentMessage(String oid, String eventType) {
+            JsonObject json = new JsonObject();
+            json.put("oid", oid);
+            json.put("eventType", eventType);
+            json.put("user", "system");
+            json.put("context", "HarvestQueueConsumer");
+            try {
+                producer.send(events,
+                        session.createTextMessage(json.toString()));
+            } catch (JMSException ex) {
+                log.error("Unable to send message: ", ex);
+            }
+        }
+    }
 }
@@ -0,0 +1,289 @@
+/*
+ * The Fascinator - Core
+ * Copyright (C) 2026 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.messaging;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.googlecode.fascinator.HarvestClient;
+import com.googlecode.fascinator.api.harvester.HarvesterException;
+import com.googlecode.fascinator.common.JsonSimple;
+
+/**
+ * <p>
+ * Keeps HarvestClients warm between uploads, so each upload only pays for its
+ * own storage write and queue send rather than setting up storage, harvest
+ * files and a harvester plugin every time.
+ * </p>
+ *
+ * <p>
+ * Clients are keyed by harvest config file. A client is replaced once its
+ * harvest files change on disk, evicted least recently used first once there
+ * are more than 'size' of them, and released after 'idleTimeout'
+ * milliseconds without use. Callers hand each client back with release()
+ * once their upload is done; a client dropped from the cache while still in
+ * use is only released when its last user hands it back. Configured from the
+ * consumer's thread config:
+ * </p>
+ *
+ * <pre>
+ * "config": {
+ *     "name": "ingest",
+ *     "sessionCache": {
+ *         "size": 8,
+ *         "idleTimeout": 300000
+ *     }
+ * }
+ * </pre>
+ */
+public class HarvestSessionCache {
+
+    /** Default number of clients to keep */
+    public static final int DEFAULT_SIZE = 8;
+
+    /** Default idle time before a client is released, in milliseconds */
+    public static final long DEFAULT_IDLE_TIMEOUT = 300000;
+
+    /** Logging */
+    private static Logger log = LoggerFactory
+            .getLogger(HarvestSessionCache.class);
+
+    /** A cached client, when it was last used and how many are using it */
+    private static class Session {
+        private HarvestClient client;
+        private long lastUsed;
+        private int users;
+        private boolean retired;
+
+        private Session(HarvestClient client) {
+            this.client = client;
+            lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    /** Name of the owning consumer, for logging */
+    private String name;
+
+    /** Idle time before release */
+    private long idleTimeout;
+
+    /** Clients by config file path, least recently used first */
+    private Map<String, Session> sessions;
+
+    /** Every client not yet released, including retired ones still in use */
+    private Map<HarvestClient, Session> live;
+
+    /** Background idle eviction */
+    private Timer timer;
+
+    /**
+     * Create a cache using the 'sessionCache' node of the consumer's config
+     *
+     * @param name Consumer name, for logging
+     * @param config The consumer's configuration
+     */
+    public HarvestSessionCache(String name, JsonSimple config) {
+        this(name, config.getInteger(DEFAULT_SIZE, "config", "sessionCache",
+                "size"), config.getInteger((int) DEFAULT_IDLE_TIMEOUT,
+                "config", "sessionCache", "idleTimeout"));
+    }
+
+    /**
+     * Create a cache
+     *
+     * @param name Consumer name, for logging
+     * @param size Maximum clients to keep
+     * @param idleTimeout Idle time before a client is released
+     */
+    public HarvestSessionCache(String name, int size, long idleTimeout) {
+        this.name = name;
+        this.idleTimeout = Math.max(1, idleTimeout);
+        final int maxEntries = Math.max(1, size);
+        live = new IdentityHashMap<HarvestClient, Session>();
+        sessions = new LinkedHashMap<String, Session>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
+                if (size() > maxEntries) {
+                    log.debug("{} : Evicting harvest session '{}'",
+                            HarvestSessionCache.this.name, eldest.getKey());
+                    if (retire(eldest.getValue())) {
+                        eldest.getValue().client.release();
+                    }
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        timer = new Timer(name + "-harvestSessions", true);
+        long period = Math.max(1, this.idleTimeout / 2);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, period, period);
+    }
+
+    /**
+     * Get a warm client for the given harvest config, creating one if there
+     * isn't one or the harvest files have changed since it was created. The
+     * client must be handed back with release() once the caller is done.
+     *
+     * @param configFile The harvest config file
+     * @return HarvestClient : A client ready for harvestUpload()
+     * @throws HarvesterException If a new client could not be created
+     */
+    public HarvestClient get(File configFile) throws HarvesterException {
+        String key = configFile.getAbsolutePath();
+        HarvestClient stale = null;
+        synchronized (this) {
+            Session session = sessions.get(key);
+            if (session != null) {
+                if (!session.client.isStale()) {
+                    session.users++;
+                    session.lastUsed = System.currentTimeMillis();
+                    return session.client;
+                }
+                sessions.remove(key);
+                log.info("{} : Harvest files changed, new session for '{}'",
+                        name, key);
+                if (retire(session)) {
+                    stale = session.client;
+                }
+            }
+        }
+        if (stale != null) {
+            stale.release();
+        }
+
+        HarvestClient client = new HarvestClient(configFile);
+        Session session = new Session(client);
+        session.users = 1;
+        Session replaced;
+        synchronized (this) {
+            live.put(client, session);
+            replaced = sessions.put(key, session);
+            if (replaced != null && !retire(replaced)) {
+                replaced = null;
+            }
+        }
+        if (replaced != null) {
+            replaced.client.release();
+        }
+        return client;
+    }
+
+    /**
+     * Hand back a client from get(). A client that has since been dropped from
+     * the cache is released once its last user hands it back.
+     *
+     * @param client The client returned by get()
+     */
+    public void release(HarvestClient client) {
+        synchronized (this) {
+            Session session = live.get(client);
+            if (session == null || session.users == 0) {
+                log.warn("{} : Harvest session released more than once", name);
+                return;
+            }
+            session.users--;
+            session.lastUsed = System.currentTimeMillis();
+            if (!session.retired || session.users > 0) {
+                return;
+            }
+            live.remove(client);
+        }
+        client.release();
+    }
+
+    /**
+     * Release every client and stop the eviction timer
+     *
+     */
+    public void shutdown() {
+        timer.cancel();
+        List<Session> idle = new ArrayList<Session>();
+        synchronized (this) {
+            for (Session session : sessions.values()) {
+                if (retire(session)) {
+                    idle.add(session);
+                }
+            }
+            sessions.clear();
+        }
+        for (Session session : idle) {
+            session.client.release();
+        }
+    }
+
+    /**
+     * Timer callback
+     *
+     */
+    private void evictIdle() {
+        List<Session> idle = new ArrayList<Session>();
+        long cutoff = System.currentTimeMillis() - idleTimeout;
+        synchronized (this) {
+            Iterator<Session> it = sessions.values().iterator();
+            while (it.hasNext()) {
+                Session session = it.next();
+                if (session.users == 0 && session.lastUsed < cutoff) {
+                    it.remove();
+                    if (retire(session)) {
+                        idle.add(session);
+                    }
+                }
+            }
+        }
+        for (Session session : idle) {
+            session.client.release();
+        }
+        if (!idle.isEmpty()) {
+            log.debug("{} : Released {} idle harvest session(s)", name,
+                    idle.size());
+        }
+    }
+
+    /**
+     * Mark a session as dropped from the cache. Must hold the cache lock.
+     *
+     * @param session The session dropped from the cache
+     * @return boolean : True if nobody is using it and the caller should
+     * release its client now, false if its last user will release it
+     */
+    private boolean retire(Session session) {
+        session.retired = true;
+        if (session.users > 0) {
+            return false;
+        }
+        live.remove(session.client);
+        return true;
+    }
+}
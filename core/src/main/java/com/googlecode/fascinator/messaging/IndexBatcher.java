@@ -0,0 +1,353 @@
+/*
+ * The Fascinator - Core
+ * Copyright (C) 2026 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.messaging;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.googlecode.fascinator.api.indexer.Indexer;
+import com.googlecode.fascinator.api.indexer.IndexerException;
+import com.googlecode.fascinator.common.JsonSimple;
+
+/**
+ * <p>
+ * Collects index requests from a queue consumer and sends them to the indexer
+ * in batches, followed by a single commit. A batch is flushed once it holds
+ * 'size' objects or its oldest entry is 'timeout' milliseconds old, whichever
+ * comes first.
+ * </p>
+ *
+ * <p>
+ * Configured from the consumer's thread config:
+ * </p>
+ *
+ * <pre>
+ * "config": {
+ *     "name": "renderNormal",
+ *     "indexBatch": {
+ *         "size": 100,
+ *         "timeout": 2000
+ *     }
+ * }
+ * </pre>
+ *
+ * <p>
+ * With the default size of 1 batching is disabled and objects are indexed
+ * immediately, without a commit, exactly as the consumers always have.
+ * </p>
+ *
+ * <p>
+ * Returning from index() does not mean the object has been indexed yet. A
+ * Listener is told when each batch has actually been sent, or has failed,
+ * including batches flushed by the timer. A failed batch is only reported to
+ * the Listener, for the objects in that batch, and never thrown to whichever
+ * caller happened to fill it.
+ * </p>
+ */
+public class IndexBatcher {
+
+    /** Logging */
+    private static Logger log = LoggerFactory.getLogger(IndexBatcher.class);
+
+    /** Default batch size, ie. disabled */
+    public static final int DEFAULT_SIZE = 1;
+
+    /** Default maximum age of a batch in milliseconds */
+    public static final long DEFAULT_TIMEOUT = 1000;
+
+    /** The indexer we are batching for */
+    private Indexer indexer;
+
+    /** Name of the owning consumer, for logging */
+    private String name;
+
+    /** Objects per batch */
+    private int size;
+
+    /** Maximum batch age */
+    private long timeout;
+
+    /** Pending object IDs, in arrival order */
+    private Set<String> pending;
+
+    /** When the oldest pending entry arrived */
+    private long batchStart;
+
+    /** Background flush timer, only used when batching */
+    private Timer timer;
+
+    /** Told about every batch sent */
+    private volatile Listener listener;
+
+    /**
+     * Told about every batch sent to the indexer. Calls are made on whichever
+     * thread sent the batch, which may be the flush timer.
+     */
+    public interface Listener {
+        /**
+         * A batch has been indexed and committed
+         *
+         * @param oids The objects in the batch
+         */
+        public void indexed(List<String> oids);
+
+        /**
+         * A batch failed to index
+         *
+         * @param oids The objects in the batch
+         * @param error The cause
+         */
+        public void failed(List<String> oids, IndexerException error);
+    }
+
+    /**
+     * Create a batcher using the 'indexBatch' node of the consumer's config
+     *
+     * @param name Consumer name, for logging
+     * @param indexer The indexer to send batches to
+     * @param config The consumer's configuration
+     */
+    public IndexBatcher(String name, Indexer indexer, JsonSimple config) {
+        this(name, indexer, config.getInteger(DEFAULT_SIZE, "config",
+                "indexBatch", "size"), config.getInteger(
+                (int) DEFAULT_TIMEOUT, "config", "indexBatch", "timeout"));
+    }
+
+    /**
+     * Create a batcher
+     *
+     * @param name Consumer name, for logging
+     * @param indexer The indexer to send batches to
+     * @param size Objects per batch, 1 or less to disable batching
+     * @param timeout Maximum age of a batch in milliseconds
+     */
+    public IndexBatcher(String name, Indexer indexer, int size, long timeout) {
+        this.name = name;
+        this.indexer = indexer;
+        this.size = Math.max(1, size);
+        this.timeout = Math.max(1, timeout);
+        pending = new LinkedHashSet<String>();
+
+        if (isBatching()) {
+            log.info("{} : Indexing in batches of {} or every {}ms",
+                    new Object[] { name, this.size, this.timeout });
+            timer = new Timer(name + "-indexBatch", true);
+            long period = Math.max(1, this.timeout / 2);
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    flushIfExpired();
+                }
+            }, period, period);
+        }
+    }
+
+    /**
+     * Set the listener told about every batch sent
+     *
+     * @param listener The listener, or null for none
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Whether requests are actually being batched
+     *
+     * @return boolean : True if batching
+     */
+    public boolean isBatching() {
+        return size > 1;
+    }
+
+    /**
+     * Request an object be indexed. Depending on configuration this may
+     * happen now or as part of a later batch.
+     *
+     * @param oid The object to index
+     * @throws IndexerException if indexing the object failed when not
+     *             batching. Batch failures go to the Listener.
+     */
+    public void index(String oid) throws IndexerException {
+        if (!isBatching()) {
+            sendNow(oid, false);
+            return;
+        }
+        List<String> batch = null;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                batchStart = System.currentTimeMillis();
+            }
+            pending.add(oid);
+            if (pending.size() >= size) {
+                batch = drain();
+            }
+        }
+        send(batch);
+    }
+
+    /**
+     * Index an object straight away, along with anything else waiting. Used
+     * for user priority requests that should not sit in a batch.
+     *
+     * @param oid The object to index
+     * @param commit Whether a commit is required. Ignored when batching, as
+     *            every batch is committed anyway.
+     * @throws IndexerException if indexing the object failed when not
+     *             batching. Batch failures go to the Listener.
+     */
+    public void indexNow(String oid, boolean commit) throws IndexerException {
+        if (!isBatching()) {
+            sendNow(oid, commit);
+            return;
+        }
+        List<String> batch;
+        synchronized (this) {
+            pending.add(oid);
+            batch = drain();
+        }
+        send(batch);
+    }
+
+    /**
+     * Send anything pending to the indexer now. Failures go to the Listener.
+     *
+     */
+    public void flush() {
+        List<String> batch;
+        synchronized (this) {
+            batch = drain();
+        }
+        send(batch);
+    }
+
+    /**
+     * Stop the timer and flush any remaining requests. Call before the
+     * indexer is shutdown.
+     *
+     */
+    public void shutdown() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+        flush();
+    }
+
+    /**
+     * Timer callback
+     *
+     */
+    private void flushIfExpired() {
+        List<String> batch = null;
+        synchronized (this) {
+            if (!pending.isEmpty()
+                    && System.currentTimeMillis() - batchStart >= timeout) {
+                batch = drain();
+            }
+        }
+        send(batch);
+    }
+
+    /**
+     * Take everything pending. Must hold the lock.
+     *
+     */
+    private List<String> drain() {
+        if (pending.isEmpty()) {
+            return null;
+        }
+        List<String> batch = new ArrayList<String>(pending);
+        pending.clear();
+        return batch;
+    }
+
+    /**
+     * Index and commit a drained batch. Done outside the lock so consumers
+     * can keep queueing while the indexer is busy. A failure belongs to the
+     * whole batch, not the caller that filled it, so it only goes to the
+     * Listener.
+     *
+     */
+    private void send(List<String> batch) {
+        if (batch == null) {
+            return;
+        }
+        log.debug("{} : Indexing batch of {} object(s)", name, batch.size());
+        try {
+            try {
+                indexer.index(batch);
+            } finally {
+                // Commit whatever made it in, even if part of the batch failed
+                indexer.commit();
+            }
+        } catch (IndexerException ex) {
+            log.error("{} : Failed to index batch of {} object(s): {}",
+                    new Object[] { name, batch.size(), ex.getMessage() });
+            failed(batch, ex);
+            return;
+        } catch (RuntimeException ex) {
+            // Don't let it kill the timer, or reach an unrelated caller
+            log.error("{} : Failed to index batch: ", name, ex);
+            failed(batch, new IndexerException(ex));
+            return;
+        }
+        indexed(batch);
+    }
+
+    /**
+     * Index a single object immediately, when not batching
+     *
+     */
+    private void sendNow(String oid, boolean commit) throws IndexerException {
+        List<String> batch = Collections.singletonList(oid);
+        try {
+            indexer.index(oid);
+            if (commit) {
+                indexer.commit();
+            }
+        } catch (IndexerException ex) {
+            failed(batch, ex);
+            throw ex;
+        }
+        indexed(batch);
+    }
+
+    private void indexed(List<String> batch) {
+        Listener current = listener;
+        if (current != null) {
+            current.indexed(batch);
+        }
+    }
+
+    private void failed(List<String> batch, IndexerException error) {
+        Listener current = listener;
+        if (current != null && batch != null) {
+            current.failed(batch, error);
+        }
+    }
+}
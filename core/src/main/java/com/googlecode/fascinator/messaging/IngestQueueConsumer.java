@@ -30,6 +30,7 @@ import com.googlecode.fascinator.common.JsonSimpleConfig;
 import com.googlecode.fascinator.common.messaging.MessagingException;
 import com.googlecode.fascinator.common.messaging.MessagingServices;
 import com.googlecode.fascinator.common.storage.StorageUtils;
+import com.googlecode.fascinator.common.storage.impl.CachingStorage;
 
 import java.io.File;
 import java.io.IOException;
@@ -103,6 +104,9 @@ public class IngestQueueConsumer implements GenericListener {
     /** Messaging services */
     private MessagingServices messaging;
 
+    /** Warm harvest clients, reused across uploads */
+    private HarvestSessionCache harvestSessions;
+
     /**
      * Constructor required by ServiceLoader. Be sure to use init()
      * 
@@ -165,9 +169,11 @@ public class IngestQueueConsumer implements GenericListener {
             indexer = PluginManager.getIndexer(
                     globalConfig.getString("solr", "indexer", "type"));
             indexer.init(sysFile);
-            storage = PluginManager.getStorage(
-                    globalConfig.getString("file-system", "storage", "type"));
+            storage = CachingStorage.wrap(globalConfig,
+                    PluginManager.getStorage(globalConfig.getString(
+                            "file-system", "storage", "type")), name);
             storage.init(sysFile);
+            harvestSessions = new HarvestSessionCache(name, config);
 
             try {
                 messaging = MessagingServices.getInstance();
@@ -220,6 +226,9 @@ public class IngestQueueConsumer implements GenericListener {
     @Override
     public void stop() throws Exception {
         log.info("Stopping {}...", name);
+        if (harvestSessions != null) {
+            harvestSessions.shutdown();
+        }
         if (indexer != null) {
             try {
                 indexer.shutdown();
@@ -287,10 +296,14 @@ public class IngestQueueConsumer implements GenericListener {
 
             Boolean deleted = config.getBoolean(false, "deleted");
             try {
-                HarvestClient harvestClient = new HarvestClient(configFile,
-                        uploadedFile, "guest");
                 if (!deleted) {
-                    harvestClient.start();
+                    HarvestClient harvestClient = harvestSessions
+                            .get(configFile);
+                    try {
+                        harvestClient.harvestUpload(uploadedFile, "guest");
+                    } finally {
+                        harvestSessions.release(harvestClient);
+                    }
                 }
             } catch (PluginException e) {
                 log.error("Error harvesting file: ", e);
@@ -31,6 +31,7 @@ import com.googlecode.fascinator.common.JsonObject;
 import com.googlecode.fascinator.common.JsonSimpleConfig;
 import com.googlecode.fascinator.common.messaging.MessagingException;
 import com.googlecode.fascinator.common.messaging.MessagingServices;
+import com.googlecode.fascinator.common.storage.impl.CachingStorage;
 
 import java.io.File;
 import java.io.IOException;
@@ -85,6 +86,9 @@ public class RenderQueueConsumer implements GenericListener {
     /** Indexer object */
     private Indexer indexer;
 
+    /** Batches index requests */
+    private IndexBatcher batcher;
+
     /** Storage */
     private Storage storage;
 
@@ -177,8 +181,10 @@ public class RenderQueueConsumer implements GenericListener {
             indexer = PluginManager.getIndexer(
                     globalConfig.getString("solr", "indexer", "type"));
             indexer.init(sysFile);
-            storage = PluginManager.getStorage(
-                    globalConfig.getString("file-system", "storage", "type"));
+            batcher = new IndexBatcher(name, indexer, config);
+            storage = CachingStorage.wrap(globalConfig,
+                    PluginManager.getStorage(globalConfig.getString(
+                            "file-system", "storage", "type")), name);
             storage.init(sysFile);
 
             conveyer = new ConveyerBelt(ConveyerBelt.RENDER);
@@ -224,6 +230,9 @@ public class RenderQueueConsumer implements GenericListener {
     @Override
     public void stop() throws Exception {
         log.info("Stopping {}...", name);
+        if (batcher != null) {
+            batcher.shutdown();
+        }
         if (indexer != null) {
             try {
                 indexer.shutdown();
@@ -291,7 +300,7 @@ public class RenderQueueConsumer implements GenericListener {
 
             // Get the message deatils
             String text = ((TextMessage) message).getText();
-            JsonSimpleConfig config = new JsonSimpleConfig(text);
+            JsonSimpleConfig config = HarvestConfigCache.resolve(text, storage);
             String oid = config.getString(null, "oid");
             log.info("Received job, object id={}", oid);
 
@@ -304,11 +313,13 @@ public class RenderQueueConsumer implements GenericListener {
             log.info("Updating object...");
             object = conveyer.transform(object, config);
 
-            // Index the object
+            // Index the object, which reads the store directly
+            CachingStorage.flush(storage, oid);
             log.info("Indexing object...");
-            indexer.index(object.getId());
             if (autoCommit || config.getBoolean(false, "commit")) {
-                indexer.commit();
+                batcher.indexNow(object.getId(), true);
+            } else {
+                batcher.index(object.getId());
             }
 
             // Log event
@@ -320,6 +331,7 @@ public class RenderQueueConsumer implements GenericListener {
             Properties props = object.getMetadata();
             props.setProperty("render-pending", "false");
             object.close();
+            CachingStorage.flush(storage, oid);
 
         } catch (JMSException jmse) {
             log.error("Failed to send/receive message: {}", jmse.getMessage());
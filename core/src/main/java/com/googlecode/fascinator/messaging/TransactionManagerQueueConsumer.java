@@ -35,6 +35,7 @@ import com.googlecode.fascinator.common.JsonSimple;
 import com.googlecode.fascinator.common.JsonSimpleConfig;
 import com.googlecode.fascinator.common.messaging.MessagingException;
 import com.googlecode.fascinator.common.messaging.MessagingServices;
+import com.googlecode.fascinator.common.storage.impl.CachingStorage;
 
 import java.io.File;
 import java.io.IOException;
@@ -92,6 +93,9 @@ public class TransactionManagerQueueConsumer implements GenericListener {
     /** Indexer object */
     private Indexer indexer;
 
+    /** Batches index requests */
+    private IndexBatcher batcher;
+
     /** Storage */
     private Storage storage;
 
@@ -193,6 +197,20 @@ public class TransactionManagerQueueConsumer implements GenericListener {
                 throw new Exception("Unable to load Indexer '"+indexerId+"'");
             }
             indexer.init(sysFile);
+            batcher = new IndexBatcher(name, indexer, config);
+            batcher.setListener(new IndexBatcher.Listener() {
+                @Override
+                public void indexed(List<String> oids) {
+                    log.debug("Indexed {} object(s)", oids.size());
+                }
+
+                @Override
+                public void failed(List<String> oids, IndexerException error) {
+                    for (String oid : oids) {
+                        log.error("Error indexing OID '{}'", oid, error);
+                    }
+                }
+            });
 
             // Load the storage plugin
             String storageId = globalConfig.getString(
@@ -204,6 +222,7 @@ public class TransactionManagerQueueConsumer implements GenericListener {
             if (storage == null) {
                 throw new Exception("Unable to load Storage '"+storageId+"'");
             }
+            storage = CachingStorage.wrap(globalConfig, storage, name);
             storage.init(sysFile);
 
             // Loop through all the system's transformers
@@ -293,6 +312,9 @@ public class TransactionManagerQueueConsumer implements GenericListener {
     @Override
     public void stop() throws Exception {
         log.info("Stopping {}...", name);
+        if (batcher != null) {
+            batcher.shutdown();
+        }
         if (indexer != null) {
             try {
                 indexer.shutdown();
@@ -374,7 +396,8 @@ public class TransactionManagerQueueConsumer implements GenericListener {
 
             // Get the message deatils
             String text = ((TextMessage) message).getText();
-            JsonSimple json = new JsonSimple(text);
+            JsonSimple json = new JsonSimple(HarvestConfigCache.resolve(text,
+                    storage).getJsonObject());
 
             // Run the message through the transaction manager
             Object objOrders = null;
@@ -407,6 +430,8 @@ public class TransactionManagerQueueConsumer implements GenericListener {
             log.error("Failed to send/receive message: {}", jmse.getMessage());
         } catch (IOException ioe) {
             log.error("Failed to parse message: {}", ioe.getMessage());
+        } catch (StorageException se) {
+            log.error("Failed to read harvest config: {}", se.getMessage());
         }
     }
 
@@ -421,12 +446,19 @@ public class TransactionManagerQueueConsumer implements GenericListener {
             log.debug("No orders provided... nothing to do.");
             return;
         }
+        boolean pending = false;
         for (JsonSimple order : orderList) {
             OrderType type = OrderType.valueOf(order.getString(null, "type"));
+            if (pending && type != OrderType.INDEXER) {
+                // Later orders may rely on the object being in the index
+                batcher.flush();
+                pending = false;
+            }
             boolean success = false;
             switch (type) {
                 case INDEXER:
                     success = index(order);
+                    pending = pending || success;
                     break;
                 case MESSAGE:
                     success = message(order);
@@ -476,6 +508,18 @@ public class TransactionManagerQueueConsumer implements GenericListener {
             log.info("Outgoing message using broker: '{}'", broker);
         }
 
+        // Whoever receives it may read the store directly
+        Object oid = message.get("oid");
+        if (oid != null) {
+            try {
+                CachingStorage.flush(storage, oid.toString());
+            } catch (StorageException ex) {
+                log.error("Error writing cached metadata for OID '{}'", oid,
+                        ex);
+                return false;
+            }
+        }
+
         // Let the indexer do its thing
         try {
             if (broker != null) {
@@ -535,10 +579,12 @@ public class TransactionManagerQueueConsumer implements GenericListener {
     }
 
     /**
-     * Process an index order
+     * Process an index order. Unless a commit is forced the object may only
+     * be queued for a later batch, whose failures are logged by the batcher's
+     * listener.
      * 
      * @param order The complete JSON order
-     * @param boolean True if successful, otherwise False
+     * @param boolean True if the object was indexed or queued, otherwise False
      */
     private boolean index(JsonSimple order) {
         // Sanity check our OID
@@ -550,11 +596,17 @@ public class TransactionManagerQueueConsumer implements GenericListener {
 
         // Let the indexer do its thing
         try {
-            indexer.index(oid);
+            // It reads the store directly
+            CachingStorage.flush(storage, oid);
             if (order.getBoolean(false, "forceCommit")) {
-                indexer.commit();
+                batcher.indexNow(oid, true);
+            } else {
+                batcher.index(oid);
             }
             return true;
+        } catch (StorageException ex) {
+            log.error("Error writing cached metadata for OID '{}'", oid, ex);
+            return false;
         } catch (IndexerException ex) {
             log.error("Error indexing OID '{}'", oid, ex);
             return false;
@@ -0,0 +1,73 @@
+/*
+ * The Fascinator - Core
+ * Copyright (C) 2026 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator;
+
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for deciding whether an incremental harvest can skip an object.
+ */
+public class HarvestClientTest {
+
+    private Properties props;
+
+    @Before
+    public void setup() {
+        props = new Properties();
+        props.setProperty("rulesOid", "rules");
+        props.setProperty("jsonConfigOid", "config");
+        props.setProperty("harvestFilesHash", "abc/def");
+    }
+
+    @Test
+    public void same() {
+        Assert.assertTrue(HarvestClient.sameHarvestFiles(props, "rules",
+                "config", "abc/def"));
+    }
+
+    @Test
+    public void changedContents() {
+        Assert.assertFalse(HarvestClient.sameHarvestFiles(props, "rules",
+                "config", "abc/xyz"));
+    }
+
+    @Test
+    public void changedFiles() {
+        Assert.assertFalse(HarvestClient.sameHarvestFiles(props, "other",
+                "config", "abc/def"));
+        Assert.assertFalse(HarvestClient.sameHarvestFiles(props, "rules",
+                "other", "abc/def"));
+    }
+
+    @Test
+    public void unknown() {
+        // Harvest files without a hash
+        Assert.assertFalse(HarvestClient.sameHarvestFiles(props, "rules",
+                "config", null));
+
+        // Objects harvested before hashes were recorded
+        props.remove("harvestFilesHash");
+        Assert.assertFalse(HarvestClient.sameHarvestFiles(props, "rules",
+                "config", "abc/def"));
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * The Fascinator - Core
+ * Copyright (C) 2026 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.fascinator.api.PluginDescription;
+import com.googlecode.fascinator.api.storage.DigitalObject;
+import com.googlecode.fascinator.api.storage.Payload;
+import com.googlecode.fascinator.api.storage.Storage;
+import com.googlecode.fascinator.api.storage.StorageException;
+import com.googlecode.fascinator.common.storage.impl.GenericDigitalObject;
+import com.googlecode.fascinator.common.storage.impl.GenericPayload;
+
+/**
+ * Unit tests for the harvest file remapping in the re-index first pass.
+ */
+public class ReIndexClientTest {
+
+    private static final String RULES = "rules.py";
+
+    private StubStorage storage;
+
+    @Before
+    public void setup() throws Exception {
+        storage = new StubStorage();
+        storage.harvestFile("old", 100);
+        storage.record("record", "old");
+    }
+
+    @Test
+    public void newer() throws Exception {
+        storage.harvestFile("new", 200);
+        Assert.assertEquals("new", remap(false).get("old"));
+    }
+
+    @Test
+    public void equal() throws Exception {
+        storage.harvestFile("new", 100);
+        Assert.assertEquals("new", remap(false).get("old"));
+    }
+
+    @Test
+    public void olderAllowed() throws Exception {
+        storage.harvestFile("new", 50);
+        Assert.assertEquals("new", remap(true).get("old"));
+    }
+
+    @Test
+    public void olderRejected() throws Exception {
+        storage.harvestFile("new", 50);
+        Assert.assertFalse(remap(false).containsKey("old"));
+    }
+
+    @Test
+    public void selfExcluded() throws Exception {
+        // Alone, a harvest file is never remapped to itself
+        Assert.assertTrue(remap(true).isEmpty());
+
+        // As the newest, it is compared against the next newest instead
+        storage.harvestFile("older", 50);
+        storage.harvestFile("oldest", 10);
+        Assert.assertEquals("older", remap(true).get("old"));
+    }
+
+    private Map<String, String> remap(boolean allowOlder) {
+        ReIndexClient client = new ReIndexClient(storage, allowOlder);
+        Assert.assertTrue(client.firstPass());
+        return client.getHarvestUpdates();
+    }
+
+    /**
+     * A harvest file object whose payloads report a fixed modified date
+     */
+    private static class HarvestFile extends GenericDigitalObject {
+        private long lastModified;
+
+        private HarvestFile(String oid, long lastModified) {
+            super(oid);
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public Set<String> getPayloadIdList() {
+            Set<String> pids = new HashSet<String>();
+            pids.add(RULES);
+            return pids;
+        }
+
+        @Override
+        public Payload getPayload(String pid) throws StorageException {
+            if (!RULES.equals(pid)) {
+                throw new StorageException("ID '" + pid + "' does not exist.");
+            }
+            return new GenericPayload(pid) {
+                @Override
+                public Long lastModified() {
+                    return lastModified;
+                }
+            };
+        }
+    }
+
+    /**
+     * In-memory storage holding harvest files and the records using them
+     */
+    private static class StubStorage implements Storage {
+        private Map<String, DigitalObject> objects = new HashMap<String, DigitalObject>();
+
+        private void harvestFile(String oid, long lastModified) {
+            objects.put(oid, new HarvestFile(oid, lastModified));
+        }
+
+        private void record(String oid, String rulesOid)
+                throws StorageException {
+            DigitalObject object = new GenericDigitalObject(oid);
+            object.getMetadata().setProperty("jsonConfigOid", "config");
+            object.getMetadata().setProperty("jsonConfigPid", "config.json");
+            object.getMetadata().setProperty("rulesOid", rulesOid);
+            object.getMetadata().setProperty("rulesPid", RULES);
+            objects.put(oid, object);
+        }
+
+        @Override
+        public String getId() {
+            return "stub";
+        }
+
+        @Override
+        public String getName() {
+            return "Stub Storage";
+        }
+
+        @Override
+        public PluginDescription getPluginDetails() {
+            return new PluginDescription(this);
+        }
+
+        @Override
+        public void init(File jsonFile) {
+            // Nothing to configure
+        }
+
+        @Override
+        public void init(String jsonString) {
+            // Nothing to configure
+        }
+
+        @Override
+        public void shutdown() {
+            objects.clear();
+        }
+
+        @Override
+        public DigitalObject createObject(String oid) throws StorageException {
+            throw new StorageException("Read only");
+        }
+
+        @Override
+        public DigitalObject getObject(String oid) throws StorageException {
+            DigitalObject object = objects.get(oid);
+            if (object == null) {
+                throw new StorageException("oID '" + oid + "' not found");
+            }
+            return object;
+        }
+
+        @Override
+        public void removeObject(String oid) throws StorageException {
+            throw new StorageException("Read only");
+        }
+
+        @Override
+        public Set<String> getObjectIdList() {
+            return objects.keySet();
+        }
+    }
+}
@@ -20,6 +20,7 @@ package com.googlecode.fascinator.messaging;
 
 import java.io.File;
 import java.io.OutputStream;
+import java.util.Collection;
 import java.util.List;
 
 import com.googlecode.fascinator.api.PluginDescription;
@@ -112,6 +113,11 @@ public class FakeIndexer implements Indexer {
         log(" * INDEXER: index(oid)");
     }
 
+    @Override
+    public void index(Collection<String> oids) throws IndexerException {
+        log(" * INDEXER: index(oids[" + oids.size() + "])");
+    }
+
     @Override
     public void index(String oid, String pid) throws IndexerException {
         log(" * INDEXER: index(oid, pid)");
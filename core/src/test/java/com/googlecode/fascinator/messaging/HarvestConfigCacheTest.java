@@ -0,0 +1,192 @@
+/*
+ * The Fascinator - Core
+ * Copyright (C) 2026 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.messaging;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.googlecode.fascinator.api.PluginDescription;
+import com.googlecode.fascinator.api.storage.DigitalObject;
+import com.googlecode.fascinator.api.storage.Storage;
+import com.googlecode.fascinator.api.storage.StorageException;
+import com.googlecode.fascinator.common.JsonObject;
+import com.googlecode.fascinator.common.JsonSimpleConfig;
+import com.googlecode.fascinator.common.storage.impl.GenericDigitalObject;
+
+/**
+ * Unit tests for compact harvest messages. The cache is shared by the whole
+ * JVM, so each test uses harvest files with hashes of its own.
+ */
+public class HarvestConfigCacheTest {
+
+    private static final String CONFIG = "{\"indexer\": {\"script\": "
+            + "{\"rules\": \"rules.py\"}}, \"oid\": \"harvest-file\"}";
+
+    /**
+     * Messages with a whole configuration are returned as they are
+     */
+    @Test
+    public void fullMessage() throws Exception {
+        CountingStorage storage = new CountingStorage();
+        JsonSimpleConfig config = HarvestConfigCache.resolve(
+                "{\"oid\": \"record\", \"indexer\": {\"script\": "
+                        + "{\"rules\": \"full.py\"}}}", storage);
+        Assert.assertEquals("record", config.getString(null, "oid"));
+        Assert.assertEquals("full.py",
+                config.getString(null, "indexer", "script", "rules"));
+        Assert.assertEquals(0, storage.gets);
+    }
+
+    /**
+     * A compact message resolves to the harvest file with the message keys
+     * on top, and later messages for the same hash are served from the cache
+     */
+    @Test
+    public void roundTrip() throws Exception {
+        CountingStorage storage = new CountingStorage();
+        storage.harvestFile("config-a", "hash-a");
+
+        JsonObject message = HarvestConfigCache.newMessage("record",
+                "config-a", "config.json", "hash-a");
+        message.put("commit", "true");
+        JsonSimpleConfig config = HarvestConfigCache.resolve(
+                message.toString(), storage);
+        Assert.assertEquals("record", config.getString(null, "oid"));
+        Assert.assertEquals("true", config.getString(null, "commit"));
+        Assert.assertEquals("rules.py",
+                config.getString(null, "indexer", "script", "rules"));
+        Assert.assertEquals(1, storage.gets);
+
+        // Each message gets its own copy
+        config.getJsonObject().put("oid", "changed");
+        long hits = HarvestConfigCache.getHits();
+        config = HarvestConfigCache.resolve(HarvestConfigCache.newMessage(
+                "other", "config-a", "config.json", "hash-a").toString(),
+                storage);
+        Assert.assertEquals("other", config.getString(null, "oid"));
+        Assert.assertNull(config.getString(null, "commit"));
+        Assert.assertEquals(hits + 1, HarvestConfigCache.getHits());
+        Assert.assertEquals(1, storage.gets);
+    }
+
+    /**
+     * A harvest file that changed after the message was queued is read once,
+     * and messages for the old hash are flagged as getting the new version
+     */
+    @Test
+    public void changedHarvestFile() throws Exception {
+        CountingStorage storage = new CountingStorage();
+        storage.harvestFile("config-b", "hash-b2");
+
+        String stale = HarvestConfigCache.newMessage("record", "config-b",
+                "config.json", "hash-b1").toString();
+        JsonSimpleConfig config = HarvestConfigCache.resolve(stale, storage);
+        Assert.assertTrue(config.getBoolean(false,
+                HarvestConfigCache.CONFIG_CHANGED));
+        config = HarvestConfigCache.resolve(stale, storage);
+        Assert.assertTrue(config.getBoolean(false,
+                HarvestConfigCache.CONFIG_CHANGED));
+        Assert.assertEquals(1, storage.gets);
+
+        config = HarvestConfigCache.resolve(HarvestConfigCache.newMessage(
+                "record", "config-b", "config.json", "hash-b2").toString(),
+                storage);
+        Assert.assertFalse(config.getBoolean(false,
+                HarvestConfigCache.CONFIG_CHANGED));
+        Assert.assertEquals(1, storage.gets);
+    }
+
+    /**
+     * In-memory storage counting how often objects are fetched
+     */
+    private static class CountingStorage implements Storage {
+        private Map<String, DigitalObject> objects = new HashMap<String, DigitalObject>();
+        private int gets;
+
+        private void harvestFile(String oid, String hash)
+                throws StorageException {
+            DigitalObject object = new GenericDigitalObject(oid);
+            object.createStoredPayload("config.json",
+                    IOUtils.toInputStream(CONFIG));
+            object.getMetadata().setProperty("fileHash", hash);
+            objects.put(oid, object);
+        }
+
+        @Override
+        public String getId() {
+            return "counting";
+        }
+
+        @Override
+        public String getName() {
+            return "Counting Storage";
+        }
+
+        @Override
+        public PluginDescription getPluginDetails() {
+            return new PluginDescription(this);
+        }
+
+        @Override
+        public void init(File jsonFile) {
+            // Nothing to configure
+        }
+
+        @Override
+        public void init(String jsonString) {
+            // Nothing to configure
+        }
+
+        @Override
+        public void shutdown() {
+            objects.clear();
+        }
+
+        @Override
+        public DigitalObject createObject(String oid) throws StorageException {
+            throw new StorageException("Read only");
+        }
+
+        @Override
+        public DigitalObject getObject(String oid) throws StorageException {
+            gets++;
+            DigitalObject object = objects.get(oid);
+            if (object == null) {
+                throw new StorageException("oID '" + oid + "' not found");
+            }
+            return object;
+        }
+
+        @Override
+        public void removeObject(String oid) throws StorageException {
+            throw new StorageException("Read only");
+        }
+
+        @Override
+        public Set<String> getObjectIdList() {
+            return objects.keySet();
+        }
+    }
+}
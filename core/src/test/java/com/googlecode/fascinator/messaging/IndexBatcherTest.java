@@ -0,0 +1,188 @@
+/*
+ * The Fascinator - Core
+ * Copyright (C) 2026 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.messaging;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.googlecode.fascinator.api.indexer.IndexerException;
+
+/**
+ * Unit tests for batched indexing.
+ */
+public class IndexBatcherTest {
+
+    /** Counts calls rather than just logging them */
+    private static class CountingIndexer extends FakeIndexer {
+        int single = 0;
+        int batches = 0;
+        int batched = 0;
+        int commits = 0;
+        boolean fail = false;
+
+        @Override
+        public synchronized void index(String oid) throws IndexerException {
+            single++;
+        }
+
+        @Override
+        public synchronized void index(Collection<String> oids)
+                throws IndexerException {
+            if (fail) {
+                throw new IndexerException("Index unavailable");
+            }
+            batches++;
+            batched += oids.size();
+        }
+
+        @Override
+        public synchronized void commit() {
+            commits++;
+        }
+    }
+
+    @Test
+    public void disabled() throws Exception {
+        CountingIndexer indexer = new CountingIndexer();
+        IndexBatcher batcher = new IndexBatcher("test", indexer, 1, 1000);
+        batcher.index("one");
+        batcher.index("two");
+        Assert.assertEquals(2, indexer.single);
+        Assert.assertEquals(0, indexer.commits);
+        batcher.indexNow("three", true);
+        Assert.assertEquals(3, indexer.single);
+        Assert.assertEquals(1, indexer.commits);
+        batcher.shutdown();
+    }
+
+    @Test
+    public void bySize() throws Exception {
+        CountingIndexer indexer = new CountingIndexer();
+        IndexBatcher batcher = new IndexBatcher("test", indexer, 10, 60000);
+        for (int i = 0; i < 25; i++) {
+            batcher.index("oid" + i);
+        }
+        Assert.assertEquals(2, indexer.batches);
+        Assert.assertEquals(20, indexer.batched);
+        Assert.assertEquals(2, indexer.commits);
+
+        // User priority flushes everything straight away
+        batcher.indexNow("user", false);
+        Assert.assertEquals(3, indexer.batches);
+        Assert.assertEquals(26, indexer.batched);
+        Assert.assertEquals(3, indexer.commits);
+        batcher.shutdown();
+        Assert.assertEquals(3, indexer.batches);
+        Assert.assertEquals(0, indexer.single);
+    }
+
+    @Test
+    public void byTime() throws Exception {
+        CountingIndexer indexer = new CountingIndexer();
+        IndexBatcher batcher = new IndexBatcher("test", indexer, 100, 50);
+        RecordingListener listener = new RecordingListener(1);
+        batcher.setListener(listener);
+        batcher.index("one");
+        batcher.index("two");
+        Assert.assertTrue(listener.await());
+        Assert.assertEquals(1, indexer.batches);
+        Assert.assertEquals(2, indexer.batched);
+        Assert.assertEquals(1, indexer.commits);
+        Assert.assertEquals(2, listener.indexed.size());
+        batcher.shutdown();
+    }
+
+    @Test
+    public void listener() throws Exception {
+        CountingIndexer indexer = new CountingIndexer();
+        IndexBatcher batcher = new IndexBatcher("test", indexer, 3, 60000);
+        RecordingListener listener = new RecordingListener(0);
+        batcher.setListener(listener);
+
+        // Nothing is reported until the batch is sent
+        batcher.index("one");
+        batcher.index("two");
+        Assert.assertTrue(listener.indexed.isEmpty());
+        batcher.index("three");
+        Assert.assertEquals(3, listener.indexed.size());
+
+        // Failures go to the listener for that batch only, not the caller
+        indexer.fail = true;
+        batcher.index("four");
+        batcher.indexNow("five", false);
+        Assert.assertEquals(2, listener.failed.size());
+        Assert.assertEquals("four", listener.failed.get(0));
+        Assert.assertEquals("five", listener.failed.get(1));
+
+        indexer.fail = false;
+        batcher.index("six");
+        batcher.flush();
+        Assert.assertEquals(4, listener.indexed.size());
+        Assert.assertEquals(2, listener.failed.size());
+        batcher.shutdown();
+    }
+
+    @Test
+    public void timerFailure() throws Exception {
+        CountingIndexer indexer = new CountingIndexer();
+        indexer.fail = true;
+        IndexBatcher batcher = new IndexBatcher("test", indexer, 100, 50);
+        RecordingListener listener = new RecordingListener(1);
+        batcher.setListener(listener);
+        batcher.index("one");
+        Assert.assertTrue(listener.await());
+        Assert.assertEquals(1, listener.failed.size());
+        Assert.assertEquals("one", listener.failed.get(0));
+        batcher.shutdown();
+    }
+
+    /** Records what it is told, and counts down once per batch */
+    private static class RecordingListener implements IndexBatcher.Listener {
+        List<String> indexed = new ArrayList<String>();
+        List<String> failed = new ArrayList<String>();
+        CountDownLatch latch;
+
+        RecordingListener(int batches) {
+            latch = new CountDownLatch(batches);
+        }
+
+        @Override
+        public synchronized void indexed(List<String> oids) {
+            indexed.addAll(oids);
+            latch.countDown();
+        }
+
+        @Override
+        public synchronized void failed(List<String> oids,
+                IndexerException error) {
+            failed.addAll(oids);
+            latch.countDown();
+        }
+
+        boolean await() throws InterruptedException {
+            return latch.await(30, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -19,6 +19,7 @@
 package com.googlecode.fascinator.api.indexer;
 
 import java.io.OutputStream;
+import java.util.Collection;
 import java.util.List;
 
 import com.googlecode.fascinator.api.Plugin;
@@ -62,6 +63,22 @@ public interface Indexer extends Plugin {
      */
     public void index(String oid) throws IndexerException;
 
+    /**
+     * Adds a batch of objects to the index. Callers are expected to follow
+     * this with a single commit() for the whole batch. Plugins able to submit
+     * several documents in one request should override this; the default
+     * simply indexes each object in turn.
+     * 
+     * @param oids the object identifiers
+     * @throws IndexerException if an error occurred while indexing
+     */
+    public default void index(Collection<String> oids)
+            throws IndexerException {
+        for (String oid : oids) {
+            index(oid);
+        }
+    }
+
     /**
      * Adds a payload entry to the index
      * 
@@ -19,6 +19,8 @@
 package com.googlecode.fascinator.api.storage;
 
 import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 
@@ -126,6 +128,30 @@ public interface DigitalObject {
     public Payload updatePayload(String pid, InputStream in)
             throws StorageException;
 
+    /**
+     * Creates or updates several stored payloads at once. Payloads that
+     * already exist are updated, the rest are created. Plugins able to write
+     * several payloads in one operation should override this.
+     *
+     * @param payloads A map of payload identifier to new contents
+     * @return a map of payload identifier to the created or updated payload
+     * @throws StorageException if there was an error writing a payload
+     */
+    public default Map<String, Payload> createOrUpdatePayloads(
+            Map<String, InputStream> payloads) throws StorageException {
+        Set<String> existing = getPayloadIdList();
+        Map<String, Payload> result = new LinkedHashMap<String, Payload>();
+        for (Map.Entry<String, InputStream> entry : payloads.entrySet()) {
+            String pid = entry.getKey();
+            if (existing.contains(pid)) {
+                result.put(pid, updatePayload(pid, entry.getValue()));
+            } else {
+                result.put(pid, createStoredPayload(pid, entry.getValue()));
+            }
+        }
+        return result;
+    }
+
     /**
      * Close the object
      *
@@ -0,0 +1,43 @@
+/* 
+ * The Fascinator - Plugin API
+ * Copyright (C) 2026 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.api.storage;
+
+import java.util.Iterator;
+
+/**
+ * Iterates over the object IDs in a storage plugin without loading them all
+ * into memory first. A cursor can be abandoned at any point and a new one
+ * started from where it left off using its continuation token.
+ */
+public interface ObjectIdCursor extends Iterator<String> {
+
+    /**
+     * Gets a token which, passed to Storage.getObjectIds(), will start a new
+     * cursor immediately after the last ID returned by next(). The token is
+     * opaque to callers, but is safe to write to disk and use after a restart.
+     * 
+     * @return a continuation token, or null if next() has not been called
+     */
+    public String getContinuationToken();
+
+    /**
+     * Release any resources (open files, result sets etc.) held by the cursor
+     */
+    public void close();
+}
@@ -0,0 +1,73 @@
+/* 
+ * The Fascinator - Plugin API
+ * Copyright (C) 2026 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.api.storage;
+
+import java.util.Iterator;
+import java.util.NavigableSet;
+
+/**
+ * An ObjectIdCursor over a sorted set of IDs already held in memory. The
+ * continuation token is simply the last ID returned, so a new cursor resumes
+ * with the first ID that sorts after it.
+ */
+public class SortedSetObjectIdCursor implements ObjectIdCursor {
+
+    /** IDs still to be returned */
+    private Iterator<String> iterator;
+
+    /** Last ID returned */
+    private String last;
+
+    /**
+     * Create a cursor over the given IDs
+     * 
+     * @param oids The sorted object IDs
+     * @param token A continuation token to resume from, or null to start at
+     *            the beginning
+     */
+    public SortedSetObjectIdCursor(NavigableSet<String> oids, String token) {
+        if (token == null) {
+            iterator = oids.iterator();
+        } else {
+            iterator = oids.tailSet(token, false).iterator();
+        }
+        last = token;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return iterator.hasNext();
+    }
+
+    @Override
+    public String next() {
+        last = iterator.next();
+        return last;
+    }
+
+    @Override
+    public String getContinuationToken() {
+        return last;
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release
+    }
+}
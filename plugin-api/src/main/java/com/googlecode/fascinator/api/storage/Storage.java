@@ -18,7 +18,11 @@
  */
 package com.googlecode.fascinator.api.storage;
 
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 import com.googlecode.fascinator.api.Plugin;
 
@@ -58,10 +62,79 @@ public interface Storage extends Plugin {
      */
     public void removeObject(String oid) throws StorageException;
 
+    /**
+     * Gets several objects at once. Plugins able to fetch objects in a single
+     * round trip should override this; the default calls getObject() for each
+     * identifier in turn.
+     * 
+     * @param oids the object identifiers
+     * @return a map of identifier to DigitalObject, in the order requested.
+     *         Identifiers that could not be retrieved are left out.
+     * @throws StorageException if there was an error accessing the store
+     */
+    public default Map<String, DigitalObject> getObjects(
+            Collection<String> oids) throws StorageException {
+        Map<String, DigitalObject> objects = new LinkedHashMap<String, DigitalObject>();
+        for (String oid : oids) {
+            try {
+                objects.put(oid, getObject(oid));
+            } catch (StorageException ex) {
+                // Missing objects are simply absent from the result
+            }
+        }
+        return objects;
+    }
+
+    /**
+     * Removes several objects from the store. Plugins able to delete in a
+     * single operation should override this; the default calls removeObject()
+     * for each identifier, attempting all of them before reporting a failure.
+     * 
+     * @param oids the object identifiers
+     * @throws StorageException the first error encountered, if any
+     */
+    public default void removeObjects(Collection<String> oids)
+            throws StorageException {
+        StorageException error = null;
+        for (String oid : oids) {
+            try {
+                removeObject(oid);
+            } catch (StorageException ex) {
+                if (error == null) {
+                    error = ex;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
     /**
      * Gets all the objects IDs from the storage
      * 
      * @return List of DigitalObject IDs
      */
     public Set<String> getObjectIdList();
+
+    /**
+     * Gets a cursor over all the object IDs in storage, optionally resuming
+     * from an earlier cursor's continuation token. Callers should prefer this
+     * to getObjectIdList() for large repositories, since a plugin can stream
+     * IDs in constant memory.
+     * 
+     * The default implementation is NOT constant memory; it sorts the result
+     * of getObjectIdList() so that tokens are stable. Plugins should override
+     * it with a real cursor over their backing store.
+     * 
+     * @param continuationToken A token from ObjectIdCursor, or null to start
+     *            from the beginning
+     * @return a cursor over object IDs
+     * @throws StorageException if the store could not be read
+     */
+    public default ObjectIdCursor getObjectIds(String continuationToken)
+            throws StorageException {
+        return new SortedSetObjectIdCursor(new TreeSet<String>(
+                getObjectIdList()), continuationToken);
+    }
 }
@@ -0,0 +1,275 @@
+/*
+ * The Fascinator - Plugin - Storage - RAM
+ * Copyright (C) 2026 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.ram;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import com.googlecode.fascinator.common.storage.impl.PayloadBuffer;
+
+/**
+ * <p>
+ * The payload bytes of a snapshot file, mapped into memory read-only. Nothing
+ * is read until a payload is opened, and then only the pages it touches are
+ * loaded by the operating system, so even a very large snapshot is ready to
+ * serve as soon as its index has been read.
+ * </p>
+ *
+ * <p>
+ * A single mapping is limited to 2GB, so the region is mapped in chunks and
+ * payloads may span several of them. Mappings stay valid after the channel
+ * is closed, and on most platforms after the file is deleted.
+ * </p>
+ *
+ * <p>
+ * Each payload carries the CRC32 written with it. The first stream to read a
+ * payload from start to end checks it, and fails at the end if the bytes on
+ * disk have changed.
+ * </p>
+ */
+class MappedSnapshot {
+
+    /** Default bytes per mapping */
+    static final int DEFAULT_CHUNK_SIZE = 1024 * 1024 * 1024;
+
+    /** Mapped chunks, in file order */
+    private final List<MappedByteBuffer> chunks = new ArrayList<MappedByteBuffer>();
+
+    /** File position of the region */
+    private final long start;
+
+    /** Length of the region */
+    private final long length;
+
+    /** Bytes per chunk */
+    private final int chunkSize;
+
+    /**
+     * Map a region of a file
+     *
+     * @param channel The snapshot file
+     * @param start First byte of the region
+     * @param end Position after the last byte of the region
+     * @param chunkSize Bytes per mapping
+     * @throws IOException If the region could not be mapped
+     */
+    MappedSnapshot(FileChannel channel, long start, long end, int chunkSize)
+            throws IOException {
+        this.start = start;
+        this.chunkSize = chunkSize;
+        length = end - start;
+        for (long offset = 0; offset < length; offset += chunkSize) {
+            chunks.add(channel.map(FileChannel.MapMode.READ_ONLY, start
+                    + offset, Math.min(chunkSize, length - offset)));
+        }
+    }
+
+    /**
+     * Content read straight from the mapping
+     *
+     * @param position File position of the content
+     * @param size Length of the content
+     * @param checksum CRC32 of the content
+     * @return PayloadBuffer : The content
+     * @throws IOException If the content is outside the mapped region
+     */
+    PayloadBuffer buffer(long position, long size, int checksum)
+            throws IOException {
+        if (position < start || size < 0
+                || position - start + size > length) {
+            throw new IOException("Payload content outside snapshot data");
+        }
+        return new Buffer(position - start, size, checksum);
+    }
+
+    /**
+     * Whether content is served from a snapshot mapping rather than held in
+     * memory or evicted to overflow
+     *
+     * @param buffer The content
+     * @return boolean : True if the content is mapped
+     */
+    static boolean isMapped(PayloadBuffer buffer) {
+        return buffer instanceof Buffer;
+    }
+
+    /**
+     * Size of the mapped region
+     *
+     * @return long : The byte count
+     */
+    long getLength() {
+        return length;
+    }
+
+    /**
+     * A view of part of the mapped region. Nothing is held in memory on its
+     * behalf, so it counts as spilled and there is nothing to release.
+     */
+    private class Buffer extends PayloadBuffer {
+        private long offset;
+        private long size;
+        private int checksum;
+        private volatile boolean verified;
+
+        private Buffer(long offset, long size, int checksum) {
+            this.offset = offset;
+            this.size = size;
+            this.checksum = checksum;
+        }
+
+        @Override
+        public InputStream open() {
+            return new ChunkInputStream(this);
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public boolean isOnHeap() {
+            return false;
+        }
+
+        @Override
+        public boolean isSpilled() {
+            return true;
+        }
+
+        @Override
+        public PayloadBuffer spill(File directory) {
+            return this;
+        }
+
+        @Override
+        public void release() {
+            // The mapping is shared with every other payload
+        }
+    }
+
+    /**
+     * Reads across chunk boundaries, checking the payload's CRC32 until it
+     * has been verified once. Skipping stops the check for this stream.
+     */
+    private class ChunkInputStream extends InputStream {
+        private Buffer buffer;
+        private long position;
+        private long remaining;
+        private ByteBuffer current;
+        private CRC32 crc;
+
+        private ChunkInputStream(Buffer buffer) {
+            this.buffer = buffer;
+            position = buffer.offset;
+            remaining = buffer.size;
+            if (!buffer.verified) {
+                crc = new CRC32();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!next()) {
+                return -1;
+            }
+            position++;
+            remaining--;
+            int value = current.get() & 0xff;
+            if (crc != null) {
+                crc.update(value);
+                verify();
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!next()) {
+                return -1;
+            }
+            int count = (int) Math.min(Math.min(len, current.remaining()),
+                    remaining);
+            current.get(b, off, count);
+            position += count;
+            remaining -= count;
+            if (crc != null) {
+                crc.update(b, off, count);
+                verify();
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, remaining));
+            position += skipped;
+            remaining -= skipped;
+            current = null;
+            if (skipped > 0) {
+                crc = null;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, remaining);
+        }
+
+        /**
+         * Compare the checksum once the last byte has been read
+         *
+         */
+        private void verify() throws IOException {
+            if (remaining > 0) {
+                return;
+            }
+            if ((int) crc.getValue() != buffer.checksum) {
+                crc = null;
+                throw new IOException("Snapshot payload content is corrupt");
+            }
+            buffer.verified = true;
+            crc = null;
+        }
+
+        private boolean next() {
+            if (remaining <= 0) {
+                return false;
+            }
+            if (current == null || !current.hasRemaining()) {
+                current = chunks.get((int) (position / chunkSize))
+                        .duplicate();
+                current.position((int) (position % chunkSize));
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,607 @@
+/*
+ * The Fascinator - Plugin - Storage - RAM
+ * Copyright (C) 2026 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.ram;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.googlecode.fascinator.common.storage.impl.PayloadBuffer;
+
+/**
+ * <p>
+ * Payload content held outside the Java heap. Memory is reserved from the
+ * operating system in large direct ByteBuffer slabs, which are divided into
+ * fixed size blocks. A payload occupies as many blocks as it needs, and
+ * freed blocks go on a free list to be reused, so slabs are never returned
+ * and never fragment.
+ * </p>
+ *
+ * <p>
+ * Content that does not fit in the remaining capacity falls back to an
+ * ordinary PayloadBuffer.
+ * </p>
+ *
+ * <p>
+ * Blocks are freed once their payload is updated or removed and the last
+ * stream open on the old content is closed. If the arena fills up while
+ * released content is still held by streams nobody closed, those streams are
+ * moved onto a copy of it and the blocks freed, so callers that never close
+ * their streams cannot hold blocks forever.
+ * </p>
+ */
+class OffHeapArena {
+
+    /** Maximum blocks to hold */
+    private final int maxBlocks;
+
+    /** Bytes per block */
+    private final int blockSize;
+
+    /** Blocks per slab */
+    private final int slabBlocks;
+
+    /** Allocated slabs */
+    private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+
+    /** Free block numbers */
+    private int[] free = new int[64];
+    private int freeCount = 0;
+
+    /** Blocks handed out and not yet freed */
+    private int usedBlocks = 0;
+
+    /** Changed by clear(), so buffers from before it can't touch new slabs */
+    private int generation = 0;
+
+    /** Released buffers still held by open streams */
+    private final List<Buffer> lingering = new ArrayList<Buffer>();
+
+    /**
+     * Create an arena. No memory is reserved until it is needed.
+     *
+     * @param capacity Most bytes to hold
+     * @param slabSize Bytes to reserve at a time
+     * @param blockSize Allocation unit in bytes
+     */
+    OffHeapArena(long capacity, int slabSize, int blockSize) {
+        this.blockSize = Math.max(1024, blockSize);
+        slabBlocks = Math.max(1, slabSize / this.blockSize);
+        maxBlocks = (int) Math.min(Integer.MAX_VALUE, capacity
+                / this.blockSize);
+    }
+
+    /**
+     * Read a stream into the arena, or an ordinary PayloadBuffer if the
+     * arena is full. The stream is read to the end, the caller should still
+     * close it.
+     *
+     * @param in The content
+     * @return PayloadBuffer : The buffered content
+     * @throws IOException If the stream could not be read
+     */
+    PayloadBuffer read(InputStream in) throws IOException {
+        Buffer buffer = new Buffer();
+        try {
+            byte[] chunk = new byte[8192];
+            ByteBuffer block = null;
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                int offset = 0;
+                while (offset < read) {
+                    if (block == null || !block.hasRemaining()) {
+                        int number = allocate();
+                        if (number == -1) {
+                            reclaim(true);
+                            number = allocate();
+                        }
+                        if (number == -1) {
+                            return overflow(buffer, new ByteArrayInputStream(
+                                    chunk, offset, read - offset), in);
+                        }
+                        buffer.add(number);
+                        block = buffer.block(buffer.count - 1);
+                    }
+                    int length = Math.min(block.remaining(), read - offset);
+                    block.put(chunk, offset, length);
+                    offset += length;
+                    buffer.size += length;
+                }
+            }
+        } catch (IOException ex) {
+            buffer.release();
+            throw ex;
+        } catch (RuntimeException ex) {
+            buffer.release();
+            throw ex;
+        }
+        return buffer;
+    }
+
+    /**
+     * The arena is full, move what has been read so far and the rest of the
+     * stream to an ordinary PayloadBuffer
+     *
+     */
+    private PayloadBuffer overflow(Buffer buffer, InputStream pending,
+            InputStream in) throws IOException {
+        InputStream head = buffer.open();
+        try {
+            return PayloadBuffer.read(new SequenceInputStream(head,
+                    new SequenceInputStream(pending, in)));
+        } finally {
+            head.close();
+            buffer.release();
+        }
+    }
+
+    /**
+     * Bytes held in blocks that are in use
+     *
+     * @return long : The byte count
+     */
+    synchronized long getUsedBytes() {
+        return (long) usedBlocks * blockSize;
+    }
+
+    /**
+     * Bytes reserved from the operating system
+     *
+     * @return long : The byte count
+     */
+    synchronized long getReservedBytes() {
+        return (long) slabs.size() * slabBlocks * blockSize;
+    }
+
+    /**
+     * Drop every slab. Content still referenced becomes unreadable.
+     *
+     */
+    synchronized void clear() {
+        slabs.clear();
+        lingering.clear();
+        freeCount = 0;
+        usedBlocks = 0;
+        generation++;
+    }
+
+    /**
+     * Take a free block, reserving a new slab if required
+     *
+     * @return int : The block number, or -1 if the arena is full
+     */
+    private synchronized int allocate() {
+        if (freeCount == 0) {
+            int total = slabs.size() * slabBlocks;
+            if (total + slabBlocks > maxBlocks) {
+                return -1;
+            }
+            slabs.add(ByteBuffer.allocateDirect(slabBlocks * blockSize));
+            for (int i = total + slabBlocks - 1; i >= total; i--) {
+                push(i);
+            }
+        }
+        usedBlocks++;
+        return free[--freeCount];
+    }
+
+    /**
+     * Return blocks to the free list. Blocks from before the last clear()
+     * are ignored.
+     *
+     * @param blocks The block numbers
+     * @param count How many of them are in use
+     * @param owner The generation the blocks were allocated in
+     */
+    private synchronized void release(int[] blocks, int count, int owner) {
+        if (owner != generation) {
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            push(blocks[i]);
+        }
+        usedBlocks -= count;
+    }
+
+    /**
+     * Free released buffers whose streams have all been closed or collected.
+     * If asked to, buffers with streams still open are moved onto a copy so
+     * their blocks can be freed too.
+     *
+     * @param detach True to copy buffers with streams still open
+     */
+    private void reclaim(boolean detach) {
+        List<Buffer> candidates;
+        synchronized (this) {
+            if (lingering.isEmpty()) {
+                return;
+            }
+            candidates = new ArrayList<Buffer>(lingering);
+        }
+        for (Buffer buffer : candidates) {
+            if (buffer.reclaim(detach)) {
+                forget(buffer);
+            }
+        }
+    }
+
+    private synchronized void linger(Buffer buffer) {
+        lingering.add(buffer);
+    }
+
+    private synchronized void forget(Buffer buffer) {
+        lingering.remove(buffer);
+    }
+
+    private void push(int number) {
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, free.length * 2);
+        }
+        free[freeCount++] = number;
+    }
+
+    /**
+     * The current generation, for new buffers
+     *
+     */
+    private synchronized int generation() {
+        return generation;
+    }
+
+    /**
+     * A view of one block, positioned at its start
+     *
+     */
+    private synchronized ByteBuffer block(int number) {
+        ByteBuffer slab = slabs.get(number / slabBlocks).duplicate();
+        int start = (number % slabBlocks) * blockSize;
+        slab.limit(start + blockSize);
+        slab.position(start);
+        return slab.slice();
+    }
+
+    /**
+     * Payload content held in arena blocks. Each open stream holds the blocks,
+     * which are returned once the buffer is released and its last stream is
+     * closed.
+     */
+    private class Buffer extends PayloadBuffer {
+        private final int owner = generation();
+        private int[] blocks = new int[4];
+        private int count = 0;
+        private long size = 0;
+        private boolean released = false;
+        private boolean freed = false;
+
+        /**
+         * Readers share the blocks, opening, closing, releasing and freeing
+         * them is exclusive
+         */
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        /** Streams that may still be open, collected ones drop out */
+        private final List<WeakReference<BlockInputStream>> streams = new ArrayList<WeakReference<BlockInputStream>>();
+
+        /** Content for streams still open when the blocks had to be freed */
+        private PayloadBuffer detached;
+
+        private void add(int number) {
+            if (count == blocks.length) {
+                blocks = Arrays.copyOf(blocks, blocks.length * 2);
+            }
+            blocks[count++] = number;
+        }
+
+        /**
+         * A view of one of this buffer's blocks, if the arena still has it
+         *
+         */
+        private ByteBuffer block(int index) throws IOException {
+            synchronized (OffHeapArena.this) {
+                if (owner != generation) {
+                    throw new IOException("Off-heap arena has been cleared");
+                }
+                return OffHeapArena.this.block(blocks[index]);
+            }
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            lock.writeLock().lock();
+            try {
+                if (released) {
+                    throw new IOException("Payload buffer has been released");
+                }
+                BlockInputStream stream = new BlockInputStream();
+                streams.add(new WeakReference<BlockInputStream>(stream));
+                return stream;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public boolean isOnHeap() {
+            return false;
+        }
+
+        @Override
+        public boolean isSpilled() {
+            return false;
+        }
+
+        @Override
+        public PayloadBuffer spill(File directory) throws IOException {
+            InputStream in = open();
+            try {
+                return PayloadBuffer.read(in, 0, directory);
+            } finally {
+                in.close();
+            }
+        }
+
+        @Override
+        public void release() {
+            lock.writeLock().lock();
+            try {
+                if (released) {
+                    return;
+                }
+                released = true;
+                if (hasOpenStreams()) {
+                    linger(this);
+                } else {
+                    free();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            // Outside our lock, so we never hold two buffers' locks at once
+            reclaim(false);
+        }
+
+        /**
+         * Free this released buffer if nothing is reading it, or move its
+         * readers onto a copy if asked to
+         *
+         * @param detach True to copy the content for streams still open
+         * @return boolean : True if nothing is held any more
+         */
+        private boolean reclaim(boolean detach) {
+            lock.writeLock().lock();
+            try {
+                if (!hasOpenStreams()) {
+                    free();
+                    return true;
+                }
+                if (detach && !freed) {
+                    InputStream in = new BlockInputStream();
+                    try {
+                        detached = PayloadBuffer.read(in);
+                    } catch (IOException ex) {
+                        // Open streams will fail on their next read instead
+                    } finally {
+                        try {
+                            in.close();
+                        } catch (IOException ex) {
+                            // Nothing held
+                        }
+                    }
+                    freeBlocks();
+                }
+                return false;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * Return the blocks and any detached copy. Called with the write lock
+         * held.
+         *
+         */
+        private void free() {
+            streams.clear();
+            freeBlocks();
+            if (detached != null) {
+                detached.release();
+                detached = null;
+            }
+        }
+
+        private void freeBlocks() {
+            if (!freed) {
+                freed = true;
+                OffHeapArena.this.release(blocks, count, owner);
+                count = 0;
+            }
+        }
+
+        /**
+         * A stream has been closed, free the buffer if it was the last one
+         * holding it after release. Called with the write lock held.
+         *
+         */
+        private void closed() {
+            if (released && !hasOpenStreams()) {
+                free();
+                forget(this);
+            }
+        }
+
+        private boolean hasOpenStreams() {
+            for (Iterator<WeakReference<BlockInputStream>> it = streams
+                    .iterator(); it.hasNext();) {
+                BlockInputStream stream = it.next().get();
+                if (stream == null || stream.closed) {
+                    it.remove();
+                }
+            }
+            return !streams.isEmpty();
+        }
+
+        /**
+         * Reads straight from the arena blocks, or from the detached copy
+         * once the blocks have been freed
+         */
+        private class BlockInputStream extends InputStream {
+            private long remaining = size;
+            private int index = 0;
+            private ByteBuffer current;
+            private InputStream copy;
+            private boolean closed = false;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                lock.readLock().lock();
+                try {
+                    if (len == 0) {
+                        return 0;
+                    }
+                    if (!next()) {
+                        return -1;
+                    }
+                    int length = (int) Math.min(len, remaining);
+                    if (copy != null) {
+                        length = copy.read(b, off, length);
+                        if (length == -1) {
+                            throw new IOException("Payload copy is truncated");
+                        }
+                    } else {
+                        length = Math.min(length, current.remaining());
+                        current.get(b, off, length);
+                    }
+                    remaining -= length;
+                    return length;
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                lock.readLock().lock();
+                try {
+                    long skipped = 0;
+                    while (skipped < n && next()) {
+                        long length = Math.min(n - skipped, remaining);
+                        if (copy != null) {
+                            length = copy.skip(length);
+                            if (length <= 0) {
+                                break;
+                            }
+                        } else {
+                            length = Math.min(length, current.remaining());
+                            current.position(current.position()
+                                    + (int) length);
+                        }
+                        remaining -= length;
+                        skipped += length;
+                    }
+                    return skipped;
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+
+            @Override
+            public int available() throws IOException {
+                lock.readLock().lock();
+                try {
+                    if (copy != null) {
+                        return (int) Math.min(remaining, copy.available());
+                    }
+                    if (current == null || freed) {
+                        return (int) Math.min(remaining, blockSize);
+                    }
+                    return (int) Math.min(remaining, current.remaining());
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                lock.writeLock().lock();
+                try {
+                    if (closed) {
+                        return;
+                    }
+                    closed = true;
+                    if (copy != null) {
+                        copy.close();
+                    }
+                    closed();
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+
+            private boolean next() throws IOException {
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+                if (remaining <= 0) {
+                    return false;
+                }
+                if (freed && copy == null) {
+                    if (detached == null) {
+                        throw new IOException(
+                                "Payload buffer has been released");
+                    }
+                    copy = detached.open();
+                    long skip = size - remaining;
+                    while (skip > 0) {
+                        long skipped = copy.skip(skip);
+                        if (skipped <= 0) {
+                            throw new IOException("Payload copy is truncated");
+                        }
+                        skip -= skipped;
+                    }
+                    current = null;
+                }
+                if (copy == null
+                        && (current == null || !current.hasRemaining())) {
+                    current = block(index++);
+                }
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * The Fascinator - Plugin - Storage - RAM
+ * Copyright (C) 2026 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.ram;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.io.input.CountingInputStream;
+
+import com.googlecode.fascinator.common.JsonSimple;
+import com.googlecode.fascinator.common.MimeTypeUtil;
+import com.googlecode.fascinator.common.storage.impl.PayloadBuffer;
+
+/**
+ * <p>
+ * Deflate compression for RamStorage payloads. Content is compressed as it
+ * is stored and inflated as it is read, so neither side ever holds the whole
+ * payload uncompressed. Only payloads of at least 'threshold' bytes whose
+ * content type starts with one of 'types' are compressed, and anything that
+ * does not get smaller is kept as it is.
+ * </p>
+ *
+ * <p>
+ * The content type comes from the payload ID's extension, or failing that
+ * from a quick look at the leading bytes for text, so content is never run
+ * through magic detection here. The leading block is deflated first, and
+ * content that doesn't shrink there is stored without trying the rest.
+ * Content that does is deflated in a single pass and kept deflated even if
+ * the rest of it turns out not to shrink, deflate only adds a few bytes per
+ * block to content it can't compress.
+ * </p>
+ *
+ * <pre>
+ * "compression": {
+ *     "enabled": true,
+ *     "level": 1,
+ *     "threshold": 1024,
+ *     "types": ["text/", "application/xml", "application/json"]
+ * }
+ * </pre>
+ */
+public class PayloadCompressor {
+
+    /** Default smallest payload worth compressing */
+    private static final int DEFAULT_THRESHOLD = 1024;
+
+    /** Leading bytes deflated to see if compression is worthwhile */
+    private static final int PROBE_SIZE = 8192;
+
+    /** Leading bytes checked for text when the extension is unknown */
+    private static final int TEXT_SAMPLE = 512;
+
+    /** Output space for probes, reused by each thread */
+    private static final ThreadLocal<byte[]> probeOutput = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[PROBE_SIZE];
+        }
+    };
+
+    /** Leading bytes of each payload, reused by each thread */
+    private static final ThreadLocal<byte[]> heads = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[PROBE_SIZE];
+        }
+    };
+
+    /** Default content types to compress */
+    private static final String[] DEFAULT_TYPES = new String[] { "text/",
+            "application/xml", "application/json", "application/rdf+xml",
+            "application/xhtml+xml" };
+
+    /** Where stored bytes go */
+    interface Target {
+        PayloadBuffer read(InputStream in) throws IOException;
+    }
+
+    /** Deflate level */
+    private int level;
+
+    /** Smallest payload to compress */
+    private int threshold;
+
+    /** Content type prefixes to compress */
+    private List<String> types;
+
+    /** Metrics */
+    private final AtomicLong compressed = new AtomicLong(0);
+    private final AtomicLong rawBytes = new AtomicLong(0);
+    private final AtomicLong storedBytes = new AtomicLong(0);
+    private final AtomicLong nanos = new AtomicLong(0);
+    private final AtomicLong incompressible = new AtomicLong(0);
+
+    /**
+     * Create a compressor from the 'compression' node of the RAM storage
+     * config
+     *
+     * @param config The storage configuration
+     * @param path Path to the 'compression' node
+     */
+    PayloadCompressor(JsonSimple config, Object... path) {
+        level = Math.min(9, Math.max(1, config.getInteger(
+                Deflater.BEST_SPEED, append(path, "level"))));
+        threshold = Math.max(1, config.getInteger(DEFAULT_THRESHOLD, append(
+                path, "threshold")));
+        types = config.getStringList(append(path, "types"));
+        if (types == null || types.isEmpty()) {
+            types = new ArrayList<String>(Arrays.asList(DEFAULT_TYPES));
+        }
+    }
+
+    /**
+     * Store content, compressing it if policy allows
+     *
+     * @param pid The payload ID, used to work out the content type
+     * @param in The content
+     * @param target Where to store the resulting bytes
+     * @return PayloadBuffer : The stored content
+     * @throws IOException If the content could not be read or stored
+     */
+    PayloadBuffer read(String pid, InputStream in, Target target)
+            throws IOException {
+        // The target reads everything before returning, so the head can be
+        // reused by this thread's next payload. A threshold beyond the probe
+        // needs a head of its own to tell if the payload reaches it.
+        byte[] head = threshold > PROBE_SIZE ? new byte[threshold] : heads
+                .get();
+        int count = 0;
+        int read;
+        while (count < head.length
+                && (read = in.read(head, count, head.length - count)) != -1) {
+            count += read;
+        }
+        InputStream content = new SequenceInputStream(
+                new ByteArrayInputStream(head, 0, count), in);
+        if (count < threshold
+                || !isCompressible(contentType(pid, head, count))) {
+            return target.read(content);
+        }
+        if (!deflates(head, Math.min(count, PROBE_SIZE))) {
+            incompressible.incrementAndGet();
+            return target.read(content);
+        }
+
+        long start = System.nanoTime();
+        CountingInputStream raw = new CountingInputStream(content);
+        Deflater deflater = new Deflater(level);
+        PayloadBuffer stored;
+        try {
+            stored = target.read(new DeflaterInputStream(raw, deflater));
+        } finally {
+            deflater.end();
+        }
+        long size = raw.getByteCount();
+        nanos.addAndGet(System.nanoTime() - start);
+
+        if (stored.storedSize() >= size) {
+            // The probe was wrong, but storing it again raw would take a
+            // second pass for the few bytes deflate added
+            incompressible.incrementAndGet();
+        }
+        compressed.incrementAndGet();
+        rawBytes.addAndGet(size);
+        storedBytes.addAndGet(stored.storedSize());
+        return new CompressedBuffer(stored, size);
+    }
+
+    /**
+     * Number of payloads stored compressed
+     *
+     * @return long : The payload count
+     */
+    public long getCompressedPayloads() {
+        return compressed.get();
+    }
+
+    /**
+     * Number of payloads that were tried but didn't get smaller
+     *
+     * @return long : The payload count
+     */
+    public long getIncompressiblePayloads() {
+        return incompressible.get();
+    }
+
+    /**
+     * Uncompressed size of all compressed payloads
+     *
+     * @return long : The byte count
+     */
+    public long getRawBytes() {
+        return rawBytes.get();
+    }
+
+    /**
+     * Compressed size of all compressed payloads
+     *
+     * @return long : The byte count
+     */
+    public long getStoredBytes() {
+        return storedBytes.get();
+    }
+
+    /**
+     * Bytes saved by compression
+     *
+     * @return long : The byte count
+     */
+    public long getSavedBytes() {
+        return rawBytes.get() - storedBytes.get();
+    }
+
+    /**
+     * Average compression ratio, uncompressed over compressed size
+     *
+     * @return double : The ratio, 1 if nothing has been compressed
+     */
+    public double getRatio() {
+        long stored = storedBytes.get();
+        return stored == 0 ? 1 : (double) rawBytes.get() / stored;
+    }
+
+    /**
+     * Total time spent storing compressed payloads, in milliseconds
+     *
+     * @return long : The time taken
+     */
+    public long getCompressionMillis() {
+        return nanos.get() / 1000000;
+    }
+
+    /**
+     * Work out the content type from the payload ID's extension, or treat
+     * content that looks like text as plain text
+     *
+     */
+    private String contentType(String pid, byte[] head, int count) {
+        String type = MimeTypeUtil.getMimeType((byte[]) null, pid);
+        if (type != null && !MimeTypeUtil.DEFAULT_MIME_TYPE.equals(type)) {
+            return type;
+        }
+        int length = Math.min(count, TEXT_SAMPLE);
+        int control = 0;
+        for (int i = 0; i < length; i++) {
+            int b = head[i] & 0xff;
+            if (b == 0) {
+                return type;
+            }
+            if (b < 0x20 && b != '\t' && b != '\n' && b != '\r') {
+                control++;
+            }
+        }
+        return control * 20 > length ? type : "text/plain";
+    }
+
+    /**
+     * Whether deflating some leading bytes makes them smaller
+     *
+     */
+    private boolean deflates(byte[] sample, int length) {
+        byte[] out = probeOutput.get();
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            while (!deflater.finished() && deflater.getBytesWritten() < length) {
+                deflater.deflate(out);
+            }
+            return deflater.finished() && deflater.getBytesWritten() < length;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        for (String type : types) {
+            if (contentType.startsWith(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Object[] append(Object[] path, String key) {
+        Object[] full = Arrays.copyOf(path, path.length + 1);
+        full[path.length] = key;
+        return full;
+    }
+
+    /**
+     * Deflated content held in another buffer, inflated as it is read
+     */
+    private static class CompressedBuffer extends PayloadBuffer {
+        private PayloadBuffer stored;
+        private long size;
+
+        private CompressedBuffer(PayloadBuffer stored, long size) {
+            this.stored = stored;
+            this.size = size;
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            return new InflaterInputStream(stored.open());
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public long storedSize() {
+            return stored.storedSize();
+        }
+
+        @Override
+        public boolean isOnHeap() {
+            return stored.isOnHeap();
+        }
+
+        @Override
+        public boolean isSpilled() {
+            return stored.isSpilled();
+        }
+
+        @Override
+        public PayloadBuffer spill(File directory) throws IOException {
+            PayloadBuffer spilled = stored.spill(directory);
+            if (spilled == stored) {
+                return this;
+            }
+            return new CompressedBuffer(spilled, size);
+        }
+
+        @Override
+        public void release() {
+            stored.release();
+        }
+    }
+}
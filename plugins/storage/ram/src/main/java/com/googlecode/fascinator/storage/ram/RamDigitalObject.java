@@ -0,0 +1,278 @@
+/*
+ * The Fascinator - Plugin - Storage - RAM
+ * Copyright (C) 2026 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.ram;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import com.googlecode.fascinator.api.storage.Payload;
+import com.googlecode.fascinator.api.storage.StorageException;
+import com.googlecode.fascinator.common.storage.impl.GenericDigitalObject;
+import com.googlecode.fascinator.common.storage.impl.GenericPayload;
+import com.googlecode.fascinator.common.storage.impl.PayloadBuffer;
+
+/**
+ * A GenericDigitalObject that reports payload changes back to RamStorage, so
+ * the storage can account for the bytes it holds, enforce its capacity and
+ * write them to its log.
+ */
+class RamDigitalObject extends GenericDigitalObject {
+
+    /** Owning storage */
+    private RamStorage storage;
+
+    /** Payload bytes held in memory when last counted */
+    private long memoryBytes;
+
+    /** Growth counted by the storage ahead of writes, since the last count */
+    private long reserved;
+
+    /** True if some payload content has been moved to disk */
+    private volatile boolean evicted;
+
+    /** True once removed from the storage */
+    private volatile boolean removed;
+
+    /**
+     * Create an object
+     *
+     * @param storage The owning storage
+     * @param oid The object ID
+     * @param lock The lock guarding this object
+     */
+    RamDigitalObject(RamStorage storage, String oid, Object lock) {
+        super(oid, lock);
+        this.storage = storage;
+    }
+
+    @Override
+    public Payload createStoredPayload(String pid, InputStream in)
+            throws StorageException {
+        storage.checkCapacity();
+        Payload payload;
+        synchronized (getLock()) {
+            boolean existed = getManifest().containsKey(pid);
+            String sourceId = getSourceId();
+            try {
+                payload = super.createStoredPayload(pid, in);
+            } catch (StorageException ex) {
+                // Don't leave an empty payload behind
+                if (!existed) {
+                    getManifest().remove(pid);
+                    setSourceId(sourceId);
+                }
+                throw ex;
+            }
+            storage.logPut(this, payload);
+        }
+        storage.changed(this);
+        return payload;
+    }
+
+    @Override
+    public Payload createLinkedPayload(String pid, String linkPath)
+            throws StorageException {
+        storage.checkCapacity();
+        Payload payload;
+        synchronized (getLock()) {
+            payload = super.createLinkedPayload(pid, linkPath);
+            storage.logPut(this, payload);
+        }
+        storage.changed(this);
+        return payload;
+    }
+
+    @Override
+    public Payload updatePayload(String pid, InputStream in)
+            throws StorageException {
+        storage.checkCapacity();
+        Payload payload;
+        synchronized (getLock()) {
+            payload = super.updatePayload(pid, in);
+            storage.logPut(this, payload);
+        }
+        storage.changed(this);
+        return payload;
+    }
+
+    @Override
+    public Map<String, Payload> createOrUpdatePayloads(
+            Map<String, InputStream> payloads) throws StorageException {
+        storage.checkCapacity();
+        Map<String, Payload> result;
+        synchronized (getLock()) {
+            result = super.createOrUpdatePayloads(payloads);
+            for (Payload payload : result.values()) {
+                storage.logPut(this, payload);
+            }
+        }
+        storage.changed(this);
+        return result;
+    }
+
+    @Override
+    public void removePayload(String pid) throws StorageException {
+        synchronized (getLock()) {
+            super.removePayload(pid);
+            storage.logRemovePayload(this, pid);
+        }
+        storage.changed(this);
+    }
+
+    /**
+     * Also logs payload attributes, which callers may have changed directly
+     * on the payloads
+     */
+    @Override
+    public void close() throws StorageException {
+        synchronized (getLock()) {
+            super.close();
+            storage.logAttributes(this);
+        }
+        storage.changed(this);
+    }
+
+    /**
+     * Write content through the storage, which may compress it or keep it
+     * off the heap. Content for an object already removed from the storage is
+     * refused, nothing would ever free it, as is content that would take the
+     * storage over its limit under the 'reject' policy.
+     */
+    @Override
+    protected void writeContent(GenericPayload payload, InputStream in)
+            throws StorageException {
+        try {
+            if (removed) {
+                throw new StorageException("Object '" + getId()
+                        + "' has been removed from the storage");
+            }
+            PayloadBuffer buffer = storage.store(payload.getId(), in);
+            long grow = (buffer.isSpilled() ? 0 : buffer.storedSize())
+                    - payload.memorySize();
+            try {
+                storage.reserve(grow);
+            } catch (StorageException ex) {
+                buffer.release();
+                throw ex;
+            }
+            reserved += grow;
+            payload.setBuffer(buffer);
+        } catch (IOException ex) {
+            throw new StorageException(ex);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ex) {
+                // Already read in full
+            }
+        }
+    }
+
+    /**
+     * Count the payload bytes now in memory, returning the change since the
+     * last count. Called with the object's lock held.
+     *
+     * @return long : The change in bytes
+     */
+    long recount() {
+        long bytes = 0;
+        boolean spilled = false;
+        for (Payload payload : getManifest().values()) {
+            if (payload instanceof GenericPayload) {
+                GenericPayload generic = (GenericPayload) payload;
+                bytes += generic.memorySize();
+                // Mapped snapshot content was never in memory to evict
+                spilled = spilled || (generic.isSpilled()
+                        && !MappedSnapshot.isMapped(generic.getBuffer()));
+            }
+        }
+        long delta = bytes - memoryBytes - reserved;
+        memoryBytes = bytes;
+        reserved = 0;
+        evicted = spilled;
+        return delta;
+    }
+
+    /**
+     * Move all payload content to disk. Called with the object's lock held.
+     *
+     * @param directory The overflow directory
+     * @throws StorageException if content could not be written
+     */
+    void spill(File directory) throws StorageException {
+        for (Payload payload : getManifest().values()) {
+            if (payload instanceof GenericPayload) {
+                ((GenericPayload) payload).spill(directory);
+            }
+        }
+    }
+
+    /**
+     * Whether all payload content is held on the heap, rather than in a file
+     * or off-heap memory
+     *
+     * @return boolean : True if the content is on the heap
+     */
+    boolean isOnHeap() {
+        for (Payload payload : getManifest().values()) {
+            if (payload instanceof GenericPayload) {
+                PayloadBuffer buffer = ((GenericPayload) payload).getBuffer();
+                if (buffer != null && !buffer.isOnHeap()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Release every payload's content
+     *
+     */
+    void release() {
+        for (Payload payload : getManifest().values()) {
+            if (payload instanceof GenericPayload) {
+                ((GenericPayload) payload).release();
+            }
+        }
+    }
+
+    /**
+     * Mark the object as removed, so later changes through references still
+     * held by callers are ignored. Called with the object's lock held.
+     *
+     */
+    void markRemoved() {
+        removed = true;
+    }
+
+    boolean isRemoved() {
+        return removed;
+    }
+
+    long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    boolean isEvicted() {
+        return evicted;
+    }
+}
@@ -18,32 +18,195 @@
  */
 package com.googlecode.fascinator.storage.ram;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.googlecode.fascinator.api.PluginDescription;
 import com.googlecode.fascinator.api.storage.DigitalObject;
+import com.googlecode.fascinator.api.storage.ObjectIdCursor;
+import com.googlecode.fascinator.api.storage.Payload;
 import com.googlecode.fascinator.api.storage.Storage;
 import com.googlecode.fascinator.api.storage.StorageException;
-import com.googlecode.fascinator.common.storage.impl.GenericDigitalObject;
+import com.googlecode.fascinator.common.JsonSimple;
+import com.googlecode.fascinator.common.JsonSimpleConfig;
+import com.googlecode.fascinator.common.storage.impl.GenericPayload;
+import com.googlecode.fascinator.common.storage.impl.PayloadBuffer;
 
 /**
- * RAM based storage. This is not a persistent store, it's primary use is for
- * testing purposes.
+ * RAM based storage. By default this is not a persistent store, it's primary
+ * use is for testing purposes.
+ * 
+ * <p>
+ * Safe for use by several threads at once. The manifest is a concurrent
+ * sorted map, and each object's payload changes are guarded by one of a
+ * fixed set of striped locks chosen by object ID.
+ * </p>
+ * 
+ * <p>
+ * By default the storage grows without limit. Setting 'maxBytes' bounds the
+ * payload bytes held in memory. Under the 'evict' policy the least recently
+ * used objects have their payload content moved to an overflow directory on
+ * disk, from where it is still read on demand, until usage is back under 90%
+ * of the limit. Under the 'reject' policy a write that would take usage over
+ * the limit fails and leaves the payload as it was.
+ * </p>
+ * 
+ * <p>
+ * With 'offHeap' enabled, payload content is kept in direct memory outside
+ * the Java heap (see OffHeapArena), up to 'capacity' bytes. Content that does
+ * not fit goes on the heap as usual.
+ * </p>
+ * 
+ * <p>
+ * With 'compression' enabled, text payloads are deflated as they are stored,
+ * see PayloadCompressor.
+ * </p>
+ * 
+ * <p>
+ * With 'wal' enabled, every change is written to a log in 'directory' before
+ * it returns, and the storage is restored from the log on start up. Writers
+ * share fsyncs (group commit), 'sync' set to false skips them entirely, and
+ * every 'snapshotRecords' records the log is compacted into a snapshot. See
+ * RamStorageLog. Snapshot payload content is mapped into memory on start up
+ * rather than read, so a large store is ready as soon as its index has been
+ * loaded, and content is only copied onto the heap when it is written.
+ * </p>
+ * 
+ * <pre>
+ * "storage": {
+ *     "type": "ram",
+ *     "ram": {
+ *         "maxBytes": 536870912,
+ *         "policy": "evict",
+ *         "overflowDir": "${fascinator.home}/ram-overflow",
+ *         "offHeap": {
+ *             "enabled": true,
+ *             "capacity": 1073741824,
+ *             "slabSize": 16777216,
+ *             "blockSize": 65536
+ *         },
+ *         "compression": {
+ *             "enabled": true,
+ *             "threshold": 1024
+ *         },
+ *         "wal": {
+ *             "enabled": true,
+ *             "directory": "${fascinator.home}/ram-wal",
+ *             "sync": true,
+ *             "snapshotRecords": 100000
+ *         }
+ *     }
+ * }
+ * </pre>
  * 
  * @author Oliver Lucido
  */
 public class RamStorage implements Storage {
 
-    @SuppressWarnings("unused")
+    /** Number of lock stripes, must be a power of two */
+    private static final int LOCK_STRIPES = 64;
+
+    /** Eviction stops once usage falls to this share of the limit */
+    private static final double LOW_WATER = 0.9;
+
+    /** Off-heap defaults */
+    private static final long DEFAULT_OFF_HEAP_CAPACITY = 1024L * 1024 * 1024;
+    private static final int DEFAULT_SLAB_SIZE = 16 * 1024 * 1024;
+    private static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    /** Log records between snapshots by default */
+    private static final long DEFAULT_SNAPSHOT_RECORDS = 100000;
+
+    /** Capacity policy: spill least recently used content */
+    public static final String POLICY_EVICT = "evict";
+
+    /** Capacity policy: refuse writes */
+    public static final String POLICY_REJECT = "reject";
+
     private final Logger log = LoggerFactory.getLogger(RamStorage.class);
 
-    private Map<String, DigitalObject> manifest;
+    private final ConcurrentSkipListMap<String, DigitalObject> manifest = new ConcurrentSkipListMap<String, DigitalObject>();
+
+    private final Object[] locks;
+
+    /** Memory byte limit, zero for none */
+    private long maxBytes = 0;
+
+    /** True to refuse writes rather than evict */
+    private boolean reject = false;
+
+    /** Where evicted content goes */
+    private File overflowDir;
+
+    /** True if the overflow directory was created for this instance */
+    private boolean ownOverflowDir = false;
+
+    /** Off-heap payload memory, if enabled */
+    private OffHeapArena arena;
+
+    /** Payload compression, if enabled */
+    private PayloadCompressor compressor;
+
+    /** Stores bytes in the arena or on the heap */
+    private final PayloadCompressor.Target target = new PayloadCompressor.Target() {
+        @Override
+        public PayloadBuffer read(InputStream in) throws IOException {
+            OffHeapArena offHeap = arena;
+            if (offHeap != null) {
+                return offHeap.read(in);
+            }
+            return PayloadBuffer.read(in);
+        }
+    };
+
+    /** Write-ahead log, if enabled */
+    private volatile RamStorageLog wal;
+
+    /** Runs background snapshots of the log */
+    private ExecutorService snapshotter;
+    private final AtomicBoolean snapshotting = new AtomicBoolean(false);
+
+    /** Usage and metrics */
+    private final AtomicLong usedBytes = new AtomicLong(0);
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+    private final AtomicBoolean evicting = new AtomicBoolean(false);
+
+    /** Objects that may hold memory, least recently used first, if evicting */
+    private final LinkedHashMap<String, RamDigitalObject> lru = new LinkedHashMap<String, RamDigitalObject>(
+            16, 0.75f, true);
+
+    public RamStorage() {
+        locks = new Object[LOCK_STRIPES];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
 
     @Override
     public String getId() {
@@ -67,32 +230,199 @@ public class RamStorage implements Storage {
 
     @Override
     public void init(File jsonFile) throws StorageException {
-        // no configuration needed
+        try {
+            init(new JsonSimpleConfig(jsonFile));
+        } catch (IOException ioe) {
+            throw new StorageException("Failed to read file configuration!",
+                    ioe);
+        }
     }
 
     @Override
     public void init(String jsonString) throws StorageException {
-        // no configuration needed
+        try {
+            init(new JsonSimpleConfig(jsonString));
+        } catch (IOException ioe) {
+            throw new StorageException("Failed to read string configuration!",
+                    ioe);
+        }
+    }
+
+    private void init(JsonSimple config) throws StorageException {
+        if (config.getBoolean(false, "storage", "ram", "offHeap", "enabled")) {
+            long capacity = getLong(config, DEFAULT_OFF_HEAP_CAPACITY,
+                    "storage", "ram", "offHeap", "capacity");
+            arena = new OffHeapArena(capacity, config.getInteger(
+                    DEFAULT_SLAB_SIZE, "storage", "ram", "offHeap",
+                    "slabSize"), config.getInteger(DEFAULT_BLOCK_SIZE,
+                    "storage", "ram", "offHeap", "blockSize"));
+            log.info("RAM storage keeping up to {} payload bytes off heap",
+                    capacity);
+        }
+
+        if (config.getBoolean(false, "storage", "ram", "compression",
+                "enabled")) {
+            compressor = new PayloadCompressor(config, "storage", "ram",
+                    "compression");
+        }
+
+        maxBytes = Math.max(0, getLong(config, 0, "storage", "ram",
+                "maxBytes"));
+        String policy = config.getString(POLICY_EVICT, "storage", "ram",
+                "policy");
+        if (POLICY_REJECT.equals(policy)) {
+            reject = true;
+        } else if (!POLICY_EVICT.equals(policy)) {
+            throw new StorageException("Unknown RAM storage policy '"
+                    + policy + "'");
+        }
+        if (maxBytes > 0 && !reject) {
+            initOverflow(config);
+        }
+
+        if (config.getBoolean(false, "storage", "ram", "wal", "enabled")) {
+            initLog(config);
+        }
+    }
+
+    /**
+     * Prepare the directory evicted content goes to
+     *
+     */
+    private void initOverflow(JsonSimple config) throws StorageException {
+        String path = config.getString(null, "storage", "ram",
+                "overflowDir");
+        try {
+            if (path == null) {
+                overflowDir = File.createTempFile("ram-storage", "");
+                overflowDir.delete();
+                ownOverflowDir = true;
+            } else {
+                overflowDir = new File(path);
+            }
+            if (!overflowDir.isDirectory() && !overflowDir.mkdirs()) {
+                throw new StorageException("Cannot create overflow directory '"
+                        + overflowDir + "'");
+            }
+        } catch (IOException ioe) {
+            throw new StorageException("Cannot create overflow directory", ioe);
+        }
+        log.info("RAM storage limited to {} bytes, overflow in '{}'",
+                maxBytes, overflowDir.getAbsolutePath());
+    }
+
+    /**
+     * Open the write-ahead log and restore whatever it holds
+     *
+     */
+    private void initLog(JsonSimple config) throws StorageException {
+        String path = config.getString(null, "storage", "ram", "wal",
+                "directory");
+        if (path == null) {
+            throw new StorageException("No RAM storage log directory provided");
+        }
+        try {
+            RamStorageLog restored = new RamStorageLog(new File(path),
+                    config.getBoolean(true, "storage", "ram", "wal", "sync"),
+                    getLong(config, DEFAULT_SNAPSHOT_RECORDS, "storage",
+                            "ram", "wal", "snapshotRecords"));
+            // Nothing is logged until recovery is complete
+            restored.recover(new Recovery());
+            wal = restored;
+        } catch (IOException ioe) {
+            throw new StorageException("Failed to recover RAM storage log",
+                    ioe);
+        }
+        snapshotter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ram-storage-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
     }
 
     @Override
     public void shutdown() throws StorageException {
-        // don't need to do anything
+        boolean persisted = false;
+        RamStorageLog current = wal;
+        if (current != null) {
+            // Leave a fresh snapshot for a quick start next time
+            snapshotter.shutdown();
+            try {
+                snapshotter.awaitTermination(1, TimeUnit.MINUTES);
+                current.snapshot(getManifest().values());
+                current.close();
+                persisted = true;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (IOException ioe) {
+                throw new StorageException("Failed to close RAM storage log",
+                        ioe);
+            } finally {
+                wal = null;
+            }
+        }
+
+        // Free any files and off-heap memory we were holding. Objects on the
+        // heap are only dropped when the log already has their content.
+        for (DigitalObject object : new ArrayList<DigitalObject>(
+                getManifest().values())) {
+            if (persisted || !(object instanceof RamDigitalObject)
+                    || !((RamDigitalObject) object).isOnHeap()) {
+                removeObject(object.getId());
+            }
+        }
+        if (arena != null) {
+            arena.clear();
+        }
+        if (ownOverflowDir) {
+            try {
+                FileUtils.deleteDirectory(overflowDir);
+            } catch (IOException ioe) {
+                log.warn("Failed to delete overflow directory '{}'",
+                        overflowDir);
+            }
+        }
     }
 
     @Override
     public DigitalObject createObject(String oid) throws StorageException {
-        DigitalObject newObject = new GenericDigitalObject(oid);
-        getManifest().put(oid, newObject);
+        if (oid == null) {
+            throw new StorageException("No object ID provided");
+        }
+        checkCapacity();
+        RamDigitalObject newObject = new RamDigitalObject(this, oid,
+                lockFor(oid));
+        synchronized (lockFor(oid)) {
+            if (getManifest().containsKey(oid)) {
+                throw new StorageException("ID '" + oid + "' already exists.");
+            }
+            // Logged first, so a failure leaves nothing behind
+            RamStorageLog current = wal;
+            if (current != null) {
+                try {
+                    current.create(oid);
+                } catch (IOException ioe) {
+                    throw logFailure(ioe);
+                }
+            }
+            getManifest().put(oid, newObject);
+        }
+        snapshotIfDue();
+        touch(newObject);
         return newObject;
     }
 
     @Override
     public DigitalObject getObject(String oid) throws StorageException {
-        if (getManifest().containsKey(oid)) {
-            return getManifest().get(oid);
+        DigitalObject object = oid == null ? null : getManifest().get(oid);
+        if (object == null) {
+            throw new StorageException("ID '" + oid + "' does no exist.");
         }
-        throw new StorageException("ID '" + oid + "' does no exist.");
+        access(object);
+        return object;
     }
 
     @Override
@@ -100,15 +430,585 @@ public class RamStorage implements Storage {
         return getManifest().keySet();
     }
 
+    /**
+     * Walks the sorted manifest one key at a time, so nothing is copied and
+     * objects added or removed while iterating are handled gracefully.
+     */
+    @Override
+    public ObjectIdCursor getObjectIds(String continuationToken)
+            throws StorageException {
+        return new ManifestCursor(getManifest(), continuationToken);
+    }
+
     @Override
     public void removeObject(String oid) throws StorageException {
-        getManifest().remove(oid);
+        if (oid == null) {
+            return;
+        }
+        synchronized (lockFor(oid)) {
+            // Logged first, so a failure leaves the object in place
+            RamStorageLog current = wal;
+            if (current != null && getManifest().containsKey(oid)) {
+                try {
+                    current.remove(oid);
+                } catch (IOException ioe) {
+                    throw logFailure(ioe);
+                }
+            }
+            DigitalObject object = getManifest().remove(oid);
+            if (object instanceof RamDigitalObject) {
+                // Free any payload spill files
+                RamDigitalObject ramObject = (RamDigitalObject) object;
+                ramObject.markRemoved();
+                ramObject.release();
+                usedBytes.addAndGet(ramObject.recount());
+                synchronized (lru) {
+                    if (lru.get(oid) == ramObject) {
+                        lru.remove(oid);
+                    }
+                }
+            }
+        }
+        snapshotIfDue();
+    }
+
+    @Override
+    public Map<String, DigitalObject> getObjects(Collection<String> oids)
+            throws StorageException {
+        Map<String, DigitalObject> man = getManifest();
+        Map<String, DigitalObject> objects = new LinkedHashMap<String, DigitalObject>();
+        for (String oid : oids) {
+            DigitalObject object = oid == null ? null : man.get(oid);
+            if (object != null) {
+                access(object);
+                objects.put(oid, object);
+            }
+        }
+        return objects;
     }
 
-    public Map<String, DigitalObject> getManifest() {
-        if (manifest == null) {
-            manifest = new HashMap<String, DigitalObject>();
+    @Override
+    public void removeObjects(Collection<String> oids)
+            throws StorageException {
+        for (String oid : oids) {
+            removeObject(oid);
         }
+    }
+
+    public ConcurrentSkipListMap<String, DigitalObject> getManifest() {
         return manifest;
     }
+
+    /**
+     * Payload bytes currently held in memory, on or off the heap
+     * 
+     * @return long : The byte count
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * Configured memory byte limit
+     * 
+     * @return long : The limit, zero for none
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Off-heap bytes in use by payloads, in whole blocks
+     * 
+     * @return long : The byte count, zero if off-heap storage is disabled
+     */
+    public long getOffHeapBytes() {
+        return arena == null ? 0 : arena.getUsedBytes();
+    }
+
+    /**
+     * The payload compressor and its metrics, if enabled
+     * 
+     * @return PayloadCompressor : The compressor, or null
+     */
+    public PayloadCompressor getCompressor() {
+        return compressor;
+    }
+
+    /**
+     * Store payload content according to the configured compression and
+     * off-heap settings
+     * 
+     * @param pid The payload ID
+     * @param in The content
+     * @return PayloadBuffer : The stored content
+     * @throws IOException If the content could not be read or stored
+     */
+    PayloadBuffer store(String pid, InputStream in) throws IOException {
+        if (compressor != null) {
+            return compressor.read(pid, in, target);
+        }
+        return target.read(in);
+    }
+
+    /**
+     * Number of objects held, in memory or overflow
+     * 
+     * @return int : The object count
+     */
+    public int getObjectCount() {
+        return getManifest().size();
+    }
+
+    /**
+     * Number of object reads served entirely from memory
+     * 
+     * @return long : The hit count
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Number of object reads that found content in overflow
+     * 
+     * @return long : The miss count
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Number of objects whose content has been evicted to overflow
+     * 
+     * @return long : The eviction count
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Log a payload's content and attributes. Called with the object's lock
+     * held, after the change.
+     * 
+     * @param object The object
+     * @param payload The payload
+     * @throws StorageException if the log could not be written
+     */
+    void logPut(RamDigitalObject object, Payload payload)
+            throws StorageException {
+        RamStorageLog current = wal;
+        if (current == null || object.isRemoved()
+                || !(payload instanceof GenericPayload)) {
+            return;
+        }
+        try {
+            current.put(object.getId(), (GenericPayload) payload);
+        } catch (IOException ioe) {
+            throw logFailure(ioe);
+        }
+        snapshotIfDue();
+    }
+
+    /**
+     * Log a payload's removal. Called with the object's lock held.
+     * 
+     * @param object The object
+     * @param pid The payload ID
+     * @throws StorageException if the log could not be written
+     */
+    void logRemovePayload(RamDigitalObject object, String pid)
+            throws StorageException {
+        RamStorageLog current = wal;
+        if (current == null || object.isRemoved()) {
+            return;
+        }
+        try {
+            current.removePayload(object.getId(), pid);
+        } catch (IOException ioe) {
+            throw logFailure(ioe);
+        }
+        snapshotIfDue();
+    }
+
+    /**
+     * Log an object's source and payload attributes. Called with the
+     * object's lock held.
+     * 
+     * @param object The object
+     * @throws StorageException if the log could not be written
+     */
+    void logAttributes(RamDigitalObject object) throws StorageException {
+        RamStorageLog current = wal;
+        if (current == null || object.isRemoved()) {
+            return;
+        }
+        try {
+            current.attributes(object);
+        } catch (IOException ioe) {
+            throw logFailure(ioe);
+        }
+        snapshotIfDue();
+    }
+
+    /**
+     * Write a snapshot now and drop the log segments it replaces
+     * 
+     * @throws StorageException if the log is disabled or the snapshot failed
+     */
+    void snapshot() throws StorageException {
+        RamStorageLog current = wal;
+        if (current == null) {
+            throw new StorageException("RAM storage log is not enabled");
+        }
+        try {
+            current.snapshot(getManifest().values());
+        } catch (IOException ioe) {
+            throw new StorageException("Failed to write RAM storage snapshot",
+                    ioe);
+        }
+    }
+
+    /**
+     * The write-ahead log, if enabled
+     * 
+     * @return RamStorageLog : The log, or null
+     */
+    RamStorageLog getLog() {
+        return wal;
+    }
+
+    /**
+     * Start a background snapshot if enough has been logged since the last
+     * one
+     * 
+     */
+    private void snapshotIfDue() {
+        RamStorageLog current = wal;
+        if (current == null || !current.isSnapshotDue()
+                || !snapshotting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            snapshotter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        snapshot();
+                    } catch (StorageException ex) {
+                        log.error("Failed to write RAM storage snapshot", ex);
+                    } finally {
+                        snapshotting.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // Shutting down, which takes its own snapshot
+            snapshotting.set(false);
+        }
+    }
+
+    private StorageException logFailure(IOException ioe) {
+        return new StorageException("Failed to write RAM storage log", ioe);
+    }
+
+    /**
+     * Refuse a write if the storage is full under the 'reject' policy
+     * 
+     * @throws StorageException if the write should not proceed
+     */
+    void checkCapacity() throws StorageException {
+        if (reject && maxBytes > 0 && usedBytes.get() >= maxBytes) {
+            throw full(0);
+        }
+    }
+
+    /**
+     * Count the growth from a write before it is made, refusing it if that
+     * would take the storage over its limit under the 'reject' policy. The
+     * object takes the reservation back off at its next recount. Called with
+     * the object's lock held.
+     * 
+     * @param bytes The change in bytes held in memory
+     * @throws StorageException if the write should not proceed
+     */
+    void reserve(long bytes) throws StorageException {
+        if (!reject || maxBytes <= 0 || bytes <= 0) {
+            usedBytes.addAndGet(bytes);
+            return;
+        }
+        while (true) {
+            long used = usedBytes.get();
+            if (used + bytes > maxBytes) {
+                throw full(bytes);
+            }
+            if (usedBytes.compareAndSet(used, used + bytes)) {
+                return;
+            }
+        }
+    }
+
+    private StorageException full(long bytes) {
+        return new StorageException("RAM storage is full (" + usedBytes.get()
+                + " of " + maxBytes + " bytes"
+                + (bytes > 0 ? ", " + bytes + " more requested)" : ")"));
+    }
+
+    /**
+     * Account for a change to an object's payloads, evicting other content
+     * if that takes the storage over its limit
+     * 
+     * @param object The changed object
+     */
+    void changed(RamDigitalObject object) {
+        synchronized (object.getLock()) {
+            // Ignore late changes to removed objects
+            if (getManifest().get(object.getId()) != object) {
+                return;
+            }
+            usedBytes.addAndGet(object.recount());
+        }
+        touch(object);
+        // Never evict while holding an object lock, see evict()
+        if (maxBytes > 0 && !reject && usedBytes.get() > maxBytes
+                && !Thread.holdsLock(object.getLock())) {
+            evict();
+        }
+    }
+
+    /**
+     * Move the content of least recently used objects to disk until usage is
+     * back under the low water mark. Only one thread evicts at a time, and it
+     * takes one object lock at a time, so it cannot deadlock with writers.
+     * Objects leave the LRU order as they are passed over and rejoin it when
+     * next used, so each pass only walks what it evicts.
+     * 
+     */
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long target = (long) (maxBytes * LOW_WATER);
+            while (usedBytes.get() > target) {
+                List<RamDigitalObject> candidates = new ArrayList<RamDigitalObject>();
+                synchronized (lru) {
+                    long planned = 0;
+                    Iterator<RamDigitalObject> it = lru.values().iterator();
+                    while (it.hasNext() && usedBytes.get() - planned > target) {
+                        RamDigitalObject object = it.next();
+                        it.remove();
+                        if (object.getMemoryBytes() > 0) {
+                            candidates.add(object);
+                            planned += object.getMemoryBytes();
+                        }
+                    }
+                }
+                if (candidates.isEmpty()) {
+                    break;
+                }
+
+                for (RamDigitalObject object : candidates) {
+                    synchronized (object.getLock()) {
+                        if (getManifest().get(object.getId()) != object) {
+                            continue;
+                        }
+                        object.spill(overflowDir);
+                        usedBytes.addAndGet(object.recount());
+                    }
+                    evictions.incrementAndGet();
+                }
+            }
+        } catch (StorageException ex) {
+            log.error("Failed to evict RAM storage content", ex);
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    /**
+     * Record a read of an object
+     * 
+     * @param object The object
+     */
+    private void access(DigitalObject object) {
+        if (object instanceof RamDigitalObject) {
+            RamDigitalObject ramObject = (RamDigitalObject) object;
+            if (ramObject.isEvicted()) {
+                misses.incrementAndGet();
+            } else {
+                hits.incrementAndGet();
+            }
+            touch(ramObject);
+        }
+    }
+
+    private void touch(RamDigitalObject object) {
+        if (maxBytes > 0 && !reject) {
+            synchronized (lru) {
+                lru.put(object.getId(), object);
+            }
+        }
+    }
+
+    /**
+     * Read a whole number from config, which may be too large for an int
+     * 
+     */
+    private static long getLong(JsonSimple config, long defaultValue,
+            Object... path) {
+        Object value = config.getPath(path);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        if (value != null) {
+            try {
+                return Long.parseLong(value.toString().trim());
+            } catch (NumberFormatException ex) {
+                // Fall through
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Get the lock stripe guarding an object
+     * 
+     * @param oid The object ID
+     * @return Object : The lock
+     */
+    private Object lockFor(String oid) {
+        int hash = oid.hashCode();
+        hash ^= (hash >>> 16);
+        return locks[hash & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * Applies log records to the storage during recovery, quietly ignoring
+     * anything that has already happened
+     */
+    private class Recovery implements RamStorageLog.Replay {
+        @Override
+        public void create(String oid) throws Exception {
+            if (!getManifest().containsKey(oid)) {
+                createObject(oid);
+            }
+        }
+
+        @Override
+        public void remove(String oid) throws Exception {
+            removeObject(oid);
+        }
+
+        @Override
+        public void put(String oid, RamStorageLog.PayloadState state,
+                InputStream content) throws Exception {
+            DigitalObject object = getManifest().get(oid);
+            if (object == null) {
+                return;
+            }
+            Payload payload;
+            if (object.getPayloadIdList().contains(state.pid)) {
+                payload = object.updatePayload(state.pid, content);
+            } else {
+                payload = object.createStoredPayload(state.pid, content);
+            }
+            state.apply(payload);
+        }
+
+        @Override
+        public void removePayload(String oid, String pid) throws Exception {
+            DigitalObject object = getManifest().get(oid);
+            if (object != null && object.getPayloadIdList().contains(pid)) {
+                object.removePayload(pid);
+            }
+        }
+
+        @Override
+        public void attributes(String oid, String sourceId,
+                Map<String, RamStorageLog.PayloadState> payloads)
+                throws Exception {
+            DigitalObject object = getManifest().get(oid);
+            if (object == null) {
+                return;
+            }
+            object.setSourceId(sourceId);
+            for (RamStorageLog.PayloadState state : payloads.values()) {
+                if (object.getPayloadIdList().contains(state.pid)) {
+                    state.apply(object.getPayload(state.pid));
+                }
+            }
+        }
+
+        @Override
+        public void restore(String oid, String sourceId,
+                Map<String, RamStorageLog.PayloadState> payloads)
+                throws Exception {
+            DigitalObject object = getManifest().get(oid);
+            if (object == null) {
+                object = createObject(oid);
+            }
+            for (RamStorageLog.PayloadState state : payloads.values()) {
+                Payload payload;
+                if (object.getPayloadIdList().contains(state.pid)) {
+                    payload = object.getPayload(state.pid);
+                } else {
+                    payload = object.createStoredPayload(state.pid,
+                            new ByteArrayInputStream(new byte[0]));
+                }
+                // Serve the content from the mapped snapshot
+                ((GenericPayload) payload).setBuffer(state.content);
+                state.apply(payload);
+            }
+            object.setSourceId(sourceId);
+            changed((RamDigitalObject) object);
+        }
+    }
+
+    /**
+     * Cursor over the manifest's keys. The continuation token is the last key
+     * returned.
+     */
+    private static class ManifestCursor implements ObjectIdCursor {
+        private NavigableMap<String, DigitalObject> manifest;
+        private String last;
+
+        public ManifestCursor(NavigableMap<String, DigitalObject> manifest,
+                String token) {
+            this.manifest = manifest;
+            last = token;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextKey() != null;
+        }
+
+        @Override
+        public String next() {
+            String key = nextKey();
+            if (key == null) {
+                throw new NoSuchElementException();
+            }
+            last = key;
+            return key;
+        }
+
+        @Override
+        public String getContinuationToken() {
+            return last;
+        }
+
+        @Override
+        public void close() {
+            // Nothing to release
+        }
+
+        private String nextKey() {
+            if (last == null) {
+                return manifest.isEmpty() ? null : manifest.firstKey();
+            }
+            return manifest.higherKey(last);
+        }
+    }
 }
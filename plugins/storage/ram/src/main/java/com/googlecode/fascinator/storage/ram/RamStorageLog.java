@@ -0,0 +1,1124 @@
+/*
+ * The Fascinator - Plugin - Storage - RAM
+ * Copyright (C) 2026 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.storage.ram;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.googlecode.fascinator.api.storage.DigitalObject;
+import com.googlecode.fascinator.api.storage.Payload;
+import com.googlecode.fascinator.api.storage.PayloadType;
+import com.googlecode.fascinator.common.storage.impl.GenericPayload;
+import com.googlecode.fascinator.common.storage.impl.PayloadBuffer;
+
+/**
+ * <p>
+ * Write-ahead log for RamStorage. Every change is appended to the current
+ * log segment before the call that made it returns. Threads that append at
+ * the same time share a single fsync: the first to ask for one performs it
+ * for everything written so far, and the rest wait for it.
+ * </p>
+ *
+ * <p>
+ * Each record restates the result of a change (an object exists, a payload
+ * has this content, a payload is gone), so replaying a record that has
+ * already been applied does no harm. That allows snapshots to be taken
+ * without stopping writers: the log moves to a new segment, every object is
+ * written to a snapshot file one at a time, and once the snapshot is safely
+ * on disk the older segments are deleted. Recovery loads the newest snapshot
+ * and replays the segments after it. A record torn by a crash fails its
+ * length or checksum test and is discarded with anything after it in that
+ * segment.
+ * </p>
+ *
+ * <p>
+ * Recovery never reads snapshot payload bytes. Only the index at the end of
+ * the file is read, and the bytes are mapped into memory (see
+ * MappedSnapshot), so start up time depends on the number of payloads rather
+ * than their size. Payloads are copied onto the heap only when they are next
+ * written. Content still mapped from the old snapshot is switched to the new
+ * one before the old file is deleted.
+ * </p>
+ *
+ * <p>
+ * Record layout: type (1 byte), body length (8 bytes), body, CRC32 of type
+ * and body (4 bytes).
+ * </p>
+ *
+ * <p>
+ * Snapshot layout: "RAMSNAP2", payload bytes back to back, then the index,
+ * then the trailer. The index lists each object's ID, source ID and
+ * payloads, and each payload's attributes, position, length and CRC32,
+ * which is checked when the content is first read in full. The trailer
+ * holds the object count, the index position, the index CRC32 and the
+ * marker again.
+ * </p>
+ */
+class RamStorageLog {
+
+    /** Record types */
+    private static final byte CREATE = 1;
+    private static final byte REMOVE = 2;
+    private static final byte PUT = 3;
+    private static final byte REMOVE_PAYLOAD = 4;
+    private static final byte ATTRIBUTES = 5;
+
+    /** Record header and trailer sizes */
+    private static final int HEADER = 9;
+    private static final int TRAILER = 4;
+
+    /** Snapshot marker, and its trailer size: objects, index start, CRC32
+     * of the index, marker */
+    private static final byte[] MAGIC = new byte[] { 'R', 'A', 'M', 'S',
+            'N', 'A', 'P', '2' };
+    private static final int SNAPSHOT_TRAILER = 28;
+
+    /** Copy buffer size */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** File naming */
+    private static final Pattern SEGMENT = Pattern.compile("wal-(\\d+)\\.log");
+    private static final Pattern SNAPSHOT = Pattern
+            .compile("snapshot-(\\d+)\\.dat");
+
+    /** Logging */
+    private static Logger log = LoggerFactory.getLogger(RamStorageLog.class);
+
+    /**
+     * Receives records during recovery
+     */
+    interface Replay {
+        void create(String oid) throws Exception;
+
+        void remove(String oid) throws Exception;
+
+        void put(String oid, PayloadState state, InputStream content)
+                throws Exception;
+
+        void removePayload(String oid, String pid) throws Exception;
+
+        void attributes(String oid, String sourceId,
+                Map<String, PayloadState> payloads) throws Exception;
+
+        /**
+         * An object from a snapshot, each payload state carrying its mapped
+         * content
+         */
+        void restore(String oid, String sourceId,
+                Map<String, PayloadState> payloads) throws Exception;
+    }
+
+    /**
+     * Everything about a payload except its content, which is only present
+     * when loaded from a snapshot
+     */
+    static class PayloadState {
+        String pid;
+        boolean linked;
+        PayloadType type;
+        String label;
+        String contentType;
+        PayloadBuffer content;
+
+        PayloadState(GenericPayload payload) {
+            pid = payload.getId();
+            linked = payload.isLinked();
+            type = payload.getType();
+            label = payload.getLabel();
+            contentType = payload.getStoredContentType();
+        }
+
+        private PayloadState() {
+        }
+
+        /**
+         * Apply these attributes to a payload
+         *
+         */
+        void apply(Payload payload) {
+            if (payload instanceof GenericPayload) {
+                ((GenericPayload) payload).setLinked(linked);
+            }
+            if (type != null) {
+                payload.setType(type);
+            }
+            payload.setLabel(label);
+            if (contentType != null) {
+                payload.setContentType(contentType);
+            }
+        }
+    }
+
+    /**
+     * A payload whose content was copied into a new snapshot from an older
+     * one's mapping
+     */
+    private static class Remap {
+        private RamDigitalObject object;
+        private GenericPayload payload;
+        private PayloadBuffer content;
+        private long position;
+        private long length;
+        private int checksum;
+
+        private Remap(RamDigitalObject object, GenericPayload payload,
+                PayloadBuffer content, long position, long length,
+                int checksum) {
+            this.object = object;
+            this.payload = payload;
+            this.content = content;
+            this.position = position;
+            this.length = length;
+            this.checksum = checksum;
+        }
+    }
+
+    /** Log directory */
+    private File directory;
+
+    /** True to fsync before returning */
+    private boolean sync;
+
+    /** Records between snapshots, zero for none */
+    private long snapshotRecords;
+
+    /** Current segment */
+    private long segment;
+    private RandomAccessFile file;
+    private FileChannel channel;
+
+    /** Bytes appended across all segments, and how many are on disk */
+    private long written = 0;
+    private long synced = 0;
+
+    /** Group commit state, guarded by syncLock */
+    private final Object syncLock = new Object();
+    private boolean syncing = false;
+
+    /** Metrics */
+    private long records = 0;
+    private long recordsSinceSnapshot = 0;
+    private long syncs = 0;
+
+    /**
+     * Open a log
+     *
+     * @param directory Directory holding segments and snapshots
+     * @param sync True to fsync every change before returning
+     * @param snapshotRecords Records between snapshots, zero for none
+     * @throws IOException If the directory cannot be used
+     */
+    RamStorageLog(File directory, boolean sync, long snapshotRecords)
+            throws IOException {
+        this.directory = directory;
+        this.sync = sync;
+        this.snapshotRecords = Math.max(0, snapshotRecords);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create log directory '"
+                    + directory.getAbsolutePath() + "'");
+        }
+    }
+
+    /**
+     * Replay the newest snapshot and every later segment, then start a new
+     * segment for appending. Must be called once, before any append.
+     *
+     * @param replay Receives the records
+     * @return long : The number of records replayed
+     * @throws IOException If the log cannot be read
+     */
+    long recover(Replay replay) throws IOException {
+        // Unfinished snapshots from a crash
+        File[] all = directory.listFiles();
+        if (all != null) {
+            for (File file : all) {
+                if (file.getName().endsWith(".tmp")) {
+                    file.delete();
+                }
+            }
+        }
+
+        long snapshot = -1;
+        Map<Long, File> snapshots = list(SNAPSHOT);
+        if (!snapshots.isEmpty()) {
+            snapshot = Collections.max(snapshots.keySet());
+        }
+        long begin = System.currentTimeMillis();
+        long count = 0;
+        if (snapshot >= 0) {
+            count += load(snapshots.get(snapshot), replay);
+        }
+        long last = snapshot;
+        for (Map.Entry<Long, File> entry : list(SEGMENT).entrySet()) {
+            if (entry.getKey() > snapshot) {
+                count += replay(entry.getValue(), replay);
+            }
+            last = Math.max(last, entry.getKey());
+        }
+        openSegment(last + 1);
+        log.info("Recovered {} objects and records from '{}' in {}ms",
+                new Object[] { count, directory.getAbsolutePath(),
+                        System.currentTimeMillis() - begin });
+        return count;
+    }
+
+    /**
+     * Log an object's creation
+     *
+     */
+    void create(String oid) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, oid);
+        commit(append(CREATE, bytes.toByteArray(), null, 0));
+    }
+
+    /**
+     * Log an object's removal
+     *
+     */
+    void remove(String oid) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, oid);
+        commit(append(REMOVE, bytes.toByteArray(), null, 0));
+    }
+
+    /**
+     * Log a payload's current attributes and content
+     *
+     */
+    void put(String oid, GenericPayload payload) throws IOException {
+        commit(appendPut(oid, payload));
+    }
+
+    /**
+     * Log a payload's removal
+     *
+     */
+    void removePayload(String oid, String pid) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, oid);
+        writeString(out, pid);
+        commit(append(REMOVE_PAYLOAD, bytes.toByteArray(), null, 0));
+    }
+
+    /**
+     * Log an object's source and every payload's attributes, which callers
+     * may change without going through the object
+     *
+     */
+    void attributes(RamDigitalObject object) throws IOException {
+        commit(append(ATTRIBUTES, attributeBody(object), null, 0));
+    }
+
+    /**
+     * Whether enough has been logged since the last snapshot to take another
+     *
+     * @return boolean : True if a snapshot is due
+     */
+    synchronized boolean isSnapshotDue() {
+        return snapshotRecords > 0 && recordsSinceSnapshot >= snapshotRecords;
+    }
+
+    /**
+     * Write every object to a snapshot and delete the log segments it
+     * replaces. Writers carry on while it runs. The objects are only walked
+     * once the log has moved to a new segment, so pass a live view: anything
+     * created before that is in the view, and anything after is in the new
+     * segment.
+     *
+     * @param objects A live view of the storage's objects
+     * @throws IOException If the snapshot could not be written
+     */
+    void snapshot(Collection<DigitalObject> objects) throws IOException {
+        long covered = rotate();
+        File tmp = new File(directory, "snapshot-" + covered + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        long count = 0;
+        long indexStart;
+        List<Remap> remaps = new ArrayList<Remap>();
+        try {
+            out.setLength(0);
+            FileChannel target = out.getChannel();
+            writeFully(target, ByteBuffer.wrap(MAGIC));
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream index = new DataOutputStream(bytes);
+            CRC32 payloadCrc = new CRC32();
+            for (DigitalObject stored : objects) {
+                if (!(stored instanceof RamDigitalObject)) {
+                    continue;
+                }
+                RamDigitalObject object = (RamDigitalObject) stored;
+                synchronized (object.getLock()) {
+                    if (object.isRemoved()) {
+                        continue;
+                    }
+                    List<GenericPayload> payloads = new ArrayList<GenericPayload>();
+                    for (Payload payload : object.getManifest().values()) {
+                        if (payload instanceof GenericPayload) {
+                            payloads.add((GenericPayload) payload);
+                        }
+                    }
+                    writeString(index, object.getId());
+                    writeString(index, object.getSourceId());
+                    index.writeInt(payloads.size());
+                    for (GenericPayload payload : payloads) {
+                        writeState(index, new PayloadState(payload));
+                        PayloadBuffer content = payload.getBuffer();
+                        long position = target.position();
+                        payloadCrc.reset();
+                        long length = copy(content, target, payloadCrc);
+                        int checksum = (int) payloadCrc.getValue();
+                        index.writeLong(position);
+                        index.writeLong(length);
+                        index.writeInt(checksum);
+                        if (MappedSnapshot.isMapped(content)) {
+                            remaps.add(new Remap(object, payload, content,
+                                    position, length, checksum));
+                        }
+                    }
+                    count++;
+                }
+            }
+
+            byte[] entries = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(entries);
+            indexStart = target.position();
+            ByteBuffer trailer = ByteBuffer.allocate(SNAPSHOT_TRAILER);
+            trailer.putLong(count);
+            trailer.putLong(indexStart);
+            trailer.putInt((int) crc.getValue());
+            trailer.put(MAGIC);
+            trailer.flip();
+            writeFully(target, ByteBuffer.wrap(entries));
+            writeFully(target, trailer);
+            target.force(true);
+        } finally {
+            out.close();
+        }
+        File done = new File(directory, "snapshot-" + covered + ".dat");
+        if (!tmp.renameTo(done)) {
+            throw new IOException("Cannot rename snapshot '" + tmp + "'");
+        }
+
+        // Content still served from older snapshots moves to this one
+        if (!remaps.isEmpty()) {
+            remap(done, indexStart, remaps);
+        }
+
+        // Everything it covers can go
+        for (Map.Entry<Long, File> entry : list(SNAPSHOT).entrySet()) {
+            if (entry.getKey() < covered) {
+                entry.getValue().delete();
+            }
+        }
+        for (Map.Entry<Long, File> entry : list(SEGMENT).entrySet()) {
+            if (entry.getKey() <= covered) {
+                entry.getValue().delete();
+            }
+        }
+        log.info("Snapshot of {} objects written to '{}'", count,
+                done.getName());
+    }
+
+    /**
+     * Sync and close the current segment
+     *
+     */
+    void close() throws IOException {
+        synchronized (syncLock) {
+            while (syncing) {
+                waitForSync();
+            }
+            syncing = true;
+        }
+        try {
+            synchronized (this) {
+                if (channel != null) {
+                    channel.force(false);
+                    file.close();
+                    channel = null;
+                    file = null;
+                }
+                synced = written;
+            }
+        } finally {
+            synchronized (syncLock) {
+                syncing = false;
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Total records appended since the log was opened
+     *
+     */
+    synchronized long getRecords() {
+        return records;
+    }
+
+    /**
+     * Number of fsyncs performed, at most one per record thanks to group
+     * commit
+     *
+     */
+    synchronized long getSyncs() {
+        return syncs;
+    }
+
+    /**
+     * Start a new segment, so everything before it can be covered by a
+     * snapshot
+     *
+     * @return long : The last segment number before the new one
+     */
+    private long rotate() throws IOException {
+        synchronized (syncLock) {
+            while (syncing) {
+                waitForSync();
+            }
+            syncing = true;
+        }
+        try {
+            synchronized (this) {
+                if (channel == null) {
+                    throw new IOException("Log is closed");
+                }
+                long old = segment;
+                channel.force(false);
+                file.close();
+                openSegment(old + 1);
+                synced = written;
+                recordsSinceSnapshot = 0;
+                return old;
+            }
+        } finally {
+            synchronized (syncLock) {
+                syncing = false;
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    private void openSegment(long number) throws IOException {
+        segment = number;
+        file = new RandomAccessFile(new File(directory, "wal-" + number
+                + ".log"), "rw");
+        channel = file.getChannel();
+        channel.position(channel.size());
+    }
+
+    /**
+     * Append a record to the current segment
+     *
+     * @return long : The log position after the record
+     */
+    private synchronized long append(byte type, byte[] prefix,
+            InputStream content, long contentLength) throws IOException {
+        if (channel == null) {
+            throw new IOException("Log is closed");
+        }
+        long start = channel.position();
+        boolean done = false;
+        try {
+            written += write(channel, type, prefix, content, contentLength);
+            done = true;
+        } finally {
+            if (!done) {
+                discard(start);
+            }
+        }
+        records++;
+        recordsSinceSnapshot++;
+        return written;
+    }
+
+    private synchronized long appendPut(String oid, GenericPayload payload)
+            throws IOException {
+        if (channel == null) {
+            throw new IOException("Log is closed");
+        }
+        long start = channel.position();
+        boolean done = false;
+        try {
+            written += writePut(channel, oid, payload);
+            done = true;
+        } finally {
+            if (!done) {
+                discard(start);
+            }
+        }
+        records++;
+        recordsSinceSnapshot++;
+        return written;
+    }
+
+    /**
+     * Cut a record that failed part way off the end of the segment, so the
+     * records after it are not lost when recovery stops at the torn one. If
+     * that fails too, the log is closed and every later change fails.
+     *
+     */
+    private void discard(long position) {
+        try {
+            channel.truncate(position);
+            channel.position(position);
+        } catch (IOException ex) {
+            log.error("Cannot remove a partial record from segment {},"
+                    + " closing the log", segment, ex);
+            try {
+                file.close();
+            } catch (IOException ioe) {
+                // Already failing
+            }
+            channel = null;
+            file = null;
+        }
+    }
+
+    /**
+     * Wait until everything up to a position is on disk, performing the
+     * fsync if nobody else is
+     *
+     */
+    private void commit(long position) throws IOException {
+        if (!sync) {
+            return;
+        }
+        synchronized (syncLock) {
+            while (true) {
+                if (synced >= position) {
+                    return;
+                }
+                if (!syncing) {
+                    syncing = true;
+                    break;
+                }
+                waitForSync();
+            }
+        }
+
+        long upTo;
+        IOException failure = null;
+        try {
+            FileChannel current;
+            synchronized (this) {
+                upTo = written;
+                current = channel;
+                syncs++;
+            }
+            current.force(false);
+        } catch (IOException ex) {
+            failure = ex;
+            upTo = 0;
+        }
+        synchronized (syncLock) {
+            syncing = false;
+            if (failure == null) {
+                synced = Math.max(synced, upTo);
+            }
+            syncLock.notifyAll();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void waitForSync() throws IOException {
+        try {
+            syncLock.wait();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for log sync");
+        }
+    }
+
+    /**
+     * Write a PUT record for a payload
+     *
+     * @return long : Bytes written
+     */
+    private long writePut(FileChannel target, String oid,
+            GenericPayload payload) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, oid);
+        writeState(out, new PayloadState(payload));
+        Long size = payload.size();
+        long length = size == null ? 0 : size;
+        out.writeLong(length);
+        InputStream content = length == 0 ? null : payload.getBuffer().open();
+        try {
+            return write(target, PUT, bytes.toByteArray(), content, length);
+        } finally {
+            if (content != null) {
+                content.close();
+            }
+        }
+    }
+
+    private byte[] attributeBody(RamDigitalObject object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, object.getId());
+        writeString(out, object.getSourceId());
+        List<PayloadState> states = new ArrayList<PayloadState>();
+        for (Payload payload : object.getManifest().values()) {
+            if (payload instanceof GenericPayload) {
+                states.add(new PayloadState((GenericPayload) payload));
+            }
+        }
+        out.writeInt(states.size());
+        for (PayloadState state : states) {
+            writeState(out, state);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Write one record
+     *
+     * @return long : Bytes written
+     */
+    private static long write(FileChannel target, byte type, byte[] prefix,
+            InputStream content, long contentLength) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        header.put(type);
+        header.putLong(prefix.length + contentLength);
+        crc.update(type);
+        crc.update(prefix);
+        header.flip();
+        writeFully(target, header);
+        writeFully(target, ByteBuffer.wrap(prefix));
+
+        long remaining = contentLength;
+        if (content != null) {
+            byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE,
+                    Math.max(1, contentLength))];
+            int read;
+            while (remaining > 0
+                    && (read = content.read(buffer, 0, (int) Math.min(
+                            buffer.length, remaining))) != -1) {
+                crc.update(buffer, 0, read);
+                writeFully(target, ByteBuffer.wrap(buffer, 0, read));
+                remaining -= read;
+            }
+        }
+        if (remaining != 0) {
+            throw new IOException("Payload content shorter than its size");
+        }
+
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER);
+        trailer.putInt((int) crc.getValue());
+        trailer.flip();
+        writeFully(target, trailer);
+        return HEADER + prefix.length + contentLength + TRAILER;
+    }
+
+    private static void writeFully(FileChannel target, ByteBuffer buffer)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+
+    /**
+     * Load a snapshot by reading its index and mapping its payload bytes
+     *
+     * @return long : Objects loaded
+     */
+    private long load(File source, Replay replay) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(source, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size < MAGIC.length + SNAPSHOT_TRAILER) {
+                throw corrupt(source);
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(SNAPSHOT_TRAILER);
+            readFully(channel, trailer, size - SNAPSHOT_TRAILER);
+            trailer.flip();
+            long count = trailer.getLong();
+            long indexStart = trailer.getLong();
+            int checksum = trailer.getInt();
+            byte[] magic = new byte[MAGIC.length];
+            trailer.get(magic);
+            long indexLength = size - SNAPSHOT_TRAILER - indexStart;
+            if (!Arrays.equals(MAGIC, magic) || indexStart < MAGIC.length
+                    || indexLength < 0 || indexLength > Integer.MAX_VALUE) {
+                throw corrupt(source);
+            }
+
+            ByteBuffer entries = ByteBuffer.allocate((int) indexLength);
+            readFully(channel, entries, indexStart);
+            CRC32 crc = new CRC32();
+            crc.update(entries.array());
+            if ((int) crc.getValue() != checksum) {
+                throw corrupt(source);
+            }
+
+            MappedSnapshot mapped = new MappedSnapshot(channel, MAGIC.length,
+                    indexStart, MappedSnapshot.DEFAULT_CHUNK_SIZE);
+            DataInputStream index = new DataInputStream(
+                    new ByteArrayInputStream(entries.array()));
+            for (long i = 0; i < count; i++) {
+                String oid = readString(index);
+                String sourceId = readString(index);
+                int payloads = index.readInt();
+                Map<String, PayloadState> states = new LinkedHashMap<String, PayloadState>();
+                for (int j = 0; j < payloads; j++) {
+                    PayloadState state = readState(index);
+                    long position = index.readLong();
+                    long length = index.readLong();
+                    state.content = mapped.buffer(position, length,
+                            index.readInt());
+                    states.put(state.pid, state);
+                }
+                replay.restore(oid, sourceId, states);
+            }
+            return count;
+        } catch (IOException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException("Failed to load snapshot: "
+                    + ex.getMessage());
+        } finally {
+            // Mappings outlive the channel
+            in.close();
+        }
+    }
+
+    private IOException corrupt(File source) {
+        return new IOException("Snapshot '" + source.getName()
+                + "' is incomplete or corrupt");
+    }
+
+    /**
+     * Map a new snapshot and switch every payload still holding the content
+     * it was written from over to it
+     *
+     */
+    private void remap(File source, long indexStart, List<Remap> remaps)
+            throws IOException {
+        MappedSnapshot mapped;
+        RandomAccessFile in = new RandomAccessFile(source, "r");
+        try {
+            mapped = new MappedSnapshot(in.getChannel(), MAGIC.length,
+                    indexStart, MappedSnapshot.DEFAULT_CHUNK_SIZE);
+        } finally {
+            // Mappings outlive the channel
+            in.close();
+        }
+        for (Remap remap : remaps) {
+            PayloadBuffer content = mapped.buffer(remap.position,
+                    remap.length, remap.checksum);
+            synchronized (remap.object.getLock()) {
+                // Unless it has been written since
+                if (remap.payload.getBuffer() == remap.content) {
+                    // Same content, so keep its type
+                    String type = remap.payload.getStoredContentType();
+                    remap.payload.setBuffer(content);
+                    if (type != null) {
+                        remap.payload.setContentType(type);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy content to the end of a file
+     *
+     * @return long : Bytes copied
+     */
+    private static long copy(PayloadBuffer buffer, FileChannel target,
+            CRC32 crc) throws IOException {
+        if (buffer == null) {
+            return 0;
+        }
+        InputStream in = buffer.open();
+        try {
+            byte[] chunk = new byte[BUFFER_SIZE];
+            long total = 0;
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                crc.update(chunk, 0, read);
+                writeFully(target, ByteBuffer.wrap(chunk, 0, read));
+                total += read;
+            }
+            return total;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Replay one file, truncating it after the last good record
+     *
+     * @return long : Records replayed
+     */
+    private long replay(File source, Replay replay) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(source, "rw");
+        long count = 0;
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                long end = verify(channel, position, size);
+                if (end < 0) {
+                    log.warn("Discarding {} bytes of incomplete log at the"
+                            + " end of '{}'", size - position,
+                            source.getName());
+                    channel.truncate(position);
+                    break;
+                }
+                apply(channel, position, replay);
+                position = end;
+                count++;
+            }
+        } finally {
+            in.close();
+        }
+        return count;
+    }
+
+    /**
+     * Check a record's length and checksum
+     *
+     * @return long : The position after the record, or -1 if it is bad
+     */
+    private long verify(FileChannel channel, long position, long size)
+            throws IOException {
+        if (size - position < HEADER + TRAILER) {
+            return -1;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        readFully(channel, header, position);
+        header.flip();
+        byte type = header.get();
+        long length = header.getLong();
+        if (type < CREATE || type > ATTRIBUTES || length < 0
+                || size - position - HEADER - TRAILER < length) {
+            return -1;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE,
+                Math.max(1, length)));
+        long offset = position + HEADER;
+        long remaining = length;
+        while (remaining > 0) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), remaining));
+            readFully(channel, buffer, offset);
+            crc.update(buffer.array(), 0, buffer.position());
+            offset += buffer.position();
+            remaining -= buffer.position();
+        }
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER);
+        readFully(channel, trailer, offset);
+        trailer.flip();
+        if (trailer.getInt() != (int) crc.getValue()) {
+            return -1;
+        }
+        return offset + TRAILER;
+    }
+
+    /**
+     * Apply a verified record
+     *
+     */
+    private void apply(FileChannel channel, long position, Replay replay)
+            throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        readFully(channel, header, position);
+        header.flip();
+        byte type = header.get();
+        long length = header.getLong();
+        DataInputStream in = new DataInputStream(new RegionInputStream(
+                channel, position + HEADER, length));
+        try {
+            String oid = readString(in);
+            switch (type) {
+                case CREATE:
+                    replay.create(oid);
+                    break;
+                case REMOVE:
+                    replay.remove(oid);
+                    break;
+                case PUT:
+                    PayloadState state = readState(in);
+                    long contentLength = in.readLong();
+                    replay.put(oid, state, new RegionInputStream(channel,
+                            position + length + HEADER - contentLength,
+                            contentLength));
+                    break;
+                case REMOVE_PAYLOAD:
+                    replay.removePayload(oid, readString(in));
+                    break;
+                default:
+                    String sourceId = readString(in);
+                    int count = in.readInt();
+                    Map<String, PayloadState> payloads = new LinkedHashMap<String, PayloadState>();
+                    for (int i = 0; i < count; i++) {
+                        PayloadState payload = readState(in);
+                        payloads.put(payload.pid, payload);
+                    }
+                    replay.attributes(oid, sourceId, payloads);
+            }
+        } catch (IOException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException("Failed to replay log record: "
+                    + ex.getMessage());
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer,
+            long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read == -1) {
+                throw new IOException("Unexpected end of log");
+            }
+            position += read;
+        }
+    }
+
+    private static void writeState(DataOutputStream out, PayloadState state)
+            throws IOException {
+        writeString(out, state.pid);
+        out.writeBoolean(state.linked);
+        writeString(out, state.type == null ? null : state.type.name());
+        writeString(out, state.label);
+        writeString(out, state.contentType);
+    }
+
+    private static PayloadState readState(DataInputStream in)
+            throws IOException {
+        PayloadState state = new PayloadState();
+        state.pid = readString(in);
+        state.linked = in.readBoolean();
+        String type = readString(in);
+        state.type = type == null ? null : PayloadType.valueOf(type);
+        state.label = readString(in);
+        state.contentType = readString(in);
+        return state;
+    }
+
+    private static void writeString(DataOutputStream out, String value)
+            throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Log files of one kind by number, in order
+     *
+     */
+    private Map<Long, File> list(Pattern pattern) {
+        Map<Long, File> files = new TreeMap<Long, File>();
+        File[] all = directory.listFiles();
+        if (all != null) {
+            for (File file : all) {
+                Matcher matcher = pattern.matcher(file.getName());
+                if (matcher.matches()) {
+                    files.put(Long.parseLong(matcher.group(1)), file);
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Reads a region of a file channel without moving its position
+     */
+    private static class RegionInputStream extends InputStream {
+        private FileChannel channel;
+        private long position;
+        private long remaining;
+
+        private RegionInputStream(FileChannel channel, long position,
+                long length) {
+            this.channel = channel;
+            this.position = position;
+            remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, (int) Math.min(len,
+                    remaining));
+            int read = channel.read(buffer, position);
+            if (read == -1) {
+                return -1;
+            }
+            position += read;
+            remaining -= read;
+            return read;
+        }
+    }
+}
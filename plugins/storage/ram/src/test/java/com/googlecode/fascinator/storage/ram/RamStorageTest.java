@@ -19,21 +19,51 @@
 package com.googlecode.fascinator.storage.ram;
 
 import com.googlecode.fascinator.api.storage.DigitalObject;
+import com.googlecode.fascinator.api.storage.ObjectIdCursor;
 import com.googlecode.fascinator.api.storage.Payload;
 import com.googlecode.fascinator.api.storage.StorageException;
+import com.googlecode.fascinator.common.storage.impl.GenericPayload;
+import com.googlecode.fascinator.common.storage.impl.PayloadBuffer;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 
 import junit.framework.Assert;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class RamStorageTest {
 
+    private static final int THREADS = 8;
+
+    private Logger log = LoggerFactory.getLogger(RamStorageTest.class);
+
     private RamStorage ram;
 
     @Before
@@ -78,4 +108,970 @@ public class RamStorageTest {
             Assert.fail("Error deleting newObject : " + ex.getMessage());
         }
     }
+
+    @Test
+    public void bulkOperations() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            ram.createObject("bulk" + i);
+        }
+
+        // Missing objects are left out rather than failing the lot
+        Map<String, DigitalObject> objects = ram.getObjects(Arrays.asList(
+                "bulk0", "bulk3", "missing"));
+        Assert.assertEquals(2, objects.size());
+        Assert.assertTrue(objects.containsKey("bulk3"));
+
+        // One payload created, one updated
+        DigitalObject object = objects.get("bulk0");
+        object.createStoredPayload("existing", IOUtils.toInputStream("old"));
+        Map<String, InputStream> payloads = new LinkedHashMap<String, InputStream>();
+        payloads.put("existing", IOUtils.toInputStream("new"));
+        payloads.put("added", IOUtils.toInputStream("added"));
+        Map<String, Payload> result = object.createOrUpdatePayloads(payloads);
+        Assert.assertEquals(2, result.size());
+        Assert.assertEquals(2, object.getPayloadIdList().size());
+        Assert.assertEquals("new", IOUtils.toString(object.getPayload(
+                "existing").open()));
+        Assert.assertEquals("added", IOUtils.toString(object.getPayload(
+                "added").open()));
+
+        ram.removeObjects(Arrays.asList("bulk0", "bulk1", "bulk2"));
+        Assert.assertEquals(2, ram.getObjectIdList().size());
+    }
+
+    @Test
+    public void objectIdCursor() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            ram.createObject("cursor" + i);
+        }
+
+        // Stop part way through
+        ObjectIdCursor cursor = ram.getObjectIds(null);
+        List<String> seen = new ArrayList<String>();
+        for (int i = 0; i < 4; i++) {
+            seen.add(cursor.next());
+        }
+        String token = cursor.getContinuationToken();
+        cursor.close();
+        Assert.assertEquals("cursor3", token);
+
+        // Changes behind the cursor don't upset the resumed cursor
+        ram.removeObject("cursor1");
+        cursor = ram.getObjectIds(token);
+        while (cursor.hasNext()) {
+            seen.add(cursor.next());
+        }
+        cursor.close();
+        Assert.assertEquals(10, seen.size());
+        Assert.assertEquals("cursor9", seen.get(9));
+    }
+
+    @Test
+    public void duplicateCreate() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger created = new AtomicInteger(0);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < THREADS; i++) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    for (int j = 0; j < 100; j++) {
+                        try {
+                            ram.createObject("duplicate" + j);
+                            created.incrementAndGet();
+                        } catch (StorageException ex) {
+                            // Someone else got there first
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        run(tasks, start);
+
+        // Each ID is created exactly once
+        Assert.assertEquals(100, created.get());
+        Assert.assertEquals(100, ram.getObjectIdList().size());
+        try {
+            ram.createObject("duplicate0");
+            Assert.fail("Duplicate object was created");
+        } catch (StorageException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void concurrentStress() throws Exception {
+        final int objects = 50;
+        final int rounds = 2000;
+        for (int i = 0; i < objects; i++) {
+            ram.createObject("stress" + i).createStoredPayload("count",
+                    IOUtils.toInputStream("0"));
+        }
+
+        // Every thread creates, updates, reads and removes payloads
+        // on the same set of objects
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger operations = new AtomicInteger(0);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int t = 0; t < THREADS; t++) {
+            final String pid = "thread" + t;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    for (int i = 0; i < rounds; i++) {
+                        DigitalObject object = ram.getObject("stress"
+                                + (i % objects));
+                        String value = String.valueOf(i);
+                        object.createStoredPayload(pid,
+                                IOUtils.toInputStream(value));
+                        object.updatePayload("count",
+                                IOUtils.toInputStream(value));
+                        InputStream in = object.getPayload(pid).open();
+                        Assert.assertEquals(value, IOUtils.toString(in));
+                        in.close();
+                        object.getMetadata();
+                        object.removePayload(pid);
+                        operations.addAndGet(5);
+                    }
+                    return null;
+                }
+            });
+        }
+        long time = run(tasks, start);
+
+        log.info("{} threads: {} operations in {}ms ({} ops/s)",
+                new Object[] { THREADS, operations.get(), time,
+                        operations.get() * 1000L / Math.max(1, time) });
+        Assert.assertEquals(objects, ram.getObjectIdList().size());
+        for (int i = 0; i < objects; i++) {
+            Set<String> pids = ram.getObject("stress" + i).getPayloadIdList();
+            Assert.assertEquals(2, pids.size());
+            Assert.assertTrue(pids.contains("count"));
+        }
+    }
+
+    @Test
+    public void capacityEvict() throws Exception {
+        RamStorage bounded = new RamStorage();
+        bounded.init("{\"storage\": {\"ram\": {\"maxBytes\": 10000}}}");
+        try {
+            String content = repeat('x', 1000);
+            for (int i = 0; i < 20; i++) {
+                bounded.createObject("evict" + i).createStoredPayload("data",
+                        IOUtils.toInputStream(content + i));
+                Assert.assertTrue(bounded.getUsedBytes() <= 10000);
+            }
+            Assert.assertEquals(20, bounded.getObjectCount());
+            Assert.assertTrue(bounded.getEvictions() > 0);
+
+            // The oldest went first, and is still readable from disk
+            DigitalObject object = bounded.getObject("evict0");
+            Assert.assertEquals(1, bounded.getMisses());
+            Assert.assertEquals(content + 0, IOUtils.toString(object
+                    .getPayload("data").open()));
+            bounded.getObject("evict19");
+            Assert.assertEquals(1, bounded.getHits());
+
+            // Removing frees the bytes
+            for (int i = 0; i < 20; i++) {
+                bounded.removeObject("evict" + i);
+            }
+            Assert.assertEquals(0, bounded.getUsedBytes());
+        } finally {
+            bounded.shutdown();
+        }
+    }
+
+    /**
+     * Without a log, shutdown only drops objects whose content is on disk
+     */
+    @Test
+    public void shutdownKeepsHeapObjects() throws Exception {
+        RamStorage bounded = new RamStorage();
+        bounded.init("{\"storage\": {\"ram\": {\"maxBytes\": 3000}}}");
+        String content = repeat('x', 1000);
+        for (int i = 0; i < 5; i++) {
+            bounded.createObject("keep" + i).createStoredPayload("data",
+                    IOUtils.toInputStream(content + i));
+        }
+        Assert.assertTrue(bounded.getEvictions() > 0);
+        bounded.shutdown();
+
+        Assert.assertFalse(bounded.getObjectIdList().contains("keep0"));
+        Assert.assertEquals(content + 4, IOUtils.toString(bounded
+                .getObject("keep4").getPayload("data").open()));
+    }
+
+    @Test
+    public void capacityReject() throws Exception {
+        RamStorage bounded = new RamStorage();
+        bounded.init("{\"storage\": {\"ram\": {\"maxBytes\": 2000,"
+                + " \"policy\": \"reject\"}}}");
+        try {
+            String content = repeat('x', 1000);
+            DigitalObject object = bounded.createObject("reject");
+            object.createStoredPayload("one", IOUtils.toInputStream(content));
+            object.createStoredPayload("two", IOUtils.toInputStream(content));
+            Assert.assertEquals(2000, bounded.getUsedBytes());
+            try {
+                object.createStoredPayload("three",
+                        IOUtils.toInputStream(content));
+                Assert.fail("Write accepted over the limit");
+            } catch (StorageException ex) {
+                // Expected
+            }
+
+            // Room again once something is removed
+            object.removePayload("one");
+            object.createStoredPayload("three", IOUtils.toInputStream("3"));
+            Assert.assertEquals(1001, bounded.getUsedBytes());
+
+            // A single write can't overshoot, and leaves nothing behind
+            try {
+                object.createStoredPayload("big",
+                        IOUtils.toInputStream(repeat('b', 1500)));
+                Assert.fail("Write accepted over the limit");
+            } catch (StorageException ex) {
+                // Expected
+            }
+            Assert.assertFalse(object.getPayloadIdList().contains("big"));
+            try {
+                object.updatePayload("three",
+                        IOUtils.toInputStream(repeat('b', 1500)));
+                Assert.fail("Update accepted over the limit");
+            } catch (StorageException ex) {
+                // Expected
+            }
+            Assert.assertEquals("3", read(object.getPayload("three")));
+            Assert.assertEquals(1001, bounded.getUsedBytes());
+        } finally {
+            bounded.shutdown();
+        }
+    }
+
+    @Test
+    public void offHeap() throws Exception {
+        RamStorage offHeap = new RamStorage();
+        offHeap.init("{\"storage\": {\"ram\": {\"offHeap\": {"
+                + "\"enabled\": true, \"capacity\": 65536,"
+                + " \"slabSize\": 16384, \"blockSize\": 4096}}}}");
+        try {
+            // Spans several blocks
+            String content = repeat('o', 10000);
+            DigitalObject object = offHeap.createObject("offheap");
+            object.createStoredPayload("data", IOUtils.toInputStream(content));
+            Assert.assertEquals(3 * 4096, offHeap.getOffHeapBytes());
+            Assert.assertEquals(content, read(object.getPayload("data")));
+            Assert.assertEquals(Long.valueOf(10000), object.getPayload("data")
+                    .size());
+
+            // Old blocks are held by an open reader until it is closed
+            InputStream open = object.getPayload("data").open();
+            Assert.assertEquals('o', open.read());
+            object.updatePayload("data", IOUtils.toInputStream("small"));
+            Assert.assertEquals(4 * 4096, offHeap.getOffHeapBytes());
+            Assert.assertEquals("small", read(object.getPayload("data")));
+            Assert.assertEquals(content.substring(1), IOUtils.toString(open));
+            open.close();
+            Assert.assertEquals(4096, offHeap.getOffHeapBytes());
+
+            // Too big for what's left, falls back to the heap intact
+            String large = repeat('l', 70000);
+            object.createStoredPayload("large", IOUtils.toInputStream(large));
+            Assert.assertEquals(4096, offHeap.getOffHeapBytes());
+            Assert.assertEquals(large, read(object.getPayload("large")));
+
+            offHeap.removeObject("offheap");
+            Assert.assertEquals(0, offHeap.getOffHeapBytes());
+
+            // Writes through a reference to the removed object are refused
+            try {
+                object.updatePayload("data", IOUtils.toInputStream("late"));
+                Assert.fail("Wrote to a removed object");
+            } catch (StorageException ex) {
+                // Expected
+            }
+            Assert.assertEquals(0, offHeap.getOffHeapBytes());
+        } finally {
+            offHeap.shutdown();
+        }
+    }
+
+    /**
+     * Released content held by a stream nobody closes is copied off the
+     * arena once it is needed for new content
+     */
+    @Test
+    public void offHeapUnclosed() throws Exception {
+        OffHeapArena arena = new OffHeapArena(16384, 16384, 4096);
+        String content = repeat('u', 12000);
+        PayloadBuffer old = arena.read(IOUtils.toInputStream(content));
+        InputStream open = old.open();
+        Assert.assertEquals('u', open.read());
+        old.release();
+        Assert.assertEquals(3 * 4096, arena.getUsedBytes());
+
+        // Needs the held blocks, which move the open stream onto a copy
+        PayloadBuffer next = arena.read(IOUtils.toInputStream(repeat('n',
+                12000)));
+        Assert.assertFalse(next.isOnHeap());
+        Assert.assertEquals(3 * 4096, arena.getUsedBytes());
+        Assert.assertEquals(content.substring(1), IOUtils.toString(open));
+        open.close();
+        Assert.assertEquals(repeat('n', 12000), IOUtils.toString(next.open()));
+    }
+
+    /**
+     * Buffers from before a clear() can neither read nor free the new slabs
+     */
+    @Test
+    public void offHeapClear() throws Exception {
+        OffHeapArena arena = new OffHeapArena(65536, 16384, 4096);
+        PayloadBuffer stale = arena.read(IOUtils.toInputStream("stale"));
+        arena.clear();
+
+        PayloadBuffer current = arena.read(IOUtils.toInputStream("current"));
+        Assert.assertEquals(4096, arena.getUsedBytes());
+        try {
+            IOUtils.toString(stale.open());
+            Assert.fail("Stale buffer read from a cleared arena");
+        } catch (IOException ex) {
+            // Expected
+        }
+        stale.release();
+        Assert.assertEquals(4096, arena.getUsedBytes());
+
+        // The stale release did not put the block in use on the free list
+        PayloadBuffer other = arena.read(IOUtils.toInputStream("other"));
+        Assert.assertEquals(8192, arena.getUsedBytes());
+        Assert.assertEquals("current", IOUtils.toString(current.open()));
+        Assert.assertEquals("other", IOUtils.toString(other.open()));
+    }
+
+    /**
+     * Loads the same content on and off the heap, logging heap growth and
+     * collector time for each
+     */
+    @Test
+    public void offHeapGcComparison() throws Exception {
+        for (boolean enabled : new boolean[] { false, true }) {
+            RamStorage storage = new RamStorage();
+            storage.init("{\"storage\": {\"ram\": {\"offHeap\": {"
+                    + "\"enabled\": " + enabled
+                    + ", \"capacity\": 67108864}}}}");
+            try {
+                System.gc();
+                long gcBefore = gcTime();
+                long heapBefore = usedHeap();
+                byte[] content = new byte[64 * 1024];
+                for (int i = 0; i < 512; i++) {
+                    storage.createObject("gc" + i).createStoredPayload("data",
+                            new ByteArrayInputStream(content));
+                }
+                System.gc();
+                log.info("Off heap {}: heap grew {}KB, {}ms in GC",
+                        new Object[] { enabled,
+                                (usedHeap() - heapBefore) / 1024,
+                                gcTime() - gcBefore });
+                Assert.assertEquals(512, storage.getObjectCount());
+            } finally {
+                storage.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void compression() throws Exception {
+        RamStorage compressed = new RamStorage();
+        compressed.init("{\"storage\": {\"ram\": {\"compression\": {"
+                + "\"enabled\": true, \"threshold\": 256,"
+                + " \"types\": [\"text/\", \"application/\"]}}}}");
+        try {
+            StringBuilder xml = new StringBuilder(
+                    "<?xml version=\"1.0\"?><root>");
+            for (int i = 0; i < 500; i++) {
+                xml.append("<item id=\"").append(i).append("\">value</item>");
+            }
+            xml.append("</root>");
+            String content = xml.toString();
+
+            DigitalObject object = compressed.createObject("compressed");
+            object.createStoredPayload("data.xml", IOUtils
+                    .toInputStream(content));
+            Payload payload = object.getPayload("data.xml");
+            Assert.assertEquals(content, IOUtils.toString(payload.open()));
+            Assert.assertEquals(Long.valueOf(content.length()), payload.size());
+
+            PayloadCompressor compressor = compressed.getCompressor();
+            Assert.assertEquals(1, compressor.getCompressedPayloads());
+            Assert.assertEquals(content.length(), compressor.getRawBytes());
+            Assert.assertTrue(compressor.getRatio() > 5);
+            Assert.assertEquals(compressor.getStoredBytes(),
+                    compressed.getUsedBytes());
+
+            // Under the threshold, stored as is
+            object.createStoredPayload("small.xml", IOUtils
+                    .toInputStream("<root/>"));
+            Assert.assertEquals(1, compressor.getCompressedPayloads());
+            Assert.assertEquals("<root/>", IOUtils.toString(object
+                    .getPayload("small.xml").open()));
+
+            // Text without a known extension is spotted from its content
+            object.createStoredPayload("notes", IOUtils.toInputStream(content));
+            Assert.assertEquals(2, compressor.getCompressedPayloads());
+            Assert.assertEquals(content, IOUtils.toString(object
+                    .getPayload("notes").open()));
+
+            // Content the first block shows won't shrink is left alone
+            byte[] noise = new byte[20000];
+            new Random(1).nextBytes(noise);
+            object.createStoredPayload("noise.txt", new ByteArrayInputStream(
+                    noise));
+            Assert.assertEquals(2, compressor.getCompressedPayloads());
+            Assert.assertEquals(1, compressor.getIncompressiblePayloads());
+            Assert.assertTrue(Arrays.equals(noise, IOUtils.toByteArray(object
+                    .getPayload("noise.txt").open())));
+
+            // Content whose first block only just shrinks is kept as it was
+            // deflated, in one pass and barely larger than it started
+            byte[] mixed = new byte[100000];
+            new Random(2).nextBytes(mixed);
+            Arrays.fill(mixed, 0, 64, (byte) 'm');
+            object.createStoredPayload("mixed.txt", new ByteArrayInputStream(
+                    mixed));
+            Assert.assertEquals(3, compressor.getCompressedPayloads());
+            Assert.assertEquals(2, compressor.getIncompressiblePayloads());
+            GenericPayload stored = (GenericPayload) object
+                    .getPayload("mixed.txt");
+            Assert.assertTrue(stored.memorySize() < mixed.length + 256);
+            Assert.assertTrue(Arrays.equals(mixed, IOUtils.toByteArray(stored
+                    .open())));
+        } finally {
+            compressed.shutdown();
+        }
+    }
+
+    @Test
+    public void logRecovery() throws Exception {
+        File dir = tempDir();
+        try {
+            RamStorage first = logged(dir, 0);
+            DigitalObject object = first.createObject("durable");
+            object.createStoredPayload("source.txt", IOUtils
+                    .toInputStream("source"));
+            object.createStoredPayload("gone.txt", IOUtils
+                    .toInputStream("gone"));
+            object.updatePayload("source.txt", IOUtils
+                    .toInputStream("updated"));
+            object.getPayload("source.txt").setLabel("Source Label");
+            object.getMetadata().setProperty("key", "value");
+            object.close();
+            object.removePayload("gone.txt");
+            first.createObject("removed");
+            first.removeObject("removed");
+            // Crash, no shutdown
+
+            RamStorage second = logged(dir, 0);
+            try {
+                Assert.assertEquals(1, second.getObjectCount());
+                DigitalObject restored = second.getObject("durable");
+                Assert.assertEquals("source.txt", restored.getSourceId());
+                Assert.assertFalse(restored.getPayloadIdList().contains(
+                        "gone.txt"));
+                Payload payload = restored.getPayload("source.txt");
+                Assert.assertEquals("updated", read(payload));
+                Assert.assertEquals("Source Label", payload.getLabel());
+                Assert.assertEquals("value", restored.getMetadata()
+                        .getProperty("key"));
+            } finally {
+                second.shutdown();
+            }
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void logTornRecord() throws Exception {
+        File dir = tempDir();
+        try {
+            RamStorage first = logged(dir, 0);
+            first.createObject("torn").createStoredPayload("data", IOUtils
+                    .toInputStream("intact"));
+
+            // A PUT record cut short by the crash
+            File[] segments = dir.listFiles();
+            Assert.assertEquals(1, segments.length);
+            FileOutputStream out = new FileOutputStream(segments[0], true);
+            out.write(new byte[] { 3, 0, 0, 0, 0, 0, 0, 1, 0, 'x', 'y' });
+            out.close();
+            long length = segments[0].length();
+
+            RamStorage second = logged(dir, 0);
+            Assert.assertEquals(length - 11, segments[0].length());
+            Assert.assertEquals("intact", read(second.getObject("torn")
+                    .getPayload("data")));
+            second.getObject("torn").updatePayload("data", IOUtils
+                    .toInputStream("after"));
+
+            RamStorage third = logged(dir, 0);
+            try {
+                Assert.assertEquals("after", read(third.getObject("torn")
+                        .getPayload("data")));
+            } finally {
+                third.shutdown();
+            }
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void logSnapshot() throws Exception {
+        File dir = tempDir();
+        try {
+            RamStorage first = logged(dir, 0);
+            for (int i = 0; i < 10; i++) {
+                first.createObject("snap" + i).createStoredPayload("data",
+                        IOUtils.toInputStream("before" + i));
+            }
+            first.snapshot();
+            for (int i = 0; i < 10; i += 2) {
+                first.getObject("snap" + i).updatePayload("data",
+                        IOUtils.toInputStream("after" + i));
+            }
+            first.removeObject("snap9");
+
+            // One snapshot and the segment after it
+            Assert.assertEquals(2, dir.listFiles().length);
+
+            RamStorage second = logged(dir, 0);
+            try {
+                Assert.assertEquals(9, second.getObjectCount());
+                for (int i = 0; i < 9; i++) {
+                    Assert.assertEquals((i % 2 == 0 ? "after" : "before") + i,
+                            read(second.getObject("snap" + i).getPayload(
+                                    "data")));
+                }
+            } finally {
+                second.shutdown();
+            }
+
+            // Clean shutdown leaves only a snapshot and an empty segment
+            File[] files = dir.listFiles();
+            Arrays.sort(files);
+            Assert.assertEquals(2, files.length);
+            Assert.assertTrue(files[0].getName().startsWith("snapshot-"));
+            Assert.assertEquals(0, files[1].length());
+            RamStorage third = logged(dir, 0);
+            try {
+                Assert.assertEquals(9, third.getObjectCount());
+            } finally {
+                third.shutdown();
+            }
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    /**
+     * Objects created while a snapshot is being taken are in the snapshot or
+     * the segment after it
+     */
+    @Test
+    public void logSnapshotConcurrentCreate() throws Exception {
+        File dir = tempDir();
+        try {
+            final RamStorage first = logged(dir, 0);
+            final int count = 2000;
+            final AtomicInteger created = new AtomicInteger(0);
+            Thread creator = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < count; i++) {
+                            first.createObject("during" + i);
+                            created.incrementAndGet();
+                        }
+                    } catch (StorageException ex) {
+                        log.error("Create failed", ex);
+                    }
+                }
+            };
+            creator.start();
+            while (creator.isAlive()) {
+                first.snapshot();
+            }
+            creator.join();
+            Assert.assertEquals(count, created.get());
+
+            // Crash, no shutdown
+            RamStorage second = logged(dir, 0);
+            try {
+                Assert.assertEquals(count, second.getObjectCount());
+            } finally {
+                second.shutdown();
+            }
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void logGroupCommit() throws Exception {
+        File dir = tempDir();
+        final RamStorage storage = logged(dir, 0);
+        try {
+            final int rounds = 200;
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (int t = 0; t < THREADS; t++) {
+                final DigitalObject object = storage.createObject("group" + t);
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        for (int i = 0; i < rounds; i++) {
+                            object.createStoredPayload("p" + i, IOUtils
+                                    .toInputStream("value" + i));
+                        }
+                        return null;
+                    }
+                });
+            }
+            long time = run(tasks, start);
+
+            RamStorageLog wal = storage.getLog();
+            log.info("{} threads: {} logged writes in {}ms, {} fsyncs",
+                    new Object[] { THREADS, THREADS * rounds, time,
+                            wal.getSyncs() });
+            Assert.assertTrue(wal.getSyncs() < wal.getRecords());
+
+            RamStorage restored = logged(dir, 0);
+            try {
+                for (int t = 0; t < THREADS; t++) {
+                    Assert.assertEquals(rounds, restored.getObject("group" + t)
+                            .getPayloadIdList().size());
+                }
+            } finally {
+                restored.shutdown();
+            }
+        } finally {
+            storage.shutdown();
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    /**
+     * A record that fails part way is cut off, so the records after it
+     * survive recovery
+     */
+    @Test
+    public void logFailedWrite() throws Exception {
+        File dir = tempDir();
+        try {
+            final List<String> replayed = new ArrayList<String>();
+            RamStorageLog.Replay replay = new RamStorageLog.Replay() {
+                @Override
+                public void create(String oid) {
+                    replayed.add("create " + oid);
+                }
+
+                @Override
+                public void remove(String oid) {
+                    replayed.add("remove " + oid);
+                }
+
+                @Override
+                public void put(String oid, RamStorageLog.PayloadState state,
+                        InputStream content) {
+                    replayed.add("put " + oid);
+                }
+
+                @Override
+                public void removePayload(String oid, String pid) {
+                    replayed.add("removePayload " + oid);
+                }
+
+                @Override
+                public void attributes(String oid, String sourceId,
+                        Map<String, RamStorageLog.PayloadState> payloads) {
+                    replayed.add("attributes " + oid);
+                }
+
+                @Override
+                public void restore(String oid, String sourceId,
+                        Map<String, RamStorageLog.PayloadState> payloads) {
+                    replayed.add("restore " + oid);
+                }
+            };
+
+            RamStorageLog wal = new RamStorageLog(dir, false, 0);
+            wal.recover(replay);
+            wal.create("before");
+            GenericPayload shortPayload = new GenericPayload("short");
+            shortPayload.setBuffer(new PayloadBuffer() {
+                @Override
+                public InputStream open() {
+                    return new ByteArrayInputStream(new byte[3]);
+                }
+
+                @Override
+                public long size() {
+                    return 10;
+                }
+            });
+            try {
+                wal.put("before", shortPayload);
+                Assert.fail("Short content logged");
+            } catch (IOException ex) {
+                // Expected
+            }
+            wal.create("after");
+            wal.close();
+
+            new RamStorageLog(dir, false, 0).recover(replay);
+            Assert.assertEquals(Arrays.asList("create before", "create after"),
+                    replayed);
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    /**
+     * Creation and removal are logged before they happen, so a change that
+     * could not be logged is not made
+     */
+    @Test
+    public void logFirst() throws Exception {
+        File dir = tempDir();
+        RamStorage storage = logged(dir, 0);
+        try {
+            storage.createObject("kept");
+            storage.getLog().close();
+            try {
+                storage.createObject("unlogged");
+                Assert.fail("Created without a log");
+            } catch (StorageException ex) {
+                // Expected
+            }
+            Assert.assertFalse(storage.getObjectIdList().contains("unlogged"));
+            try {
+                storage.removeObject("kept");
+                Assert.fail("Removed without a log");
+            } catch (StorageException ex) {
+                // Expected
+            }
+            Assert.assertTrue(storage.getObjectIdList().contains("kept"));
+        } finally {
+            try {
+                storage.shutdown();
+            } catch (StorageException ex) {
+                // No snapshot without a log
+            }
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void warmStart() throws Exception {
+        File dir = tempDir();
+        try {
+            String content = repeat('w', 64 * 1024);
+            RamStorage first = logged(dir, 0);
+            for (int i = 0; i < 100; i++) {
+                DigitalObject object = first.createObject("warm" + i);
+                object.createStoredPayload("data", IOUtils
+                        .toInputStream(content + i));
+                object.getMetadata().setProperty("index", "" + i);
+                object.close();
+            }
+            first.shutdown();
+
+            long start = System.currentTimeMillis();
+            RamStorage second = logged(dir, 0);
+            log.info("Warm start of 100 objects ({} bytes) in {}ms",
+                    100 * content.length(), System.currentTimeMillis() - start);
+            try {
+                // Served from the mapped snapshot, nothing on the heap
+                Assert.assertEquals(100, second.getObjectCount());
+                Assert.assertEquals(0, second.getUsedBytes());
+                DigitalObject object = second.getObject("warm7");
+                GenericPayload payload = (GenericPayload) object
+                        .getPayload("data");
+                Assert.assertFalse(payload.getBuffer().isOnHeap());
+                Assert.assertEquals(content + 7, read(payload));
+                Assert.assertEquals("7", object.getMetadata().getProperty(
+                        "index"));
+                Assert.assertEquals("data", object.getSourceId());
+
+                // Mapped content was never evicted, so reads are hits
+                Assert.assertEquals(0, second.getMisses());
+                Assert.assertTrue(second.getHits() > 0);
+
+                // Written objects move onto the heap
+                object.updatePayload("data", IOUtils.toInputStream("changed"));
+                Assert.assertTrue(payload.getBuffer().isOnHeap());
+                Assert.assertTrue(second.getUsedBytes() > 0);
+                GenericPayload mapped = (GenericPayload) second.getObject(
+                        "warm8").getPayload("data");
+                Assert.assertFalse(mapped.getBuffer().isOnHeap());
+
+                // A new snapshot takes over the mapped content before the
+                // old one is deleted
+                PayloadBuffer old = mapped.getBuffer();
+                second.snapshot();
+                Assert.assertTrue(old != mapped.getBuffer());
+                Assert.assertFalse(mapped.getBuffer().isOnHeap());
+                Assert.assertEquals(content + 8, read(mapped));
+                int snapshots = 0;
+                for (File file : dir.listFiles()) {
+                    if (file.getName().startsWith("snapshot-")) {
+                        snapshots++;
+                    }
+                }
+                Assert.assertEquals(1, snapshots);
+                // Crash, no shutdown
+            } catch (Exception ex) {
+                second.shutdown();
+                throw ex;
+            }
+
+            RamStorage third = logged(dir, 0);
+            try {
+                Assert.assertEquals("changed", read(third.getObject("warm7")
+                        .getPayload("data")));
+                Assert.assertEquals(content + 8, read(third.getObject("warm8")
+                        .getPayload("data")));
+            } finally {
+                third.shutdown();
+            }
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void mappedChunks() throws Exception {
+        File file = File.createTempFile("mapped", ".dat");
+        try {
+            byte[] data = new byte[100];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) i;
+            }
+            FileUtils.writeByteArrayToFile(file, data);
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            MappedSnapshot mapped;
+            try {
+                mapped = new MappedSnapshot(in.getChannel(), 10, 90, 16);
+            } finally {
+                in.close();
+            }
+            Assert.assertEquals(80, mapped.getLength());
+
+            // Spans several chunks
+            InputStream stream = mapped.buffer(20, 50, crc(data, 20, 50))
+                    .open();
+            byte[] read = IOUtils.toByteArray(stream);
+            Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(data, 20, 70),
+                    read));
+            stream = mapped.buffer(12, 30, crc(data, 12, 30)).open();
+            Assert.assertEquals(12, stream.read());
+            Assert.assertEquals(10, stream.skip(10));
+            Assert.assertEquals(23, stream.read());
+
+            // Content that does not match its checksum
+            PayloadBuffer corrupt = mapped.buffer(20, 50, crc(data, 21, 50));
+            try {
+                IOUtils.toByteArray(corrupt.open());
+                Assert.fail("Corrupt content read in full");
+            } catch (IOException ex) {
+                // Expected
+            }
+            Assert.assertEquals(20, corrupt.open().read());
+
+            try {
+                mapped.buffer(80, 20, 0);
+                Assert.fail("Read outside the mapped region");
+            } catch (IOException ex) {
+                // Expected
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private int crc(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private RamStorage logged(File dir, int snapshotRecords) throws Exception {
+        RamStorage storage = new RamStorage();
+        storage.init("{\"storage\": {\"ram\": {\"wal\": {"
+                + "\"enabled\": true, \"directory\": \""
+                + dir.getAbsolutePath().replace('\\', '/')
+                + "\", \"snapshotRecords\": " + snapshotRecords + "}}}}");
+        return storage;
+    }
+
+    private File tempDir() throws Exception {
+        File dir = File.createTempFile("ram-wal", "");
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+    private long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory
+                .getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+
+    private long usedHeap() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage()
+                .getUsed();
+    }
+
+    private String read(Payload payload) throws Exception {
+        InputStream in = payload.open();
+        try {
+            return IOUtils.toString(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private long run(List<Callable<Void>> tasks, CountDownLatch start)
+            throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(tasks.size());
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (Callable<Void> task : tasks) {
+                futures.add(pool.submit(task));
+            }
+            long begin = System.currentTimeMillis();
+            start.countDown();
+            for (Future<Void> future : futures) {
+                // Rethrows any failure
+                future.get();
+            }
+            return System.currentTimeMillis() - begin;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
 }